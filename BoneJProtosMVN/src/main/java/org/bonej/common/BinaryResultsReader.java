@@ -0,0 +1,211 @@
+package org.bonej.common;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Strings;
+import ij.measure.ResultsTable;
+
+/**
+ * Reads a results file written by BinaryResultsWriter.
+ *
+ * The file is memory mapped, and only its header is parsed when it's opened.
+ * The columns are read straight from the mapped file when they're accessed, so
+ * reloading even a very large table is practically instant. A ResultsTable is
+ * created only if one is requested with toResultsTable().
+ */
+public class BinaryResultsReader {
+	private final int rows;
+	private final String[] dictionary;
+	private final String[] headings;
+	private final IntBuffer labelCodes;
+	private final DoubleBuffer values;
+
+	/**
+	 * Opens the given results file for reading
+	 *
+	 * @param path
+	 *            Path of a file written by BinaryResultsWriter
+	 * @throws IllegalArgumentException
+	 *             if path is null or empty
+	 * @throws IOException
+	 *             if the file could not be read, it's not a binary results
+	 *             file, or it's corrupted, e.g. a row refers to a label which
+	 *             is not in the file
+	 */
+	public BinaryResultsReader(String path) throws IOException {
+		checkArgument(!Strings.isNullOrEmpty(path), "Path must not be null or empty");
+
+		MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+			if (channel.size() > BinaryResultsWriter.MAX_FILE_SIZE) {
+				throw new IOException("Binary results file is larger than 2 GB: " + path);
+			}
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+
+		try {
+			if (buffer.getInt() != BinaryResultsWriter.MAGIC_NUMBER) {
+				throw new IOException("Not a binary results file: " + path);
+			}
+			int version = buffer.getInt();
+			if (version != BinaryResultsWriter.VERSION) {
+				throw new IOException("Unsupported binary results file version: " + version);
+			}
+
+			rows = buffer.getInt();
+			final int columns = buffer.getInt();
+			if (rows < 0 || columns < 0) {
+				throw new IOException("Corrupted binary results file: " + path);
+			}
+			dictionary = new String[buffer.getInt()];
+			headings = new String[columns];
+
+			for (int i = 0; i < dictionary.length; i++) {
+				dictionary[i] = readString(buffer);
+			}
+			for (int i = 0; i < columns; i++) {
+				headings[i] = readString(buffer);
+			}
+
+			align(buffer);
+			labelCodes = buffer.slice().asIntBuffer();
+			labelCodes.limit(rows);
+			for (int row = 0; row < rows; row++) {
+				final int code = labelCodes.get(row);
+				if (code != BinaryResultsWriter.NO_LABEL && (code < 0 || code >= dictionary.length)) {
+					throw new IOException("Corrupted binary results file, invalid label code " + code + ": " + path);
+				}
+			}
+			buffer.position(buffer.position() + rows * 4);
+
+			align(buffer);
+			values = buffer.slice().asDoubleBuffer();
+			final long valueCount = (long) rows * columns;
+			if (valueCount > values.capacity()) {
+				throw new IOException("Corrupted binary results file: " + path);
+			}
+			values.limit((int) valueCount);
+		} catch (RuntimeException e) {
+			// BufferUnderflowException, IllegalArgumentException etc.
+			throw new IOException("Corrupted binary results file: " + path, e);
+		}
+	}
+
+	public int getRowCount() {
+		return rows;
+	}
+
+	public int getColumnCount() {
+		return headings.length;
+	}
+
+	/**
+	 * @return The headings of the columns in the order they were written
+	 */
+	public String[] getHeadings() {
+		return headings.clone();
+	}
+
+	/**
+	 * @return The label of the row, or null if the row has no label
+	 * @throws IndexOutOfBoundsException
+	 *             if row is not in [0, getRowCount())
+	 */
+	@Nullable
+	public String getLabel(int row) {
+		checkElementIndex(row, rows, "Row");
+
+		int code = labelCodes.get(row);
+		return code == BinaryResultsWriter.NO_LABEL ? null : dictionary[code];
+	}
+
+	/**
+	 * @return Index of the column with the given heading, or
+	 *         ResultsTable.COLUMN_NOT_FOUND if there's no such column
+	 */
+	public int getColumnIndex(String heading) {
+		for (int i = 0; i < headings.length; i++) {
+			if (headings[i].equals(heading)) {
+				return i;
+			}
+		}
+
+		return ResultsTable.COLUMN_NOT_FOUND;
+	}
+
+	/**
+	 * @throws IndexOutOfBoundsException
+	 *             if column or row are out of bounds
+	 */
+	public double getValue(int column, int row) {
+		checkElementIndex(column, headings.length, "Column");
+		checkElementIndex(row, rows, "Row");
+
+		return values.get(column * rows + row);
+	}
+
+	/**
+	 * Returns a read-only view of the values of a column. The values are not
+	 * copied from the file.
+	 *
+	 * @throws IndexOutOfBoundsException
+	 *             if column is out of bounds
+	 */
+	public DoubleBuffer getColumn(int column) {
+		checkElementIndex(column, headings.length, "Column");
+
+		DoubleBuffer view = values.duplicate();
+		view.position(column * rows);
+		view.limit(column * rows + rows);
+		return view.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Creates a new ResultsTable with the labels and values in the file
+	 */
+	public ResultsTable toResultsTable() {
+		ResultsTable resultsTable = new ResultsTable();
+		resultsTable.setNaNEmptyCells(true);
+
+		for (int row = 0; row < rows; row++) {
+			resultsTable.incrementCounter();
+			String label = getLabel(row);
+			if (label != null) {
+				resultsTable.addLabel(label);
+			}
+			for (int column = 0; column < headings.length; column++) {
+				resultsTable.addValue(headings[column], values.get(column * rows + row));
+			}
+		}
+
+		return resultsTable;
+	}
+
+	// region -- Helper methods --
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void align(ByteBuffer buffer) {
+		int remainder = buffer.position() % BinaryResultsWriter.ALIGNMENT;
+		if (remainder != 0) {
+			buffer.position(buffer.position() + BinaryResultsWriter.ALIGNMENT - remainder);
+		}
+	}
+	// endregion
+}
@@ -0,0 +1,149 @@
+package org.bonej.common;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.google.common.base.Strings;
+import ij.measure.ResultsTable;
+
+/**
+ * Writes a ResultsTable into a compact binary columnar file, which is much
+ * faster to write and to reload than a text table. The file can be read with
+ * BinaryResultsReader.
+ *
+ * The file has the following layout (big-endian):
+ * 1) int magic number, int version, int rows, int columns, int labels
+ * 2) the distinct row labels (dictionary): int byte count + UTF-8 bytes each
+ * 3) the column headings: int byte count + UTF-8 bytes each
+ * 4) the label of each row as an int index to the dictionary (-1 = no label)
+ * 5) the values of each column as a double[rows] array, one column after
+ * the other
+ *
+ * Sections 4 and 5 start at an offset divisible by 8 so that they can be
+ * viewed directly from a memory mapped file. The file is mapped with a single
+ * mapping, so it can't be larger than 2 GB (MAX_FILE_SIZE).
+ */
+public class BinaryResultsWriter {
+	public static final int MAGIC_NUMBER = 0x424A5254; // "BJRT"
+	public static final int VERSION = 1;
+	public static final int NO_LABEL = -1;
+	/**
+	 * Largest file BinaryResultsReader can map
+	 */
+	public static final long MAX_FILE_SIZE = Integer.MAX_VALUE;
+	static final int ALIGNMENT = 8;
+
+	/**
+	 * Writes the labels and numeric columns of the given table into a file
+	 *
+	 * @param resultsTable
+	 *            The table to be written
+	 * @param path
+	 *            Path of the file
+	 * @throws NullPointerException
+	 *             if resultsTable == null
+	 * @throws IllegalArgumentException
+	 *             if path is null or empty, or the file would be larger than
+	 *             MAX_FILE_SIZE
+	 * @throws IOException
+	 *             if the file could not be written
+	 */
+	public static void write(ResultsTable resultsTable, String path) throws IOException {
+		checkNotNull(resultsTable, "Must have a ResultsTable to write");
+		checkArgument(!Strings.isNullOrEmpty(path), "Path must not be null or empty");
+
+		final int rows = resultsTable.getCounter();
+		final ArrayList<Integer> columns = new ArrayList<>();
+		for (int column = 0; column <= resultsTable.getLastColumn(); column++) {
+			if (resultsTable.columnExists(column)) {
+				columns.add(column);
+			}
+		}
+
+		final ArrayList<String> dictionary = new ArrayList<>();
+		final HashMap<String, Integer> dictionaryIndices = new HashMap<>();
+		final int[] labelCodes = new int[rows];
+		for (int row = 0; row < rows; row++) {
+			String label = resultsTable.getLabel(row);
+			if (label == null) {
+				labelCodes[row] = NO_LABEL;
+				continue;
+			}
+
+			Integer code = dictionaryIndices.get(label);
+			if (code == null) {
+				code = dictionary.size();
+				dictionary.add(label);
+				dictionaryIndices.put(label, code);
+			}
+			labelCodes[row] = code;
+		}
+
+		long fileSize = 5 * 4;
+		for (String label : dictionary) {
+			fileSize += 4 + label.getBytes(StandardCharsets.UTF_8).length;
+		}
+		for (int column : columns) {
+			fileSize += 4 + resultsTable.getColumnHeading(column).getBytes(StandardCharsets.UTF_8).length;
+		}
+		fileSize = align(fileSize) + 4L * rows;
+		fileSize = align(fileSize) + 8L * rows * columns.size();
+		checkArgument(fileSize <= MAX_FILE_SIZE, "Table is too large for a binary results file, the limit is 2 GB");
+
+		try (DataOutputStream output = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(path), 1 << 16))) {
+			output.writeInt(MAGIC_NUMBER);
+			output.writeInt(VERSION);
+			output.writeInt(rows);
+			output.writeInt(columns.size());
+			output.writeInt(dictionary.size());
+
+			for (String label : dictionary) {
+				writeString(output, label);
+			}
+
+			for (int column : columns) {
+				writeString(output, resultsTable.getColumnHeading(column));
+			}
+
+			pad(output);
+			for (int code : labelCodes) {
+				output.writeInt(code);
+			}
+
+			pad(output);
+			for (int column : columns) {
+				double[] values = resultsTable.getColumnAsDoubles(column);
+				for (int row = 0; row < rows; row++) {
+					output.writeDouble(values[row]);
+				}
+			}
+		}
+	}
+
+	// region -- Helper methods --
+	private static void writeString(DataOutputStream output, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+	private static long align(long size) {
+		return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+	}
+
+	private static void pad(DataOutputStream output) throws IOException {
+		while (output.size() % ALIGNMENT != 0) {
+			output.writeByte(0);
+		}
+	}
+	// endregion
+}
@@ -0,0 +1,24 @@
+package org.bonej.common;
+
+/**
+ * The number of foreground (Common.BINARY_WHITE) and background
+ * (Common.BINARY_BLACK) voxels in a binary image.
+ *
+ * @see ImageCheck#countBinaryVoxels(ij.ImagePlus)
+ */
+public final class BinaryVoxelCounts {
+	public final long foreground;
+	public final long background;
+
+	public BinaryVoxelCounts(long foreground, long background) {
+		this.foreground = foreground;
+		this.background = background;
+	}
+
+	/**
+	 * @return Total number of voxels in the image
+	 */
+	public long total() {
+		return foreground + background;
+	}
+}
@@ -10,11 +10,6 @@ public class Common {
 	// @todo move to a ResourceBundle
 	public static final String NOT_BINARY_IMAGE_ERROR = "8-bit binary (black and white only) image required.";
 
-	public static final String ANISOTROPY_WARNING = "This image contains anisotropic voxels, which will\n"
-			+ "result in incorrect thickness calculation.\n\n"
-			+ "Consider rescaling your data so that voxels are isotropic\n" + "(Image > Scale...).\n\n"
-			+ "Continue anyway?";
-
 	public static final String WRONG_IMAGE_TYPE_DIALOG_TITLE = "Wrong kind of image";
 
 	public static double clamp(double value, double min, double max) {
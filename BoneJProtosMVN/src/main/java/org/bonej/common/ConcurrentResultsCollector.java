@@ -0,0 +1,215 @@
+package org.bonej.common;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.google.common.base.Strings;
+import ij.measure.ResultsTable;
+
+/**
+ * A thread safe collector for measurements produced by parallel batch runs,
+ * e.g. when several images are processed with Thickness or TriplePointAngles
+ * at the same time.
+ *
+ * Each thread adds its measurements into a buffer of its own, so adding a
+ * measurement never blocks or contends with other threads. When the batch has
+ * ended the buffers are merged into a ResultsInserter (or a file) so that the
+ * rows are sorted by their label. The measurements of a single label keep the
+ * order in which they were added, which makes the merged table deterministic
+ * as long as each label is measured by only one thread.
+ *
+ * The methods that merge the buffers must be called only after all the threads
+ * adding measurements have finished, e.g. after Thread.join() or Future.get().
+ */
+public class ConcurrentResultsCollector {
+	private static final Comparator<Measurement> LABEL_ORDER = new Comparator<Measurement>() {
+		@Override
+		public int compare(Measurement m1, Measurement m2) {
+			return m1.label.compareTo(m2.label);
+		}
+	};
+
+	private final Queue<ArrayList<Measurement>> buffers = new ConcurrentLinkedQueue<>();
+	private final ThreadLocal<ArrayList<Measurement>> threadBuffer = new ThreadLocal<ArrayList<Measurement>>() {
+		@Override
+		protected ArrayList<Measurement> initialValue() {
+			ArrayList<Measurement> buffer = new ArrayList<>();
+			buffers.add(buffer);
+			return buffer;
+		}
+	};
+
+	/**
+	 * Adds a measurement into the buffer of the calling thread
+	 *
+	 * @param rowLabel
+	 *            The row label of the new data
+	 * @param measurementHeading
+	 *            The column heading of the new data
+	 * @param measurementValue
+	 *            The value of the new data
+	 * @throws IllegalArgumentException
+	 *             if rowLabel or measurementHeading is null or empty
+	 */
+	public void setMeasurement(String rowLabel, String measurementHeading, double measurementValue) {
+		checkArgument(!Strings.isNullOrEmpty(rowLabel), "Row label must not be null or empty");
+		checkArgument(!Strings.isNullOrEmpty(measurementHeading), "Measurement heading must not be null or empty");
+
+		threadBuffer.get().add(new Measurement(rowLabel, measurementHeading, measurementValue));
+	}
+
+	/**
+	 * @return The number of measurements collected since the last merge
+	 */
+	public int size() {
+		int size = 0;
+		for (ArrayList<Measurement> buffer : buffers) {
+			size += buffer.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Discards all the measurements collected since the last merge
+	 */
+	public void clear() {
+		for (ArrayList<Measurement> buffer : buffers) {
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * Moves all the collected measurements to the table of the given
+	 * ResultsInserter in label order. The measurements are inserted according
+	 * to the policy described in @see ResultsInserter.
+	 *
+	 * The measurements are grouped by label, and the rows of a label which is
+	 * not yet in the table are built first and appended once, so the merge
+	 * takes linear time. Only labels already in the table go through the
+	 * ResultsInserter one measurement at a time.
+	 *
+	 * @param resultsInserter
+	 *            The inserter which receives the measurements
+	 * @throws NullPointerException
+	 *             if resultsInserter == null
+	 * @post size() == 0
+	 */
+	public void mergeInto(ResultsInserter resultsInserter) {
+		checkNotNull(resultsInserter, "Must have a ResultsInserter to merge into");
+
+		final ResultsTable resultsTable = resultsInserter.getResultsTable();
+		final Set<String> existingLabels = new HashSet<>();
+		for (int row = 0; row < resultsTable.getCounter(); row++) {
+			existingLabels.add(resultsTable.getLabel(row));
+		}
+
+		final ArrayList<Measurement> measurements = drainSorted();
+		int start = 0;
+		while (start < measurements.size()) {
+			final String label = measurements.get(start).label;
+			int end = start + 1;
+			while (end < measurements.size() && measurements.get(end).label.equals(label)) {
+				end++;
+			}
+
+			final List<Measurement> group = measurements.subList(start, end);
+			if (existingLabels.contains(label)) {
+				for (Measurement measurement : group) {
+					resultsInserter.setMeasurementInFirstFreeRow(label, measurement.heading, measurement.value);
+				}
+			} else {
+				appendRows(resultsTable, label, group);
+			}
+			start = end;
+		}
+	}
+
+	/**
+	 * Moves all the collected measurements to a new table in label order, and
+	 * saves it to the given file.
+	 *
+	 * @param path
+	 *            Path of the results file, e.g. "results.csv"
+	 * @throws IOException
+	 *             if the table could not be saved
+	 * @see ResultsTable#saveAs(String)
+	 * @post size() == 0
+	 */
+	public void writeTo(String path) throws IOException {
+		checkArgument(!Strings.isNullOrEmpty(path), "Path must not be null or empty");
+
+		ResultsInserter resultsInserter = new ResultsInserter();
+		resultsInserter.setResultsTable(new ResultsTable());
+		mergeInto(resultsInserter);
+		resultsInserter.getResultsTable().saveAs(path);
+	}
+
+	// region -- Helper methods --
+	/**
+	 * Appends the rows of a new label. Each measurement goes to the first row
+	 * of the label which has no value in its column, like in ResultsInserter.
+	 */
+	private static void appendRows(ResultsTable resultsTable, String label, List<Measurement> group) {
+		final ArrayList<Map<String, Double>> rows = new ArrayList<>();
+		for (Measurement measurement : group) {
+			Map<String, Double> freeRow = null;
+			for (Map<String, Double> row : rows) {
+				if (!row.containsKey(measurement.heading)) {
+					freeRow = row;
+					break;
+				}
+			}
+			if (freeRow == null) {
+				freeRow = new LinkedHashMap<>();
+				rows.add(freeRow);
+			}
+			freeRow.put(measurement.heading, measurement.value);
+		}
+
+		for (Map<String, Double> row : rows) {
+			resultsTable.incrementCounter();
+			resultsTable.addLabel(label);
+			for (Map.Entry<String, Double> value : row.entrySet()) {
+				resultsTable.addValue(value.getKey(), value.getValue());
+			}
+		}
+	}
+
+	private ArrayList<Measurement> drainSorted() {
+		ArrayList<Measurement> measurements = new ArrayList<>();
+		for (ArrayList<Measurement> buffer : buffers) {
+			measurements.addAll(buffer);
+			buffer.clear();
+		}
+
+		// Collections.sort is stable, i.e. measurements with the same label
+		// keep the order in which they were added
+		Collections.sort(measurements, LABEL_ORDER);
+		return measurements;
+	}
+
+	private static final class Measurement {
+		private final String label;
+		private final String heading;
+		private final double value;
+
+		private Measurement(String label, String heading, double value) {
+			this.label = label;
+			this.heading = heading;
+			this.value = value;
+		}
+	}
+	// endregion
+}
@@ -1,11 +1,17 @@
 package org.bonej.common;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import javax.annotation.Nullable;
 
 import com.google.common.collect.ImmutableList;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
 import ij.measure.Calibration;
 import ij.process.ImageStatistics;
 
@@ -36,6 +42,11 @@ public class ImageCheck {
 	 * @param imp
 	 *            image to test
 	 * @return true if image is binary
+	 *
+	 *         Checks every slice of a stack, @see
+	 *         ImageCheck#countBinaryVoxels(ImagePlus). If the image has an
+	 *         area ROI, only the pixels inside it are checked, whatever the
+	 *         depth of the image.
 	 */
 	public static boolean isBinary(@Nullable ImagePlus imp) {
 		if (imp == null) {
@@ -46,6 +57,10 @@ public class ImageCheck {
 			return false;
 		}
 
+		if (imp.getStackSize() > 1) {
+			return countBinaryVoxels(imp) != null;
+		}
+
 		ImageStatistics stats = imp.getStatistics();
 		int blackCount = stats.histogram[Common.BINARY_BLACK];
 		int whiteCount = stats.histogram[Common.BINARY_WHITE];
@@ -53,6 +68,74 @@ public class ImageCheck {
 		return blackCount + whiteCount == stats.pixelCount;
 	}
 
+	/**
+	 * Counts the foreground and background voxels of a binary image.
+	 *
+	 * The slices of the image are scanned in parallel straight from their pixel
+	 * arrays, and the scan stops as soon as a value other than
+	 * Common.BINARY_BLACK or Common.BINARY_WHITE is found.
+	 *
+	 * If the image has an area ROI, only the voxels inside it on each slice are
+	 * checked and counted, like ImagePlus.getStatistics() does for a single
+	 * slice.
+	 *
+	 * @param imp
+	 *            image to test
+	 * @return The voxel counts of the whole stack, or of the ROI, or null if
+	 *         imp == null or the image is not binary
+	 */
+	@Nullable
+	public static BinaryVoxelCounts countBinaryVoxels(@Nullable ImagePlus imp) {
+		if (imp == null || imp.getType() != ImagePlus.GRAY8) {
+			return null;
+		}
+
+		final ImageStack stack = imp.getStack();
+		final int slices = stack.getSize();
+		final Roi roi = imp.getRoi();
+		final ScanlineSpans spans = roi != null && roi.isArea()
+				? ScanlineSpans.fromRoi(roi, stack.getWidth(), stack.getHeight()) : null;
+		final long sliceVoxels = spans == null ? (long) stack.getWidth() * stack.getHeight() : spans.count();
+		final AtomicInteger ai = new AtomicInteger(1);
+		final AtomicBoolean nonBinary = new AtomicBoolean(false);
+		final AtomicLong foreground = new AtomicLong(0);
+		final AtomicLong background = new AtomicLong(0);
+
+		// A virtual stack reads its slices from disk, better not do it in
+		// parallel
+		final Thread[] threads = stack.isVirtual() ? new Thread[1] : Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int z = ai.getAndIncrement(); z <= slices; z = ai.getAndIncrement()) {
+						if (nonBinary.get()) {
+							return;
+						}
+
+						final byte[] pixels = (byte[]) stack.getPixels(z);
+						final long sliceForeground = spans == null ? countForeground(pixels, 0, pixels.length)
+								: countForeground(pixels, stack.getWidth(), spans);
+						if (sliceForeground < 0) {
+							nonBinary.set(true);
+							return;
+						}
+
+						foreground.addAndGet(sliceForeground);
+						background.addAndGet(sliceVoxels - sliceForeground);
+					}
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+
+		if (nonBinary.get()) {
+			return null;
+		}
+
+		return new BinaryVoxelCounts(foreground.get(), background.get());
+	}
+
 	/**
 	 * Check if image is grayscale
 	 *
@@ -170,4 +253,44 @@ public class ImageCheck {
 					+ "Please update to at least ImageJ v" + requiredIJVersion + " using Help-Update ImageJ.");
 		}
 	}
+
+	// region -- Helper methods --
+	/**
+	 * @return The number of Common.BINARY_WHITE pixels in [start, end), or -1
+	 *         if there's a pixel which is not binary
+	 */
+	private static long countForeground(final byte[] pixels, final int start, final int end) {
+		long count = 0;
+		for (int i = start; i < end; i++) {
+			final byte pixel = pixels[i];
+			if (pixel == (byte) Common.BINARY_BLACK) {
+				continue;
+			}
+			if (pixel != (byte) Common.BINARY_WHITE) {
+				return -1;
+			}
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return The number of Common.BINARY_WHITE pixels inside the spans, or -1
+	 *         if there's a pixel which is not binary
+	 */
+	private static long countForeground(final byte[] pixels, final int width, ScanlineSpans spans) {
+		final long[] count = new long[1];
+		spans.forEach(new ScanlineSpans.SpanConsumer() {
+			@Override
+			public void accept(int y, int start, int end) {
+				if (count[0] < 0) {
+					return;
+				}
+				final long spanCount = countForeground(pixels, y * width + start, y * width + end);
+				count[0] = spanCount < 0 ? -1 : count[0] + spanCount;
+			}
+		});
+		return count[0];
+	}
+	// endregion
 }
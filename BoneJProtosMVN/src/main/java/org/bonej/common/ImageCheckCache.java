@@ -0,0 +1,260 @@
+package org.bonej.common;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.awt.Rectangle;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.annotation.Nullable;
+
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+/**
+ * Memoizes the results of the checks in ImageCheck, so that a chain of
+ * plugins or ops validating the same large image doesn't scan it again and
+ * again.
+ *
+ * The results are keyed by the identity of the ImagePlus, and stored with a
+ * stamp of its contents: its type, dimensions, the identity of its pixel data,
+ * the number of times it has been updated, its calibration, and the shape of
+ * its area ROI, i.e. its bounds and mask. A result is recomputed if any of
+ * these has changed. The ROI is part of the stamp, because the binary checks
+ * only look at the voxels inside it.
+ *
+ * The update count is kept by an ImageListener, but ImageJ only notifies the
+ * listeners of some changes, e.g. when a displayed image is redrawn. Editing
+ * the pixel arrays of an image in place changes none of the stamp, so the
+ * cache can't notice it. Code which does that MUST call
+ * invalidate(ImagePlus) when it's done, or the following checks may return
+ * stale results. The plugins and ops of BoneJ which modify their input image
+ * in place, and thus invalidate it, are:
+ * <ul>
+ * <li>TriplePointAngles.calculateTriplePointAngles, which skeletonizes the
+ * image with Skeletonize3D_</li>
+ * <li>the AnalyzeSkeleton wrapper, because AnalyzeSkeleton_ may prune the
+ * skeleton</li>
+ * </ul>
+ * The Skeletonize3D wrapper skeletonizes a copy of its input, and the other
+ * plugins and ops only read their input.
+ *
+ * The cache holds the images weakly, so it doesn't keep closed images in
+ * memory.
+ */
+public class ImageCheckCache {
+	private static final Map<ImagePlus, Entry> entries = Collections
+			.synchronizedMap(new WeakHashMap<ImagePlus, Entry>());
+	private static final Map<ImagePlus, Integer> updateCounts = Collections
+			.synchronizedMap(new WeakHashMap<ImagePlus, Integer>());
+
+	static {
+		ImagePlus.addImageListener(new ImageListener() {
+			@Override
+			public void imageOpened(ImagePlus imp) {
+			}
+
+			@Override
+			public void imageClosed(ImagePlus imp) {
+				entries.remove(imp);
+				updateCounts.remove(imp);
+			}
+
+			@Override
+			public void imageUpdated(ImagePlus imp) {
+				synchronized (updateCounts) {
+					Integer count = updateCounts.get(imp);
+					updateCounts.put(imp, count == null ? 1 : count + 1);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Same as @see ImageCheck#isBinary(ImagePlus), but returns a memoized
+	 * result if the image hasn't changed
+	 */
+	public static boolean isBinary(@Nullable ImagePlus imp) {
+		return countBinaryVoxels(imp) != null;
+	}
+
+	/**
+	 * Same as @see ImageCheck#countBinaryVoxels(ImagePlus), but returns a
+	 * memoized result if the image hasn't changed
+	 */
+	@Nullable
+	public static BinaryVoxelCounts countBinaryVoxels(@Nullable ImagePlus imp) {
+		if (imp == null || imp.getType() != ImagePlus.GRAY8) {
+			return null;
+		}
+
+		final Entry entry = getEntry(imp);
+		synchronized (entry) {
+			if (!entry.binaryChecked) {
+				entry.binaryCounts = ImageCheck.countBinaryVoxels(imp);
+				entry.binaryChecked = true;
+			}
+			return entry.binaryCounts;
+		}
+	}
+
+	/**
+	 * Same as @see ImageCheck#isGrayscale(ImagePlus). The check only looks at
+	 * the type of the image, so there's nothing worth memoizing.
+	 */
+	public static boolean isGrayscale(@Nullable ImagePlus imp) {
+		return ImageCheck.isGrayscale(imp);
+	}
+
+	/**
+	 * Same as @see ImageCheck#isVoxelIsotropic(ImagePlus, double), but returns
+	 * a memoized result if the image and the tolerance haven't changed
+	 */
+	public static boolean isVoxelIsotropic(@Nullable ImagePlus imp, double tolerance) {
+		if (imp == null) {
+			return false;
+		}
+
+		final Entry entry = getEntry(imp);
+		synchronized (entry) {
+			if (entry.isotropyTolerance == null || Double.compare(entry.isotropyTolerance, tolerance) != 0) {
+				entry.isotropic = ImageCheck.isVoxelIsotropic(imp, tolerance);
+				entry.isotropyTolerance = tolerance;
+			}
+			return entry.isotropic;
+		}
+	}
+
+	/**
+	 * Returns a stamp of the current contents of the image. The same object is
+	 * returned for as long as the image hasn't changed as far as the cache can
+	 * tell, so code that memoizes its own results can compare stamps by
+	 * identity to find out if it should compute them again.
+	 *
+	 * @throws NullPointerException
+	 *             if imp == null
+	 */
+	public static Object getStamp(ImagePlus imp) {
+		checkNotNull(imp, "Image must not be null");
+
+		return getEntry(imp);
+	}
+
+	/**
+	 * Discards the memoized results of the given image. Must be called after
+	 * modifying the pixels of the image in place, e.g. after running a plugin
+	 * which overwrites its input, because the cache can't detect such edits.
+	 */
+	public static void invalidate(@Nullable ImagePlus imp) {
+		if (imp == null) {
+			return;
+		}
+
+		entries.remove(imp);
+	}
+
+	/**
+	 * Discards the memoized results of all images
+	 */
+	public static void clear() {
+		entries.clear();
+	}
+
+	// region -- Helper methods --
+	private static Entry getEntry(ImagePlus imp) {
+		final Entry stamp = new Entry(imp);
+		synchronized (entries) {
+			Entry entry = entries.get(imp);
+			if (entry == null || !entry.hasSameStamp(stamp)) {
+				entry = stamp;
+				entries.put(imp, entry);
+			}
+			return entry;
+		}
+	}
+
+	private static int getUpdateCount(ImagePlus imp) {
+		Integer count = updateCounts.get(imp);
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * The content stamp of an image, and the check results computed for it
+	 */
+	private static final class Entry {
+		private final int type;
+		private final int width;
+		private final int height;
+		private final int stackSize;
+		private final int updateCount;
+		private final WeakReference<Object> data;
+		private final double pixelWidth;
+		private final double pixelHeight;
+		private final double pixelDepth;
+		@Nullable
+		private final Rectangle roiBounds;
+		/**
+		 * A copy of the mask of the ROI, or null if it's rectangular or there's
+		 * no area ROI
+		 */
+		@Nullable
+		private final byte[] roiMask;
+
+		private boolean binaryChecked = false;
+		private BinaryVoxelCounts binaryCounts = null;
+		private Double isotropyTolerance = null;
+		private boolean isotropic = false;
+
+		private Entry(ImagePlus imp) {
+			type = imp.getType();
+			width = imp.getWidth();
+			height = imp.getHeight();
+			stackSize = imp.getStackSize();
+			updateCount = getUpdateCount(imp);
+			data = new WeakReference<>(getData(imp));
+
+			Calibration calibration = imp.getCalibration();
+			pixelWidth = calibration == null ? Double.NaN : calibration.pixelWidth;
+			pixelHeight = calibration == null ? Double.NaN : calibration.pixelHeight;
+			pixelDepth = calibration == null ? Double.NaN : calibration.pixelDepth;
+
+			// The checks ignore other than area ROIs
+			final Roi roi = imp.getRoi();
+			final boolean areaRoi = roi != null && roi.isArea();
+			roiBounds = areaRoi ? roi.getBounds() : null;
+			final ImageProcessor mask = areaRoi ? roi.getMask() : null;
+			roiMask = mask == null ? null : ((byte[]) mask.getPixels()).clone();
+		}
+
+		/**
+		 * Returns the object holding the pixels of the image. A new stack is
+		 * created on every ImagePlus.getStack() call for a single image, so
+		 * then the pixel array is used instead.
+		 */
+		@Nullable
+		private static Object getData(ImagePlus imp) {
+			if (imp.getStackSize() > 1) {
+				return imp.getStack();
+			}
+
+			return imp.getProcessor() == null ? null : imp.getProcessor().getPixels();
+		}
+
+		private boolean hasSameStamp(Entry other) {
+			return type == other.type && width == other.width && height == other.height
+					&& stackSize == other.stackSize && updateCount == other.updateCount
+					&& data.get() == other.data.get() && Double.compare(pixelWidth, other.pixelWidth) == 0
+					&& Double.compare(pixelHeight, other.pixelHeight) == 0
+					&& Double.compare(pixelDepth, other.pixelDepth) == 0
+					&& (roiBounds == null ? other.roiBounds == null : roiBounds.equals(other.roiBounds))
+					&& Arrays.equals(roiMask, other.roiMask);
+		}
+	}
+	// endregion
+}
@@ -0,0 +1,852 @@
+package org.bonej.common;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.io.FileInfo;
+import ij.io.Opener;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * An 8-bit, 16-bit or 32-bit volume whose voxels are stored outside the Java
+ * heap, either in a memory-mapped file or in direct ByteBuffers. Its size is
+ * thus limited by disk space or physical memory rather than the heap, and
+ * opening a file maps it without reading it through. The operating system
+ * pages the voxels in as they are accessed.
+ *
+ * A file can be mapped if its voxels are stored uncompressed, e.g. raw files,
+ * NRRD files with raw encoding, and uncompressed TIFF stacks. Each slice is
+ * mapped separately, so the slices can be at any offsets in the file, like
+ * the images of a TIFF stack.
+ *
+ * The ops and plugins, which take an ImagePlus, use the volume through the
+ * virtual stack of toStack or toImagePlus. The stack keeps a few recently used
+ * slices on the heap, so that the voxels can be read and written through
+ * their pixel arrays as usual. The modified slices are written back to the
+ * volume when they drop out of the cache, or when the stack is flushed. A
+ * read-only volume can't take changes, so its stack throws an exception as
+ * soon as it finds a modified slice. An op which changes its input in place
+ * needs a copy of a read-only volume, e.g. from copyOf(ImageStack).
+ *
+ * Disjoint slices of the volume can be read and written from different
+ * threads.
+ */
+public class MappedVolume implements Closeable {
+	/**
+	 * Default number of slices the stack of toStack keeps on the heap
+	 */
+	public static final int DEFAULT_CACHED_SLICES = 16;
+
+	private final int width;
+	private final int height;
+	private final int depth;
+	private final int bitDepth;
+	private final ByteOrder byteOrder;
+	private final boolean writable;
+	/**
+	 * The voxels of each slice, one buffer per slice
+	 */
+	private final ByteBuffer[] slices;
+	@Nullable
+	private final RandomAccessFile randomAccessFile;
+
+	private MappedVolume(int width, int height, int bitDepth, ByteOrder byteOrder, boolean writable,
+			ByteBuffer[] slices, @Nullable RandomAccessFile randomAccessFile) {
+		this.width = width;
+		this.height = height;
+		this.depth = slices.length;
+		this.bitDepth = bitDepth;
+		this.byteOrder = byteOrder;
+		this.writable = writable;
+		this.slices = slices;
+		this.randomAccessFile = randomAccessFile;
+	}
+
+	/**
+	 * Creates a volume in direct buffers outside the heap. The voxels are
+	 * initially 0.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a dimension < 1, bitDepth is not 8, 16 or 32, or a slice
+	 *             is larger than 2 GB
+	 */
+	public static MappedVolume allocate(int width, int height, int depth, int bitDepth) {
+		checkDimensions(width, height, depth, bitDepth);
+
+		final int sliceBytes = width * height * (bitDepth / 8);
+		final ByteBuffer[] slices = new ByteBuffer[depth];
+		for (int z = 0; z < depth; z++) {
+			slices[z] = ByteBuffer.allocateDirect(sliceBytes);
+		}
+		return new MappedVolume(width, height, bitDepth, ByteOrder.nativeOrder(), true, slices, null);
+	}
+
+	/**
+	 * Copies the stack into a new volume outside the heap
+	 *
+	 * @throws NullPointerException
+	 *             if stack == null
+	 * @throws IllegalArgumentException
+	 *             if the stack is not 8-bit, 16-bit or 32-bit
+	 */
+	public static MappedVolume copyOf(ImageStack stack) {
+		checkNotNull(stack, "Stack must not be null");
+
+		final MappedVolume volume = allocate(stack.getWidth(), stack.getHeight(), stack.getSize(),
+				stack.getBitDepth());
+		for (int z = 0; z < volume.depth; z++) {
+			volume.writeSlice(z, stack.getPixels(z + 1));
+		}
+		return volume;
+	}
+
+	/**
+	 * Creates a new volume in a memory-mapped file. An existing file is
+	 * overwritten. The file has no header, and the voxels are stored slice
+	 * after slice in big-endian order, i.e. it can be opened with File &gt;
+	 * Import &gt; Raw... The voxels are initially 0.
+	 *
+	 * @throws NullPointerException
+	 *             if file == null
+	 * @throws IllegalArgumentException
+	 *             if a dimension < 1, bitDepth is not 8, 16 or 32, or a slice
+	 *             is larger than 2 GB
+	 * @throws IOException
+	 *             if the file can't be created or mapped
+	 */
+	public static MappedVolume create(File file, int width, int height, int depth, int bitDepth)
+			throws IOException {
+		checkNotNull(file, "File must not be null");
+		checkDimensions(width, height, depth, bitDepth);
+
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+			randomAccessFile.setLength(0);
+			randomAccessFile.setLength((long) width * height * depth * (bitDepth / 8));
+		}
+		return map(file, 0, 0, width, height, depth, bitDepth, ByteOrder.BIG_ENDIAN, true);
+	}
+
+	/**
+	 * Maps the voxels of a file, which are stored slice after slice from the
+	 * given offset
+	 *
+	 * @param offset
+	 *            Position of the first voxel in the file, i.e. the size of the
+	 *            header
+	 * @param gap
+	 *            Number of bytes between two slices
+	 * @param writable
+	 *            If true, changes to the volume are written to the file
+	 * @throws NullPointerException
+	 *             if file == null or byteOrder == null
+	 * @throws IllegalArgumentException
+	 *             if a dimension < 1, bitDepth is not 8, 16 or 32, a slice is
+	 *             larger than 2 GB, or the file is too small
+	 * @throws IOException
+	 *             if the file can't be opened or mapped
+	 */
+	public static MappedVolume map(File file, long offset, long gap, int width, int height, int depth, int bitDepth,
+			ByteOrder byteOrder, boolean writable) throws IOException {
+		checkNotNull(file, "File must not be null");
+		checkDimensions(width, height, depth, bitDepth);
+		checkArgument(offset >= 0 && gap >= 0, "Offset and gap must be >= 0");
+
+		final long sliceBytes = (long) width * height * (bitDepth / 8);
+		final long[] sliceOffsets = new long[depth];
+		for (int z = 0; z < depth; z++) {
+			sliceOffsets[z] = offset + z * (sliceBytes + gap);
+		}
+		return mapSlices(file, sliceOffsets, width, height, bitDepth, byteOrder, writable);
+	}
+
+	/**
+	 * Maps the voxels of a file described by a FileInfo, e.g. from
+	 * File &gt; Import &gt; Raw... or the reader of a NRRD file
+	 *
+	 * @throws NullPointerException
+	 *             if fileInfo == null
+	 * @throws IllegalArgumentException
+	 *             if the voxels are compressed, or their type is not 8-bit,
+	 *             unsigned 16-bit or float
+	 * @throws IOException
+	 *             if the file can't be opened or mapped
+	 */
+	public static MappedVolume map(FileInfo fileInfo, boolean writable) throws IOException {
+		checkNotNull(fileInfo, "File info must not be null");
+		checkArgument(fileInfo.compression <= FileInfo.COMPRESSION_NONE, "Can't map compressed voxels");
+
+		return map(new File(fileInfo.directory, fileInfo.fileName), fileInfo.getOffset(), fileInfo.gapBetweenImages,
+				fileInfo.width, fileInfo.height, fileInfo.nImages, getBitDepth(fileInfo), getByteOrder(fileInfo),
+				writable);
+	}
+
+	/**
+	 * Maps the voxels of an uncompressed TIFF stack. The images of the stack
+	 * can be anywhere in the file, but the strips of an image must follow each
+	 * other.
+	 *
+	 * @throws NullPointerException
+	 *             if file == null
+	 * @throws IllegalArgumentException
+	 *             if the file is not a TIFF, the images are compressed, their
+	 *             type is not 8-bit, unsigned 16-bit or float, or the images
+	 *             have different sizes or types
+	 * @throws IOException
+	 *             if the file can't be read or mapped
+	 */
+	public static MappedVolume mapTiff(File file, boolean writable) throws IOException {
+		checkNotNull(file, "File must not be null");
+		final FileInfo[] infos = Opener.getTiffFileInfo(file.getPath());
+		checkArgument(infos != null && infos.length > 0, "Not a TIFF file");
+
+		final FileInfo first = infos[0];
+		if (infos.length == 1) {
+			checkStrips(first);
+			return map(first, writable);
+		}
+
+		final int bitDepth = getBitDepth(first);
+		final long[] sliceOffsets = new long[infos.length];
+		for (int z = 0; z < infos.length; z++) {
+			final FileInfo info = infos[z];
+			checkArgument(info.compression <= FileInfo.COMPRESSION_NONE, "Can't map compressed voxels");
+			checkArgument(info.width == first.width && info.height == first.height
+					&& info.fileType == first.fileType && info.intelByteOrder == first.intelByteOrder,
+					"Images of the stack must have the same size and type");
+			checkStrips(info);
+			sliceOffsets[z] = info.getOffset();
+		}
+		return mapSlices(file, sliceOffsets, first.width, first.height, bitDepth, getByteOrder(first), writable);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public int getBitDepth() {
+		return bitDepth;
+	}
+
+	public boolean isWritable() {
+		return writable;
+	}
+
+	/**
+	 * Reads the voxels of a slice
+	 *
+	 * @param z
+	 *            Index of the slice, 0-based
+	 * @return A new byte[], short[] or float[] array of the voxels
+	 * @throws IllegalArgumentException
+	 *             if z is out of range
+	 */
+	public Object getSlice(int z) {
+		final int voxels = width * height;
+		final Object pixels = bitDepth == 8 ? new byte[voxels]
+				: bitDepth == 16 ? new short[voxels] : new float[voxels];
+		readSlice(z, pixels);
+		return pixels;
+	}
+
+	/**
+	 * Reads the voxels of a slice into the given array
+	 *
+	 * @param z
+	 *            Index of the slice, 0-based
+	 * @param pixels
+	 *            A byte[], short[] or float[] array of width * height voxels,
+	 *            matching the bit depth
+	 * @throws IllegalArgumentException
+	 *             if z is out of range
+	 */
+	public void readSlice(int z, Object pixels) {
+		final ByteBuffer buffer = getSliceBuffer(z);
+		if (bitDepth == 8) {
+			buffer.get((byte[]) pixels);
+		} else if (bitDepth == 16) {
+			buffer.asShortBuffer().get((short[]) pixels);
+		} else {
+			buffer.asFloatBuffer().get((float[]) pixels);
+		}
+	}
+
+	/**
+	 * Writes the voxels of a slice
+	 *
+	 * @param z
+	 *            Index of the slice, 0-based
+	 * @param pixels
+	 *            A byte[], short[] or float[] array of width * height voxels,
+	 *            matching the bit depth
+	 * @throws IllegalArgumentException
+	 *             if z is out of range
+	 * @throws IllegalStateException
+	 *             if the volume is read-only
+	 */
+	public void writeSlice(int z, Object pixels) {
+		if (!writable) {
+			throw new IllegalStateException("Volume is read-only");
+		}
+
+		final ByteBuffer buffer = getSliceBuffer(z);
+		if (bitDepth == 8) {
+			buffer.put((byte[]) pixels);
+		} else if (bitDepth == 16) {
+			buffer.asShortBuffer().put((short[]) pixels);
+		} else {
+			buffer.asFloatBuffer().put((float[]) pixels);
+		}
+	}
+
+	/**
+	 * Reads a rectangular region of a slice into the given array
+	 *
+	 * @param z
+	 *            Index of the slice, 0-based
+	 * @param values
+	 *            A byte[], short[] or float[] array matching the bit depth,
+	 *            where the voxels of the region are stored row by row
+	 * @param valuesWidth
+	 *            Width of a row in values
+	 * @param offset
+	 *            Index of the first voxel of the region in values
+	 * @throws IllegalArgumentException
+	 *             if z is out of range, or the region doesn't fit in the slice
+	 */
+	public void readRegion(int z, int x, int y, int regionWidth, int regionHeight, Object values, int valuesWidth,
+			int offset) {
+		checkRegion(x, y, regionWidth, regionHeight);
+
+		final ByteBuffer buffer = getSliceBuffer(z);
+		final ShortBuffer shorts = bitDepth == 16 ? buffer.asShortBuffer() : null;
+		final FloatBuffer floats = bitDepth == 32 ? buffer.asFloatBuffer() : null;
+		for (int row = 0; row < regionHeight; row++) {
+			final int start = (y + row) * width + x;
+			final int valuesStart = offset + row * valuesWidth;
+			if (bitDepth == 8) {
+				buffer.position(start);
+				buffer.get((byte[]) values, valuesStart, regionWidth);
+			} else if (bitDepth == 16) {
+				shorts.position(start);
+				shorts.get((short[]) values, valuesStart, regionWidth);
+			} else {
+				floats.position(start);
+				floats.get((float[]) values, valuesStart, regionWidth);
+			}
+		}
+	}
+
+	/**
+	 * Writes a rectangular region of a slice from the given array
+	 *
+	 * @see MappedVolume#readRegion(int, int, int, int, int, Object, int, int)
+	 * @throws IllegalArgumentException
+	 *             if z is out of range, or the region doesn't fit in the slice
+	 * @throws IllegalStateException
+	 *             if the volume is read-only
+	 */
+	public void writeRegion(int z, int x, int y, int regionWidth, int regionHeight, Object values,
+			int valuesWidth, int offset) {
+		if (!writable) {
+			throw new IllegalStateException("Volume is read-only");
+		}
+		checkRegion(x, y, regionWidth, regionHeight);
+
+		final ByteBuffer buffer = getSliceBuffer(z);
+		final ShortBuffer shorts = bitDepth == 16 ? buffer.asShortBuffer() : null;
+		final FloatBuffer floats = bitDepth == 32 ? buffer.asFloatBuffer() : null;
+		for (int row = 0; row < regionHeight; row++) {
+			final int start = (y + row) * width + x;
+			final int valuesStart = offset + row * valuesWidth;
+			if (bitDepth == 8) {
+				buffer.position(start);
+				buffer.put((byte[]) values, valuesStart, regionWidth);
+			} else if (bitDepth == 16) {
+				shorts.position(start);
+				shorts.put((short[]) values, valuesStart, regionWidth);
+			} else {
+				floats.position(start);
+				floats.put((float[]) values, valuesStart, regionWidth);
+			}
+		}
+	}
+
+	/**
+	 * Forces the changes in a mapped volume to be written to the file
+	 */
+	public void flush() {
+		if (randomAccessFile == null || !writable) {
+			return;
+		}
+
+		for (ByteBuffer slice : slices) {
+			((MappedByteBuffer) slice).force();
+		}
+	}
+
+	/**
+	 * Creates a virtual stack view of the volume, which keeps the given number
+	 * of recently used slices on the heap. The ops and plugins run on the
+	 * slices of a virtual stack one at a time, so a few slices are enough.
+	 * Changes to the pixel arrays of a writable volume are written back when
+	 * the slice drops out of the cache, or when the stack is flushed with
+	 * MappedVolume#flush(ImageStack). The slices are compared by a checksum
+	 * taken when they were read, so unchanged slices are not written, and the
+	 * volume is never read again to find the changes. A pixel array that is
+	 * still held after its slice dropped out of the cache is tracked too: if
+	 * it's modified, getPixels returns it instead of reading the slice again,
+	 * and flush writes it. The stack of a read-only volume throws an
+	 * IllegalStateException from setPixels, and when it finds a modified
+	 * slice on eviction or flush.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if cachedSlices < 1
+	 */
+	public ImageStack toStack(int cachedSlices) {
+		checkArgument(cachedSlices >= 1, "Must cache at least one slice");
+
+		return new MappedStack(this, cachedSlices);
+	}
+
+	/**
+	 * Creates an image of the stack of toStack, which can be passed to the
+	 * ops and plugins instead of an image on the heap
+	 *
+	 * @see MappedVolume#toStack(int)
+	 */
+	public ImagePlus toImagePlus(String title) {
+		return new ImagePlus(title, toStack(DEFAULT_CACHED_SLICES));
+	}
+
+	/**
+	 * Writes the modified slices of a stack from toStack to the volume, and
+	 * the volume to its file
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the stack was not created by a MappedVolume
+	 * @throws IllegalStateException
+	 *             if a slice of a read-only volume has been modified
+	 */
+	public static void flush(ImageStack stack) {
+		checkArgument(stack instanceof MappedStack, "Not a stack of a mapped volume");
+
+		final MappedStack mappedStack = (MappedStack) stack;
+		mappedStack.writeBack();
+		mappedStack.volume.flush();
+	}
+
+	/**
+	 * Closes the file of a mapped volume. The mapping, and thus the stacks from
+	 * toStack, stay usable until they are garbage collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (randomAccessFile != null) {
+			randomAccessFile.close();
+		}
+	}
+
+	// region -- Helper methods --
+	private static void checkDimensions(int width, int height, int depth, int bitDepth) {
+		checkArgument(width > 0 && height > 0 && depth > 0, "Dimensions must be positive");
+		checkArgument(bitDepth == 8 || bitDepth == 16 || bitDepth == 32, "Bit depth must be 8, 16 or 32");
+		checkArgument((long) width * height * (bitDepth / 8) <= Integer.MAX_VALUE, "Slice must not exceed 2 GB");
+	}
+
+	private void checkRegion(int x, int y, int regionWidth, int regionHeight) {
+		checkArgument(x >= 0 && y >= 0 && regionWidth >= 0 && regionHeight >= 0 && x + regionWidth <= width
+				&& y + regionHeight <= height, "Region doesn't fit in the slice");
+	}
+
+	private static MappedVolume mapSlices(File file, long[] sliceOffsets, int width, int height, int bitDepth,
+			ByteOrder byteOrder, boolean writable) throws IOException {
+		checkNotNull(byteOrder, "Byte order must not be null");
+
+		final long sliceBytes = (long) width * height * (bitDepth / 8);
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file, writable ? "rw" : "r");
+		try {
+			final long length = randomAccessFile.length();
+			final FileChannel channel = randomAccessFile.getChannel();
+			final FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+			final ByteBuffer[] slices = new ByteBuffer[sliceOffsets.length];
+			for (int z = 0; z < slices.length; z++) {
+				checkArgument(sliceOffsets[z] + sliceBytes <= length, "File is too small for the dimensions");
+				slices[z] = channel.map(mode, sliceOffsets[z], sliceBytes);
+			}
+			return new MappedVolume(width, height, bitDepth, byteOrder, writable, slices, randomAccessFile);
+		} catch (IOException | IllegalArgumentException e) {
+			randomAccessFile.close();
+			throw e;
+		}
+	}
+
+	private static int getBitDepth(FileInfo fileInfo) {
+		switch (fileInfo.fileType) {
+		case FileInfo.GRAY8:
+			return 8;
+		case FileInfo.GRAY16_UNSIGNED:
+			return 16;
+		case FileInfo.GRAY32_FLOAT:
+			return 32;
+		default:
+			throw new IllegalArgumentException("Voxel type must be 8-bit, unsigned 16-bit or float");
+		}
+	}
+
+	private static ByteOrder getByteOrder(FileInfo fileInfo) {
+		return fileInfo.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+	}
+
+	/**
+	 * Checks that the strips of a TIFF image follow each other, so that the
+	 * image can be mapped as one slice
+	 */
+	private static void checkStrips(FileInfo fileInfo) {
+		final int[] offsets = fileInfo.stripOffsets;
+		final int[] lengths = fileInfo.stripLengths;
+		if (offsets == null || lengths == null) {
+			return;
+		}
+
+		for (int i = 1; i < offsets.length; i++) {
+			checkArgument(offsets[i] == offsets[i - 1] + lengths[i - 1], "Strips of an image must be contiguous");
+		}
+	}
+
+	/**
+	 * @return A new view of slice z positioned at its start, in the byte
+	 *         order of the volume
+	 */
+	private ByteBuffer getSliceBuffer(int z) {
+		checkArgument(z >= 0 && z < depth, "Slice index out of range");
+
+		final ByteBuffer buffer = slices[z].duplicate();
+		buffer.order(byteOrder);
+		return buffer;
+	}
+
+	private static final class MappedStack extends VirtualStack {
+		private final MappedVolume volume;
+		private final int cachedSlices;
+		/**
+		 * The cached slices by their 0-based index, from the least to the most
+		 * recently used
+		 */
+		private final LinkedHashMap<Integer, Slice> cache;
+		/**
+		 * The pixel arrays of the slices evicted from the cache, which the
+		 * plugins may still hold and modify. Guarded by the lock of cache.
+		 */
+		private final Map<Integer, EvictedSlice> evicted = new HashMap<>();
+		private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+		/**
+		 * The most recently used slice, which getPixels returns without
+		 * locking, because the plugins reading a stack voxel by voxel ask for
+		 * the same slice over and over. Cleared when the slice is evicted.
+		 */
+		@Nullable
+		private volatile Slice lastSlice = null;
+
+		private MappedStack(MappedVolume volume, int cachedSlices) {
+			super(volume.getWidth(), volume.getHeight(), null, null);
+			this.volume = volume;
+			this.cachedSlices = cachedSlices;
+			cache = new LinkedHashMap<>(cachedSlices * 2, 0.75f, true);
+		}
+
+		@Override
+		public int getSize() {
+			return volume.getDepth();
+		}
+
+		@Override
+		public int getBitDepth() {
+			return volume.getBitDepth();
+		}
+
+		@Override
+		public Object getPixels(int n) {
+			if (n < 1 || n > getSize()) {
+				throw new IllegalArgumentException("Argument out of range: " + n);
+			}
+
+			final Slice last = lastSlice;
+			if (last != null && last.index == n - 1) {
+				return last.pixels;
+			}
+
+			synchronized (cache) {
+				Slice slice = cache.get(n - 1);
+				if (slice == null) {
+					makeRoom();
+					slice = adoptEvicted(n - 1);
+					if (slice == null) {
+						final Object pixels = volume.getSlice(n - 1);
+						slice = new Slice(n - 1, pixels, checksum(pixels));
+					}
+					cache.put(n - 1, slice);
+				}
+				lastSlice = slice;
+				return slice.pixels;
+			}
+		}
+
+		/**
+		 * @throws IllegalStateException
+		 *             if the volume is read-only
+		 */
+		@Override
+		public void setPixels(Object pixels, int n) {
+			if (n < 1 || n > getSize()) {
+				throw new IllegalArgumentException("Argument out of range: " + n);
+			}
+			if (!volume.isWritable()) {
+				throw new IllegalStateException("Volume is read-only");
+			}
+
+			synchronized (cache) {
+				if (!cache.containsKey(n - 1)) {
+					makeRoom();
+				}
+				evicted.remove(n - 1);
+				final Slice slice = new Slice(n - 1, pixels, 0L);
+				slice.dirty = true;
+				cache.put(n - 1, slice);
+				lastSlice = slice;
+			}
+		}
+
+		@Override
+		public ImageProcessor getProcessor(int n) {
+			final Object pixels = getPixels(n);
+			final int bitDepth = volume.getBitDepth();
+			if (bitDepth == 8) {
+				return new ByteProcessor(getWidth(), getHeight(), (byte[]) pixels, null);
+			} else if (bitDepth == 16) {
+				return new ShortProcessor(getWidth(), getHeight(), (short[]) pixels, null);
+			}
+			return new FloatProcessor(getWidth(), getHeight(), (float[]) pixels, null);
+		}
+
+		@Override
+		public String getSliceLabel(int n) {
+			return null;
+		}
+
+		@Override
+		public void addSlice(String fileName) {
+			throw new UnsupportedOperationException("Can't add slices to a mapped volume");
+		}
+
+		@Override
+		public void deleteSlice(int n) {
+			throw new UnsupportedOperationException("Can't delete slices from a mapped volume");
+		}
+
+		/**
+		 * Writes the modified slices back to the volume, both the cached ones
+		 * and the evicted ones whose arrays are still in use
+		 *
+		 * @throws IllegalStateException
+		 *             if a slice of a read-only volume has been modified
+		 */
+		private void writeBack() {
+			synchronized (cache) {
+				for (Slice slice : cache.values()) {
+					writeBack(slice);
+				}
+				for (EvictedSlice evictedSlice : evicted.values()) {
+					final Object pixels = evictedSlice.get();
+					if (pixels != null) {
+						evictedSlice.checksum = writeBack(evictedSlice.index, pixels, evictedSlice.checksum,
+								false);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Evicts the least recently used slice if the cache is full. The slice
+		 * is written back first, so if that fails, the cache is unchanged.
+		 */
+		private void makeRoom() {
+			expungeCollected();
+			if (cache.size() < cachedSlices) {
+				return;
+			}
+
+			final Slice eldest = cache.values().iterator().next();
+			writeBack(eldest);
+			cache.remove(eldest.index);
+			final Slice last = lastSlice;
+			if (last != null && last.index == eldest.index) {
+				lastSlice = null;
+			}
+			evicted.put(eldest.index, new EvictedSlice(eldest, collected));
+		}
+
+		/**
+		 * @return The evicted array of the slice if it has been modified since
+		 *         it was evicted, so that the changes aren't lost. Returns null
+		 *         if there's no such array, and the slice should be read from
+		 *         the volume.
+		 * @throws IllegalStateException
+		 *             if the array has been modified and the volume is
+		 *             read-only
+		 */
+		@Nullable
+		private Slice adoptEvicted(int z) {
+			final EvictedSlice evictedSlice = evicted.get(z);
+			if (evictedSlice == null) {
+				return null;
+			}
+			final Object pixels = evictedSlice.get();
+			if (pixels == null || checksum(pixels) == evictedSlice.checksum) {
+				evicted.remove(z);
+				return null;
+			}
+			if (!volume.isWritable()) {
+				throw modifiedReadOnlySlice(z);
+			}
+			evicted.remove(z);
+			final Slice slice = new Slice(z, pixels, evictedSlice.checksum);
+			slice.dirty = true;
+			return slice;
+		}
+
+		private void writeBack(Slice slice) {
+			slice.checksum = writeBack(slice.index, slice.pixels, slice.checksum, slice.dirty);
+			slice.dirty = false;
+		}
+
+		/**
+		 * Writes the slice to the volume if it's dirty, or its checksum differs
+		 * from the one it had when it was last read or written
+		 *
+		 * @return The checksum of the pixels as they are in the volume
+		 * @throws IllegalStateException
+		 *             if the slice has been modified and the volume is
+		 *             read-only
+		 */
+		private long writeBack(int z, Object pixels, long checksum, boolean dirty) {
+			final long currentChecksum = checksum(pixels);
+			if (!dirty && currentChecksum == checksum) {
+				return checksum;
+			}
+			if (!volume.isWritable()) {
+				throw modifiedReadOnlySlice(z);
+			}
+			volume.writeSlice(z, pixels);
+			return currentChecksum;
+		}
+
+		private static IllegalStateException modifiedReadOnlySlice(int z) {
+			return new IllegalStateException("Slice " + (z + 1) + " of a read-only volume has been modified. "
+					+ "Copy the volume, or map it writable, before changing its voxels.");
+		}
+
+		private void expungeCollected() {
+			Reference<?> reference;
+			while ((reference = collected.poll()) != null) {
+				final EvictedSlice evictedSlice = (EvictedSlice) reference;
+				evicted.remove(evictedSlice.index, evictedSlice);
+			}
+		}
+
+		/**
+		 * A 64-bit FNV-1a hash of the pixels. Hashing an array on the heap is
+		 * much cheaper than reading the slice again from the volume to compare
+		 * it.
+		 */
+		private static long checksum(Object pixels) {
+			long hash = 0xCBF29CE484222325L;
+			if (pixels instanceof byte[]) {
+				for (byte value : (byte[]) pixels) {
+					hash = (hash ^ value) * 0x100000001B3L;
+				}
+			} else if (pixels instanceof short[]) {
+				for (short value : (short[]) pixels) {
+					hash = (hash ^ value) * 0x100000001B3L;
+				}
+			} else {
+				for (float value : (float[]) pixels) {
+					hash = (hash ^ Float.floatToRawIntBits(value)) * 0x100000001B3L;
+				}
+			}
+			return hash;
+		}
+
+		/**
+		 * A cached slice and its 0-based index
+		 */
+		private static final class Slice {
+			private final int index;
+			private final Object pixels;
+			/**
+			 * Checksum of the pixels when they were last read from or written
+			 * to the volume. Guarded by the lock of cache.
+			 */
+			private long checksum;
+			/**
+			 * True if the pixels were set with setPixels, and haven't been
+			 * written since. Guarded by the lock of cache.
+			 */
+			private boolean dirty = false;
+
+			private Slice(int index, Object pixels, long checksum) {
+				this.index = index;
+				this.pixels = pixels;
+				this.checksum = checksum;
+			}
+		}
+
+		/**
+		 * The pixels of an evicted slice, which are held weakly, and their
+		 * checksum when they were last written to the volume
+		 */
+		private static final class EvictedSlice extends WeakReference<Object> {
+			private final int index;
+			private long checksum;
+
+			private EvictedSlice(Slice slice, ReferenceQueue<Object> queue) {
+				super(slice.pixels, queue);
+				index = slice.index;
+				checksum = slice.checksum;
+			}
+		}
+	}
+	// endregion
+}
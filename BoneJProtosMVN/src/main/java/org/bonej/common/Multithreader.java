@@ -0,0 +1,83 @@
+package org.bonej.common;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import ij.Prefs;
+
+/**
+ * Helper methods for running work in parallel on the threads ImageJ is
+ * allowed to use (Edit > Options > Memory & Threads).
+ *
+ * The typical pattern is to create the threads with newThreads(), let them
+ * share the work by taking slices (or other indices) from an AtomicInteger,
+ * and then call startAndJoin().
+ */
+public class Multithreader {
+	/**
+	 * @return The number of threads ImageJ is allowed to use, always >= 1
+	 */
+	public static int getNumThreads() {
+		return Math.max(1, Prefs.getThreads());
+	}
+
+	/**
+	 * @return An empty array with one element for each available thread
+	 */
+	public static Thread[] newThreads() {
+		return new Thread[getNumThreads()];
+	}
+
+	/**
+	 * Starts the given threads, and waits until all of them have finished
+	 *
+	 * @param threads
+	 *            Threads to run
+	 * @throws NullPointerException
+	 *             if threads == null
+	 * @throws RuntimeException
+	 *             if any of the threads threw an exception (rethrown as is if
+	 *             unchecked), or if the calling thread was interrupted
+	 */
+	public static void startAndJoin(Thread[] threads) {
+		checkNotNull(threads, "Threads must not be null");
+
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		final Thread.UncaughtExceptionHandler handler = new Thread.UncaughtExceptionHandler() {
+			@Override
+			public void uncaughtException(Thread thread, Throwable throwable) {
+				error.compareAndSet(null, throwable);
+			}
+		};
+
+		for (Thread thread : threads) {
+			thread.setPriority(Thread.NORM_PRIORITY);
+			thread.setUncaughtExceptionHandler(handler);
+			thread.start();
+		}
+
+		try {
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			for (Thread thread : threads) {
+				thread.interrupt();
+			}
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for threads to finish", e);
+		}
+
+		final Throwable throwable = error.get();
+		if (throwable instanceof RuntimeException) {
+			throw (RuntimeException) throwable;
+		}
+		if (throwable instanceof Error) {
+			throw (Error) throwable;
+		}
+		if (throwable != null) {
+			throw new RuntimeException(throwable);
+		}
+	}
+}
@@ -3,6 +3,8 @@ package org.bonej.common;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.io.IOException;
+
 import com.google.common.base.Strings;
 import ij.measure.ResultsTable;
 
@@ -142,4 +144,19 @@ public class ResultsInserter {
 	public void updateTable() {
 		resultsTable.show(DEFAULT_RESULTS_TABLE_TITLE);
 	}
+
+	/**
+	 * Saves the underlying ResultsTable in the binary columnar format, which
+	 * is faster to write and reload than text when the table is large.
+	 *
+	 * @param path
+	 *            Path of the file
+	 * @throws IOException
+	 *             if the file could not be written
+	 * @see BinaryResultsWriter
+	 * @see BinaryResultsReader
+	 */
+	public void saveBinary(String path) throws IOException {
+		BinaryResultsWriter.write(resultsTable, path);
+	}
 }
@@ -0,0 +1,135 @@
+package org.bonej.common;
+
+import javax.annotation.Nullable;
+
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+
+/**
+ * A lazy, read-only view of a stack cropped to the ROIs in a RoiManager.
+ *
+ * No pixels are copied when the view is created. Each slice is cropped from
+ * the source stack when it's requested, so creating the view is instant, and
+ * it needs no extra memory. On the other hand a slice is cropped again every
+ * time it's requested, so a materialized copy from RoiUtil.cropToRois is faster
+ * for consumers which read the slices many times.
+ *
+ * The slices are the same as those of the stack returned by RoiUtil.cropToRois
+ * with the same parameters. Changes to the pixels of the slices are not stored.
+ *
+ * @see RoiUtil#cropToRoisLazily(ij.plugin.frame.RoiManager, ImageStack,
+ *      boolean, int, int)
+ */
+public class RoiCroppedStack extends VirtualStack {
+	private final ImageStack sourceStack;
+	private final RoiMask roiMask;
+	private final int[] sourceSlices;
+	private final int xMin;
+	private final int yMin;
+	private final boolean fillBackground;
+	private final int fillColor;
+	private final int padding;
+	/**
+	 * A blank z-padding slice, which is copied for every padding slice
+	 * requested. Created when it's first needed.
+	 */
+	@Nullable
+	private volatile ImageProcessor paddingProcessor = null;
+
+	/**
+	 * @param sourceStack
+	 *            The stack to be cropped
+	 * @param roiIndex
+	 *            The ROIs that define the crop
+	 * @param roiMask
+	 *            The ROIs compiled into scanline spans
+	 * @param limits
+	 *            The limits of the ROIs @see RoiUtil#getLimits
+	 * @pre limits != null
+	 */
+	RoiCroppedStack(ImageStack sourceStack, RoiIndex roiIndex, RoiMask roiMask, int[] limits,
+			boolean fillBackground, int fillColor, int padding) {
+		super(limits[1] - limits[0] + 2 * padding, limits[3] - limits[2] + 2 * padding, sourceStack.getColorModel(),
+				null);
+
+		this.sourceStack = sourceStack;
+		this.roiMask = roiMask;
+		this.fillBackground = fillBackground;
+		this.fillColor = fillColor;
+		this.padding = padding;
+		xMin = limits[0];
+		yMin = limits[2];
+
+		int slices = 0;
+		final int[] nonEmptySlices = new int[limits[5] - limits[4] + 1];
+		for (int sourceZ = limits[4]; sourceZ <= limits[5]; sourceZ++) {
+			if (!roiIndex.isSliceEmpty(sourceZ)) {
+				nonEmptySlices[slices++] = sourceZ;
+			}
+		}
+		sourceSlices = new int[slices];
+		System.arraycopy(nonEmptySlices, 0, sourceSlices, 0, slices);
+	}
+
+	@Override
+	public int getSize() {
+		return sourceSlices.length + 2 * padding;
+	}
+
+	@Override
+	public int getBitDepth() {
+		return sourceStack.getBitDepth();
+	}
+
+	/**
+	 * Crops the nth slice from the source stack
+	 *
+	 * @param n
+	 *            Number of the slice [1, getSize()]
+	 * @return A new processor with the cropped pixels
+	 * @throws IllegalArgumentException
+	 *             if n is out of range
+	 */
+	@Override
+	public ImageProcessor getProcessor(int n) {
+		if (n < 1 || n > getSize()) {
+			throw new IllegalArgumentException("Argument out of range: " + n);
+		}
+
+		final int sliceIndex = n - 1 - padding;
+		if (sliceIndex < 0 || sliceIndex >= sourceSlices.length) {
+			ImageProcessor blank = paddingProcessor;
+			if (blank == null) {
+				blank = RoiUtil.createPaddingProcessor(sourceStack, getWidth(), getHeight(), fillBackground,
+						fillColor);
+				paddingProcessor = blank;
+			}
+			return blank.duplicate();
+		}
+
+		final int sourceZ = sourceSlices[sliceIndex];
+		return RoiUtil.cropSlice(sourceStack.getProcessor(sourceZ), roiMask.getSliceSpans(sourceZ), xMin, yMin,
+				getWidth(), getHeight(), fillBackground, fillColor, padding);
+	}
+
+	@Override
+	public Object getPixels(int n) {
+		return getProcessor(n).getPixels();
+	}
+
+	@Override
+	public String getSliceLabel(int n) {
+		return null;
+	}
+
+	@Override
+	public void addSlice(String fileName) {
+		throw new UnsupportedOperationException("Can't add slices to a cropped view");
+	}
+
+	@Override
+	public void deleteSlice(int n) {
+		throw new UnsupportedOperationException("Can't delete slices from a cropped view");
+	}
+}
@@ -0,0 +1,132 @@
+package org.bonej.common;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import ij.gui.Roi;
+import ij.plugin.frame.RoiManager;
+
+/**
+ * An index of the ROIs in a RoiManager by their slice number.
+ *
+ * RoiManager.getSliceNumber parses the number from the name of the ROI, so
+ * looking up the ROIs of each slice of a stack directly from the manager takes
+ * O(slices * ROIs) time. The index is built with one pass over the ROIs, after
+ * which the ROIs of a slice can be found in time proportional to their number.
+ *
+ * ROIs without a name are not indexed, because their slice number can't be
+ * determined.
+ */
+public final class RoiIndex {
+	private final ArrayList<Roi> rois = new ArrayList<>();
+	private final ArrayList<Integer> sliceNumbers = new ArrayList<>();
+	/**
+	 * Positions of the ROIs in rois by slice number
+	 */
+	private final HashMap<Integer, ArrayList<Integer>> slicePositions = new HashMap<>();
+	/**
+	 * Positions of the ROIs in rois which are active on all slices
+	 */
+	private final ArrayList<Integer> allSlicePositions = new ArrayList<>();
+
+	/**
+	 * Creates an index of the ROIs currently in the given manager
+	 *
+	 * @throws NullPointerException
+	 *             if roiMan == null
+	 */
+	public RoiIndex(RoiManager roiMan) {
+		checkNotNull(roiMan, "Must have a RoiManager to index");
+
+		for (Roi roi : roiMan.getRoisAsArray()) {
+			String roiName = roi.getName();
+			if (roiName == null) {
+				continue;
+			}
+
+			final int position = rois.size();
+			final int sliceNumber = roiMan.getSliceNumber(roiName);
+			rois.add(roi);
+			sliceNumbers.add(sliceNumber);
+
+			if (sliceNumber == RoiUtil.NO_SLICE_NUMBER) {
+				allSlicePositions.add(position);
+				continue;
+			}
+
+			ArrayList<Integer> positions = slicePositions.get(sliceNumber);
+			if (positions == null) {
+				positions = new ArrayList<>();
+				slicePositions.put(sliceNumber, positions);
+			}
+			positions.add(position);
+		}
+	}
+
+	/**
+	 * @return Number of ROIs in the index
+	 */
+	public int size() {
+		return rois.size();
+	}
+
+	public Roi getRoi(int index) {
+		return rois.get(index);
+	}
+
+	/**
+	 * @return The slice number of the ROI, or RoiUtil.NO_SLICE_NUMBER if it's
+	 *         active on all slices
+	 */
+	public int getSliceNumber(int index) {
+		return sliceNumbers.get(index);
+	}
+
+	/**
+	 * @return true if any of the ROIs is active on all slices
+	 */
+	public boolean hasAllSliceRois() {
+		return !allSlicePositions.isEmpty();
+	}
+
+	/**
+	 * Returns the ROIs that are active in the given slice, i.e. the ROIs on the
+	 * slice and the ROIs without a slice number. The ROIs are in the same order
+	 * as in the RoiManager.
+	 *
+	 * @param sliceNumber
+	 *            Number of the slice (1-based)
+	 * @return A new list of ROIs, empty if there are none
+	 */
+	public ArrayList<Roi> getSliceRois(int sliceNumber) {
+		ArrayList<Integer> positions = slicePositions.get(sliceNumber);
+		if (positions == null) {
+			positions = new ArrayList<>();
+		}
+
+		final ArrayList<Roi> sliceRois = new ArrayList<>(positions.size() + allSlicePositions.size());
+
+		// merge the two sorted lists of positions to keep the original order
+		int i = 0;
+		int j = 0;
+		while (i < positions.size() || j < allSlicePositions.size()) {
+			if (j == allSlicePositions.size()
+					|| (i < positions.size() && positions.get(i) < allSlicePositions.get(j))) {
+				sliceRois.add(rois.get(positions.get(i++)));
+			} else {
+				sliceRois.add(rois.get(allSlicePositions.get(j++)));
+			}
+		}
+
+		return sliceRois;
+	}
+
+	/**
+	 * @return true if no ROIs are active in the given slice
+	 */
+	public boolean isSliceEmpty(int sliceNumber) {
+		return allSlicePositions.isEmpty() && !slicePositions.containsKey(sliceNumber);
+	}
+}
@@ -0,0 +1,453 @@
+package org.bonej.common;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.plugin.frame.RoiManager;
+import ij.process.ImageProcessor;
+
+/**
+ * A 3D mask compiled from the ROIs in a RoiManager.
+ *
+ * The shapes of the ROIs active on each slice are rasterized once, and stored
+ * as ScanlineSpans. After that the mask can be used repeatedly for cropping,
+ * masked statistics and voxel counting without going through the RoiManager or
+ * the ROI masks again. Slices which have only ROIs active on all slices share
+ * the same spans.
+ *
+ * The mask is a snapshot: later changes to the RoiManager don't affect it.
+ */
+public final class RoiMask {
+	private static final ScanlineSpans NO_SPANS = ScanlineSpans.fromRectangle(0, 0, 0, 0);
+
+	private final int width;
+	private final int height;
+	/**
+	 * The spans of slice z are in sliceSpans[z - 1]
+	 */
+	private final ScanlineSpans[] sliceSpans;
+	@Nullable
+	private final int[] limits;
+
+	private RoiMask(int width, int height, ScanlineSpans[] sliceSpans, @Nullable int[] limits) {
+		this.width = width;
+		this.height = height;
+		this.sliceSpans = sliceSpans;
+		this.limits = limits;
+	}
+
+	/**
+	 * Compiles the ROIs currently in the manager into a mask which fits inside
+	 * the given stack
+	 *
+	 * @return A mask with the dimensions of the stack. Returns null if roiMan
+	 *         == null or stack == null
+	 */
+	@Nullable
+	public static RoiMask compile(@Nullable RoiManager roiMan, @Nullable ImageStack stack) {
+		if (roiMan == null || stack == null) {
+			return null;
+		}
+
+		return fromIndex(new RoiIndex(roiMan), stack);
+	}
+
+	/**
+	 * Same as @see RoiMask#compile(RoiManager, ImageStack), but compiles the
+	 * mask from a prebuilt index of ROIs
+	 */
+	static RoiMask fromIndex(RoiIndex roiIndex, ImageStack stack) {
+		final int width = stack.getWidth();
+		final int height = stack.getHeight();
+		final int depth = stack.getSize();
+
+		final ArrayList<ScanlineSpans> allSliceSpans = new ArrayList<>();
+		final ArrayList<ArrayList<ScanlineSpans>> spansBySlice = new ArrayList<>(depth);
+		for (int z = 0; z < depth; z++) {
+			spansBySlice.add(null);
+		}
+
+		for (int i = 0; i < roiIndex.size(); i++) {
+			final int sliceNumber = roiIndex.getSliceNumber(i);
+			if (sliceNumber == RoiUtil.NO_SLICE_NUMBER) {
+				allSliceSpans.add(ScanlineSpans.fromRoi(roiIndex.getRoi(i), width, height));
+				continue;
+			}
+
+			if (sliceNumber < RoiUtil.FIRST_SLICE_NUMBER || sliceNumber > depth) {
+				continue;
+			}
+
+			ArrayList<ScanlineSpans> spans = spansBySlice.get(sliceNumber - 1);
+			if (spans == null) {
+				spans = new ArrayList<>();
+				spansBySlice.set(sliceNumber - 1, spans);
+			}
+			spans.add(ScanlineSpans.fromRoi(roiIndex.getRoi(i), width, height));
+		}
+
+		final ScanlineSpans commonSpans = ScanlineSpans.union(allSliceSpans);
+		final ScanlineSpans[] sliceSpans = new ScanlineSpans[depth];
+		for (int z = 0; z < depth; z++) {
+			final ArrayList<ScanlineSpans> spans = spansBySlice.get(z);
+			if (spans == null) {
+				sliceSpans[z] = commonSpans;
+				continue;
+			}
+
+			spans.add(commonSpans);
+			sliceSpans[z] = ScanlineSpans.union(spans);
+		}
+
+		return new RoiMask(width, height, sliceSpans, RoiUtil.getIndexLimits(roiIndex, stack));
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getDepth() {
+		return sliceSpans.length;
+	}
+
+	/**
+	 * @param sliceNumber
+	 *            Number of the slice (1-based)
+	 * @return The spans of the mask on the slice. Returns empty spans if the
+	 *         slice is out of range
+	 */
+	public ScanlineSpans getSliceSpans(int sliceNumber) {
+		if (sliceNumber < 1 || sliceNumber > sliceSpans.length) {
+			return NO_SPANS;
+		}
+
+		return sliceSpans[sliceNumber - 1];
+	}
+
+	/**
+	 * @return The limits of the ROIs of the mask @see RoiUtil#getLimits.
+	 *         Returns null if the mask has no ROIs inside the stack
+	 */
+	@Nullable
+	public int[] getLimits() {
+		return limits == null ? null : limits.clone();
+	}
+
+	/**
+	 * @return true if the voxel (x, y, z) is inside the mask, z is 1-based
+	 */
+	public boolean contains(int x, int y, int z) {
+		return getSliceSpans(z).contains(x, y);
+	}
+
+	/**
+	 * @return The number of voxels inside the mask
+	 */
+	public long count() {
+		long count = 0;
+		for (ScanlineSpans spans : sliceSpans) {
+			count += spans.count();
+		}
+		return count;
+	}
+
+	/**
+	 * Counts the voxels inside the mask whose values are in the range [min,
+	 * max], e.g. the foreground voxels of a binary image when min == max ==
+	 * Common.BINARY_WHITE. The slices are counted in parallel.
+	 *
+	 * @param stack
+	 *            A stack with the same dimensions as the mask
+	 * @throws NullPointerException
+	 *             if stack == null
+	 * @throws IllegalArgumentException
+	 *             if the dimensions of the stack don't match the mask
+	 */
+	public long countVoxels(final ImageStack stack, final double min, final double max) {
+		checkStack(stack);
+
+		final List<long[]> threadCounts = runOnSlices(stack, new SliceTask<long[]>() {
+			@Override
+			public long[] createAccumulator() {
+				return new long[1];
+			}
+
+			@Override
+			public void process(ImageProcessor processor, ScanlineSpans spans, final long[] accumulator) {
+				visitValues(processor, spans, new ValueConsumer() {
+					@Override
+					public void accept(double value) {
+						if (value >= min && value <= max) {
+							accumulator[0]++;
+						}
+					}
+				});
+			}
+		});
+
+		long count = 0;
+		for (long[] threadCount : threadCounts) {
+			count += threadCount[0];
+		}
+		return count;
+	}
+
+	/**
+	 * Calculates statistics of the voxel values inside the mask. The slices
+	 * are processed in parallel, and the mean and standard deviation are
+	 * accumulated with StreamingStatistics, so that they stay accurate for
+	 * large volumes. NaN values are ignored.
+	 *
+	 * @param stack
+	 *            A stack with the same dimensions as the mask
+	 * @return Statistics of the voxels. Returns null if the mask is empty, or
+	 *         all the values inside it are NaN
+	 * @throws NullPointerException
+	 *             if stack == null
+	 * @throws IllegalArgumentException
+	 *             if the dimensions of the stack don't match the mask
+	 */
+	@Nullable
+	public Statistics getStatistics(final ImageStack stack) {
+		checkStack(stack);
+
+		final List<StreamingStatistics> threadStatistics = runOnSlices(stack,
+				new SliceTask<StreamingStatistics>() {
+					@Override
+					public StreamingStatistics createAccumulator() {
+						return new StreamingStatistics();
+					}
+
+					@Override
+					public void process(ImageProcessor processor, ScanlineSpans spans,
+							final StreamingStatistics accumulator) {
+						visitValues(processor, spans, new ValueConsumer() {
+							@Override
+							public void accept(double value) {
+								accumulator.add(value);
+							}
+						});
+					}
+				});
+
+		final StreamingStatistics statistics = new StreamingStatistics();
+		for (StreamingStatistics partial : threadStatistics) {
+			statistics.add(partial);
+		}
+
+		final long count = statistics.getCount();
+		if (count == 0) {
+			return null;
+		}
+
+		final double stdDev = count > 1 ? statistics.getStdDev() : 0.0;
+		return new Statistics(count, statistics.getMean(), stdDev, statistics.getMin(), statistics.getMax());
+	}
+
+	/**
+	 * Crops the stack to the limits of the mask, and copies the voxels inside
+	 * the mask. Voxels keep their position relative to each other. Slices
+	 * without any ROIs are skipped like in RoiUtil.cropToRois.
+	 *
+	 * @param sourceStack
+	 *            A stack with the same dimensions as the mask
+	 * @param fillBackground
+	 *            If true, the voxels outside the mask are set to fillColor
+	 * @param padding
+	 *            Number of pixels added on each side of the cropped stack
+	 * @return A new cropped stack. Returns null if the mask has no ROIs
+	 *         inside the stack
+	 * @throws NullPointerException
+	 *             if sourceStack == null
+	 * @throws IllegalArgumentException
+	 *             if the dimensions of the stack don't match the mask
+	 */
+	@Nullable
+	public ImageStack crop(ImageStack sourceStack, boolean fillBackground, int fillColor, int padding) {
+		checkStack(sourceStack);
+
+		if (limits == null) {
+			return null;
+		}
+
+		final int shiftX = padding - limits[0];
+		final int shiftY = padding - limits[2];
+		final int croppedWidth = limits[1] - limits[0] + 2 * padding;
+		final int croppedHeight = limits[3] - limits[2] + 2 * padding;
+		final ImageStack targetStack = new ImageStack(croppedWidth, croppedHeight);
+		ImageProcessor templateProcessor = null;
+
+		for (int z = limits[4]; z <= limits[5]; z++) {
+			final ScanlineSpans spans = getSliceSpans(z);
+			if (spans.isEmpty()) {
+				continue;
+			}
+
+			final ImageProcessor sourceProcessor = sourceStack.getProcessor(z);
+			final ImageProcessor targetProcessor = createFilledProcessor(sourceProcessor, croppedWidth,
+					croppedHeight, fillBackground, fillColor);
+			RoiUtil.copySpans(sourceProcessor, targetProcessor, spans, shiftX, shiftY);
+			targetStack.addSlice("", targetProcessor);
+			templateProcessor = sourceProcessor;
+		}
+
+		if (templateProcessor == null) {
+			return null;
+		}
+
+		for (int i = 0; i < padding; i++) {
+			targetStack.addSlice("",
+					createFilledProcessor(templateProcessor, croppedWidth, croppedHeight, fillBackground, fillColor),
+					0);
+			targetStack.addSlice(
+					createFilledProcessor(templateProcessor, croppedWidth, croppedHeight, fillBackground, fillColor));
+		}
+
+		return targetStack;
+	}
+
+	/**
+	 * Statistics of the voxel values inside a mask
+	 */
+	public static final class Statistics {
+		public final long count;
+		public final double mean;
+		public final double stdDev;
+		public final double min;
+		public final double max;
+
+		Statistics(long count, double mean, double stdDev, double min, double max) {
+			this.count = count;
+			this.mean = mean;
+			this.stdDev = stdDev;
+			this.min = min;
+			this.max = max;
+		}
+	}
+
+	// region -- Helper methods --
+
+	private interface ValueConsumer {
+		void accept(double value);
+	}
+
+	/**
+	 * A task run on the slices of the mask, which accumulates its results
+	 * into an accumulator of its thread
+	 */
+	private interface SliceTask<T> {
+		T createAccumulator();
+
+		void process(ImageProcessor processor, ScanlineSpans spans, T accumulator);
+	}
+
+	private void checkStack(ImageStack stack) {
+		checkNotNull(stack, "Stack must not be null");
+		checkArgument(stack.getWidth() == width && stack.getHeight() == height && stack.getSize() == getDepth(),
+				"Stack dimensions don't match the mask");
+	}
+
+	/**
+	 * Runs the task on each non-empty slice
+	 *
+	 * @return The accumulators of the threads
+	 */
+	private <T> List<T> runOnSlices(final ImageStack stack, final SliceTask<T> sliceTask) {
+		final List<T> accumulators = Collections.synchronizedList(new ArrayList<T>());
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				final T accumulator = sliceTask.createAccumulator();
+				for (int z = ai.getAndIncrement(); z < sliceSpans.length; z = ai.getAndIncrement()) {
+					if (sliceSpans[z].isEmpty()) {
+						continue;
+					}
+					sliceTask.process(stack.getProcessor(z + 1), sliceSpans[z], accumulator);
+				}
+				accumulators.add(accumulator);
+			}
+		};
+		runTask(stack, task, Multithreader.getNumThreads());
+
+		return accumulators;
+	}
+
+	/**
+	 * Runs the task on the given number of threads, or on the calling thread
+	 * if the stack is virtual
+	 */
+	private static void runTask(ImageStack stack, Runnable task, int numThreads) {
+		if (stack.isVirtual()) {
+			task.run();
+			return;
+		}
+
+		final Thread[] threads = new Thread[numThreads];
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(task);
+		}
+		Multithreader.startAndJoin(threads);
+	}
+
+	/**
+	 * Calls the consumer with the raw value of each pixel
+	 * inside the spans
+	 */
+	private static void visitValues(final ImageProcessor processor, ScanlineSpans spans,
+			final ValueConsumer consumer) {
+		final Object pixels = processor.getPixels();
+		final int processorWidth = processor.getWidth();
+
+		spans.forEach(new ScanlineSpans.SpanConsumer() {
+			@Override
+			public void accept(int y, int start, int end) {
+				final int offset = y * processorWidth;
+				if (pixels instanceof byte[]) {
+					final byte[] bytes = (byte[]) pixels;
+					for (int i = offset + start; i < offset + end; i++) {
+						consumer.accept(bytes[i] & 0xFF);
+					}
+				} else if (pixels instanceof short[]) {
+					final short[] shorts = (short[]) pixels;
+					for (int i = offset + start; i < offset + end; i++) {
+						consumer.accept(shorts[i] & 0xFFFF);
+					}
+				} else if (pixels instanceof float[]) {
+					final float[] floats = (float[]) pixels;
+					for (int i = offset + start; i < offset + end; i++) {
+						consumer.accept(floats[i]);
+					}
+				} else {
+					for (int x = start; x < end; x++) {
+						consumer.accept(processor.getf(x, y));
+					}
+				}
+			}
+		});
+	}
+
+	private static ImageProcessor createFilledProcessor(ImageProcessor template, int width, int height,
+			boolean fillBackground, int fillColor) {
+		final ImageProcessor processor = template.createProcessor(width, height);
+		if (fillBackground) {
+			processor.setColor(fillColor);
+			processor.fill();
+		}
+		return processor;
+	}
+	// endregion
+}
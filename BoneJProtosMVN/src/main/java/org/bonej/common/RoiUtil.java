@@ -1,14 +1,20 @@
 package org.bonej.common;
 
 import java.awt.*;
+import java.awt.image.ColorModel;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 
 import ij.ImageStack;
 import ij.gui.Roi;
 import ij.plugin.frame.RoiManager;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 
 /**
  * A class containing utility methods for a ImageJ RoiManager
@@ -32,6 +38,8 @@ public class RoiUtil {
 	 *         empty list if sliceNumber is out of bounds, or roiMan == null or
 	 *         stack == null
 	 *
+	 *         Goes through all the ROIs in roiMan on every call. Use a
+	 *         RoiIndex to find the ROIs of several slices.
 	 */
 	public static ArrayList<Roi> getSliceRoi(@Nullable RoiManager roiMan, @Nullable ImageStack stack, int sliceNumber) {
 		ArrayList<Roi> roiList = new ArrayList<>();
@@ -44,18 +52,7 @@ public class RoiUtil {
 			return roiList;
 		}
 
-		Roi[] rois = roiMan.getRoisAsArray();
-		for (Roi roi : rois) {
-			String roiName = roi.getName();
-			if (roiName == null) {
-				continue;
-			}
-			int roiSliceNumber = roiMan.getSliceNumber(roiName);
-			if (roiSliceNumber == sliceNumber || roiSliceNumber == NO_SLICE_NUMBER) {
-				roiList.add(roi);
-			}
-		}
-		return roiList;
+		return new RoiIndex(roiMan).getSliceRois(sliceNumber);
 	}
 
 	/**
@@ -83,6 +80,15 @@ public class RoiUtil {
 			return null;
 		}
 
+		return getIndexLimits(new RoiIndex(roiMan), stack);
+	}
+
+	/**
+	 * Same as @see RoiUtil#getLimits(RoiManager, ImageStack), but finds the
+	 * limits from a prebuilt index of ROIs
+	 */
+	@Nullable
+	static int[] getIndexLimits(RoiIndex roiIndex, ImageStack stack) {
 		final int DEFAULT_Z_MIN = 1;
 		final int DEFAULT_Z_MAX = stack.getSize();
 
@@ -93,12 +99,11 @@ public class RoiUtil {
 		int zMin = DEFAULT_Z_MAX;
 		int zMax = DEFAULT_Z_MIN;
 
-		Roi[] rois = roiMan.getRoisAsArray();
 		boolean allSlices = false;
 		boolean noValidRois = true;
 
-		for (Roi roi : rois) {
-			Rectangle r = roi.getBounds();
+		for (int i = 0; i < roiIndex.size(); i++) {
+			Rectangle r = roiIndex.getRoi(i).getBounds();
 			boolean valid = getSafeRoiBounds(r, stack.getWidth(), stack.getHeight());
 
 			if (!valid) {
@@ -110,7 +115,7 @@ public class RoiUtil {
 			yMin = Math.min(r.y, yMin);
 			yMax = Math.max(r.y + r.height, yMax);
 
-			int sliceNumber = roiMan.getSliceNumber(roi.getName());
+			int sliceNumber = roiIndex.getSliceNumber(i);
 			if (sliceNumber >= FIRST_SLICE_NUMBER && sliceNumber <= stack.getSize()) {
 				zMin = Math.min(sliceNumber, zMin);
 				zMax = Math.max(sliceNumber, zMax);
@@ -189,13 +194,34 @@ public class RoiUtil {
 	 *            Number of pixels added to the each side of the resulting image
 	 * @return A new image stack containing the cropped version of the given
 	 *         image. Returns null if roiMan is null or empty. Returns null if
-	 *         sourceStack == null
+	 *         sourceStack == null. Returns null if none of the ROIs is on the
+	 *         slices of the stack.
 	 *
 	 */
 	@Nullable
 	public static ImageStack cropToRois(@Nullable RoiManager roiMan, @Nullable ImageStack sourceStack,
 			boolean fillBackground, int fillColor, int padding) {
-		int[] limits = getLimits(roiMan, sourceStack);
+		return cropToRois(roiMan, sourceStack, fillBackground, fillColor, padding, false);
+	}
+
+	/**
+	 * Same as @see RoiUtil#cropToRois(RoiManager, ImageStack, boolean, int,
+	 * int), but optionally crops the slices in parallel.
+	 *
+	 * @param parallel
+	 *            If true, the slices are cropped in parallel. Slices of a
+	 *            virtual stack are always cropped one at a time.
+	 */
+	@Nullable
+	public static ImageStack cropToRois(@Nullable RoiManager roiMan, @Nullable ImageStack sourceStack,
+			final boolean fillBackground, final int fillColor, final int padding, boolean parallel) {
+		if (roiMan == null || sourceStack == null || roiMan.getCount() == 0) {
+			return null;
+		}
+
+		final RoiIndex roiIndex = new RoiIndex(roiMan);
+		final RoiMask roiMask = RoiMask.fromIndex(roiIndex, sourceStack);
+		final int[] limits = roiMask.getLimits();
 
 		if (limits == null) {
 			return null;
@@ -211,79 +237,177 @@ public class RoiUtil {
 		final int croppedWidth = xMax - xMin + 2 * padding;
 		final int croppedHeight = yMax - yMin + 2 * padding;
 
-		ImageStack targetStack = new ImageStack(croppedWidth, croppedHeight);
-
-		// copy
-		ImageProcessor sourceProcessor;
-		ImageProcessor targetProcessor;
-		ArrayList<Roi> sliceRois;
-
+		final ArrayList<Integer> sourceSlices = new ArrayList<>();
 		for (int sourceZ = zMin; sourceZ <= zMax; sourceZ++) {
-			sliceRois = getSliceRoi(roiMan, sourceStack, sourceZ);
-			if (sliceRois.size() == 0) {
-				continue;
+			if (!roiIndex.isSliceEmpty(sourceZ)) {
+				sourceSlices.add(sourceZ);
 			}
+		}
 
-			sourceProcessor = sourceStack.getProcessor(sourceZ);
-			targetProcessor = sourceProcessor.createProcessor(croppedWidth, croppedHeight);
+		if (sourceSlices.isEmpty()) {
+			return null;
+		}
 
-			if (fillBackground) {
-				targetProcessor.setColor(fillColor);
-				targetProcessor.fill();
+		// copy
+		final ImageProcessor[] targetProcessors = new ImageProcessor[sourceSlices.size()];
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Runnable cropTask = new Runnable() {
+			@Override
+			public void run() {
+				for (int i = ai.getAndIncrement(); i < targetProcessors.length; i = ai.getAndIncrement()) {
+					final int sourceZ = sourceSlices.get(i);
+					targetProcessors[i] = cropSlice(sourceStack.getProcessor(sourceZ), roiMask.getSliceSpans(sourceZ),
+							xMin, yMin, croppedWidth, croppedHeight, fillBackground, fillColor, padding);
+				}
 			}
+		};
 
-			copySlice(sourceProcessor, targetProcessor, sliceRois, padding);
-			targetStack.addSlice("", targetProcessor);
+		if (parallel && !sourceStack.isVirtual()) {
+			final Thread[] threads = Multithreader.newThreads();
+			for (int thread = 0; thread < threads.length; thread++) {
+				threads[thread] = new Thread(cropTask);
+			}
+			Multithreader.startAndJoin(threads);
+		} else {
+			cropTask.run();
 		}
 
-		// z padding
-		targetProcessor = targetStack.getProcessor(1).createProcessor(croppedWidth, croppedHeight);
-		if (fillBackground) {
-			targetProcessor.setColor(fillColor);
-			targetProcessor.fill();
+		ImageStack targetStack = new ImageStack(croppedWidth, croppedHeight);
+		for (ImageProcessor targetProcessor : targetProcessors) {
+			targetStack.addSlice("", targetProcessor);
 		}
+
+		// z padding, each slice with pixels of its own
+		final ImageProcessor paddingProcessor = createPaddingProcessor(sourceStack, croppedWidth, croppedHeight,
+				fillBackground, fillColor);
 		for (int i = 0; i < padding; i++) {
-			targetStack.addSlice("", targetProcessor.duplicate(), 0);
-			targetStack.addSlice(targetProcessor.duplicate());
+			targetStack.addSlice("", paddingProcessor.duplicate(), 0);
+			targetStack.addSlice(paddingProcessor.duplicate());
 		}
 
 		return targetStack;
 	}
 
 	/**
-	 * Copies pixels under all the ROIs on a slide
+	 * Same as @see RoiUtil#cropToRois(RoiManager, ImageStack, boolean, int,
+	 * int), but returns a lazy view instead of a copy. Each slice of the view
+	 * is cropped only when it's requested.
+	 *
+	 * @return A read-only virtual stack of the cropped image. Returns null if
+	 *         roiMan is null or empty. Returns null if sourceStack == null
+	 * @see RoiCroppedStack
+	 */
+	@Nullable
+	public static RoiCroppedStack cropToRoisLazily(@Nullable RoiManager roiMan, @Nullable ImageStack sourceStack,
+			boolean fillBackground, int fillColor, int padding) {
+		if (roiMan == null || sourceStack == null || roiMan.getCount() == 0) {
+			return null;
+		}
+
+		final RoiIndex roiIndex = new RoiIndex(roiMan);
+		final RoiMask roiMask = RoiMask.fromIndex(roiIndex, sourceStack);
+		final int[] limits = roiMask.getLimits();
+
+		if (limits == null) {
+			return null;
+		}
+
+		return new RoiCroppedStack(sourceStack, roiIndex, roiMask, limits, fillBackground, fillColor, padding);
+	}
+
+	/**
+	 * Creates a blank slice for the z-padding of a cropped stack. The slice is
+	 * created from the bit depth of the stack, so that no slice needs to be
+	 * read from a virtual stack.
+	 *
+	 * @param sourceStack
+	 *            The stack being cropped
+	 * @return A new processor of the type of the stack, filled with fillColor
+	 *         if fillBackground is true
+	 */
+	static ImageProcessor createPaddingProcessor(ImageStack sourceStack, int width, int height,
+			boolean fillBackground, int fillColor) {
+		final ColorModel colorModel = sourceStack.getColorModel();
+		final ImageProcessor processor;
+		switch (sourceStack.getBitDepth()) {
+		case 8:
+			processor = new ByteProcessor(width, height, new byte[width * height], colorModel);
+			break;
+		case 16:
+			processor = new ShortProcessor(width, height, new short[width * height], colorModel);
+			break;
+		case 24:
+			processor = new ColorProcessor(width, height);
+			break;
+		case 32:
+			processor = new FloatProcessor(width, height, new float[width * height], colorModel);
+			break;
+		default:
+			// The bit depth of a virtual stack is unknown until it's set
+			processor = sourceStack.getProcessor(FIRST_SLICE_NUMBER).createProcessor(width, height);
+			break;
+		}
+
+		if (fillBackground) {
+			processor.setColor(fillColor);
+			processor.fill();
+		}
+		return processor;
+	}
+
+	/**
+	 * Creates a cropped copy of a single slice
 	 *
 	 * @param sourceProcessor
-	 *            The source image slide
-	 * @param targetProcessor
-	 *            The target slide
-	 * @param sliceRois
-	 *            List of all the ROIs on the source slide
-	 * @param padding
-	 *            Number of pixels added on each side of the target slide
+	 *            The source image slice
+	 * @param spans
+	 *            The spans of the ROIs on the source slice, e.g. from a
+	 *            RoiMask
+	 * @param xMin
+	 *            Horizontal start of the crop in the source slice
+	 * @param yMin
+	 *            Vertical start of the crop in the source slice
+	 * @param croppedWidth
+	 *            Width of the cropped slice (including padding)
+	 * @param croppedHeight
+	 *            Height of the cropped slice (including padding)
+	 * @return A new processor with the pixels under the ROIs
 	 */
-	private static void copySlice(ImageProcessor sourceProcessor, ImageProcessor targetProcessor,
-			ArrayList<Roi> sliceRois, int padding) {
-		for (Roi sliceRoi : sliceRois) {
-			Rectangle rectangle = sliceRoi.getBounds();
-			boolean valid = getSafeRoiBounds(rectangle, sourceProcessor.getWidth(), sourceProcessor.getHeight());
+	static ImageProcessor cropSlice(ImageProcessor sourceProcessor, ScanlineSpans spans, int xMin, int yMin,
+			int croppedWidth, int croppedHeight, boolean fillBackground, int fillColor, int padding) {
+		ImageProcessor targetProcessor = sourceProcessor.createProcessor(croppedWidth, croppedHeight);
 
-			if (!valid) {
-				continue;
-			}
+		if (fillBackground) {
+			targetProcessor.setColor(fillColor);
+			targetProcessor.fill();
+		}
 
-			int minY = rectangle.y;
-			int minX = rectangle.x;
-			int maxY = rectangle.y + rectangle.height;
-			int maxX = rectangle.x + rectangle.width;
+		copySpans(sourceProcessor, targetProcessor, spans, padding - xMin, padding - yMin);
+		return targetProcessor;
+	}
 
-			ImageProcessor mask = sourceProcessor.getMask();
-			if (mask == null) {
-				copyRoi(sourceProcessor, targetProcessor, minX, minY, maxX, maxY, padding);
-			} else {
-				copyRoiWithMask(sourceProcessor, targetProcessor, minX, minY, maxX, maxY, padding);
-			}
+	/**
+	 * Copies the pixels inside the spans from the source to the target. Pixel
+	 * (x, y) of the source is copied to (x + shiftX, y + shiftY) of the target.
+	 *
+	 * @pre the shifted spans fit inside the target
+	 */
+	static void copySpans(final ImageProcessor sourceProcessor, final ImageProcessor targetProcessor,
+			ScanlineSpans spans, final int shiftX, final int shiftY) {
+		if (canCopyPixels(sourceProcessor, targetProcessor)) {
+			spans.copy(sourceProcessor.getPixels(), sourceProcessor.getWidth(), targetProcessor.getPixels(),
+					targetProcessor.getWidth(), shiftX, shiftY);
+			return;
 		}
+
+		spans.forEach(new ScanlineSpans.SpanConsumer() {
+			@Override
+			public void accept(int y, int start, int end) {
+				for (int x = start; x < end; x++) {
+					targetProcessor.set(x + shiftX, y + shiftY, sourceProcessor.get(x, y));
+				}
+			}
+		});
 	}
 
 	/**
@@ -318,6 +442,13 @@ public class RoiUtil {
 			return;
 		}
 
+		if (canCopyPixels(sourceProcessor, targetProcessor)) {
+			ScanlineSpans spans = ScanlineSpans.fromMask(mask, 0, 0, minX, minY, maxX, maxY);
+			spans.copy(sourceProcessor.getPixels(), sourceProcessor.getWidth(), targetProcessor.getPixels(),
+					targetProcessor.getWidth(), padding - minX, padding - minY);
+			return;
+		}
+
 		int targetY = padding;
 		for (int sourceY = minY; sourceY < maxY; sourceY++) {
 			int targetX = padding;
@@ -356,6 +487,20 @@ public class RoiUtil {
 	 */
 	private static void copyRoi(ImageProcessor sourceProcessor, ImageProcessor targetProcessor, final int minX,
 			final int minY, final int maxX, final int maxY, final int padding) {
+		if (canCopyPixels(sourceProcessor, targetProcessor)) {
+			final Object sourcePixels = sourceProcessor.getPixels();
+			final Object targetPixels = targetProcessor.getPixels();
+			final int sourceWidth = sourceProcessor.getWidth();
+			final int targetWidth = targetProcessor.getWidth();
+			final int rowLength = maxX - minX;
+			int targetOffset = padding * targetWidth + padding;
+			for (int sourceY = minY; sourceY < maxY; sourceY++) {
+				System.arraycopy(sourcePixels, sourceY * sourceWidth + minX, targetPixels, targetOffset, rowLength);
+				targetOffset += targetWidth;
+			}
+			return;
+		}
+
 		int targetY = padding;
 		for (int sourceY = minY; sourceY < maxY; sourceY++) {
 			int targetX = padding;
@@ -367,4 +512,16 @@ public class RoiUtil {
 			targetY++;
 		}
 	}
+
+	/**
+	 * Checks if pixels can be copied between the processors directly from
+	 * array to array, i.e. both have pixel arrays of the same type (byte[],
+	 * short[], float[] or int[])
+	 */
+	private static boolean canCopyPixels(ImageProcessor sourceProcessor, ImageProcessor targetProcessor) {
+		final Object sourcePixels = sourceProcessor.getPixels();
+		final Object targetPixels = targetProcessor.getPixels();
+
+		return sourcePixels != null && targetPixels != null && sourcePixels.getClass() == targetPixels.getClass();
+	}
 }
@@ -0,0 +1,310 @@
+package org.bonej.common;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.List;
+
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+/**
+ * A run-length representation of a 2D mask. The area inside the mask is
+ * stored as horizontal spans [start, end) on each row.
+ *
+ * Copying or visiting pixels span by span avoids the per-pixel method calls
+ * and bounds checks of ImageProcessor.get/set, e.g. the pixels inside a span
+ * are copied with a single System.arraycopy call.
+ */
+public final class ScanlineSpans {
+	/**
+	 * A callback for visiting the spans one by one
+	 */
+	public interface SpanConsumer {
+		/**
+		 * @param y
+		 *            Row of the span
+		 * @param start
+		 *            First x-coordinate inside the span
+		 * @param end
+		 *            First x-coordinate after the span
+		 */
+		void accept(int y, int start, int end);
+	}
+
+	private static final ScanlineSpans EMPTY = new ScanlineSpans(0, new int[1], new int[0], new int[0]);
+
+	private final int minY;
+	/**
+	 * The spans of row y are in indices [rowIndex[y - minY], rowIndex[y - minY
+	 * + 1]) of starts and ends
+	 */
+	private final int[] rowIndex;
+	private final int[] starts;
+	private final int[] ends;
+
+	private ScanlineSpans(int minY, int[] rowIndex, int[] starts, int[] ends) {
+		this.minY = minY;
+		this.rowIndex = rowIndex;
+		this.starts = starts;
+		this.ends = ends;
+	}
+
+	/**
+	 * Creates spans which cover the rectangle [minX, maxX) x [minY, maxY)
+	 *
+	 * @return The spans of the rectangle, empty if it has no area
+	 */
+	public static ScanlineSpans fromRectangle(int minX, int minY, int maxX, int maxY) {
+		final int rows = Math.max(0, maxY - minY);
+		final int spans = maxX > minX ? rows : 0;
+		final int[] rowIndex = new int[rows + 1];
+		final int[] starts = new int[spans];
+		final int[] ends = new int[spans];
+
+		for (int i = 0; i < spans; i++) {
+			starts[i] = minX;
+			ends[i] = maxX;
+			rowIndex[i + 1] = i + 1;
+		}
+
+		return new ScanlineSpans(minY, rowIndex, starts, ends);
+	}
+
+	/**
+	 * Creates spans from the pixels of a mask inside the area [minX, maxX) x
+	 * [minY, maxY). A pixel (x, y) is inside the spans if the value of the
+	 * mask at (x - maskX, y - maskY) > 0.
+	 *
+	 * @param mask
+	 *            A mask image, e.g. from ImageProcessor.getMask()
+	 * @param maskX
+	 *            Horizontal position of the mask
+	 * @param maskY
+	 *            Vertical position of the mask
+	 * @throws NullPointerException
+	 *             if mask == null
+	 */
+	public static ScanlineSpans fromMask(ImageProcessor mask, int maskX, int maskY, int minX, int minY, int maxX,
+			int maxY) {
+		checkNotNull(mask, "Mask must not be null");
+
+		// clip the area to the mask
+		minX = Math.max(minX, maskX);
+		minY = Math.max(minY, maskY);
+		maxX = Math.min(maxX, maskX + mask.getWidth());
+		maxY = Math.min(maxY, maskY + mask.getHeight());
+
+		final int rows = Math.max(0, maxY - minY);
+		final int[] rowIndex = new int[rows + 1];
+		int[] starts = new int[Math.max(rows, 1)];
+		int[] ends = new int[starts.length];
+		final Object maskPixels = mask.getPixels();
+		final byte[] bytes = maskPixels instanceof byte[] ? (byte[]) maskPixels : null;
+		final int maskWidth = mask.getWidth();
+
+		int spans = 0;
+		for (int y = minY; y < maxY; y++) {
+			final int maskRow = (y - maskY) * maskWidth - maskX;
+			int start = -1;
+			for (int x = minX; x <= maxX; x++) {
+				final boolean inside = x < maxX
+						&& (bytes != null ? bytes[maskRow + x] != 0 : mask.get(x - maskX, y - maskY) > 0);
+				if (inside && start < 0) {
+					start = x;
+				} else if (!inside && start >= 0) {
+					if (spans == starts.length) {
+						starts = Arrays.copyOf(starts, spans * 2);
+						ends = Arrays.copyOf(ends, spans * 2);
+					}
+					starts[spans] = start;
+					ends[spans] = x;
+					spans++;
+					start = -1;
+				}
+			}
+			rowIndex[y - minY + 1] = spans;
+		}
+
+		return new ScanlineSpans(minY, rowIndex, Arrays.copyOf(starts, spans), Arrays.copyOf(ends, spans));
+	}
+
+	/**
+	 * Creates spans which cover the shape of the given ROI inside the area [0,
+	 * width) x [0, height), e.g. an image
+	 *
+	 * @throws NullPointerException
+	 *             if roi == null
+	 */
+	public static ScanlineSpans fromRoi(Roi roi, int width, int height) {
+		checkNotNull(roi, "ROI must not be null");
+
+		final Rectangle bounds = roi.getBounds();
+		final ImageProcessor mask = roi.getMask();
+		if (mask == null) {
+			// rectangular ROI
+			return fromRectangle(Math.max(bounds.x, 0), Math.max(bounds.y, 0),
+					Math.min(bounds.x + bounds.width, width), Math.min(bounds.y + bounds.height, height));
+		}
+
+		return fromMask(mask, bounds.x, bounds.y, 0, 0, width, height);
+	}
+
+	/**
+	 * Creates spans which cover all the pixels of the given spans
+	 *
+	 * @throws NullPointerException
+	 *             if spansList == null
+	 */
+	public static ScanlineSpans union(List<ScanlineSpans> spansList) {
+		checkNotNull(spansList, "List of spans must not be null");
+
+		int minY = Integer.MAX_VALUE;
+		int maxY = Integer.MIN_VALUE;
+		ScanlineSpans nonEmpty = null;
+		int nonEmptyCount = 0;
+		for (ScanlineSpans spans : spansList) {
+			if (spans.isEmpty()) {
+				continue;
+			}
+			nonEmpty = spans;
+			nonEmptyCount++;
+			minY = Math.min(minY, spans.minY);
+			maxY = Math.max(maxY, spans.minY + spans.rowIndex.length - 1);
+		}
+
+		if (nonEmptyCount == 0) {
+			return EMPTY;
+		}
+		if (nonEmptyCount == 1) {
+			return nonEmpty;
+		}
+
+		final int rows = maxY - minY;
+		final int[] rowIndex = new int[rows + 1];
+		int[] starts = new int[rows];
+		int[] ends = new int[rows];
+		long[] rowSpans = new long[16];
+		int spanCount = 0;
+
+		for (int y = minY; y < maxY; y++) {
+			// collect the spans of the row sorted by their start
+			int n = 0;
+			for (ScanlineSpans spans : spansList) {
+				final int row = y - spans.minY;
+				if (row < 0 || row >= spans.rowIndex.length - 1) {
+					continue;
+				}
+				for (int i = spans.rowIndex[row]; i < spans.rowIndex[row + 1]; i++) {
+					if (n == rowSpans.length) {
+						rowSpans = Arrays.copyOf(rowSpans, n * 2);
+					}
+					rowSpans[n++] = ((long) spans.starts[i] << 32) | (spans.ends[i] & 0xFFFFFFFFL);
+				}
+			}
+			Arrays.sort(rowSpans, 0, n);
+
+			// merge overlapping and adjacent spans
+			int i = 0;
+			while (i < n) {
+				final int start = (int) (rowSpans[i] >> 32);
+				int end = (int) rowSpans[i];
+				i++;
+				while (i < n && (int) (rowSpans[i] >> 32) <= end) {
+					end = Math.max(end, (int) rowSpans[i]);
+					i++;
+				}
+				if (spanCount == starts.length) {
+					starts = Arrays.copyOf(starts, Math.max(1, spanCount * 2));
+					ends = Arrays.copyOf(ends, starts.length);
+				}
+				starts[spanCount] = start;
+				ends[spanCount] = end;
+				spanCount++;
+			}
+			rowIndex[y - minY + 1] = spanCount;
+		}
+
+		return new ScanlineSpans(minY, rowIndex, Arrays.copyOf(starts, spanCount), Arrays.copyOf(ends, spanCount));
+	}
+
+	/**
+	 * @return The number of pixels inside the spans
+	 */
+	public long count() {
+		long count = 0;
+		for (int i = 0; i < starts.length; i++) {
+			count += ends[i] - starts[i];
+		}
+		return count;
+	}
+
+	public boolean isEmpty() {
+		return starts.length == 0;
+	}
+
+	/**
+	 * @return true if the pixel (x, y) is inside the spans
+	 */
+	public boolean contains(int x, int y) {
+		final int row = y - minY;
+		if (row < 0 || row >= rowIndex.length - 1) {
+			return false;
+		}
+
+		for (int i = rowIndex[row]; i < rowIndex[row + 1]; i++) {
+			if (x < starts[i]) {
+				return false;
+			}
+			if (x < ends[i]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Calls the consumer for each span, row by row from left to right
+	 */
+	public void forEach(SpanConsumer consumer) {
+		final int rows = rowIndex.length - 1;
+		for (int row = 0; row < rows; row++) {
+			for (int i = rowIndex[row]; i < rowIndex[row + 1]; i++) {
+				consumer.accept(minY + row, starts[i], ends[i]);
+			}
+		}
+	}
+
+	/**
+	 * Copies the pixels inside the spans from the source array to the target
+	 * array. Pixel (x, y) of the source is copied to (x + shiftX, y + shiftY)
+	 * in the target.
+	 *
+	 * @param source
+	 *            Pixel array of the source image, e.g. byte[], short[] or
+	 *            float[]
+	 * @param sourceWidth
+	 *            Width of the source image
+	 * @param target
+	 *            Pixel array of the target image, must be of the same type as
+	 *            source
+	 * @param targetWidth
+	 *            Width of the target image
+	 * @pre the shifted spans fit inside the target image
+	 * @throws ArrayStoreException
+	 *             if the arrays are of different type
+	 */
+	public void copy(Object source, int sourceWidth, Object target, int targetWidth, int shiftX, int shiftY) {
+		final int rows = rowIndex.length - 1;
+		for (int row = 0; row < rows; row++) {
+			final int y = minY + row;
+			final int sourceOffset = y * sourceWidth;
+			final int targetOffset = (y + shiftY) * targetWidth + shiftX;
+			for (int i = rowIndex[row]; i < rowIndex[row + 1]; i++) {
+				System.arraycopy(source, sourceOffset + starts[i], target, targetOffset + starts[i],
+						ends[i] - starts[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package org.bonej.common;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import javax.annotation.Nullable;
+
+/**
+ * Accumulates the mean, variance, min and max of values one at a time, so
+ * that the values don't need to be stored. Optionally accumulates a
+ * histogram with a fixed range.
+ *
+ * The mean and variance are updated with the numerically stable method of
+ * Welford. Accumulators filled in parallel (e.g. one per thread) can be
+ * combined with add(StreamingStatistics).
+ *
+ * NaN values are ignored, like in ij.process.StackStatistics. The class is not
+ * thread safe.
+ */
+public final class StreamingStatistics {
+	private long count = 0;
+	private double mean = 0.0;
+	/**
+	 * Sum of squared differences from the mean
+	 */
+	private double m2 = 0.0;
+	private double min = Double.POSITIVE_INFINITY;
+	private double max = Double.NEGATIVE_INFINITY;
+
+	@Nullable
+	private final long[] histogram;
+	private final double histogramMin;
+	private final double histogramMax;
+
+	/**
+	 * Creates an accumulator without a histogram
+	 */
+	public StreamingStatistics() {
+		histogram = null;
+		histogramMin = 0.0;
+		histogramMax = 0.0;
+	}
+
+	/**
+	 * Creates an accumulator with a histogram. Values outside the range
+	 * [histogramMin, histogramMax] are counted into the first and last bin.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if bins < 1 or histogramMin >= histogramMax
+	 */
+	public StreamingStatistics(int bins, double histogramMin, double histogramMax) {
+		checkArgument(bins >= 1, "Histogram must have at least one bin");
+		checkArgument(histogramMin < histogramMax, "Histogram range must not be empty");
+
+		histogram = new long[bins];
+		this.histogramMin = histogramMin;
+		this.histogramMax = histogramMax;
+	}
+
+	/**
+	 * Creates an empty accumulator with the same histogram settings as the
+	 * given one, e.g. for a worker thread
+	 *
+	 * @throws NullPointerException
+	 *             if template == null
+	 */
+	public static StreamingStatistics emptyCopyOf(StreamingStatistics template) {
+		checkNotNull(template, "Template must not be null");
+
+		if (template.histogram == null) {
+			return new StreamingStatistics();
+		}
+		return new StreamingStatistics(template.histogram.length, template.histogramMin, template.histogramMax);
+	}
+
+	public void add(double value) {
+		if (Double.isNaN(value)) {
+			return;
+		}
+
+		count++;
+		final double delta = value - mean;
+		mean += delta / count;
+		m2 += delta * (value - mean);
+		min = Math.min(min, value);
+		max = Math.max(max, value);
+
+		if (histogram != null) {
+			histogram[getBin(value)]++;
+		}
+	}
+
+	/**
+	 * Adds all the values accumulated by the other instance to this one
+	 *
+	 * @throws NullPointerException
+	 *             if other == null
+	 * @throws IllegalArgumentException
+	 *             if the histograms of the accumulators don't match
+	 */
+	public void add(StreamingStatistics other) {
+		checkNotNull(other, "Statistics must not be null");
+		checkArgument(hasSameHistogram(other), "Histograms don't match");
+
+		if (other.count == 0) {
+			return;
+		}
+
+		final long total = count + other.count;
+		final double delta = other.mean - mean;
+		mean += delta * other.count / total;
+		m2 += other.m2 + delta * delta * count * other.count / total;
+		count = total;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+
+		if (histogram != null) {
+			for (int i = 0; i < histogram.length; i++) {
+				histogram[i] += other.histogram[i];
+			}
+		}
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return Mean of the values. Returns NaN if there are none
+	 */
+	public double getMean() {
+		return count == 0 ? Double.NaN : mean;
+	}
+
+	/**
+	 * @return Sample variance of the values. Returns NaN if there are fewer
+	 *         than two
+	 */
+	public double getVariance() {
+		return count < 2 ? Double.NaN : m2 / (count - 1);
+	}
+
+	/**
+	 * @return Sample standard deviation of the values. Returns NaN if there
+	 *         are fewer than two
+	 */
+	public double getStdDev() {
+		return Math.sqrt(getVariance());
+	}
+
+	/**
+	 * @return Smallest value. Returns NaN if there are none
+	 */
+	public double getMin() {
+		return count == 0 ? Double.NaN : min;
+	}
+
+	/**
+	 * @return Largest value. Returns NaN if there are none
+	 */
+	public double getMax() {
+		return count == 0 ? Double.NaN : max;
+	}
+
+	/**
+	 * @return A copy of the histogram counts. Returns null if the accumulator
+	 *         has no histogram
+	 */
+	@Nullable
+	public long[] getHistogram() {
+		return histogram == null ? null : histogram.clone();
+	}
+
+	// region -- Helper methods --
+	private int getBin(double value) {
+		final int bins = histogram.length;
+		final int bin = (int) ((value - histogramMin) / (histogramMax - histogramMin) * bins);
+		return Common.clamp(bin, 0, bins - 1);
+	}
+
+	private boolean hasSameHistogram(StreamingStatistics other) {
+		if (histogram == null || other.histogram == null) {
+			return histogram == other.histogram;
+		}
+
+		return histogram.length == other.histogram.length && histogramMin == other.histogramMin
+				&& histogramMax == other.histogramMax;
+	}
+	// endregion
+}
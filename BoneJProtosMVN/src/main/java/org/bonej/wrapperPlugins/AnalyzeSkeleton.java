@@ -3,7 +3,7 @@ package org.bonej.wrapperPlugins;
 import net.imagej.ImageJ;
 
 import org.bonej.common.Common;
-import org.bonej.common.ImageCheck;
+import org.bonej.common.ImageCheckCache;
 import org.scijava.command.Command;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
@@ -38,7 +38,7 @@ public class AnalyzeSkeleton implements Command {
 			return false;
 		}
 
-		if (!ImageCheck.isBinary(inputImage)) {
+		if (!ImageCheckCache.isBinary(inputImage)) {
 			uiService.showDialog(Common.NOT_BINARY_IMAGE_ERROR, Common.WRONG_IMAGE_TYPE_DIALOG_TITLE);
 			return false;
 		}
@@ -54,6 +54,8 @@ public class AnalyzeSkeleton implements Command {
 
 		skeletonAnalyzer.setup("", inputImage);
 		skeletonAnalyzer.run(null);
+		// AnalyzeSkeleton_ may prune the branches of the input image in place
+		ImageCheckCache.invalidate(inputImage);
 	}
 
 	public static void main(final String... args) {
@@ -2,6 +2,7 @@ package org.bonej.wrapperPlugins;
 
 import org.bonej.common.Common;
 import org.bonej.common.ImageCheck;
+import org.bonej.common.ImageCheckCache;
 import org.scijava.command.Command;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
@@ -37,7 +38,7 @@ public class Skeletonize3D implements Command {
 			return false;
 		}
 
-		if (!ImageCheck.isBinary(inputImage)) {
+		if (!ImageCheckCache.isBinary(inputImage)) {
 			uiService.showDialog(Common.NOT_BINARY_IMAGE_ERROR, Common.WRONG_IMAGE_TYPE_DIALOG_TITLE);
 			return false;
 		}
@@ -2,15 +2,22 @@ package org.bonej.wrapperPlugins;
 
 import static org.scijava.ui.DialogPrompt.*;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 
+import javax.annotation.Nullable;
+
 import net.imagej.Main;
 
 import org.bonej.common.Common;
 import org.bonej.common.ImageCheck;
+import org.bonej.common.ImageCheckCache;
+import org.bonej.common.MappedVolume;
+import org.bonej.common.Multithreader;
 import org.bonej.common.ResultsInserter;
 import org.bonej.common.RoiUtil;
+import org.bonej.common.StreamingStatistics;
 import org.scijava.ItemIO;
 import org.scijava.command.Command;
 import org.scijava.log.LogService;
@@ -20,7 +27,8 @@ import org.scijava.plugin.Plugin;
 import org.scijava.prefs.PrefService;
 import org.scijava.ui.UIService;
 
-import sc.fiji.localThickness.LocalThicknessWrapper;
+import protoOps.localThickness.LocalThickness;
+import protoOps.localThickness.TiledLocalThickness;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
@@ -44,6 +52,8 @@ public class Thickness implements Command {
 	private static final boolean GRAPHIC_DEFAULT = true;
 	private static final boolean ROI_DEFAULT = false;
 	private static final boolean MASK_DEFAULT = true;
+	private static final boolean PARALLEL_DEFAULT = true;
+	private static final boolean STATISTICS_ONLY_DEFAULT = false;
 
 	// The following service parameters are populated automatically
 	// by the SciJava service framework before this command plugin is executed.
@@ -78,6 +88,15 @@ public class Thickness implements Command {
 	@Parameter(label = "Mask thickness map", description = "Remove pixel artifacts from the thickness map(s)", type = ItemIO.INPUT, required = false)
 	private boolean doMask = MASK_DEFAULT;
 
+	@Parameter(label = "Thickness & spacing in parallel", description = "Calculate both maps at the same time (needs more memory)", type = ItemIO.INPUT, required = false)
+	private boolean doParallel = PARALLEL_DEFAULT;
+
+	@Parameter(label = "Statistics only", description = "Calculate only the statistics without creating the thickness map(s) or the full distance map. Needs much less memory.", type = ItemIO.INPUT, required = false)
+	private boolean doStatisticsOnly = STATISTICS_ONLY_DEFAULT;
+
+	@Parameter(label = "Out-of-core map directory", description = "Calculate the map(s) block by block into raw files in this directory. For images that don't fit in memory. Leave empty to calculate in memory.", type = ItemIO.INPUT, required = false, style = "directory")
+	private File mapDirectory = null;
+
 	@Parameter(label = "Help", persist = false, callback = "openHelpPage")
 	private org.scijava.widget.Button helpButton;
 
@@ -112,22 +131,14 @@ public class Thickness implements Command {
 			return;
 		}
 
-		if (!ImageCheck.isBinary(image)) {
+		if (!ImageCheckCache.isBinary(image)) {
 			uiService.showDialog(Common.NOT_BINARY_IMAGE_ERROR, Common.WRONG_IMAGE_TYPE_DIALOG_TITLE);
 			pluginHasRequirements = false;
 			return;
 		}
 
-		final double ANISOTROPY_TOLERANCE = 1E-3;
-		if (ImageCheck.isVoxelIsotropic(image, ANISOTROPY_TOLERANCE)) {
-			pluginHasRequirements = true;
-			return;
-		}
-
-		Result result = uiService.showDialog(Common.ANISOTROPY_WARNING, "Anisotropic voxels",
-				MessageType.WARNING_MESSAGE, OptionType.OK_CANCEL_OPTION);
-
-		pluginHasRequirements = result != Result.CANCEL_OPTION;
+		// anisotropic voxels are handled by the distance transform
+		pluginHasRequirements = true;
 	}
 
 	@Override
@@ -145,17 +156,26 @@ public class Thickness implements Command {
 			return;
 		}
 
-		if (doThickness) {
-			boolean processingCompleted = getLocalThickness(true);
-			if (!processingCompleted) {
-				return;
-			}
+		final ImagePlus inputImage = getInputImage();
+		if (inputImage == null) {
+			return;
+		}
+
+		if (doStatisticsOnly) {
+			calculateStatistics(inputImage);
+			return;
+		}
+
+		ImagePlus[] maps = calculateMaps(inputImage);
+
+		if (doThickness && maps[0] != null) {
+			resultImage = maps[0];
 			showResultImage();
 			showThicknessStats(true);
 		}
 
-		if (doSpacing) {
-			getLocalThickness(false);
+		if (doSpacing && maps[1] != null) {
+			resultImage = maps[1];
 			showResultImage();
 			showThicknessStats(false);
 		}
@@ -177,44 +197,103 @@ public class Thickness implements Command {
 		IJ.run("Fire");
 	}
 
+	/**
+	 * Returns the image to be processed. The image is cropped to the ROIs in
+	 * the ROI Manager, if the user has chosen so. The same image is used for
+	 * both thickness and spacing, so that it's cropped only once. In the
+	 * out-of-core mode the image is cropped lazily slice by slice.
+	 *
+	 * @return The input image. Returns null if there were no valid ROIs for
+	 *         cropping
+	 */
+	@Nullable
+	private ImagePlus getInputImage() {
+		if (!doRoi) {
+			return image;
+		}
+
+		RoiManager roiManager = RoiManager.getInstance();
+		ImageStack croppedStack = isOutOfCore()
+				? RoiUtil.cropToRoisLazily(roiManager, image.getStack(), true, Common.BINARY_BLACK, 0)
+				: RoiUtil.cropToRois(roiManager, image.getStack(), true, Common.BINARY_BLACK, 0, true);
+
+		if (croppedStack == null) {
+			uiService.showDialog("There are no valid ROIs in the ROI Manager for cropping", "ROI Manager empty",
+					MessageType.ERROR_MESSAGE, OptionType.DEFAULT_OPTION);
+			return null;
+		}
+
+		ImagePlus croppedImage = new ImagePlus(image.getTitle(), croppedStack);
+		croppedImage.copyScale(image);
+		return croppedImage;
+	}
+
+	/**
+	 * Calculates the local thickness maps the user has selected. If both
+	 * thickness and spacing are selected, and doParallel == true, the maps are
+	 * calculated at the same time. Out-of-core maps are always calculated one
+	 * after the other, because their point is to save memory.
+	 *
+	 * @param inputImage
+	 *            Binary (black & white) ImagePlus
+	 * @return An array where [0] is the thickness map, and [1] is the spacing
+	 *         map. A map is null if it was not selected, or it could not be
+	 *         calculated.
+	 */
+	private ImagePlus[] calculateMaps(final ImagePlus inputImage) {
+		final ImagePlus[] maps = new ImagePlus[2];
+
+		if (doThickness && doSpacing && doParallel && !isOutOfCore()) {
+			final Thread[] threads = new Thread[2];
+			for (int i = 0; i < threads.length; i++) {
+				final int mapIndex = i;
+				threads[i] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						maps[mapIndex] = calculateMap(inputImage, mapIndex == 0);
+					}
+				});
+			}
+			Multithreader.startAndJoin(threads);
+			return maps;
+		}
+
+		if (doThickness) {
+			maps[0] = calculateMap(inputImage, true);
+		}
+		if (doSpacing) {
+			maps[1] = calculateMap(inputImage, false);
+		}
+		return maps;
+	}
+
 	/**
 	 * Calculate the local thickness measure with various user options from the
-	 * setup dialog (foreground/background thickness, crop image, show
-	 * image...).
+	 * setup dialog (foreground/background thickness, show image...).
 	 *
 	 * @param doForeground
 	 *            If true, then process the thickness of the foreground
 	 *            (trabecular thickness). If false, then process the thickness
 	 *            of the background (trabecular spacing).
-	 * @return Returns true if localThickness succeeded, and resultImage != null
+	 * @return A new ImagePlus which contains the thickness. Returns null if
+	 *         the out-of-core map could not be created
 	 */
-	private boolean getLocalThickness(boolean doForeground) {
-		resultImage = null;
-
+	@Nullable
+	private ImagePlus calculateMap(ImagePlus inputImage, boolean doForeground) {
 		String suffix = doForeground ? "_" + TRABECULAR_THICKNESS : "_" + TRABECULAR_SPACING;
-
-		if (doRoi) {
-			RoiManager roiManager = RoiManager.getInstance();
-			ImageStack croppedStack = RoiUtil.cropToRois(roiManager, image.getStack(), true, Common.BINARY_BLACK);
-
-			if (croppedStack == null) {
-				uiService.showDialog("There are no valid ROIs in the ROI Manager for cropping", "ROI Manager empty",
-						MessageType.ERROR_MESSAGE, OptionType.DEFAULT_OPTION);
-				return false;
-			}
-
-			ImagePlus croppedImage = new ImagePlus("", croppedStack);
-			croppedImage.copyScale(image);
-			resultImage = processThicknessSteps(croppedImage, doForeground, suffix);
-		} else {
-			resultImage = processThicknessSteps(image, doForeground, suffix);
+		if (isOutOfCore()) {
+			return processThicknessBlocks(inputImage, doForeground, suffix);
 		}
+		return processThicknessSteps(inputImage, doForeground, suffix);
+	}
 
-		return true;
+	private boolean isOutOfCore() {
+		return mapDirectory != null;
 	}
 
 	/**
-	 * Process the given image through all the steps of LocalThickness_ plugin.
+	 * Process the given image through all the steps of the local thickness
+	 * algorithm. The steps run in parallel.
 	 *
 	 * @param image
 	 *            Binary (black & white) ImagePlus
@@ -226,28 +305,83 @@ public class Thickness implements Command {
 	 * @return A new ImagePlus which contains the thickness
 	 */
 	private ImagePlus processThicknessSteps(ImagePlus image, boolean doForeground, String tittleSuffix) {
-		LocalThicknessWrapper thicknessWrapper = new LocalThicknessWrapper();
-		thicknessWrapper.setSilence(true);
-		thicknessWrapper.inverse = !doForeground;
-		thicknessWrapper.setShowOptions(false);
-		thicknessWrapper.maskThicknessMap = doMask;
-		thicknessWrapper.setTitleSuffix(tittleSuffix);
-		thicknessWrapper.calibratePixels = true;
-		ImagePlus result = thicknessWrapper.processImage(image);
-		return result;
+		LocalThickness localThickness = createLocalThickness(doForeground);
+		localThickness.setTitleSuffix(tittleSuffix);
+		return localThickness.processImage(image);
+	}
+
+	/**
+	 * Process the given image block by block into a raw file in mapDirectory,
+	 * so that neither the image nor the map need to fit in memory
+	 *
+	 * @return A new ImagePlus whose virtual stack reads the thickness from the
+	 *         file. Returns null if the file could not be written, or the
+	 *         image could not be processed in blocks
+	 */
+	@Nullable
+	private ImagePlus processThicknessBlocks(ImagePlus image, boolean doForeground, String titleSuffix) {
+		LocalThickness localThickness = createLocalThickness(doForeground);
+		localThickness.setTitleSuffix(titleSuffix);
+		TiledLocalThickness tiledLocalThickness = new TiledLocalThickness(localThickness,
+				TiledLocalThickness.DEFAULT_BLOCK_SIZE);
+		File mapFile = new File(mapDirectory, image.getShortTitle() + titleSuffix + ".raw");
+
+		try (MappedVolume volume = tiledLocalThickness.processImage(image, mapFile)) {
+			return tiledLocalThickness.createImage(image, volume);
+		} catch (IOException e) {
+			uiService.showDialog("Could not write the thickness map: " + e.getMessage(), "File error",
+					MessageType.ERROR_MESSAGE, OptionType.DEFAULT_OPTION);
+			return null;
+		} catch (IllegalArgumentException e) {
+			uiService.showDialog("Could not create the thickness map: " + e.getMessage(), "Out-of-core error",
+					MessageType.ERROR_MESSAGE, OptionType.DEFAULT_OPTION);
+			return null;
+		}
+	}
+
+	/**
+	 * Calculates and shows the statistics of the selected thickness maps
+	 * without creating the maps
+	 */
+	private void calculateStatistics(ImagePlus inputImage) {
+		final String units = inputImage.getCalibration().getUnits();
+
+		if (doThickness) {
+			StreamingStatistics statistics = createLocalThickness(true).calculateStatistics(inputImage, 0);
+			showThicknessStats(inputImage.getShortTitle() + "_" + TRABECULAR_THICKNESS, units, true,
+					statistics.getMean(), statistics.getStdDev(), statistics.getMax());
+		}
+
+		if (doSpacing) {
+			StreamingStatistics statistics = createLocalThickness(false).calculateStatistics(inputImage, 0);
+			showThicknessStats(inputImage.getShortTitle() + "_" + TRABECULAR_SPACING, units, false,
+					statistics.getMean(), statistics.getStdDev(), statistics.getMax());
+		}
+	}
+
+	private LocalThickness createLocalThickness(boolean doForeground) {
+		LocalThickness localThickness = new LocalThickness();
+		localThickness.setForeground(doForeground);
+		localThickness.setMaskThicknessMap(doMask);
+		localThickness.setCalibratePixels(true);
+		return localThickness;
 	}
 
 	private void showThicknessStats(boolean doForeground) {
 		StackStatistics resultStats = new StackStatistics(resultImage);
 
-		String title = resultImage.getTitle();
-		String units = resultImage.getCalibration().getUnits();
+		showThicknessStats(resultImage.getTitle(), resultImage.getCalibration().getUnits(), doForeground,
+				resultStats.mean, resultStats.stdDev, resultStats.max);
+	}
+
+	private static void showThicknessStats(String title, String units, boolean doForeground, double mean,
+			double stdDev, double max) {
 		String legend = doForeground ? TRABECULAR_THICKNESS : TRABECULAR_SPACING;
 
 		ResultsInserter resultsInserter = new ResultsInserter();
-		resultsInserter.setMeasurementInFirstFreeRow(title, legend + " Mean (" + units + ")", resultStats.mean);
-		resultsInserter.setMeasurementInFirstFreeRow(title, legend + " Std Dev (" + units + ")", resultStats.stdDev);
-		resultsInserter.setMeasurementInFirstFreeRow(title, legend + " Max (" + units + ")", resultStats.max);
+		resultsInserter.setMeasurementInFirstFreeRow(title, legend + " Mean (" + units + ")", mean);
+		resultsInserter.setMeasurementInFirstFreeRow(title, legend + " Std Dev (" + units + ")", stdDev);
+		resultsInserter.setMeasurementInFirstFreeRow(title, legend + " Max (" + units + ")", max);
 		resultsInserter.updateTable();
 	}
 	// endregion
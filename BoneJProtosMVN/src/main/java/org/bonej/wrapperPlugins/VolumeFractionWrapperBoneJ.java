@@ -1,8 +1,11 @@
 package org.bonej.wrapperPlugins;
 
+import java.awt.GraphicsEnvironment;
 import java.io.IOException;
 import java.net.URL;
 
+import javax.vecmath.Color3f;
+
 import net.imagej.Main;
 
 import org.scijava.command.Command;
@@ -15,19 +18,30 @@ import org.scijava.ui.UIService;
 import org.scijava.widget.Button;
 import org.scijava.widget.ChoiceWidget;
 
+import protoOps.volumeFraction.BinaryPyramid;
 import protoOps.volumeFraction.VolumeFraction;
 
 import com.google.common.collect.ImmutableList;
 
+import customnode.CustomTriangleMesh;
 import ij.ImagePlus;
+import ij3d.Image3DUniverse;
 import ij.plugin.frame.RoiManager;
 
 /**
+ * A BoneJ wrapper plugin for the VolumeFraction op.
+ *
+ * The command creates a new op each time it's run, so the resampled masks
+ * and the incremental measures the op keeps between its runs are not kept
+ * between runs of the command. Scripts, which need them, should run the same
+ * op instance again instead.
+ *
  * @author Richard Domander
  */
 @Plugin(type = Command.class, menuPath = "Plugins>BoneJ>VolumeFraction", headless = true)
 public class VolumeFractionWrapperBoneJ extends ContextCommand {
 	private static final ImmutableList<String> algorithmChoiceStrings = ImmutableList.of("Voxel", "Surface");
+	private static final ImmutableList<String> resamplingRuleStrings = ImmutableList.of("Majority", "Any voxel");
 	private final VolumeFraction volumeFraction = new VolumeFraction();
 	private RoiManager roiManager = null;
 
@@ -48,6 +62,13 @@ public class VolumeFractionWrapperBoneJ extends ContextCommand {
 	@Parameter(label = "Surface resampling", description = "Voxel resampling (surface algorithm) - higher values result in simpler surfaces", min = "0")
 	private int surfaceResampling = VolumeFraction.DEFAULT_SURFACE_RESAMPLING;
 
+	@Parameter(label = "Resampling rule:", description = "A resampled voxel is foreground if the majority of / any of the voxels it covers are", style = ChoiceWidget.LIST_BOX_STYLE, choices = {
+			"Majority", "Any voxel" })
+	private String resamplingRule = resamplingRuleStrings.get(0);
+
+	@Parameter(label = "Profile window (slices)", description = "Number of slices averaged in the per-slice volume fraction profile (voxel algorithm), 0 for no profile", min = "0")
+	private int profileWindow = VolumeFraction.NO_PROFILE;
+
 	// @todo Disable on init if there is no RoiManager
 	@Parameter(label = "Use ROI Manager", initializer = "initRoiManager", description = "restrict measurements to ROIs in the ROI manager")
 	private boolean useRoiManager = false;
@@ -65,6 +86,10 @@ public class VolumeFractionWrapperBoneJ extends ContextCommand {
 			int algorithm = algorithmChoiceStrings.indexOf(volumeAlgorithm);
 			volumeFraction.setVolumeAlgorithm(algorithm);
 			volumeFraction.setSurfaceResampling(surfaceResampling);
+			volumeFraction.setResamplingRule(BinaryPyramid.Rule.values()[resamplingRuleStrings.indexOf(resamplingRule)]);
+			// the meshes are only needed for display
+			volumeFraction.setCreateSurfaceMeshes(show3DResult);
+			volumeFraction.setProfileWindow(profileWindow);
 			if (useRoiManager) {
 				volumeFraction.setRoiManager(roiManager);
 			}
@@ -73,7 +98,20 @@ public class VolumeFractionWrapperBoneJ extends ContextCommand {
 			return;
 		}
 
-		volumeFraction.run();
+		try {
+			volumeFraction.run();
+		} catch (IllegalArgumentException e) {
+			uiService.showDialog(e.getMessage(), DialogPrompt.MessageType.ERROR_MESSAGE);
+			return;
+		}
+
+		if (volumeFraction.getProfile() != null && !GraphicsEnvironment.isHeadless()) {
+			volumeFraction.getProfile().toResultsTable().show("Volume fraction profile of " + activeImage.getTitle());
+		}
+
+		if (show3DResult && volumeFraction.getForegroundMesh() != null && !GraphicsEnvironment.isHeadless()) {
+			show3DSurfaces();
+		}
 	}
 
 	// region -- Utility methods --
@@ -83,6 +121,24 @@ public class VolumeFractionWrapperBoneJ extends ContextCommand {
 	// endregion
 
 	// region -- Helper methods --
+	/**
+	 * Shows the surfaces in the 3D Viewer. The meshes are converted to the
+	 * CustomTriangleMesh format of the viewer only here.
+	 */
+	private void show3DSurfaces() {
+		CustomTriangleMesh foregroundSurface = volumeFraction.getForegroundSurface();
+		foregroundSurface.setColor(new Color3f(1.0f, 1.0f, 0.0f));
+
+		CustomTriangleMesh totalSurface = volumeFraction.getTotalSurface();
+		totalSurface.setColor(new Color3f(1.0f, 0.0f, 0.0f));
+		totalSurface.setTransparency(0.33f);
+
+		Image3DUniverse universe = new Image3DUniverse();
+		universe.addCustomMesh(foregroundSurface, "Foreground surface");
+		universe.addCustomMesh(totalSurface, "Total surface");
+		universe.show();
+	}
+
 	@SuppressWarnings("unused")
 	private void initRoiManager() {
 		roiManager = RoiManager.getInstance();
@@ -0,0 +1,1448 @@
+package protoOps.localThickness;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bonej.common.Multithreader;
+import org.bonej.common.StreamingStatistics;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+
+/**
+ * A multi-threaded implementation of the local thickness algorithm of
+ * Hildebrand & Rüegsegger, which produces the same maps as the LocalThickness
+ * plugin (LocalThicknessWrapper).
+ *
+ * The thickness map is created in the following stages, each of which runs in
+ * parallel on the threads ImageJ is allowed to use:
+ * <ol>
+ * <li>Squared Euclidean distance transform of the phase with separable passes
+ * along x, y and z</li>
+ * <li>Distance ridge, i.e. the centres of the largest spheres that fit inside
+ * the phase</li>
+ * <li>Fitting the spheres: each voxel gets the diameter of the largest sphere
+ * that contains it</li>
+ * <li>Clean up of the artifacts on the surface of the phase</li>
+ * <li>Optional masking of the voxels outside the phase</li>
+ * </ol>
+ *
+ * Voxels with value >= THRESHOLD are foreground.
+ *
+ * Anisotropic voxels are supported natively: the distance transform is
+ * weighted by the voxel spacing from the calibration of the image, and the
+ * spheres are fitted in calibrated space. There's no need to resample the
+ * image to isotropic voxels first.
+ */
+public class LocalThickness {
+	public static final int THRESHOLD = 128;
+	public static final String DEFAULT_TITLE_SUFFIX = "_LocThk";
+
+	/**
+	 * Number of slices processed at a time when calculating statistics. Each
+	 * chunk also needs two slices from both of its neighbours for the clean up.
+	 */
+	private static final int CHUNK_SLICES = 32;
+	/**
+	 * Voxels whose relative height and depth differ less than this from their
+	 * width are processed as isotropic, i.e. with integer distances. Both
+	 * paths find the ridge with the same templates, so their maps agree at
+	 * the tolerance.
+	 */
+	private static final double ANISOTROPY_TOLERANCE = 1E-3;
+	/**
+	 * Weighted squared distances whose relative difference is less than this
+	 * are equal. Many lattice points are exactly as far from a voxel when the
+	 * spacing is isotropic, and a spacing just outside ANISOTROPY_TOLERANCE
+	 * would break these ties if they weren't kept.
+	 */
+	private static final double TIE_TOLERANCE = 5 * ANISOTROPY_TOLERANCE;
+
+	private boolean foreground = true;
+	private boolean maskThicknessMap = true;
+	private boolean calibratePixels = true;
+	private String titleSuffix = DEFAULT_TITLE_SUFFIX;
+
+	/**
+	 * @param foreground
+	 *            If true, the thickness of the foreground is mapped. If false,
+	 *            the thickness of the background, i.e. spacing
+	 */
+	public void setForeground(boolean foreground) {
+		this.foreground = foreground;
+	}
+
+	/**
+	 * @param maskThicknessMap
+	 *            If true, the voxels outside the phase are set to NaN in the
+	 *            map. This removes the artifacts where the spheres reach over
+	 *            the surface of the phase. Unlike the background value of the
+	 *            LocalThickness plugin, NaN voxels are skipped by
+	 *            StackStatistics, so the statistics of the map only cover the
+	 *            phase.
+	 */
+	public void setMaskThicknessMap(boolean maskThicknessMap) {
+		this.maskThicknessMap = maskThicknessMap;
+	}
+
+	/**
+	 * @param calibratePixels
+	 *            If true, the thicknesses are multiplied by the pixel width of
+	 *            the image
+	 */
+	public void setCalibratePixels(boolean calibratePixels) {
+		this.calibratePixels = calibratePixels;
+	}
+
+	/**
+	 * @throws NullPointerException
+	 *             if suffix == null
+	 */
+	public void setTitleSuffix(String suffix) {
+		checkNotNull(suffix, "Suffix must not be null");
+
+		titleSuffix = suffix;
+	}
+
+	/**
+	 * Creates the local thickness map of the given image
+	 *
+	 * @param image
+	 *            An 8-bit image
+	 * @return A new 32-bit image with the same calibration as the input
+	 * @throws NullPointerException
+	 *             if image == null
+	 * @throws IllegalArgumentException
+	 *             if image is not 8-bit
+	 */
+	public ImagePlus processImage(ImagePlus image) {
+		checkNotNull(image, "Image must not be null");
+		checkArgument(image.getBitDepth() == 8, "Image must be 8-bit");
+
+		final ImageStack stack = image.getStack();
+		final int width = stack.getWidth();
+		final int height = stack.getHeight();
+		final byte[][] pixels = getSlicePixels(stack);
+		final float[][] thicknessMap = createMap(pixels, width, height, getSpacing(image), getScale(image),
+				Double.POSITIVE_INFINITY);
+
+		final ImageStack resultStack = new ImageStack(width, height);
+		for (float[] slice : thicknessMap) {
+			resultStack.addSlice(new FloatProcessor(width, height, slice, null));
+		}
+
+		final ImagePlus result = new ImagePlus(image.getShortTitle() + titleSuffix, resultStack);
+		result.copyScale(image);
+		return result;
+	}
+
+	/**
+	 * Calculates the statistics of the local thickness of the given image
+	 * without creating the whole thickness map or distance map. The distance
+	 * ridge is found by sweeping slabs of the stack, and the map is produced
+	 * in chunks of slices, whose values are accumulated and then discarded.
+	 * The slabs and chunks are processed in parallel. Besides the image, only
+	 * the ridge points and a few slices per thread are kept in memory.
+	 *
+	 * The statistics are the same as those of the map returned by
+	 * processImage, e.g. NaN voxels of a masked map are ignored.
+	 *
+	 * @param image
+	 *            An 8-bit image
+	 * @param histogramBins
+	 *            Number of bins in the histogram of the thickness values, 0 for
+	 *            no histogram. The histogram covers the range from 0 to the
+	 *            largest possible thickness of the image.
+	 * @throws NullPointerException
+	 *             if image == null
+	 * @throws IllegalArgumentException
+	 *             if image is not 8-bit, or histogramBins < 0
+	 */
+	public StreamingStatistics calculateStatistics(ImagePlus image, int histogramBins) {
+		checkNotNull(image, "Image must not be null");
+		checkArgument(image.getBitDepth() == 8, "Image must be 8-bit");
+		checkArgument(histogramBins >= 0, "Number of bins must be non-negative");
+
+		final ImageStack stack = image.getStack();
+		final int width = stack.getWidth();
+		final int height = stack.getHeight();
+		final byte[][] pixels = getSlicePixels(stack);
+		final int depth = pixels.length;
+		final Ridge ridge = findRidgeBySlabs(pixels, width, height, foreground, getSpacing(image),
+				Multithreader.getNumThreads());
+		final double scale = getScale(image);
+
+		final double maxThickness = 2.0 * Math.sqrt(ridge.maxRadiusSq) * scale;
+		final StreamingStatistics statistics = histogramBins == 0 ? new StreamingStatistics()
+				: new StreamingStatistics(histogramBins, 0.0, maxThickness > 0.0 ? maxThickness : 1.0);
+		final StreamingStatistics[] threadStatistics = new StreamingStatistics[Multithreader.getNumThreads()];
+		final AtomicInteger chunks = new AtomicInteger(0);
+		final AtomicInteger threadIndex = new AtomicInteger(0);
+		runInParallel(new Runnable() {
+			@Override
+			public void run() {
+				final StreamingStatistics partial = StreamingStatistics.emptyCopyOf(statistics);
+				for (int chunk = chunks.getAndIncrement(); chunk * CHUNK_SLICES < depth; chunk = chunks
+						.getAndIncrement()) {
+					final int firstZ = chunk * CHUNK_SLICES;
+					final int lastZ = Math.min(depth, firstZ + CHUNK_SLICES) - 1;
+					accumulateChunk(ridge, pixels, width, height, firstZ, lastZ, scale, partial);
+				}
+				threadStatistics[threadIndex.getAndIncrement()] = partial;
+			}
+		});
+
+		for (StreamingStatistics partial : threadStatistics) {
+			statistics.add(partial);
+		}
+		return statistics;
+	}
+
+	/**
+	 * Runs all the stages of the algorithm on the given voxels
+	 *
+	 * @param spacing
+	 *            Relative size of the voxels in x, y and z, where x == 1.0
+	 * @param scale
+	 *            Factor by which the thickness values are multiplied
+	 * @param maxRadiusSq
+	 *            Spheres whose squared radius is larger than this are ignored.
+	 *            Spheres with wrong radii may appear at the edges of a block of
+	 *            a larger image.
+	 * @return The finished thickness map
+	 */
+	float[][] createMap(final byte[][] pixels, int width, int height, double[] spacing, final double scale,
+			double maxRadiusSq) {
+		final Ridge ridge = findRidge(pixels, width, height, foreground, spacing).limitRadius(maxRadiusSq);
+		final float[][] thicknessMap = fitSpheres(ridge, pixels.length, width, height);
+		cleanUp(thicknessMap, width, height);
+		final AtomicInteger ai = new AtomicInteger(0);
+		runInParallel(new Runnable() {
+			@Override
+			public void run() {
+				for (int z = ai.getAndIncrement(); z < pixels.length; z = ai.getAndIncrement()) {
+					finishSlice(thicknessMap[z], pixels[z], scale);
+				}
+			}
+		});
+		return thicknessMap;
+	}
+
+	boolean isForeground() {
+		return foreground;
+	}
+
+	String getTitleSuffix() {
+		return titleSuffix;
+	}
+
+	// region -- Helper methods --
+
+	/**
+	 * Finds the distance ridge of the phase. The distance map is released once
+	 * the ridge has been found.
+	 *
+	 * @param spacing
+	 *            Relative size of the voxels in x, y and z, where x == 1.0
+	 */
+	static Ridge findRidge(byte[][] pixels, int width, int height, boolean foreground, double[] spacing) {
+		if (isIsotropic(spacing)) {
+			final int[][] distanceMap = squaredDistanceMap(pixels, width, height, foreground);
+			return distanceRidge(distanceMap, width, height);
+		}
+
+		final float[][] distanceMap = squaredDistanceMap(pixels, width, height, foreground, spacing);
+		return distanceRidge(distanceMap, width, height, spacing);
+	}
+
+	/**
+	 * Same as @see LocalThickness#findRidge(byte[][], int, int, boolean,
+	 * double[]), but the distance map is never in memory as a whole. The
+	 * stack is split into slabs of slices, which are processed in parallel.
+	 * Each slab is swept along z, and only the three slices of the distance
+	 * map needed to find the ridge points of a slice are kept.
+	 *
+	 * @param slabs
+	 *            Number of slabs the stack is split into
+	 */
+	static Ridge findRidgeBySlabs(final byte[][] pixels, final int width, final int height,
+			final boolean foreground, final double[] spacing, int slabs) {
+		final int depth = pixels.length;
+		final int slabSlices = Math.max(1, (depth + slabs - 1) / slabs);
+		final boolean isotropic = isIsotropic(spacing);
+		final int[][] indices = new int[depth][];
+		final double[][] radiiSq = new double[depth][];
+		final AtomicInteger ai = new AtomicInteger(0);
+		runInParallel(new Runnable() {
+			@Override
+			public void run() {
+				for (int slab = ai.getAndIncrement(); slab * slabSlices < depth; slab = ai.getAndIncrement()) {
+					final int firstZ = slab * slabSlices;
+					final int lastZ = Math.min(depth, firstZ + slabSlices) - 1;
+					final SlabSweep sweep = new SlabSweep(pixels, width, height, foreground, spacing, isotropic);
+					sweep.findRidge(firstZ, lastZ, indices, radiiSq);
+				}
+			}
+		});
+
+		return new Ridge(indices, radiiSq, isotropic ? new double[] { 1.0, 1.0, 1.0 } : spacing);
+	}
+
+	/**
+	 * Produces the finished thickness values of the slices [firstZ, lastZ],
+	 * and adds them to the statistics
+	 */
+	private void accumulateChunk(Ridge ridge, byte[][] pixels, int width, int height, int firstZ, int lastZ,
+			double scale, StreamingStatistics statistics) {
+		final int depth = pixels.length;
+		final float[][] window = new float[depth][];
+		final boolean[][] surface = new boolean[depth][];
+
+		for (int z = Math.max(0, firstZ - 2); z <= Math.min(depth - 1, lastZ + 2); z++) {
+			window[z] = fitSlice(ridge, z, depth, width, height);
+		}
+		for (int z = Math.max(0, firstZ - 1); z <= Math.min(depth - 1, lastZ + 1); z++) {
+			surface[z] = findSurface(window, z, width, height);
+		}
+		for (int z = firstZ; z <= lastZ; z++) {
+			final float[] slice = cleanSlice(window, surface, z, width, height);
+			finishSlice(slice, pixels[z], scale);
+			for (float value : slice) {
+				statistics.add(value);
+			}
+		}
+	}
+
+	/**
+	 * Masks and calibrates a slice of the cleaned thickness map
+	 */
+	private void finishSlice(float[] slice, byte[] pixelSlice, double scale) {
+		for (int i = 0; i < slice.length; i++) {
+			if (maskThicknessMap && !isInPhase(pixelSlice[i], foreground)) {
+				slice[i] = Float.NaN;
+			} else if (scale != 1.0) {
+				slice[i] *= scale;
+			}
+		}
+	}
+
+	double getScale(ImagePlus image) {
+		return calibratePixels ? image.getCalibration().pixelWidth : 1.0;
+	}
+
+	/**
+	 * @return The size of the voxels in y and z relative to their size in x
+	 */
+	static double[] getSpacing(ImagePlus image) {
+		final Calibration calibration = image.getCalibration();
+		final double pixelWidth = calibration.pixelWidth;
+		return new double[] { 1.0, calibration.pixelHeight / pixelWidth, calibration.pixelDepth / pixelWidth };
+	}
+
+	/**
+	 * Returns a squared distance larger than any real distance in an image of
+	 * the given size. For images over ~18 900 voxels wide the value is
+	 * clamped to Integer.MAX_VALUE / 2, so that it can't overflow, and the
+	 * sum of it and any 1D squared distance still fits in a long.
+	 */
+	static int infinity(int width, int height, int depth) {
+		final long maxDimension = Math.max(width, Math.max(height, depth));
+		final long infinity = 3 * (maxDimension + 1) * (maxDimension + 1);
+		return (int) Math.min(infinity, Integer.MAX_VALUE / 2);
+	}
+
+	static boolean isIsotropic(double[] spacing) {
+		return Math.abs(spacing[1] - 1.0) <= ANISOTROPY_TOLERANCE && Math.abs(spacing[2] - 1.0) <= ANISOTROPY_TOLERANCE;
+	}
+
+	/**
+	 * Calculates the squared Euclidean distance from each voxel of the phase to
+	 * the closest voxel outside it. The transform is separable: the 1D
+	 * distances along x are found first, and then combined along y and z with
+	 * the lower envelope of parabolas (Felzenszwalb & Huttenlocher). The lines
+	 * of each pass are processed in parallel.
+	 *
+	 * Voxels outside the image are not considered to be outside the phase.
+	 *
+	 * @param pixels
+	 *            Pixel arrays of the slices of an 8-bit image
+	 * @return Squared distances, 0 for voxels outside the phase. Voxels that
+	 *         have no voxels outside the phase in the whole image get the
+	 *         value of @see LocalThickness#infinity(int, int, int), and no
+	 *         distance exceeds it.
+	 */
+	static int[][] squaredDistanceMap(final byte[][] pixels, final int width, final int height,
+			final boolean foreground) {
+		final int depth = pixels.length;
+		final int infinity = infinity(width, height, depth);
+		final int[][] map = new int[depth][width * height];
+
+		// x-pass, one slice at a time
+		final AtomicInteger ai = new AtomicInteger(0);
+		runInParallel(new Runnable() {
+			@Override
+			public void run() {
+				for (int z = ai.getAndIncrement(); z < depth; z = ai.getAndIncrement()) {
+					final byte[] slice = pixels[z];
+					final int[] mapSlice = map[z];
+					for (int y = 0; y < height; y++) {
+						transformRow(slice, mapSlice, y * width, width, foreground, infinity);
+					}
+				}
+			}
+		});
+
+		// y-pass, one slice at a time
+		ai.set(0);
+		runInParallel(new Runnable() {
+			@Override
+			public void run() {
+				final LineTransform transform = new LineTransform(height, infinity);
+				for (int z = ai.getAndIncrement(); z < depth; z = ai.getAndIncrement()) {
+					final int[] mapSlice = map[z];
+					for (int x = 0; x < width; x++) {
+						for (int y = 0; y < height; y++) {
+							transform.f[y] = mapSlice[y * width + x];
+						}
+						transform.run(height);
+						for (int y = 0; y < height; y++) {
+							mapSlice[y * width + x] = transform.d[y];
+						}
+					}
+				}
+			}
+		});
+
+		// z-pass, one row at a time
+		ai.set(0);
+		runInParallel(new Runnable() {
+			@Override
+			public void run() {
+				final LineTransform transform = new LineTransform(depth, infinity);
+				for (int y = ai.getAndIncrement(); y < height; y = ai.getAndIncrement()) {
+					for (int x = 0; x < width; x++) {
+						final int index = y * width + x;
+						for (int z = 0; z < depth; z++) {
+							transform.f[z] = map[z][index];
+						}
+						transform.run(depth);
+						for (int z = 0; z < depth; z++) {
+							map[z][index] = transform.d[z];
+						}
+					}
+				}
+			}
+		});
+
+		return map;
+	}
+
+	/**
+	 * Same as @see LocalThickness#squaredDistanceMap(byte[][], int, int,
+	 * boolean), but for anisotropic voxels. The distances are measured in
+	 * units of voxel width.
+	 *
+	 * @param spacing
+	 *            Relative size of the voxels in x, y and z, where x == 1.0
+	 */
+	static float[][] squaredDistanceMap(final byte[][] pixels, final int width, final int height,
+			final boolean foreground, final double[] spacing) {
+		final int depth = pixels.length;
+		final double maxLength = Math.max(width * spacing[0], Math.max(height * spacing[1], depth * spacing[2]));
+		final double infinity = 3.0 * (maxLength + 1.0) * (maxLength + 1.0);
+		final float[][] map = new float[depth][width * height];
+
+		// x-pass, one slice at a time
+		final AtomicInteger ai = new AtomicInteger(0);
+		runInParallel(new Runnable() {
+			@Override
+			public void run() {
+				final WeightedLineTransform transform = new WeightedLineTransform(width, infinity);
+				for (int z = ai.getAndIncrement(); z < depth; z = ai.getAndIncrement()) {
+					final byte[] slice = pixels[z];
+					final float[] mapSlice = map[z];
+					for (int y = 0; y < height; y++) {
+						final int offset = y * width;
+						for (int x = 0; x < width; x++) {
+							transform.f[x] = isInPhase(slice[offset + x], foreground) ? infinity : 0.0;
+						}
+						transform.run(width, spacing[0] * spacing[0]);
+						for (int x = 0; x < width; x++) {
+							mapSlice[offset + x] = (float) transform.d[x];
+						}
+					}
+				}
+			}
+		});
+
+		// y-pass, one slice at a time
+		ai.set(0);
+		runInParallel(new Runnable() {
+			@Override
+			public void run() {
+				final WeightedLineTransform transform = new WeightedLineTransform(height, infinity);
+				for (int z = ai.getAndIncrement(); z < depth; z = ai.getAndIncrement()) {
+					final float[] mapSlice = map[z];
+					for (int x = 0; x < width; x++) {
+						for (int y = 0; y < height; y++) {
+							transform.f[y] = mapSlice[y * width + x];
+						}
+						transform.run(height, spacing[1] * spacing[1]);
+						for (int y = 0; y < height; y++) {
+							mapSlice[y * width + x] = (float) transform.d[y];
+						}
+					}
+				}
+			}
+		});
+
+		// z-pass, one row at a time
+		ai.set(0);
+		runInParallel(new Runnable() {
+			@Override
+			public void run() {
+				final WeightedLineTransform transform = new WeightedLineTransform(depth, infinity);
+				for (int y = ai.getAndIncrement(); y < height; y = ai.getAndIncrement()) {
+					for (int x = 0; x < width; x++) {
+						final int index = y * width + x;
+						for (int z = 0; z < depth; z++) {
+							transform.f[z] = map[z][index];
+						}
+						transform.run(depth, spacing[2] * spacing[2]);
+						for (int z = 0; z < depth; z++) {
+							map[z][index] = (float) transform.d[z];
+						}
+					}
+				}
+			}
+		});
+
+		return map;
+	}
+
+	/**
+	 * Finds the squared 1D distances from the voxels of the phase in a row to
+	 * the closest voxel outside it in the same row
+	 */
+	private static void transformRow(byte[] slice, int[] mapSlice, int offset, int width, boolean foreground,
+			int infinity) {
+		// distance to the closest voxel outside the phase on the left
+		int last = -1;
+		for (int x = 0; x < width; x++) {
+			if (!isInPhase(slice[offset + x], foreground)) {
+				last = x;
+				mapSlice[offset + x] = 0;
+				continue;
+			}
+			mapSlice[offset + x] = last < 0 ? infinity : clampedSquare(x - last, infinity);
+		}
+
+		// distance to the closest voxel outside the phase on the right
+		last = -1;
+		for (int x = width - 1; x >= 0; x--) {
+			if (mapSlice[offset + x] == 0) {
+				last = x;
+				continue;
+			}
+			if (last >= 0) {
+				mapSlice[offset + x] = Math.min(mapSlice[offset + x], clampedSquare(last - x, infinity));
+			}
+		}
+	}
+
+	private static int clampedSquare(int distance, int infinity) {
+		return (int) Math.min((long) distance * distance, infinity);
+	}
+
+	/**
+	 * The 1D squared distance transform of a sampled function. The buffers are
+	 * reused between lines to avoid allocations.
+	 */
+	private static final class LineTransform {
+		final int[] f;
+		final int[] d;
+		private final int[] v;
+		private final double[] boundaries;
+		private final int infinity;
+
+		LineTransform(int length, int infinity) {
+			f = new int[length];
+			d = new int[length];
+			v = new int[length];
+			boundaries = new double[length + 1];
+			this.infinity = infinity;
+		}
+
+		/**
+		 * Calculates d[q] = min_p((q - p)^2 + f[p]) for q in [0, n)
+		 */
+		void run(int n) {
+			int k = 0;
+			v[0] = 0;
+			boundaries[0] = Double.NEGATIVE_INFINITY;
+			boundaries[1] = Double.POSITIVE_INFINITY;
+
+			for (int q = 1; q < n; q++) {
+				double s = intersection(q, v[k]);
+				while (s <= boundaries[k]) {
+					k--;
+					s = intersection(q, v[k]);
+				}
+				k++;
+				v[k] = q;
+				boundaries[k] = s;
+				boundaries[k + 1] = Double.POSITIVE_INFINITY;
+			}
+
+			k = 0;
+			for (int q = 0; q < n; q++) {
+				while (boundaries[k + 1] < q) {
+					k++;
+				}
+				final long distance = (long) (q - v[k]) * (q - v[k]) + f[v[k]];
+				d[q] = (int) Math.min(distance, infinity);
+			}
+		}
+
+		private double intersection(int q, int p) {
+			return ((f[q] + (double) q * q) - (f[p] + (double) p * p)) / (2.0 * q - 2.0 * p);
+		}
+	}
+
+	/**
+	 * The 1D squared distance transform of a sampled function, where the
+	 * samples are weight apart
+	 */
+	private static final class WeightedLineTransform {
+		final double[] f;
+		final double[] d;
+		private final int[] v;
+		private final double[] boundaries;
+		private final double infinity;
+
+		WeightedLineTransform(int length, double infinity) {
+			f = new double[length];
+			d = new double[length];
+			v = new int[length];
+			boundaries = new double[length + 1];
+			this.infinity = infinity;
+		}
+
+		/**
+		 * Calculates d[q] = min_p(weightSq * (q - p)^2 + f[p]) for q in [0, n)
+		 */
+		void run(int n, double weightSq) {
+			int k = 0;
+			v[0] = 0;
+			boundaries[0] = Double.NEGATIVE_INFINITY;
+			boundaries[1] = Double.POSITIVE_INFINITY;
+
+			for (int q = 1; q < n; q++) {
+				double s = intersection(q, v[k], weightSq);
+				while (s <= boundaries[k]) {
+					k--;
+					s = intersection(q, v[k], weightSq);
+				}
+				k++;
+				v[k] = q;
+				boundaries[k] = s;
+				boundaries[k + 1] = Double.POSITIVE_INFINITY;
+			}
+
+			k = 0;
+			for (int q = 0; q < n; q++) {
+				while (boundaries[k + 1] < q) {
+					k++;
+				}
+				final double distance = weightSq * (q - v[k]) * (q - v[k]) + f[v[k]];
+				d[q] = Math.min(distance, infinity);
+			}
+		}
+
+		private double intersection(int q, int p, double weightSq) {
+			return ((f[q] + weightSq * q * q) - (f[p] + weightSq * p * p)) / (2.0 * weightSq * (q - p));
+		}
+	}
+
+	/**
+	 * Finds the distance ridge, i.e. the voxels whose spheres are not
+	 * contained by the sphere of any of their 26 neighbours
+	 *
+	 * @return The ridge voxels on each slice
+	 */
+	static Ridge distanceRidge(final int[][] distanceMap, final int width, final int height) {
+		final int depth = distanceMap.length;
+
+		// find the distinct squared distances
+		final BitSet distinctValues = new BitSet();
+		for (int[] slice : distanceMap) {
+			for (int value : slice) {
+				distinctValues.set(value);
+			}
+		}
+		final int[] values = new int[distinctValues.cardinality()];
+		for (int i = distinctValues.nextSetBit(0), j = 0; i >= 0; i = distinctValues.nextSetBit(i + 1), j++) {
+			values[j] = i;
+		}
+
+		final int[][] templates = createTemplates(values);
+		final int[][] indices = new int[depth][];
+		final double[][] radiiSq = new double[depth][];
+		final AtomicInteger ai = new AtomicInteger(0);
+		runInParallel(new Runnable() {
+			@Override
+			public void run() {
+				int[] ridgeBuffer = new int[16];
+				for (int z = ai.getAndIncrement(); z < depth; z = ai.getAndIncrement()) {
+					int points = 0;
+					for (int y = 0; y < height; y++) {
+						for (int x = 0; x < width; x++) {
+							final int index = y * width + x;
+							final int value = distanceMap[z][index];
+							if (value == 0) {
+								continue;
+							}
+							final int valueIndex = Arrays.binarySearch(values, value);
+							if (!isRidgePoint(distanceMap, templates[valueIndex], x, y, z, width, height)) {
+								continue;
+							}
+							if (points == ridgeBuffer.length) {
+								ridgeBuffer = Arrays.copyOf(ridgeBuffer, points * 2);
+							}
+							ridgeBuffer[points++] = index;
+						}
+					}
+					indices[z] = Arrays.copyOf(ridgeBuffer, points);
+					radiiSq[z] = new double[points];
+					for (int i = 0; i < points; i++) {
+						radiiSq[z][i] = distanceMap[z][indices[z][i]];
+					}
+				}
+			}
+		});
+
+		return new Ridge(indices, radiiSq, new double[] { 1.0, 1.0, 1.0 });
+	}
+
+	/**
+	 * Same as @see LocalThickness#distanceRidge(int[][], int, int), but for
+	 * anisotropic voxels. The templates are weighted by the spacing, and
+	 * created as the distances are met, once per thread.
+	 */
+	static Ridge distanceRidge(final float[][] distanceMap, final int width, final int height,
+			final double[] spacing) {
+		final int depth = distanceMap.length;
+		final int[][] indices = new int[depth][];
+		final double[][] radiiSq = new double[depth][];
+		final AtomicInteger ai = new AtomicInteger(0);
+		runInParallel(new Runnable() {
+			@Override
+			public void run() {
+				final Map<Float, double[]> templates = new HashMap<>();
+				int[] ridgeBuffer = new int[16];
+				for (int z = ai.getAndIncrement(); z < depth; z = ai.getAndIncrement()) {
+					int points = 0;
+					for (int y = 0; y < height; y++) {
+						for (int x = 0; x < width; x++) {
+							final int index = y * width + x;
+							final float value = distanceMap[z][index];
+							if (value == 0.0f || !isRidgePoint(distanceMap,
+									getWeightedTemplate(templates, value, spacing), x, y, z, width, height)) {
+								continue;
+							}
+							if (points == ridgeBuffer.length) {
+								ridgeBuffer = Arrays.copyOf(ridgeBuffer, points * 2);
+							}
+							ridgeBuffer[points++] = index;
+						}
+					}
+					indices[z] = Arrays.copyOf(ridgeBuffer, points);
+					radiiSq[z] = new double[points];
+					for (int i = 0; i < points; i++) {
+						radiiSq[z][i] = distanceMap[z][indices[z][i]];
+					}
+				}
+			}
+		});
+
+		return new Ridge(indices, radiiSq, spacing);
+	}
+
+	/**
+	 * The points of the distance ridge and their squared distances, i.e. the
+	 * centres and squared radii of the spheres
+	 */
+	static final class Ridge {
+		/**
+		 * indices[z] are the indices of the ridge points of slice z
+		 */
+		final int[][] indices;
+		final double[][] radiiSq;
+		final double maxRadiusSq;
+		/**
+		 * Relative size of the voxels in x, y and z
+		 */
+		final double[] spacing;
+
+		Ridge(int[][] indices, double[][] radiiSq, double[] spacing) {
+			this.indices = indices;
+			this.radiiSq = radiiSq;
+			this.spacing = spacing;
+			double max = 0.0;
+			for (double[] sliceRadii : radiiSq) {
+				for (double radiusSq : sliceRadii) {
+					max = Math.max(max, radiusSq);
+				}
+			}
+			maxRadiusSq = max;
+		}
+
+		/**
+		 * @return A ridge without the points whose squared radius >
+		 *         maxRadiusSq. Returns this ridge if there are no such points.
+		 */
+		Ridge limitRadius(double maxRadiusSq) {
+			if (this.maxRadiusSq <= maxRadiusSq) {
+				return this;
+			}
+
+			final int[][] keptIndices = new int[indices.length][];
+			final double[][] keptRadiiSq = new double[indices.length][];
+			for (int z = 0; z < indices.length; z++) {
+				int points = 0;
+				final int[] sliceIndices = new int[indices[z].length];
+				final double[] sliceRadiiSq = new double[indices[z].length];
+				for (int i = 0; i < indices[z].length; i++) {
+					if (radiiSq[z][i] <= maxRadiusSq) {
+						sliceIndices[points] = indices[z][i];
+						sliceRadiiSq[points] = radiiSq[z][i];
+						points++;
+					}
+				}
+				keptIndices[z] = Arrays.copyOf(sliceIndices, points);
+				keptRadiiSq[z] = Arrays.copyOf(sliceRadiiSq, points);
+			}
+			return new Ridge(keptIndices, keptRadiiSq, spacing);
+		}
+	}
+
+	/**
+	 * Creates the slices of the squared distance map of a slab one after the
+	 * other, and finds their ridge points.
+	 *
+	 * The transform is separable in any order, so a slice is created from the
+	 * distances along z first, i.e. the distances to the closest voxels
+	 * outside the phase above and below it in the same column, followed by the
+	 * passes along y and x. The columns are tracked while sweeping along z, so
+	 * the distances come out the same as those of squaredDistanceMap.
+	 */
+	private static final class SlabSweep {
+		private final byte[][] pixels;
+		private final int width;
+		private final int height;
+		private final int depth;
+		private final boolean foreground;
+		private final double[] spacing;
+		private final boolean isotropic;
+		private final int infinity;
+		private final double weightedInfinity;
+		/**
+		 * The z of the closest voxel outside the phase at or below the current
+		 * slice in each column, or -1 if there's none
+		 */
+		private final int[] below;
+		/**
+		 * The z of the closest voxel outside the phase at or above the current
+		 * slice in each column, or depth if there's none
+		 */
+		private final int[] above;
+		/**
+		 * The templates of the squared radii met so far
+		 */
+		private final Map<Integer, int[]> templates = new HashMap<>();
+		/**
+		 * The weighted templates of the squared radii met so far
+		 */
+		private final Map<Float, double[]> weightedTemplates = new HashMap<>();
+		private int currentZ = -1;
+
+		SlabSweep(byte[][] pixels, int width, int height, boolean foreground, double[] spacing,
+				boolean isotropic) {
+			this.pixels = pixels;
+			this.width = width;
+			this.height = height;
+			this.foreground = foreground;
+			this.spacing = spacing;
+			this.isotropic = isotropic;
+			depth = pixels.length;
+			infinity = infinity(width, height, depth);
+			final double maxLength = Math.max(width * spacing[0], Math.max(height * spacing[1], depth * spacing[2]));
+			weightedInfinity = 3.0 * (maxLength + 1.0) * (maxLength + 1.0);
+			below = new int[width * height];
+			above = new int[width * height];
+		}
+
+		/**
+		 * Finds the ridge points of the slices [firstZ, lastZ] to indices and
+		 * radiiSq
+		 */
+		void findRidge(int firstZ, int lastZ, int[][] indices, double[][] radiiSq) {
+			final int[][] intWindow = new int[depth][];
+			final float[][] floatWindow = new float[depth][];
+			int[] ridgeBuffer = new int[16];
+
+			int nextZ = Math.max(0, firstZ - 1);
+			for (int z = firstZ; z <= lastZ; z++) {
+				// the ridge points of slice z need the slices z - 1, z and z + 1
+				for (; nextZ <= Math.min(depth - 1, z + 1); nextZ++) {
+					moveTo(nextZ);
+					if (isotropic) {
+						intWindow[nextZ] = distanceSlice();
+					} else {
+						floatWindow[nextZ] = weightedDistanceSlice();
+					}
+				}
+
+				int points = 0;
+				for (int y = 0; y < height; y++) {
+					for (int x = 0; x < width; x++) {
+						final int index = y * width + x;
+						if (isotropic) {
+							final int value = intWindow[z][index];
+							if (value == 0 || !isRidgePoint(intWindow, getTemplate(value), x, y, z, width, height)) {
+								continue;
+							}
+						} else {
+							final float value = floatWindow[z][index];
+							if (value == 0.0f || !isRidgePoint(floatWindow,
+									getWeightedTemplate(weightedTemplates, value, spacing), x, y, z, width, height)) {
+								continue;
+							}
+						}
+						if (points == ridgeBuffer.length) {
+							ridgeBuffer = Arrays.copyOf(ridgeBuffer, points * 2);
+						}
+						ridgeBuffer[points++] = index;
+					}
+				}
+				indices[z] = Arrays.copyOf(ridgeBuffer, points);
+				radiiSq[z] = new double[points];
+				for (int i = 0; i < points; i++) {
+					radiiSq[z][i] = isotropic ? intWindow[z][indices[z][i]] : floatWindow[z][indices[z][i]];
+				}
+
+				if (z > 0) {
+					intWindow[z - 1] = null;
+					floatWindow[z - 1] = null;
+				}
+			}
+		}
+
+		// region -- Helper methods --
+		/**
+		 * Updates the columns for slice z. The columns are searched from
+		 * scratch on the first call, after which z must grow one slice at a
+		 * time.
+		 */
+		private void moveTo(int z) {
+			if (currentZ < 0) {
+				for (int i = 0; i < below.length; i++) {
+					int k = z;
+					while (k >= 0 && isInPhase(pixels[k][i], foreground)) {
+						k--;
+					}
+					below[i] = k;
+					above[i] = k == z ? z : nextOutside(i, z + 1);
+				}
+				currentZ = z;
+				return;
+			}
+
+			final byte[] slice = pixels[z];
+			for (int i = 0; i < below.length; i++) {
+				if (!isInPhase(slice[i], foreground)) {
+					below[i] = z;
+					above[i] = z;
+				} else if (above[i] < z) {
+					above[i] = nextOutside(i, z + 1);
+				}
+			}
+			currentZ = z;
+		}
+
+		/**
+		 * @return The z of the first voxel outside the phase in the column
+		 *         from slice z up, or depth if there's none
+		 */
+		private int nextOutside(int column, int z) {
+			while (z < depth && isInPhase(pixels[z][column], foreground)) {
+				z++;
+			}
+			return z;
+		}
+
+		/**
+		 * @return Slice currentZ of the squared distance map
+		 */
+		private int[] distanceSlice() {
+			final int[] slice = new int[width * height];
+			for (int i = 0; i < slice.length; i++) {
+				final int distance = Math.min(below[i] < 0 ? Integer.MAX_VALUE : currentZ - below[i],
+						above[i] >= depth ? Integer.MAX_VALUE : above[i] - currentZ);
+				slice[i] = distance == Integer.MAX_VALUE ? infinity : clampedSquare(distance, infinity);
+			}
+
+			final LineTransform columnTransform = new LineTransform(height, infinity);
+			for (int x = 0; x < width; x++) {
+				for (int y = 0; y < height; y++) {
+					columnTransform.f[y] = slice[y * width + x];
+				}
+				columnTransform.run(height);
+				for (int y = 0; y < height; y++) {
+					slice[y * width + x] = columnTransform.d[y];
+				}
+			}
+
+			final LineTransform rowTransform = new LineTransform(width, infinity);
+			for (int y = 0; y < height; y++) {
+				final int offset = y * width;
+				System.arraycopy(slice, offset, rowTransform.f, 0, width);
+				rowTransform.run(width);
+				System.arraycopy(rowTransform.d, 0, slice, offset, width);
+			}
+			return slice;
+		}
+
+		/**
+		 * @return Slice currentZ of the squared distance map of anisotropic
+		 *         voxels, in units of voxel width
+		 */
+		private float[] weightedDistanceSlice() {
+			final double[] distances = new double[width * height];
+			for (int i = 0; i < distances.length; i++) {
+				final int distance = Math.min(below[i] < 0 ? Integer.MAX_VALUE : currentZ - below[i],
+						above[i] >= depth ? Integer.MAX_VALUE : above[i] - currentZ);
+				final double length = distance * spacing[2];
+				distances[i] = distance == Integer.MAX_VALUE ? weightedInfinity
+						: Math.min(length * length, weightedInfinity);
+			}
+
+			final WeightedLineTransform columnTransform = new WeightedLineTransform(height, weightedInfinity);
+			for (int x = 0; x < width; x++) {
+				for (int y = 0; y < height; y++) {
+					columnTransform.f[y] = distances[y * width + x];
+				}
+				columnTransform.run(height, spacing[1] * spacing[1]);
+				for (int y = 0; y < height; y++) {
+					distances[y * width + x] = columnTransform.d[y];
+				}
+			}
+
+			final WeightedLineTransform rowTransform = new WeightedLineTransform(width, weightedInfinity);
+			final float[] slice = new float[width * height];
+			for (int y = 0; y < height; y++) {
+				final int offset = y * width;
+				System.arraycopy(distances, offset, rowTransform.f, 0, width);
+				rowTransform.run(width, spacing[0] * spacing[0]);
+				for (int x = 0; x < width; x++) {
+					slice[offset + x] = (float) rowTransform.d[x];
+				}
+			}
+			return slice;
+		}
+
+		private int[] getTemplate(int radiusSq) {
+			int[] template = templates.get(radiusSq);
+			if (template == null) {
+				template = createTemplate(radiusSq);
+				templates.put(radiusSq, template);
+			}
+			return template;
+		}
+		// endregion
+	}
+
+	/**
+	 * Creates the templates which tell how large the sphere of a neighbour can
+	 * be without containing the sphere of a voxel.
+	 *
+	 * @return templates[i] is the template of the sphere with squared radius
+	 *         values[i]
+	 */
+	private static int[][] createTemplates(final int[] values) {
+		final int[][] templates = new int[values.length][];
+		final AtomicInteger ai = new AtomicInteger(0);
+		runInParallel(new Runnable() {
+			@Override
+			public void run() {
+				for (int n = ai.getAndIncrement(); n < values.length; n = ai.getAndIncrement()) {
+					templates[n] = createTemplate(values[n]);
+				}
+			}
+		});
+		return templates;
+	}
+
+	/**
+	 * @return template[n - 1] is the largest squared distance from a neighbour
+	 *         n steps away (1 = face, 2 = edge, 3 = vertex) to the points of
+	 *         the sphere with the given squared radius
+	 */
+	static int[] createTemplate(final int radiusSq) {
+		int face = 0;
+		int edge = 0;
+		int vertex = 0;
+		// the farthest point of the sphere lies opposite to the neighbour, so
+		// it's enough to check one octant
+		for (int i = 0; i * i < radiusSq; i++) {
+			for (int j = 0; i * i + j * j < radiusSq; j++) {
+				final int k = floorSqrt(radiusSq - 1 - i * i - j * j);
+				final int ii = (i + 1) * (i + 1);
+				final int jj = (j + 1) * (j + 1);
+				final int kk = (k + 1) * (k + 1);
+				face = Math.max(face, ii + j * j + k * k);
+				edge = Math.max(edge, ii + jj + k * k);
+				vertex = Math.max(vertex, ii + jj + kk);
+			}
+		}
+		return new int[] { face, edge, vertex };
+	}
+
+	/**
+	 * @return The template of the squared radius from the cache. The template
+	 *         is created and cached if it's not there yet.
+	 */
+	private static double[] getWeightedTemplate(Map<Float, double[]> templates, float radiusSq, double[] spacing) {
+		double[] template = templates.get(radiusSq);
+		if (template == null) {
+			template = createWeightedTemplate(radiusSq, spacing);
+			templates.put(radiusSq, template);
+		}
+		return template;
+	}
+
+	/**
+	 * Same as @see LocalThickness#createTemplate(int), but for anisotropic
+	 * voxels, whose spheres are ellipsoids in voxel coordinates. The points
+	 * tied with the surface of the sphere are outside it, like in the integer
+	 * template. With spacing {1, 1, 1} the values are the same as those of
+	 * the integer template.
+	 *
+	 * @return template[|dx| + 2 * |dy| + 4 * |dz| - 1] is the largest weighted
+	 *         squared distance from the neighbour (dx, dy, dz) to the points
+	 *         of the sphere with the given squared radius
+	 */
+	static double[] createWeightedTemplate(final double radiusSq, final double[] spacing) {
+		final double[] template = new double[7];
+		final double limit = radiusSq * (1.0 - TIE_TOLERANCE);
+		final double xSq = spacing[0] * spacing[0];
+		final double ySq = spacing[1] * spacing[1];
+		final double zSq = spacing[2] * spacing[2];
+		// the farthest point of the sphere lies opposite to the neighbour, so
+		// it's enough to check one octant
+		for (int i = 0; i * i * xSq < limit; i++) {
+			for (int j = 0; i * i * xSq + j * j * ySq < limit; j++) {
+				final double remainder = limit - i * i * xSq - j * j * ySq;
+				int k = (int) Math.floor(Math.sqrt(remainder / zSq));
+				while (k > 0 && k * k * zSq >= remainder) {
+					k--;
+				}
+				for (int n = 0; n < template.length; n++) {
+					final int dx = i + ((n + 1) & 1);
+					final int dy = j + (((n + 1) >> 1) & 1);
+					final int dz = k + (((n + 1) >> 2) & 1);
+					template[n] = Math.max(template[n], dx * dx * xSq + dy * dy * ySq + dz * dz * zSq);
+				}
+			}
+		}
+		return template;
+	}
+
+	/**
+	 * Slices of the map which are null are skipped, so that the method also
+	 * works on a window of a few slices of the map
+	 */
+	private static boolean isRidgePoint(int[][] distanceMap, int[] template, int x, int y, int z, int width,
+			int height) {
+		final int depth = distanceMap.length;
+		for (int dz = -1; dz <= 1; dz++) {
+			final int nz = z + dz;
+			if (nz < 0 || nz >= depth || distanceMap[nz] == null) {
+				continue;
+			}
+			for (int dy = -1; dy <= 1; dy++) {
+				final int ny = y + dy;
+				if (ny < 0 || ny >= height) {
+					continue;
+				}
+				for (int dx = -1; dx <= 1; dx++) {
+					final int nx = x + dx;
+					final int steps = Math.abs(dx) + Math.abs(dy) + Math.abs(dz);
+					if (steps == 0 || nx < 0 || nx >= width) {
+						continue;
+					}
+					if (distanceMap[nz][ny * width + nx] > template[steps - 1]) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Same as @see LocalThickness#isRidgePoint(int[][], int[], int, int, int,
+	 * int, int), but with a weighted template
+	 */
+	private static boolean isRidgePoint(float[][] distanceMap, double[] template, int x, int y, int z, int width,
+			int height) {
+		final int depth = distanceMap.length;
+		for (int dz = -1; dz <= 1; dz++) {
+			final int nz = z + dz;
+			if (nz < 0 || nz >= depth || distanceMap[nz] == null) {
+				continue;
+			}
+			for (int dy = -1; dy <= 1; dy++) {
+				final int ny = y + dy;
+				if (ny < 0 || ny >= height) {
+					continue;
+				}
+				for (int dx = -1; dx <= 1; dx++) {
+					final int nx = x + dx;
+					final int neighbour = Math.abs(dx) + 2 * Math.abs(dy) + 4 * Math.abs(dz);
+					if (neighbour == 0 || nx < 0 || nx >= width) {
+						continue;
+					}
+					if (distanceMap[nz][ny * width + nx] > template[neighbour - 1] * (1.0 + TIE_TOLERANCE)) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Fits a sphere on each ridge point, and sets each voxel to the diameter of
+	 * the largest sphere that contains it. The slices of the map are filled in
+	 * parallel, so that each slice is written by only one thread.
+	 */
+	static float[][] fitSpheres(final Ridge ridge, final int depth, final int width, final int height) {
+		final float[][] thicknessMap = new float[depth][];
+		final AtomicInteger ai = new AtomicInteger(0);
+		runInParallel(new Runnable() {
+			@Override
+			public void run() {
+				for (int z = ai.getAndIncrement(); z < depth; z = ai.getAndIncrement()) {
+					thicknessMap[z] = fitSlice(ridge, z, depth, width, height);
+				}
+			}
+		});
+
+		return thicknessMap;
+	}
+
+	/**
+	 * Creates slice z of the thickness map from the spheres that intersect it.
+	 * With anisotropic voxels the spheres are ellipsoids in voxel coordinates,
+	 * which also contain the voxels tied with their surface.
+	 */
+	private static float[] fitSlice(Ridge ridge, int z, int depth, int width, int height) {
+		final double[] spacing = ridge.spacing;
+		final double slack = isIsotropic(spacing) ? 1.0 : 1.0 + TIE_TOLERANCE;
+		final int maxRadius = (int) Math.floor(Math.sqrt(ridge.maxRadiusSq * slack) / spacing[2]);
+		final double[] radiiSq = new double[width * height];
+		final int minZ = Math.max(0, z - maxRadius);
+		final int maxZ = Math.min(depth - 1, z + maxRadius);
+		for (int ridgeZ = minZ; ridgeZ <= maxZ; ridgeZ++) {
+			final double dz = (z - ridgeZ) * spacing[2];
+			final double dzSq = dz * dz;
+			final int[] indices = ridge.indices[ridgeZ];
+			final double[] sliceRadiiSq = ridge.radiiSq[ridgeZ];
+			for (int i = 0; i < indices.length; i++) {
+				final double radiusSq = sliceRadiiSq[i];
+				final double reachSq = radiusSq * slack;
+				if (dzSq <= reachSq) {
+					fillDisc(radiiSq, width, height, spacing, indices[i] % width, indices[i] / width,
+							reachSq - dzSq, radiusSq);
+				}
+			}
+		}
+
+		final float[] slice = new float[width * height];
+		for (int i = 0; i < slice.length; i++) {
+			slice[i] = (float) (2.0 * Math.sqrt(radiiSq[i]));
+		}
+		return slice;
+	}
+
+	/**
+	 * Sets the pixels of the disc to radiusSq unless they have a larger value
+	 * already
+	 */
+	private static void fillDisc(double[] radiiSq, int width, int height, double[] spacing, int centreX,
+			int centreY, double discRadiusSq, double radiusSq) {
+		final int discRadius = (int) Math.floor(Math.sqrt(discRadiusSq) / spacing[1]);
+		final int minY = Math.max(0, centreY - discRadius);
+		final int maxY = Math.min(height - 1, centreY + discRadius);
+		for (int y = minY; y <= maxY; y++) {
+			final double dy = (y - centreY) * spacing[1];
+			final double rowRadiusSq = discRadiusSq - dy * dy;
+			if (rowRadiusSq < 0.0) {
+				continue;
+			}
+			final int halfWidth = (int) Math.floor(Math.sqrt(rowRadiusSq) / spacing[0]);
+			final int minX = Math.max(0, centreX - halfWidth);
+			final int maxX = Math.min(width - 1, centreX + halfWidth);
+			final int offset = y * width;
+			for (int x = minX; x <= maxX; x++) {
+				if (radiiSq[offset + x] < radiusSq) {
+					radiiSq[offset + x] = radiusSq;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Replaces the values of the surface voxels of the map with the average of
+	 * their interior neighbours. A surface voxel has a value > 0, and at least
+	 * one of its 26 neighbours is 0. Surface voxels without interior
+	 * neighbours keep their value.
+	 */
+	static void cleanUp(final float[][] thicknessMap, final int width, final int height) {
+		final int depth = thicknessMap.length;
+		final boolean[][] surface = new boolean[depth][];
+
+		final AtomicInteger ai = new AtomicInteger(0);
+		runInParallel(new Runnable() {
+			@Override
+			public void run() {
+				for (int z = ai.getAndIncrement(); z < depth; z = ai.getAndIncrement()) {
+					surface[z] = findSurface(thicknessMap, z, width, height);
+				}
+			}
+		});
+
+		final float[][] cleaned = new float[depth][];
+		ai.set(0);
+		runInParallel(new Runnable() {
+			@Override
+			public void run() {
+				for (int z = ai.getAndIncrement(); z < depth; z = ai.getAndIncrement()) {
+					cleaned[z] = cleanSlice(thicknessMap, surface, z, width, height);
+				}
+			}
+		});
+
+		System.arraycopy(cleaned, 0, thicknessMap, 0, depth);
+	}
+
+	/**
+	 * Finds the surface voxels of slice z. Needs the slices z - 1, z and z + 1
+	 * of the map.
+	 */
+	private static boolean[] findSurface(float[][] thicknessMap, int z, int width, int height) {
+		final boolean[] sliceSurface = new boolean[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				final int index = y * width + x;
+				sliceSurface[index] = thicknessMap[z][index] > 0
+						&& hasZeroNeighbour(thicknessMap, x, y, z, width, height);
+			}
+		}
+		return sliceSurface;
+	}
+
+	/**
+	 * Creates a cleaned copy of slice z. Needs the slices z - 1, z and z + 1 of
+	 * the map and the surface.
+	 */
+	private static float[] cleanSlice(float[][] thicknessMap, boolean[][] surface, int z, int width,
+			int height) {
+		final float[] slice = thicknessMap[z].clone();
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				final int index = y * width + x;
+				if (surface[z][index]) {
+					slice[index] = averageInteriorNeighbours(thicknessMap, surface, x, y, z, width, height,
+							slice[index]);
+				}
+			}
+		}
+		return slice;
+	}
+
+	private static boolean hasZeroNeighbour(float[][] map, int x, int y, int z, int width, int height) {
+		for (int nz = Math.max(0, z - 1); nz <= Math.min(map.length - 1, z + 1); nz++) {
+			for (int ny = Math.max(0, y - 1); ny <= Math.min(height - 1, y + 1); ny++) {
+				for (int nx = Math.max(0, x - 1); nx <= Math.min(width - 1, x + 1); nx++) {
+					if (map[nz][ny * width + nx] == 0) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	private static float averageInteriorNeighbours(float[][] map, boolean[][] surface, int x, int y, int z,
+			int width, int height, float defaultValue) {
+		double sum = 0.0;
+		int count = 0;
+		for (int nz = Math.max(0, z - 1); nz <= Math.min(map.length - 1, z + 1); nz++) {
+			for (int ny = Math.max(0, y - 1); ny <= Math.min(height - 1, y + 1); ny++) {
+				for (int nx = Math.max(0, x - 1); nx <= Math.min(width - 1, x + 1); nx++) {
+					final int index = ny * width + nx;
+					if (map[nz][index] > 0 && !surface[nz][index]) {
+						sum += map[nz][index];
+						count++;
+					}
+				}
+			}
+		}
+		return count > 0 ? (float) (sum / count) : defaultValue;
+	}
+
+	static boolean isInPhase(byte pixel, boolean foreground) {
+		return ((pixel & 0xFF) >= THRESHOLD) == foreground;
+	}
+
+	private static byte[][] getSlicePixels(ImageStack stack) {
+		final byte[][] pixels = new byte[stack.getSize()][];
+		for (int z = 0; z < pixels.length; z++) {
+			pixels[z] = (byte[]) stack.getPixels(z + 1);
+		}
+		return pixels;
+	}
+
+	private static int floorSqrt(int value) {
+		if (value <= 0) {
+			return 0;
+		}
+		int root = (int) Math.sqrt(value);
+		while (root * root > value) {
+			root--;
+		}
+		while ((root + 1) * (root + 1) <= value) {
+			root++;
+		}
+		return root;
+	}
+
+	private static void runInParallel(Runnable task) {
+		final Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(task);
+		}
+		Multithreader.startAndJoin(threads);
+	}
+	// endregion
+}
@@ -0,0 +1,362 @@
+package protoOps.localThickness;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.annotation.Nullable;
+
+import org.bonej.common.MappedVolume;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Creates local thickness maps of images that don't fit in memory.
+ *
+ * The image is processed in blocks. Each block is extended by a halo of
+ * overlapping voxels from its neighbours, processed in memory with
+ * LocalThickness, and then only the voxels of the block proper are written
+ * into a memory-mapped file. Only one block and its halo need to be in memory
+ * at a time. The input can be a virtual stack, e.g. one opened from disk or
+ * from RoiUtil.cropToRoisLazily. A virtual stack creates a whole slice on
+ * every request, so it's first copied into a temporary memory-mapped file
+ * next to the map. That way each slice is read from the stack only once,
+ * instead of once for every block that overlaps it.
+ *
+ * The halo must be large enough for the result of a block to be exact. A
+ * voxel is covered by spheres whose centres are at most the maximum sphere
+ * radius R away, and the radius of a centre depends on voxels at most R away
+ * from it. The halo is thus 2R plus the few voxels needed by the distance
+ * ridge and the clean up. R is found in a pre-pass, which calculates the
+ * distance transform of each block with a halo that grows until the distances
+ * of the block are exact. The thicker the structures, the larger the halo, so
+ * a block and its halo must fit in a memory budget. Otherwise the map can't
+ * be created block by block, and processing fails rather than loading most of
+ * the image.
+ */
+public class TiledLocalThickness {
+	public static final int DEFAULT_BLOCK_SIZE = 256;
+
+	/**
+	 * Extra halo voxels for the ridge (1), the clean up (2) and rounding
+	 */
+	private static final int EXTRA_HALO = 6;
+	private static final int INITIAL_RADIUS_HALO = 16;
+	/**
+	 * Approximate peak memory per voxel of a window in LocalThickness.createMap:
+	 * the voxels (1), the distance map (4), the thickness map and its cleaned
+	 * copy (4 + 4), and the surface (1)
+	 */
+	private static final int BYTES_PER_WINDOW_VOXEL = 14;
+
+	private final LocalThickness localThickness;
+	private final int blockSize;
+	private long memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+
+	/**
+	 * @param localThickness
+	 *            The settings (phase, masking, calibration, title suffix) of
+	 *            the maps
+	 * @param blockSize
+	 *            Size of the blocks in voxels in each dimension, excluding the
+	 *            halo
+	 * @throws NullPointerException
+	 *             if localThickness == null
+	 * @throws IllegalArgumentException
+	 *             if blockSize < 1
+	 */
+	public TiledLocalThickness(LocalThickness localThickness, int blockSize) {
+		checkNotNull(localThickness, "Local thickness settings must not be null");
+		checkArgument(blockSize >= 1, "Block size must be positive");
+
+		this.localThickness = localThickness;
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * @param bytes
+	 *            The memory a block and its halo may use, by default half of
+	 *            the maximum heap size
+	 * @throws IllegalArgumentException
+	 *             if bytes < 1
+	 */
+	public void setMemoryBudget(long bytes) {
+		checkArgument(bytes >= 1, "Memory budget must be positive");
+
+		memoryBudget = bytes;
+	}
+
+	/**
+	 * Creates the local thickness map of the given image into the given file
+	 *
+	 * @param image
+	 *            An 8-bit image
+	 * @param mapFile
+	 *            The file where the map is stored. An existing file is
+	 *            overwritten.
+	 * @return The map in a memory-mapped volume @see
+	 *         TiledLocalThickness#createImage(ImagePlus, MappedVolume)
+	 * @throws NullPointerException
+	 *             if image == null or mapFile == null
+	 * @throws IllegalArgumentException
+	 *             if image is not 8-bit, or its structures are so thick that
+	 *             the halo of a block doesn't fit in the memory budget
+	 * @throws IOException
+	 *             if the file, or the temporary copy of a virtual stack, can't
+	 *             be created
+	 */
+	public MappedVolume processImage(ImagePlus image, File mapFile) throws IOException {
+		checkNotNull(image, "Image must not be null");
+		checkNotNull(mapFile, "File must not be null");
+		checkArgument(image.getBitDepth() == 8, "Image must be 8-bit");
+
+		final ImageStack stack = image.getStack();
+		final int[] dimensions = { stack.getWidth(), stack.getHeight(), stack.getSize() };
+		final double[] spacing = LocalThickness.getSpacing(image);
+		final double scale = localThickness.getScale(image);
+
+		final File inputFile = stack.isVirtual()
+				? File.createTempFile("input", ".raw", mapFile.getAbsoluteFile().getParentFile()) : null;
+		final MappedVolume input = inputFile == null ? null : copyToFile(stack, inputFile);
+		try {
+			final double maxRadiusSq = findMaxRadiusSq(stack, input, spacing);
+			final double maxRadius = Math.sqrt(maxRadiusSq);
+			final int[] halo = new int[3];
+			for (int i = 0; i < 3; i++) {
+				halo[i] = 2 * (int) Math.ceil(maxRadius / spacing[i]) + EXTRA_HALO;
+			}
+			checkWindowFits(dimensions, halo);
+
+			final MappedVolume volume = MappedVolume.create(mapFile, dimensions[0], dimensions[1], dimensions[2], 32);
+			try {
+				for (int z = 0; z < dimensions[2]; z += blockSize) {
+					for (int y = 0; y < dimensions[1]; y += blockSize) {
+						for (int x = 0; x < dimensions[0]; x += blockSize) {
+							final Window window = new Window(new int[] { x, y, z }, dimensions, halo);
+							final byte[][] pixels = window.read(stack, input);
+							final float[][] map = localThickness.createMap(pixels, window.size[0],
+									window.size[1], spacing, scale, maxRadiusSq);
+							window.write(map, volume);
+						}
+					}
+				}
+				volume.flush();
+			} catch (RuntimeException e) {
+				volume.close();
+				throw e;
+			}
+
+			return volume;
+		} finally {
+			if (input != null) {
+				input.close();
+				// a mapped file can't be deleted on some platforms until the
+				// mapping has been garbage collected
+				if (!inputFile.delete()) {
+					inputFile.deleteOnExit();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates an image of the map, whose virtual stack reads the slices from
+	 * the volume
+	 *
+	 * @param image
+	 *            The image the map was created from
+	 * @return An image with the title suffix and calibration of a map from
+	 *         LocalThickness.processImage
+	 */
+	public ImagePlus createImage(ImagePlus image, MappedVolume volume) {
+		checkNotNull(image, "Image must not be null");
+		checkNotNull(volume, "Volume must not be null");
+
+		final ImagePlus result = new ImagePlus(image.getShortTitle() + localThickness.getTitleSuffix(),
+				volume.toStack(MappedVolume.DEFAULT_CACHED_SLICES));
+		result.copyScale(image);
+		return result;
+	}
+
+	// region -- Helper methods --
+
+	/**
+	 * Copies the slices of the stack into a new volume in the given file
+	 */
+	private static MappedVolume copyToFile(ImageStack stack, File file) throws IOException {
+		final MappedVolume volume = MappedVolume.create(file, stack.getWidth(), stack.getHeight(), stack.getSize(),
+				8);
+		try {
+			for (int z = 0; z < stack.getSize(); z++) {
+				volume.writeSlice(z, stack.getPixels(z + 1));
+			}
+		} catch (RuntimeException e) {
+			volume.close();
+			throw e;
+		}
+		return volume;
+	}
+
+	/**
+	 * Finds the largest distance from a voxel of the phase to the closest voxel
+	 * outside it, i.e. the radius of the largest sphere
+	 *
+	 * @return Square of the maximum radius in units of voxel width. The
+	 *         square is returned, because the radii of the ridge are compared
+	 *         to it, and sqrt(r^2)^2 may round below r^2.
+	 */
+	private double findMaxRadiusSq(ImageStack stack, @Nullable MappedVolume input, double[] spacing) {
+		final int[] dimensions = { stack.getWidth(), stack.getHeight(), stack.getSize() };
+		final boolean isotropic = LocalThickness.isIsotropic(spacing);
+		final boolean foreground = localThickness.isForeground();
+		double maxRadiusSq = 0.0;
+
+		for (int z = 0; z < dimensions[2]; z += blockSize) {
+			for (int y = 0; y < dimensions[1]; y += blockSize) {
+				for (int x = 0; x < dimensions[0]; x += blockSize) {
+					final int[] start = { x, y, z };
+					double haloDistance = INITIAL_RADIUS_HALO;
+					while (true) {
+						final int[] halo = new int[3];
+						for (int i = 0; i < 3; i++) {
+							halo[i] = (int) Math.ceil(haloDistance / spacing[i]);
+						}
+						checkWindowFits(dimensions, halo);
+						final Window window = new Window(start, dimensions, halo);
+						final byte[][] pixels = window.read(stack, input);
+						final double blockMaxSq = isotropic
+								? window.blockMax(LocalThickness.squaredDistanceMap(pixels, window.size[0],
+										window.size[1], foreground))
+								: window.blockMax(LocalThickness.squaredDistanceMap(pixels, window.size[0],
+										window.size[1], foreground, spacing));
+						final double blockMax = Math.sqrt(blockMaxSq);
+						// distances up to the halo are exact, because voxels
+						// outside the window are farther away
+						if (blockMax <= haloDistance || window.coversImage()) {
+							maxRadiusSq = Math.max(maxRadiusSq, blockMaxSq);
+							break;
+						}
+						haloDistance *= 2.0;
+					}
+				}
+			}
+		}
+
+		return maxRadiusSq;
+	}
+
+	/**
+	 * Checks that the largest window of a block with the given halo fits in
+	 * the memory budget
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the window doesn't fit
+	 */
+	private void checkWindowFits(int[] dimensions, int[] halo) {
+		long voxels = 1;
+		for (int i = 0; i < 3; i++) {
+			voxels *= Math.min(dimensions[i], (long) blockSize + 2L * halo[i]);
+		}
+		checkArgument(voxels * BYTES_PER_WINDOW_VOXEL <= memoryBudget,
+				"The structures are too thick to process the image in blocks: a halo of " + halo[0]
+						+ " voxels doesn't fit in the memory budget");
+	}
+
+	/**
+	 * A block of the image extended by a halo, clipped to the image
+	 */
+	private final class Window {
+		/**
+		 * The start of the window in the image
+		 */
+		final int[] origin = new int[3];
+		final int[] size = new int[3];
+		/**
+		 * The start of the block in the window
+		 */
+		final int[] blockOffset = new int[3];
+		final int[] blockExtent = new int[3];
+		private final int[] dimensions;
+
+		Window(int[] blockStart, int[] dimensions, int[] halo) {
+			this.dimensions = dimensions;
+			for (int i = 0; i < 3; i++) {
+				final int blockEnd = Math.min(dimensions[i], blockStart[i] + TiledLocalThickness.this.blockSize);
+				origin[i] = Math.max(0, blockStart[i] - halo[i]);
+				final int end = Math.min(dimensions[i], blockEnd + halo[i]);
+				size[i] = end - origin[i];
+				blockOffset[i] = blockStart[i] - origin[i];
+				blockExtent[i] = blockEnd - blockStart[i];
+			}
+		}
+
+		boolean coversImage() {
+			for (int i = 0; i < 3; i++) {
+				if (size[i] != dimensions[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Copies the voxels of the window from the copy of the stack, or from
+		 * the stack if there's no copy
+		 */
+		byte[][] read(ImageStack stack, @Nullable MappedVolume input) {
+			final byte[][] pixels = new byte[size[2]][size[0] * size[1]];
+			final int stackWidth = stack.getWidth();
+			for (int z = 0; z < size[2]; z++) {
+				if (input != null) {
+					input.readRegion(origin[2] + z, origin[0], origin[1], size[0], size[1], pixels[z], size[0], 0);
+					continue;
+				}
+				final byte[] slice = (byte[]) stack.getPixels(origin[2] + z + 1);
+				for (int y = 0; y < size[1]; y++) {
+					System.arraycopy(slice, (origin[1] + y) * stackWidth + origin[0], pixels[z], y * size[0],
+							size[0]);
+				}
+			}
+			return pixels;
+		}
+
+		/**
+		 * Writes the block proper of the window into the volume
+		 */
+		void write(float[][] map, MappedVolume volume) {
+			for (int z = 0; z < blockExtent[2]; z++) {
+				volume.writeRegion(origin[2] + blockOffset[2] + z, origin[0] + blockOffset[0],
+						origin[1] + blockOffset[1], blockExtent[0], blockExtent[1], map[blockOffset[2] + z], size[0],
+						blockOffset[1] * size[0] + blockOffset[0]);
+			}
+		}
+
+		double blockMax(int[][] distanceMap) {
+			int max = 0;
+			for (int z = blockOffset[2]; z < blockOffset[2] + blockExtent[2]; z++) {
+				for (int y = blockOffset[1]; y < blockOffset[1] + blockExtent[1]; y++) {
+					for (int x = blockOffset[0]; x < blockOffset[0] + blockExtent[0]; x++) {
+						max = Math.max(max, distanceMap[z][y * size[0] + x]);
+					}
+				}
+			}
+			return max;
+		}
+
+		double blockMax(float[][] distanceMap) {
+			float max = 0.0f;
+			for (int z = blockOffset[2]; z < blockOffset[2] + blockExtent[2]; z++) {
+				for (int y = blockOffset[1]; y < blockOffset[1] + blockExtent[1]; y++) {
+					for (int x = blockOffset[0]; x < blockOffset[0] + blockExtent[0]; x++) {
+						max = Math.max(max, distanceMap[z][y * size[0] + x]);
+					}
+				}
+			}
+			return max;
+		}
+	}
+	// endregion
+}
@@ -10,7 +10,7 @@ import net.imagej.ops.OpEnvironment;
 
 import org.bonej.common.Centroid;
 import org.bonej.common.Common;
-import org.bonej.common.ImageCheck;
+import org.bonej.common.ImageCheckCache;
 import org.bonej.geometry.Vectors;
 import org.scijava.ItemIO;
 import org.scijava.plugin.Parameter;
@@ -93,7 +93,8 @@ public class TriplePointAngles implements Op {
 
 	/**
 	 * Calculates the triple point angles of the input image to the results
-	 * array
+	 * array. The input image is skeletonized in place, so an image of a
+	 * read-only MappedVolume must be copied first.
 	 * 
 	 * @throws NullPointerException
 	 *             if this.inputImage == null
@@ -109,6 +110,8 @@ public class TriplePointAngles implements Op {
 
 		skeletonizer.setup("", inputImage);
 		skeletonizer.run(null);
+		// Skeletonize3D_ modifies the pixels of the image in place
+		ImageCheckCache.invalidate(inputImage);
 
 		skeletonAnalyzer.setup("", inputImage);
 		skeletonAnalyzer.run();
@@ -188,7 +191,7 @@ public class TriplePointAngles implements Op {
 	 */
 	private static void checkImage(ImagePlus image) {
 		checkNotNull(image, "Must have an input image");
-		checkArgument(ImageCheck.isBinary(image), "Input image must be binary");
+		checkArgument(ImageCheckCache.isBinary(image), "Input image must be binary");
 	}
 
 	/**
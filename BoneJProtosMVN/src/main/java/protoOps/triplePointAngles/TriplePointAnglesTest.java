@@ -2,6 +2,7 @@ package protoOps.triplePointAngles;
 
 import static org.junit.Assert.*;
 
+import org.bonej.common.ImageCheckCache;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -77,6 +78,18 @@ public class TriplePointAnglesTest {
 		}
 	}
 
+	@Test
+	public void testCalculateTriplePointAnglesInvalidatesImageCheckCache() {
+		ImagePlus testImage = StaticTestImageHelper.createWireFrameCuboid(64, 64, 64, 16);
+		triplePointAngles.setInputImage(testImage);
+		final Object stamp = ImageCheckCache.getStamp(testImage);
+
+		triplePointAngles.calculateTriplePointAngles();
+
+		assertNotSame("Skeletonizing the image in place should invalidate its checks", stamp,
+				ImageCheckCache.getStamp(testImage));
+	}
+
 	/**
 	 * Not a proper test, because the expected results are just magic numbers,
 	 * but at least it alerts if the results change
@@ -0,0 +1,315 @@
+package protoOps.volumeFraction;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bonej.common.Multithreader;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/**
+ * Creates binary masks of a stack at several resolutions, and caches them so
+ * that trying another resampling factor doesn't need to read the whole stack
+ * again.
+ *
+ * A voxel of the stack is inside if its value is in the range [min, max]. At
+ * resampling factor f, each voxel of the mask covers a block of f^3 voxels of
+ * the stack. The cache stores the number of inside voxels in each block,
+ * rather than just the mask, so both the majority and the any-voxel rule can
+ * be applied to it, and a level can be derived exactly from any cached level
+ * whose factor divides its own: e.g. the counts of factor 6 are sums of
+ * 3^3 counts of factor 2. A level is read from the stack only when there's no
+ * such level in the cache. The levels are created in parallel. The mask
+ * without resampling is not cached, because it's as large as the stack.
+ */
+public class BinaryPyramid {
+	/**
+	 * Rules for deciding whether a voxel of a resampled mask is inside
+	 */
+	public enum Rule {
+		/**
+		 * At least half of the voxels in the block are inside
+		 */
+		MAJORITY,
+		/**
+		 * Any of the voxels in the block is inside
+		 */
+		ANY
+	}
+
+	/**
+	 * Largest factor whose block counts fit in an unsigned short
+	 */
+	public static final int MAX_FACTOR = 40;
+
+	private final ImageStack stack;
+	private final int min;
+	private final int max;
+	private final int width;
+	private final int height;
+	private final int depth;
+	/**
+	 * Inside voxel counts of the blocks, stored as unsigned shorts
+	 */
+	private final Map<Integer, short[][]> levels = new TreeMap<>();
+
+	/**
+	 * @param stack
+	 *            An 8-bit or 16-bit stack
+	 * @param min
+	 *            Smallest value inside the mask
+	 * @param max
+	 *            Largest value inside the mask
+	 * @throws NullPointerException
+	 *             if stack == null
+	 * @throws IllegalArgumentException
+	 *             if the stack is not 8-bit or 16-bit
+	 */
+	public BinaryPyramid(ImageStack stack, int min, int max) {
+		checkNotNull(stack, "Stack must not be null");
+		final int bitDepth = stack.getBitDepth();
+		checkArgument(bitDepth == 8 || bitDepth == 16, "Stack bit depth must be 8 or 16");
+
+		this.stack = stack;
+		this.min = min;
+		this.max = max;
+		width = stack.getWidth();
+		height = stack.getHeight();
+		depth = stack.getSize();
+	}
+
+	/**
+	 * @return true if the pyramid was created from the given stack and range
+	 */
+	public boolean matches(ImageStack stack, int min, int max) {
+		return this.stack == stack && this.min == min && this.max == max;
+	}
+
+	/**
+	 * @return Width of the mask at the given resampling factor
+	 */
+	public int getWidth(int factor) {
+		return (width + factor - 1) / factor;
+	}
+
+	/**
+	 * @return Height of the mask at the given resampling factor
+	 */
+	public int getHeight(int factor) {
+		return (height + factor - 1) / factor;
+	}
+
+	/**
+	 * @return Depth of the mask at the given resampling factor
+	 */
+	public int getDepth(int factor) {
+		return (depth + factor - 1) / factor;
+	}
+
+	/**
+	 * Returns the mask at the given resampling factor. The blocks at the far
+	 * edges of the stack can be smaller than factor^3, and the majority rule
+	 * considers only their voxels inside the stack.
+	 *
+	 * @param factor
+	 *            Resampling factor, 1 for no resampling
+	 * @return Slices of the mask, where 1 is inside and 0 outside
+	 * @throws NullPointerException
+	 *             if rule == null
+	 * @throws IllegalArgumentException
+	 *             if factor < 1 or factor > MAX_FACTOR
+	 */
+	public byte[][] getMask(final int factor, final Rule rule) {
+		checkNotNull(rule, "Rule must not be null");
+		checkArgument(factor >= 1 && factor <= MAX_FACTOR, "Resampling factor must be in [1, " + MAX_FACTOR + "]");
+
+		if (factor == 1) {
+			return maskFromStack();
+		}
+
+		final short[][] counts = getCounts(factor);
+		final int maskWidth = getWidth(factor);
+		final int maskHeight = getHeight(factor);
+		final int maskDepth = getDepth(factor);
+		final byte[][] mask = new byte[maskDepth][maskWidth * maskHeight];
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Thread[] threads = Multithreader.newThreads();
+
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int z = ai.getAndIncrement(); z < maskDepth; z = ai.getAndIncrement()) {
+						final int blockDepth = blockLength(z, factor, depth);
+						for (int y = 0; y < maskHeight; y++) {
+							final int blockArea = blockLength(y, factor, height) * blockDepth;
+							for (int x = 0; x < maskWidth; x++) {
+								final int i = y * maskWidth + x;
+								final int count = counts[z][i] & 0xFFFF;
+								final boolean inside = rule == Rule.ANY ? count > 0
+										: 2 * count >= blockLength(x, factor, width) * blockArea;
+								mask[z][i] = (byte) (inside ? 1 : 0);
+							}
+						}
+					}
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+
+		return mask;
+	}
+
+	/**
+	 * Removes the cached levels
+	 */
+	public void clear() {
+		synchronized (levels) {
+			levels.clear();
+		}
+	}
+
+	// region -- Helper methods --
+	/**
+	 * Returns the counts at the given factor from the cache, or creates them
+	 * from the cached level with the largest factor which divides the given
+	 * one, or from the stack.
+	 */
+	private short[][] getCounts(int factor) {
+		int sourceFactor = 1;
+		short[][] source = null;
+		synchronized (levels) {
+			for (Map.Entry<Integer, short[][]> level : levels.entrySet()) {
+				if (factor % level.getKey() == 0) {
+					sourceFactor = level.getKey();
+					source = level.getValue();
+				}
+			}
+		}
+
+		if (sourceFactor == factor) {
+			return source;
+		}
+
+		final short[][] counts = source == null ? countFromStack(factor)
+				: countFromLevel(source, sourceFactor, factor / sourceFactor);
+		synchronized (levels) {
+			levels.put(factor, counts);
+		}
+		return counts;
+	}
+
+	private byte[][] maskFromStack() {
+		final byte[][] mask = new byte[depth][width * height];
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Thread[] threads = stack.isVirtual() ? new Thread[1] : Multithreader.newThreads();
+
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int z = ai.getAndIncrement(); z < depth; z = ai.getAndIncrement()) {
+						final ImageProcessor processor = stack.getProcessor(z + 1);
+						for (int i = 0; i < mask[z].length; i++) {
+							final int value = processor.get(i);
+							mask[z][i] = (byte) (value >= min && value <= max ? 1 : 0);
+						}
+					}
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+
+		return mask;
+	}
+
+	private short[][] countFromStack(final int factor) {
+		final int countWidth = getWidth(factor);
+		final int countDepth = getDepth(factor);
+		final short[][] counts = new short[countDepth][countWidth * getHeight(factor)];
+		final AtomicInteger ai = new AtomicInteger(0);
+		// A virtual stack reads its slices from disk, better not do it in
+		// parallel
+		final Thread[] threads = stack.isVirtual() ? new Thread[1] : Multithreader.newThreads();
+
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int z = ai.getAndIncrement(); z < countDepth; z = ai.getAndIncrement()) {
+						final short[] slice = counts[z];
+						final int lastSlice = Math.min(depth, (z + 1) * factor);
+						for (int sliceZ = z * factor; sliceZ < lastSlice; sliceZ++) {
+							final ImageProcessor processor = stack.getProcessor(sliceZ + 1);
+							for (int y = 0; y < height; y++) {
+								final int row = (y / factor) * countWidth;
+								for (int x = 0; x < width; x++) {
+									final int value = processor.get(x, y);
+									if (value >= min && value <= max) {
+										slice[row + x / factor]++;
+									}
+								}
+							}
+						}
+					}
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+
+		return counts;
+	}
+
+	/**
+	 * Sums the counts of the source level in blocks of step^3
+	 */
+	private short[][] countFromLevel(final short[][] source, final int sourceFactor, final int step) {
+		final int factor = sourceFactor * step;
+		final int sourceWidth = getWidth(sourceFactor);
+		final int sourceHeight = getHeight(sourceFactor);
+		final int sourceDepth = getDepth(sourceFactor);
+		final int countWidth = getWidth(factor);
+		final int countDepth = getDepth(factor);
+		final short[][] counts = new short[countDepth][countWidth * getHeight(factor)];
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Thread[] threads = Multithreader.newThreads();
+
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int z = ai.getAndIncrement(); z < countDepth; z = ai.getAndIncrement()) {
+						final short[] slice = counts[z];
+						final int lastSlice = Math.min(sourceDepth, (z + 1) * step);
+						for (int sourceZ = z * step; sourceZ < lastSlice; sourceZ++) {
+							final short[] sourceSlice = source[sourceZ];
+							for (int y = 0; y < sourceHeight; y++) {
+								final int row = (y / step) * countWidth;
+								for (int x = 0; x < sourceWidth; x++) {
+									slice[row + x / step] += sourceSlice[y * sourceWidth + x] & 0xFFFF;
+								}
+							}
+						}
+					}
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+
+		return counts;
+	}
+
+	/**
+	 * @return The length of block i in a dimension of the given size, where
+	 *         the last block may be cut short
+	 */
+	private static int blockLength(int i, int factor, int size) {
+		return Math.min(factor, size - i * factor);
+	}
+	// endregion
+}
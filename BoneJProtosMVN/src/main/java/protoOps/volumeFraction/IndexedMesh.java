@@ -0,0 +1,81 @@
+package protoOps.volumeFraction;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.vecmath.Point3f;
+
+import customnode.CustomTriangleMesh;
+
+/**
+ * A compact triangle mesh, where each vertex is stored once and the triangles
+ * refer to their vertices by index.
+ *
+ * The vertices are in a single float array {x0, y0, z0, x1, y1, z1...} and
+ * the triangles in a single int array {a0, b0, c0, a1, b1, c1...}. A mesh of
+ * n triangles takes about 20n bytes, whereas the List&lt;Point3f&gt; of
+ * CustomTriangleMesh takes over 100n bytes, because every triangle has three
+ * Point3f objects of its own.
+ */
+public final class IndexedMesh {
+	private final float[] vertices;
+	private final int[] indices;
+
+	/**
+	 * @param vertices
+	 *            Coordinates of the vertices, three per vertex
+	 * @param indices
+	 *            Vertex indices of the triangles, three per triangle
+	 */
+	IndexedMesh(float[] vertices, int[] indices) {
+		this.vertices = vertices;
+		this.indices = indices;
+	}
+
+	public int getVertexCount() {
+		return vertices.length / 3;
+	}
+
+	public int getTriangleCount() {
+		return indices.length / 3;
+	}
+
+	/**
+	 * @return The coordinates of the vertices, three per vertex. The array is
+	 *         not copied, because it can be very large, so don't modify it.
+	 */
+	public float[] getVertices() {
+		return vertices;
+	}
+
+	/**
+	 * @return The vertex indices of the triangles, three per triangle. The
+	 *         array is not copied, because it can be very large, so don't
+	 *         modify it.
+	 */
+	public int[] getIndices() {
+		return indices;
+	}
+
+	/**
+	 * @return The vertices of the triangles, three consecutive points per
+	 *         triangle, in the format of CustomTriangleMesh. The triangles
+	 *         don't share Point3f objects.
+	 */
+	public List<Point3f> toTriangleList() {
+		final List<Point3f> triangles = new ArrayList<>(indices.length);
+		for (final int index : indices) {
+			final int i = index * 3;
+			triangles.add(new Point3f(vertices[i], vertices[i + 1], vertices[i + 2]));
+		}
+		return triangles;
+	}
+
+	/**
+	 * Creates a CustomTriangleMesh for the 3D Viewer. The mesh takes several
+	 * times the memory of this one, so create it only for display.
+	 */
+	public CustomTriangleMesh toCustomTriangleMesh() {
+		return new CustomTriangleMesh(toTriangleList());
+	}
+}
@@ -0,0 +1,729 @@
+package protoOps.volumeFraction;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import org.bonej.common.Multithreader;
+
+import ij.ImageStack;
+
+/**
+ * Creates the surface of a binary mask with the marching cubes algorithm.
+ * The mask can also be the voxels of a stack inside a threshold range, or a
+ * box, which are evaluated a slice at a time without creating the whole mask.
+ *
+ * The vertices of the surface are at the midpoints of the cube edges that
+ * cross from inside to outside. Voxels outside the mask count as outside, so
+ * the surface is always closed. The triangles are wound counter-clockwise
+ * when seen from outside, and their normals point out.
+ *
+ * The surface is an IndexedMesh, where each vertex is stored once. The
+ * vertices are identified by the edge of the voxel grid they lie on, whose
+ * coordinates are packed into a long and looked up from a hash table of
+ * primitives, so finding a vertex creates no objects.
+ *
+ * The cube layers are split into slabs, which are triangulated in parallel.
+ * Neighbouring slabs share the vertices on the slice at their seam, and the
+ * slabs are stitched by looking up the seam vertices of a slab from the table
+ * of the previous one. The enclosed volume is summed from the signed volumes
+ * of the tetrahedra between the origin and each triangle as the triangles are
+ * created, so it doesn't need another pass over the surface. The area is
+ * summed likewise. If only the volume and area are needed, measureSurface
+ * doesn't store the triangles at all, and its memory use doesn't depend on
+ * the size of the surface.
+ *
+ * The triangle table is generated by walking the faces of the cube, instead
+ * of the usual hand-written table. On a face with two diagonal inside corners
+ * the inside corners are always cut apart, so the neighbouring cubes agree on
+ * their shared face, and the surface has no holes.
+ */
+public final class MarchingCubes {
+	/**
+	 * Number of slabs per thread. More slabs than threads balance the load
+	 * when some parts of the mask have more surface than others.
+	 */
+	private static final int SLABS_PER_THREAD = 4;
+	/**
+	 * Bits per coordinate in a vertex key
+	 */
+	private static final int KEY_BITS = 21;
+	private static final long KEY_MASK = (1L << KEY_BITS) - 1;
+	/**
+	 * Largest mask dimension whose doubled and shifted coordinates fit in
+	 * KEY_BITS
+	 */
+	private static final int MAX_DIMENSION = (1 << (KEY_BITS - 1)) - 2;
+
+	/**
+	 * The corners of the cube i are at (i & 1, (i >> 1) & 1, (i >> 2) & 1).
+	 * The corners of each face are listed counter-clockwise when seen from
+	 * outside the cube.
+	 */
+	private static final int[][] FACES = { { 0, 2, 3, 1 }, { 4, 5, 7, 6 }, { 0, 1, 5, 4 }, { 2, 6, 7, 3 },
+			{ 0, 4, 6, 2 }, { 1, 3, 7, 5 } };
+	private static final int[][] EDGE_CORNERS = new int[12][2];
+	private static final int[][] CORNER_EDGES = new int[8][8];
+	/**
+	 * The triangles of each of the 256 cube configurations, as triplets of
+	 * edge indices
+	 */
+	private static final int[][] TRIANGLES = new int[256][];
+
+	static {
+		int edge = 0;
+		for (int corner = 0; corner < 8; corner++) {
+			for (int axis = 0; axis < 3; axis++) {
+				final int bit = 1 << axis;
+				if ((corner & bit) == 0) {
+					EDGE_CORNERS[edge][0] = corner;
+					EDGE_CORNERS[edge][1] = corner | bit;
+					CORNER_EDGES[corner][corner | bit] = edge;
+					CORNER_EDGES[corner | bit][corner] = edge;
+					edge++;
+				}
+			}
+		}
+
+		for (int config = 0; config < 256; config++) {
+			TRIANGLES[config] = createTriangles(config);
+		}
+	}
+
+	/**
+	 * The slices of the mask, or null if it's read from the stack or it's a
+	 * box
+	 */
+	@Nullable
+	private final byte[][] mask;
+	/**
+	 * The stack whose voxels in the range [min, max] are inside, or null
+	 */
+	@Nullable
+	private final ImageStack stack;
+	private final int min;
+	private final int max;
+	private final int width;
+	private final int height;
+	private final int depth;
+	private final double[] voxelSize;
+
+	/**
+	 * @param mask
+	 *            The slices of the mask. A voxel is inside if its value != 0
+	 * @param width
+	 *            Width of the slices
+	 * @param height
+	 *            Height of the slices
+	 * @param voxelSize
+	 *            The size of a voxel in each dimension {x, y, z}. The vertex
+	 *            coordinates are multiplied by it.
+	 * @throws NullPointerException
+	 *             if mask == null or voxelSize == null
+	 * @throws IllegalArgumentException
+	 *             if the mask doesn't match the dimensions, a dimension is
+	 *             larger than about a million voxels, or voxelSize doesn't
+	 *             have three elements
+	 */
+	public MarchingCubes(byte[][] mask, int width, int height, double[] voxelSize) {
+		checkNotNull(mask, "Mask must not be null");
+		checkNotNull(voxelSize, "Voxel size must not be null");
+		checkArgument(voxelSize.length == 3, "Voxel size must have three dimensions");
+		checkArgument(width <= MAX_DIMENSION && height <= MAX_DIMENSION && mask.length <= MAX_DIMENSION,
+				"Mask is too large");
+		for (byte[] slice : mask) {
+			checkArgument(slice.length == width * height, "Mask slice size doesn't match the dimensions");
+		}
+
+		this.mask = mask;
+		this.stack = null;
+		this.min = 0;
+		this.max = 0;
+		this.width = width;
+		this.height = height;
+		this.depth = mask.length;
+		this.voxelSize = voxelSize.clone();
+	}
+
+	private MarchingCubes(@Nullable ImageStack stack, int min, int max, int width, int height, int depth,
+			double[] voxelSize) {
+		checkNotNull(voxelSize, "Voxel size must not be null");
+		checkArgument(voxelSize.length == 3, "Voxel size must have three dimensions");
+		checkArgument(width <= MAX_DIMENSION && height <= MAX_DIMENSION && depth <= MAX_DIMENSION,
+				"Mask is too large");
+
+		this.mask = null;
+		this.stack = stack;
+		this.min = min;
+		this.max = max;
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.voxelSize = voxelSize.clone();
+	}
+
+	/**
+	 * Creates the surface of the voxels in the range [min, max] of the stack.
+	 * The threshold is applied to each slice as it's triangulated, so no binary
+	 * copy of the stack is needed.
+	 *
+	 * @param stack
+	 *            An 8-bit or 16-bit stack
+	 * @throws NullPointerException
+	 *             if stack == null or voxelSize == null
+	 * @throws IllegalArgumentException
+	 *             if the stack is not 8-bit or 16-bit, a dimension is larger
+	 *             than about a million voxels, or voxelSize doesn't have three
+	 *             elements
+	 */
+	public static MarchingCubes fromStack(ImageStack stack, int min, int max, double[] voxelSize) {
+		checkNotNull(stack, "Stack must not be null");
+		final int bitDepth = stack.getBitDepth();
+		checkArgument(bitDepth == 8 || bitDepth == 16, "Stack bit depth must be 8 or 16");
+
+		return new MarchingCubes(stack, min, max, stack.getWidth(), stack.getHeight(), stack.getSize(), voxelSize);
+	}
+
+	/**
+	 * Creates the surface of a box where every voxel is inside, e.g. the
+	 * surface of the whole image, without allocating the mask
+	 *
+	 * @throws NullPointerException
+	 *             if voxelSize == null
+	 * @throws IllegalArgumentException
+	 *             if a dimension is larger than about a million voxels, or
+	 *             voxelSize doesn't have three elements
+	 */
+	public static MarchingCubes box(int width, int height, int depth, double[] voxelSize) {
+		return new MarchingCubes(null, 0, 0, width, height, depth, voxelSize);
+	}
+
+	/**
+	 * A closed triangle surface, its area and the volume it encloses
+	 */
+	public static final class Surface {
+		@Nullable
+		private final IndexedMesh mesh;
+		private final double volume;
+		private final double area;
+
+		Surface(@Nullable IndexedMesh mesh, double volume, double area) {
+			this.mesh = mesh;
+			this.volume = volume;
+			this.area = area;
+		}
+
+		/**
+		 * @return The triangles of the surface. Returns null if the surface was
+		 *         only measured
+		 */
+		@Nullable
+		public IndexedMesh getMesh() {
+			return mesh;
+		}
+
+		public double getVolume() {
+			return volume;
+		}
+
+		public double getArea() {
+			return area;
+		}
+	}
+
+	/**
+	 * Creates the surface of the mask in parallel
+	 */
+	public Surface createSurface() {
+		return stitch(triangulate(true));
+	}
+
+	/**
+	 * Calculates the volume and area of the surface of the mask in parallel
+	 * without storing its triangles
+	 *
+	 * @return A surface without a mesh
+	 */
+	public Surface measureSurface() {
+		double volume = 0.0;
+		double area = 0.0;
+		for (SlabMesh slab : triangulate(false)) {
+			volume += slab.volume;
+			area += slab.area;
+		}
+		return new Surface(null, volume, area);
+	}
+
+	/**
+	 * Calculates the volume and area of the part of the surface in the cube
+	 * layers [start, end) on the calling thread. Layer z has the cubes between
+	 * slices z and z + 1 (0-based), and the layers -1 and depth - 1 close the
+	 * surface at the ends. The volumes and areas of layers which together
+	 * cover [-1, depth) add up to those of the whole surface, so after some
+	 * slices of the mask have changed, only the layers touching them need to
+	 * be measured again.
+	 *
+	 * @return A surface without a mesh
+	 * @throws IllegalArgumentException
+	 *             if start < -1, end > depth or start > end
+	 */
+	public Surface measureLayers(int start, int end) {
+		checkArgument(start >= -1 && end <= depth && start <= end, "Invalid layer range");
+
+		final SlabMesh slab = triangulateLayers(start, end, false);
+		return new Surface(null, slab.volume, slab.area);
+	}
+
+	// region -- Helper methods --
+	/**
+	 * Triangulates the slabs of the mask in parallel
+	 *
+	 * @param storeMesh
+	 *            If true, the triangles are stored, otherwise they're only
+	 *            measured
+	 */
+	private SlabMesh[] triangulate(final boolean storeMesh) {
+		// cube layer z has the slices z and z + 1, and the layers -1 and
+		// depth - 1 close the surface at the ends
+		final int layers = depth + 1;
+		// A virtual stack reads its slices from disk, better not do it in
+		// parallel
+		final Thread[] threads = stack != null && stack.isVirtual() ? new Thread[1] : Multithreader.newThreads();
+		final int slabCount = Math.min(layers, threads.length * SLABS_PER_THREAD);
+		final SlabMesh[] slabs = new SlabMesh[slabCount];
+		final AtomicInteger ai = new AtomicInteger(0);
+
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int slab = ai.getAndIncrement(); slab < slabCount; slab = ai.getAndIncrement()) {
+						final int start = (int) ((long) layers * slab / slabCount) - 1;
+						final int end = (int) ((long) layers * (slab + 1) / slabCount) - 1;
+						slabs[slab] = triangulateLayers(start, end, storeMesh);
+					}
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+
+		return slabs;
+	}
+
+	/**
+	 * Triangulates the cube layers [start, end)
+	 */
+	private SlabMesh triangulateLayers(int start, int end, boolean storeMesh) {
+		final SlabMesh slab = new SlabMesh(start, storeMesh);
+		final double[][] vertices = new double[3][3];
+		final int[] triangle = new int[3];
+		final byte[] firstBuffer = mask == null ? new byte[width * height] : null;
+		final byte[] secondBuffer = mask == null ? new byte[width * height] : null;
+		final byte[] filled = stack == null && mask == null ? createFilledSlice() : null;
+
+		byte[] lower = start >= 0 ? getSlice(start, firstBuffer, filled) : null;
+		for (int z = start; z < end; z++) {
+			final byte[] upper = z + 1 < depth
+					? getSlice(z + 1, lower == firstBuffer ? secondBuffer : firstBuffer, filled) : null;
+			for (int y = -1; y < height; y++) {
+				for (int x = -1; x < width; x++) {
+					final int config = getConfig(lower, upper, x, y);
+					final int[] cubeTriangles = TRIANGLES[config];
+					for (int i = 0; i < cubeTriangles.length; i += 3) {
+						for (int j = 0; j < 3; j++) {
+							final long key = getVertexKey(cubeTriangles[i + j], x, y, z);
+							setVertex(key, vertices[j]);
+							if (storeMesh) {
+								triangle[j] = slab.addVertex(key, vertices[j]);
+							}
+						}
+						if (storeMesh) {
+							slab.addTriangle(triangle);
+						}
+						slab.volume += signedVolume(vertices[0], vertices[1], vertices[2]);
+						slab.area += area(vertices[0], vertices[1], vertices[2]);
+					}
+				}
+			}
+			lower = upper;
+		}
+
+		return slab;
+	}
+
+	/**
+	 * Returns slice z of the mask, where a voxel is inside if its value != 0
+	 *
+	 * @param buffer
+	 *            An array for the slice, if it has to be created from the stack
+	 * @param filled
+	 *            A slice where every voxel is inside, if the mask is a box
+	 */
+	private byte[] getSlice(int z, byte[] buffer, byte[] filled) {
+		if (mask != null) {
+			return mask[z];
+		}
+		if (stack == null) {
+			return filled;
+		}
+
+		final Object pixels = stack.getPixels(z + 1);
+		if (pixels instanceof byte[]) {
+			final byte[] bytes = (byte[]) pixels;
+			for (int i = 0; i < buffer.length; i++) {
+				final int value = bytes[i] & 0xFF;
+				buffer[i] = (byte) (~((value - min) | (max - value)) >>> 31);
+			}
+		} else {
+			final short[] shorts = (short[]) pixels;
+			for (int i = 0; i < buffer.length; i++) {
+				final int value = shorts[i] & 0xFFFF;
+				buffer[i] = (byte) (~((value - min) | (max - value)) >>> 31);
+			}
+		}
+		return buffer;
+	}
+
+	private byte[] createFilledSlice() {
+		final byte[] slice = new byte[width * height];
+		Arrays.fill(slice, (byte) 1);
+		return slice;
+	}
+
+	/**
+	 * Joins the meshes of the slabs into one. The vertices on the first slice
+	 * of a slab are the same as those on the last slice of the previous one.
+	 */
+	private static Surface stitch(SlabMesh[] slabs) {
+		int vertexCount = 0;
+		int indexCount = 0;
+		for (SlabMesh slab : slabs) {
+			vertexCount += slab.vertexCount;
+			indexCount += slab.indexCount;
+		}
+
+		final float[] vertices = new float[vertexCount * 3];
+		final int[] indices = new int[indexCount];
+		int vertex = 0;
+		int index = 0;
+		double volume = 0.0;
+		double area = 0.0;
+
+		for (int s = 0; s < slabs.length; s++) {
+			final SlabMesh slab = slabs[s];
+			final SlabMesh previous = s > 0 ? slabs[s - 1] : null;
+			// doubled z-coordinate of the seam, shifted like in the keys
+			final long seamZ = 2L * slab.start + 2;
+			final int[] globalIndices = new int[slab.vertexCount];
+			for (int i = 0; i < slab.vertexCount; i++) {
+				final long key = slab.keys[i];
+				final int shared = previous != null && (key >>> (2 * KEY_BITS)) == seamZ ? previous.vertexMap.get(key)
+						: -1;
+				if (shared >= 0) {
+					globalIndices[i] = previous.globalIndices[shared];
+					continue;
+				}
+				System.arraycopy(slab.vertices, i * 3, vertices, vertex * 3, 3);
+				globalIndices[i] = vertex;
+				vertex++;
+			}
+			for (int i = 0; i < slab.indexCount; i++) {
+				indices[index++] = globalIndices[slab.indices[i]];
+			}
+			volume += slab.volume;
+			area += slab.area;
+
+			// only the seam with the next slab is needed from now on
+			slab.globalIndices = globalIndices;
+			slab.vertices = null;
+			slab.indices = null;
+			if (previous != null) {
+				previous.release();
+			}
+		}
+
+		return new Surface(new IndexedMesh(Arrays.copyOf(vertices, vertex * 3), indices), volume, area);
+	}
+
+	/**
+	 * @return The configuration of the cube whose first corner is at (x, y),
+	 *         bit i is set if corner i is inside
+	 */
+	private int getConfig(byte[] lower, byte[] upper, int x, int y) {
+		int config = 0;
+		for (int corner = 0; corner < 8; corner++) {
+			final int cornerX = x + (corner & 1);
+			final int cornerY = y + ((corner >> 1) & 1);
+			final byte[] slice = (corner & 4) == 0 ? lower : upper;
+			if (slice != null && cornerX >= 0 && cornerX < width && cornerY >= 0 && cornerY < height
+					&& slice[cornerY * width + cornerX] != 0) {
+				config |= 1 << corner;
+			}
+		}
+		return config;
+	}
+
+	/**
+	 * Returns a key which identifies the midpoint of the given edge of the
+	 * cube at (x, y, z). The key has the doubled coordinates of the midpoint,
+	 * shifted by 2 to make them non-negative.
+	 */
+	private static long getVertexKey(int edge, int x, int y, int z) {
+		final int a = EDGE_CORNERS[edge][0];
+		final int b = EDGE_CORNERS[edge][1];
+		final long keyX = 2 * x + (a & 1) + (b & 1) + 2;
+		final long keyY = 2 * y + ((a >> 1) & 1) + ((b >> 1) & 1) + 2;
+		final long keyZ = 2 * z + ((a >> 2) & 1) + ((b >> 2) & 1) + 2;
+		return (keyZ << (2 * KEY_BITS)) | (keyY << KEY_BITS) | keyX;
+	}
+
+	/**
+	 * Sets the calibrated coordinates of the vertex with the given key
+	 */
+	private void setVertex(long key, double[] vertex) {
+		vertex[0] = ((key & KEY_MASK) - 2) * 0.5 * voxelSize[0];
+		vertex[1] = (((key >>> KEY_BITS) & KEY_MASK) - 2) * 0.5 * voxelSize[1];
+		vertex[2] = ((key >>> (2 * KEY_BITS)) - 2) * 0.5 * voxelSize[2];
+	}
+
+	/**
+	 * @return The signed volume of the tetrahedron between the origin and the
+	 *         triangle (a, b, c). Positive if the triangle faces away from the
+	 *         origin.
+	 */
+	private static double signedVolume(double[] a, double[] b, double[] c) {
+		final double crossX = b[1] * c[2] - b[2] * c[1];
+		final double crossY = b[2] * c[0] - b[0] * c[2];
+		final double crossZ = b[0] * c[1] - b[1] * c[0];
+		return (a[0] * crossX + a[1] * crossY + a[2] * crossZ) / 6.0;
+	}
+
+	private static double area(double[] a, double[] b, double[] c) {
+		final double abX = b[0] - a[0];
+		final double abY = b[1] - a[1];
+		final double abZ = b[2] - a[2];
+		final double acX = c[0] - a[0];
+		final double acY = c[1] - a[1];
+		final double acZ = c[2] - a[2];
+		final double crossX = abY * acZ - abZ * acY;
+		final double crossY = abZ * acX - abX * acZ;
+		final double crossZ = abX * acY - abY * acX;
+		return 0.5 * Math.sqrt(crossX * crossX + crossY * crossY + crossZ * crossZ);
+	}
+
+	/**
+	 * Creates the triangles of a cube configuration.
+	 *
+	 * On each face, the edges crossing from inside to outside are joined by
+	 * segments which cut off the inside corners. Seen from outside the cube,
+	 * each segment runs from the edge where the counter-clockwise walk around
+	 * the face leaves the inside corners, to the edge where it entered them.
+	 * Each crossing edge belongs to two faces, and is the start of a segment
+	 * on one and the end on the other, so the segments form closed loops. The
+	 * loops are triangulated as fans.
+	 */
+	private static int[] createTriangles(int config) {
+		final int[] next = new int[12];
+		Arrays.fill(next, -1);
+
+		for (int[] face : FACES) {
+			for (int k = 0; k < 4; k++) {
+				if (isInside(config, face[k]) || !isInside(config, face[(k + 1) % 4])) {
+					continue;
+				}
+				final int entry = CORNER_EDGES[face[k]][face[(k + 1) % 4]];
+				int j = k + 1;
+				while (isInside(config, face[(j + 1) % 4])) {
+					j++;
+				}
+				final int exit = CORNER_EDGES[face[j % 4]][face[(j + 1) % 4]];
+				next[exit] = entry;
+			}
+		}
+
+		final List<Integer> triangles = new ArrayList<>();
+		final boolean[] visited = new boolean[12];
+		final int[] loop = new int[12];
+		for (int edge = 0; edge < 12; edge++) {
+			if (next[edge] < 0 || visited[edge]) {
+				continue;
+			}
+			int length = 0;
+			for (int e = edge; !visited[e]; e = next[e]) {
+				visited[e] = true;
+				loop[length++] = e;
+			}
+			// the loops run clockwise when seen from outside the surface
+			for (int i = 1; i < length - 1; i++) {
+				triangles.add(loop[0]);
+				triangles.add(loop[i + 1]);
+				triangles.add(loop[i]);
+			}
+		}
+
+		final int[] result = new int[triangles.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = triangles.get(i);
+		}
+		return result;
+	}
+
+	private static boolean isInside(int config, int corner) {
+		return (config & (1 << corner)) != 0;
+	}
+
+	/**
+	 * The growing mesh of one slab, or just its measures if the mesh is not
+	 * stored
+	 */
+	private static final class SlabMesh {
+		/**
+		 * The first cube layer of the slab
+		 */
+		final int start;
+		VertexMap vertexMap;
+		long[] keys;
+		float[] vertices;
+		int vertexCount = 0;
+		int[] indices;
+		int indexCount = 0;
+		double volume = 0.0;
+		double area = 0.0;
+		/**
+		 * Indices of the vertices in the stitched mesh
+		 */
+		int[] globalIndices;
+
+		SlabMesh(int start, boolean storeMesh) {
+			this.start = start;
+			if (storeMesh) {
+				vertexMap = new VertexMap();
+				keys = new long[1024];
+				vertices = new float[1024 * 3];
+				indices = new int[1024 * 3];
+			}
+		}
+
+		/**
+		 * @return Index of the vertex with the given key, which is added if
+		 *         it's new
+		 */
+		int addVertex(long key, double[] vertex) {
+			final int existing = vertexMap.get(key);
+			if (existing >= 0) {
+				return existing;
+			}
+
+			if (vertexCount == keys.length) {
+				keys = Arrays.copyOf(keys, vertexCount * 2);
+				vertices = Arrays.copyOf(vertices, vertexCount * 2 * 3);
+			}
+			keys[vertexCount] = key;
+			vertices[vertexCount * 3] = (float) vertex[0];
+			vertices[vertexCount * 3 + 1] = (float) vertex[1];
+			vertices[vertexCount * 3 + 2] = (float) vertex[2];
+			vertexMap.put(key, vertexCount);
+			return vertexCount++;
+		}
+
+		void addTriangle(int[] triangle) {
+			if (indexCount + 3 > indices.length) {
+				indices = Arrays.copyOf(indices, indices.length * 2);
+			}
+			indices[indexCount++] = triangle[0];
+			indices[indexCount++] = triangle[1];
+			indices[indexCount++] = triangle[2];
+		}
+
+		void release() {
+			keys = null;
+			globalIndices = null;
+			vertexMap.release();
+		}
+	}
+
+	/**
+	 * A hash table from vertex keys to vertex indices with open addressing, so
+	 * that the keys and values are stored in primitive arrays
+	 */
+	private static final class VertexMap {
+		private static final long EMPTY = -1L;
+
+		private long[] keys = newKeys(1 << 12);
+		private int[] values = new int[keys.length];
+		private int size = 0;
+
+		/**
+		 * @return The index of the key. Returns -1 if there's no such key
+		 */
+		int get(long key) {
+			final int mask = keys.length - 1;
+			for (int slot = hash(key) & mask; keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+				if (keys[slot] == key) {
+					return values[slot];
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * @pre key is not in the map
+		 */
+		void put(long key, int value) {
+			if (2 * (size + 1) > keys.length) {
+				grow();
+			}
+			insert(key, value);
+			size++;
+		}
+
+		void release() {
+			keys = null;
+			values = null;
+		}
+
+		private void insert(long key, int value) {
+			final int mask = keys.length - 1;
+			int slot = hash(key) & mask;
+			while (keys[slot] != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = key;
+			values[slot] = value;
+		}
+
+		private void grow() {
+			final long[] oldKeys = keys;
+			final int[] oldValues = values;
+			keys = newKeys(oldKeys.length * 2);
+			values = new int[keys.length];
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != EMPTY) {
+					insert(oldKeys[i], oldValues[i]);
+				}
+			}
+		}
+
+		private static long[] newKeys(int capacity) {
+			final long[] keys = new long[capacity];
+			Arrays.fill(keys, EMPTY);
+			return keys;
+		}
+
+		/**
+		 * Mixes the bits of the key, because the coordinates in its low bits
+		 * follow each other closely
+		 */
+		private static int hash(long key) {
+			long h = key * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32));
+		}
+	}
+	// endregion
+}
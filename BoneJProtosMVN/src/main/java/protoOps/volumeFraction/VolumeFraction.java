@@ -3,23 +3,37 @@ package protoOps.volumeFraction;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import javax.annotation.Nullable;
+
 import net.imagej.ops.Op;
 import net.imagej.ops.OpEnvironment;
 
-import org.bonej.common.ImageCheck;
+import org.bonej.common.BinaryVoxelCounts;
+import org.bonej.common.Common;
+import org.bonej.common.ImageCheckCache;
+import org.bonej.common.RoiMask;
 import org.scijava.ItemIO;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 import customnode.CustomTriangleMesh;
+import ij.ImageListener;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.measure.Calibration;
 import ij.plugin.frame.RoiManager;
+import ij.process.ImageProcessor;
 
 /**
  * @author Michael Doube
  * @author Richard Domander
- *
- * @todo RoiManager input @Parameter
  */
 @Plugin(type = Op.class, name = "volumeFraction")
 public class VolumeFraction implements Op {
@@ -27,6 +41,8 @@ public class VolumeFraction implements Op {
 	public static final int SURFACE_ALGORITHM = 1;
 	public static final int DEFAULT_VOLUME_ALGORITHM = VOXEL_ALGORITHM;
 	public static final int DEFAULT_SURFACE_RESAMPLING = 6;
+	public static final int NO_THRESHOLD = -1;
+	public static final int NO_PROFILE = 0;
 
 	@Parameter(type = ItemIO.INPUT)
 	private ImagePlus inputImage = null;
@@ -40,6 +56,35 @@ public class VolumeFraction implements Op {
 	@Parameter(type = ItemIO.INPUT, required = false)
 	private RoiManager roiManager = null;
 
+	/**
+	 * Smallest foreground value, or NO_THRESHOLD to use the threshold of the
+	 * image
+	 */
+	@Parameter(type = ItemIO.INPUT, required = false)
+	private int minThreshold = NO_THRESHOLD;
+
+	@Parameter(type = ItemIO.INPUT, required = false)
+	private int maxThreshold = NO_THRESHOLD;
+
+	@Parameter(type = ItemIO.INPUT, required = false)
+	private boolean createSurfaceMeshes = true;
+
+	@Parameter(type = ItemIO.INPUT, required = false)
+	private BinaryPyramid.Rule resamplingRule = BinaryPyramid.Rule.MAJORITY;
+
+	/**
+	 * Number of slices in a window of the profile, or NO_PROFILE
+	 */
+	@Parameter(type = ItemIO.INPUT, required = false, min = "0")
+	private int profileWindow = NO_PROFILE;
+
+	/**
+	 * If true, the measures are kept in pieces between runs, and only the
+	 * pieces of the slices changed since the last run are measured again
+	 */
+	@Parameter(type = ItemIO.INPUT, required = false)
+	private boolean incremental = false;
+
 	@Parameter(type = ItemIO.OUTPUT)
 	private double foregroundVolume = 0.0;
 
@@ -50,34 +95,220 @@ public class VolumeFraction implements Op {
 	private double volumeRatio = Double.NaN;
 
 	@Parameter(type = ItemIO.OUTPUT)
-	CustomTriangleMesh foregroundSurface = null;
+	private double foregroundSurfaceArea = Double.NaN;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private double totalSurfaceArea = Double.NaN;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	private VolumeFractionProfile profile = null;
 
 	@Parameter(type = ItemIO.OUTPUT)
-	CustomTriangleMesh totalSurface = null;
+	IndexedMesh foregroundMesh = null;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	IndexedMesh totalMesh = null;
+
+	private CustomTriangleMesh foregroundSurface = null;
+	private CustomTriangleMesh totalSurface = null;
+	private volatile BinaryPyramid pyramid = null;
+	/**
+	 * The ImageCheckCache stamp of the input image when the pyramid was
+	 * created
+	 */
+	private volatile Object pyramidStamp = null;
+	private volatile VolumeFractionCache cache = null;
+
+	/**
+	 * The ops in the incremental mode. They are held weakly, so that an op
+	 * which is dropped without turning the mode off doesn't stay in memory
+	 * with its caches.
+	 */
+	private static final Set<VolumeFraction> incrementalOps = Collections
+			.newSetFromMap(new WeakHashMap<VolumeFraction, Boolean>());
+
+	/**
+	 * A single listener for all the ops, so that the ops never need to add or
+	 * remove listeners of ImageJ, which holds them strongly
+	 */
+	static {
+		ImagePlus.addImageListener(new ImageListener() {
+			@Override
+			public void imageOpened(ImagePlus image) {
+			}
+
+			@Override
+			public void imageClosed(ImagePlus image) {
+				for (VolumeFraction op : getIncrementalOps()) {
+					op.inputClosed(image);
+				}
+			}
+
+			@Override
+			public void imageUpdated(ImagePlus image) {
+				for (VolumeFraction op : getIncrementalOps()) {
+					op.inputUpdated(image);
+				}
+			}
+		});
+	}
 
 	public void setImage(ImagePlus image) {
 		checkImage(image);
 
+		if (image != inputImage) {
+			cache = null;
+		}
 		inputImage = image;
 	}
 
 	public void setSurfaceResampling(int resampling) {
 		checkArgument(resampling >= 0, "Resampling value must be >= 0");
+		checkArgument(resampling <= BinaryPyramid.MAX_FACTOR,
+				"Resampling value must be <= " + BinaryPyramid.MAX_FACTOR);
 
 		surfaceResampling = resampling;
 	}
 
+	/**
+	 * Sets the range of foreground values. The threshold is evaluated as the
+	 * voxels are counted or meshed, so no binary copy of the image is created.
+	 * Set both to NO_THRESHOLD to use the threshold of the image instead.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if min > max, or only one of them is NO_THRESHOLD, or a
+	 *             threshold is negative
+	 */
+	public void setThresholds(int min, int max) {
+		final boolean noThreshold = min == NO_THRESHOLD && max == NO_THRESHOLD;
+		checkArgument(noThreshold || (min >= 0 && min <= max), "Invalid threshold range");
+
+		minThreshold = min;
+		maxThreshold = max;
+	}
+
+	/**
+	 * Sets how a voxel of the resampled image is decided from the block of
+	 * voxels it covers
+	 *
+	 * @throws NullPointerException
+	 *             if rule == null
+	 */
+	public void setResamplingRule(BinaryPyramid.Rule rule) {
+		checkNotNull(rule, "Resampling rule must not be null");
+
+		resamplingRule = rule;
+	}
+
 	public void setVolumeAlgorithm(int algorithm) {
 		checkArgument(algorithm == VOXEL_ALGORITHM || algorithm == SURFACE_ALGORITHM, "No such surface algorithm");
 
 		volumeAlgorithm = algorithm;
 	}
 
+	/**
+	 * Sets whether the surface algorithm keeps the surface meshes. If false,
+	 * the volumes and areas are calculated from the triangles as they are
+	 * created, and the memory needed doesn't grow with the size of the
+	 * surfaces.
+	 */
+	public void setCreateSurfaceMeshes(boolean createMeshes) {
+		createSurfaceMeshes = createMeshes;
+	}
+
+	/**
+	 * Sets the voxel algorithm to also measure the volumes of each slice, and
+	 * of each window of the given number of slices around it. The profile
+	 * comes from the same pass over the image as the volumes of the whole
+	 * image.
+	 *
+	 * @param window
+	 *            Number of slices in a window, or NO_PROFILE to not create a
+	 *            profile
+	 * @throws IllegalArgumentException
+	 *             if window < 0
+	 * @see VolumeFractionProfile
+	 */
+	public void setProfileWindow(int window) {
+		checkArgument(window >= 0, "Profile window must be >= 0");
+
+		profileWindow = window;
+	}
+
+	/**
+	 * Restricts the voxel algorithm to the ROIs in the manager. The ROIs are
+	 * compiled into scanline spans when the op is run, so changes to the
+	 * manager after that don't affect the results. The surface algorithm
+	 * measures the whole image.
+	 *
+	 * @throws NullPointerException
+	 *             if roiManager == null
+	 * @throws IllegalArgumentException
+	 *             if the manager is empty
+	 */
 	public void setRoiManager(RoiManager roiManager) {
 		checkNotNull(roiManager, "May not use a null ROI Manager");
 		checkArgument(roiManager.getCount() != 0, "May not use an empty ROI Manager");
 
 		this.roiManager = roiManager;
+		cache = null;
+	}
+
+	/**
+	 * Sets the incremental mode on or off. In the incremental mode the voxel
+	 * counts of each slice, and the volumes and areas of blocks of the
+	 * foreground surface are kept between runs. The next run measures again
+	 * only the slices marked dirty, and the blocks touching them, so after a
+	 * few slices have been edited the results are updated in a fraction of the
+	 * time of a full run. The surface algorithm is incremental only without
+	 * resampling, and when no meshes are created.
+	 *
+	 * While the mode is on, the op listens to the updates of ImagePlus
+	 * instances. The op is held weakly while listening, so it needn't be
+	 * turned off before the op is dropped. After the input image has been updated, the next run
+	 * compares each slice to a stamp of its pixel array and values, and
+	 * measures the changed ones again, whichever slice was shown. Slices
+	 * changed without updating the image must be marked with markDirty.
+	 * Changes to the ROIs are noticed only after markAllDirty.
+	 */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+		synchronized (incrementalOps) {
+			if (incremental) {
+				incrementalOps.add(this);
+			} else {
+				incrementalOps.remove(this);
+			}
+		}
+		if (!incremental) {
+			cache = null;
+		}
+	}
+
+	/**
+	 * Marks a slice of the input image to be measured again on the next run
+	 *
+	 * @param sliceNumber
+	 *            Number of the slice (1-based)
+	 */
+	public void markDirty(int sliceNumber) {
+		final VolumeFractionCache currentCache = cache;
+		if (currentCache != null) {
+			currentCache.markDirty(sliceNumber);
+		}
+		final BinaryPyramid currentPyramid = pyramid;
+		if (currentPyramid != null) {
+			currentPyramid.clear();
+		}
+	}
+
+	/**
+	 * Discards all the measures kept between runs, so that the next run
+	 * measures the whole image again
+	 */
+	public void markAllDirty() {
+		cache = null;
+		pyramid = null;
 	}
 
 	@Override
@@ -90,19 +321,348 @@ public class VolumeFraction implements Op {
 
 	}
 
+	public double getForegroundVolume() {
+		return foregroundVolume;
+	}
+
+	public double getTotalVolume() {
+		return totalVolume;
+	}
+
+	public double getVolumeRatio() {
+		return volumeRatio;
+	}
+
+	/**
+	 * @return The volumes of the slices from the voxel algorithm. Returns null
+	 *         if no profile was created
+	 */
+	@Nullable
+	public VolumeFractionProfile getProfile() {
+		return profile;
+	}
+
+	/**
+	 * @return Area of the foreground surface. Returns NaN if the surface
+	 *         algorithm has not been run
+	 */
+	public double getForegroundSurfaceArea() {
+		return foregroundSurfaceArea;
+	}
+
+	/**
+	 * @return Area of the surface of the whole image. Returns NaN if the
+	 *         surface algorithm has not been run
+	 */
+	public double getTotalSurfaceArea() {
+		return totalSurfaceArea;
+	}
+
+	/**
+	 * @return The surface of the foreground from the surface algorithm.
+	 *         Returns null if it has not been created
+	 */
+	@Nullable
+	public IndexedMesh getForegroundMesh() {
+		return foregroundMesh;
+	}
+
+	/**
+	 * @return The surface of the whole image from the surface algorithm.
+	 *         Returns null if it has not been created
+	 */
+	@Nullable
+	public IndexedMesh getTotalMesh() {
+		return totalMesh;
+	}
+
+	/**
+	 * Returns the foreground surface for the 3D Viewer. The CustomTriangleMesh
+	 * is created from the IndexedMesh on the first call, because it needs
+	 * several times more memory.
+	 *
+	 * @return The foreground surface. Returns null if it has not been created
+	 */
+	@Nullable
+	public CustomTriangleMesh getForegroundSurface() {
+		if (foregroundSurface == null && foregroundMesh != null) {
+			foregroundSurface = foregroundMesh.toCustomTriangleMesh();
+		}
+		return foregroundSurface;
+	}
+
+	/**
+	 * Returns the surface of the whole image for the 3D Viewer. The
+	 * CustomTriangleMesh is created from the IndexedMesh on the first call,
+	 * because it needs several times more memory.
+	 *
+	 * @return The total surface. Returns null if it has not been created
+	 */
+	@Nullable
+	public CustomTriangleMesh getTotalSurface() {
+		if (totalSurface == null && totalMesh != null) {
+			totalSurface = totalMesh.toCustomTriangleMesh();
+		}
+		return totalSurface;
+	}
+
+	/**
+	 * Measures the volumes of the image
+	 *
+	 * @throws NullPointerException
+	 *             if there's no image
+	 * @throws IllegalArgumentException
+	 *             if the image is grayscale, and no threshold has been set
+	 *             for it
+	 */
 	@Override
 	public void run() {
 		checkImage(inputImage);
+		profile = null;
+		foregroundMesh = null;
+		totalMesh = null;
+		foregroundSurfaceArea = Double.NaN;
+		totalSurfaceArea = Double.NaN;
+		foregroundSurface = null;
+		totalSurface = null;
+
+		if (volumeAlgorithm == VOXEL_ALGORITHM) {
+			calculateVoxelVolumes();
+		} else {
+			calculateSurfaceVolumes();
+		}
 	}
 
 	// region -- Helper methods --
+	/**
+	 * Returns a copy of the ops in the incremental mode, so that the listener
+	 * doesn't hold the lock while notifying them
+	 */
+	private static List<VolumeFraction> getIncrementalOps() {
+		synchronized (incrementalOps) {
+			return new ArrayList<>(incrementalOps);
+		}
+	}
+
+	private void inputClosed(ImagePlus image) {
+		if (image == inputImage) {
+			cache = null;
+			pyramid = null;
+		}
+	}
+
+	/**
+	 * Marks the input image changed when it's updated, e.g. after it has been
+	 * edited with the tools or commands of ImageJ. An update doesn't tell
+	 * which slices have changed, so they are found from their content stamps.
+	 */
+	private void inputUpdated(ImagePlus image) {
+		if (image != inputImage) {
+			return;
+		}
+		final VolumeFractionCache currentCache = cache;
+		if (currentCache != null) {
+			currentCache.markChanged();
+		}
+		final BinaryPyramid currentPyramid = pyramid;
+		if (currentPyramid != null) {
+			currentPyramid.clear();
+		}
+	}
+
+	/**
+	 * Calculates the volumes by counting the voxels in the foreground range.
+	 * The range is checked as the slices are scanned. If there's a ROI
+	 * Manager, only the voxels inside its ROIs are counted, and the total
+	 * volume is the volume of the ROIs. If a profile is requested, the slices
+	 * are counted separately, and the volumes are the sums of the profile. In
+	 * the incremental mode only the dirty slices are counted again. Otherwise
+	 * the counts of a binary image are taken from ImageCheckCache, which has
+	 * already counted them when the image was checked.
+	 *
+	 * @see #getForegroundRange()
+	 */
+	private void calculateVoxelVolumes() {
+		final int[] range = getForegroundRange();
+		final Calibration calibration = inputImage.getCalibration();
+		final double voxelVolume = calibration.pixelWidth * calibration.pixelHeight * calibration.pixelDepth;
+		final ImageStack stack = inputImage.getStack();
+		if (!incremental && profileWindow == NO_PROFILE) {
+			final RoiMask roiMask = RoiMask.compile(roiManager, stack);
+			if (roiMask == null) {
+				final BinaryVoxelCounts counts = getCachedBinaryCounts(range);
+				final long foreground = counts == null ? VoxelCounter.countInRange(stack, range[0], range[1])
+						: counts.foreground;
+				setVoxelVolumes(foreground,
+						(long) inputImage.getWidth() * inputImage.getHeight() * inputImage.getStackSize(), voxelVolume);
+			} else {
+				setVoxelVolumes(VoxelCounter.countInRange(stack, roiMask, range[0], range[1]), roiMask.count(),
+						voxelVolume);
+			}
+			return;
+		}
+
+		final long[] foregroundCounts;
+		final long[] totalCounts;
+		if (incremental) {
+			final VolumeFractionCache currentCache = getCache(stack, range);
+			foregroundCounts = currentCache.updateCounts();
+			totalCounts = currentCache.getTotalCounts();
+		} else {
+			final RoiMask roiMask = RoiMask.compile(roiManager, stack);
+			foregroundCounts = roiMask == null ? VoxelCounter.countSlicesInRange(stack, range[0], range[1])
+					: VoxelCounter.countSlicesInRange(stack, roiMask, range[0], range[1]);
+			totalCounts = new long[foregroundCounts.length];
+			for (int z = 0; z < totalCounts.length; z++) {
+				totalCounts[z] = roiMask == null ? (long) stack.getWidth() * stack.getHeight()
+						: roiMask.getSliceSpans(z + 1).count();
+			}
+		}
+
+		if (profileWindow != NO_PROFILE) {
+			profile = new VolumeFractionProfile(foregroundCounts, totalCounts, voxelVolume, profileWindow);
+		}
+		long foregroundVoxels = 0;
+		long totalVoxels = 0;
+		for (int z = 0; z < foregroundCounts.length; z++) {
+			foregroundVoxels += foregroundCounts[z];
+			totalVoxels += totalCounts[z];
+		}
+		setVoxelVolumes(foregroundVoxels, totalVoxels, voxelVolume);
+	}
+
+	private void setVoxelVolumes(long foregroundVoxels, long totalVoxels, double voxelVolume) {
+		foregroundVolume = foregroundVoxels * voxelVolume;
+		totalVolume = totalVoxels * voxelVolume;
+		volumeRatio = totalVoxels == 0 ? Double.NaN : (double) foregroundVoxels / totalVoxels;
+	}
+
+	/**
+	 * Returns the cache of the incremental mode, or creates a new one if the
+	 * image or the range has changed. The ROIs are compiled only when the
+	 * cache is created.
+	 */
+	private VolumeFractionCache getCache(ImageStack stack, int[] range) {
+		VolumeFractionCache current = cache;
+		if (current == null || !current.matches(stack, range[0], range[1])) {
+			current = new VolumeFractionCache(stack, range[0], range[1], RoiMask.compile(roiManager, stack));
+			cache = current;
+		}
+		return current;
+	}
+
+	/**
+	 * Calculates the volumes enclosed by the marching cubes surfaces of the
+	 * foreground and of the whole image, and the areas of the surfaces. The
+	 * image is resampled before the surfaces are created. The resampled masks
+	 * are cached, so that the next run with another resampling factor doesn't
+	 * need to read the whole image again. The cache is dropped when the stamp
+	 * of the image in ImageCheckCache changes, so pixels edited in place must
+	 * be followed by ImageCheckCache.invalidate or markAllDirty. In the
+	 * incremental mode, a surface
+	 * without resampling or meshes is measured again only where the image has
+	 * changed.
+	 */
+	private void calculateSurfaceVolumes() {
+		final int[] range = getForegroundRange();
+		final int resampling = Math.max(1, surfaceResampling);
+		final Calibration calibration = inputImage.getCalibration();
+		final double[] voxelSize = { calibration.pixelWidth * resampling, calibration.pixelHeight * resampling,
+				calibration.pixelDepth * resampling };
+		final ImageStack stack = inputImage.getStack();
+		// the pyramid is reused only if the image hasn't changed since
+		final Object stamp = ImageCheckCache.getStamp(inputImage);
+		if (pyramid == null || !pyramid.matches(stack, range[0], range[1]) || stamp != pyramidStamp) {
+			pyramid = new BinaryPyramid(stack, range[0], range[1]);
+			pyramidStamp = stamp;
+		}
+
+		if (incremental && resampling == 1 && !createSurfaceMeshes) {
+			final MarchingCubes.Surface[] surfaces = getCache(stack, range).updateSurfaces(voxelSize);
+			setSurfaceVolumes(surfaces[0], surfaces[1]);
+			return;
+		}
+
+		// without resampling the threshold is applied while meshing
+		final MarchingCubes foregroundCubes = resampling == 1
+				? MarchingCubes.fromStack(stack, range[0], range[1], voxelSize)
+				: new MarchingCubes(pyramid.getMask(resampling, resamplingRule), pyramid.getWidth(resampling),
+						pyramid.getHeight(resampling), voxelSize);
+		final MarchingCubes.Surface foreground = createSurface(foregroundCubes);
+		foregroundMesh = foreground.getMesh();
+
+		final MarchingCubes totalCubes = MarchingCubes.box(pyramid.getWidth(resampling),
+				pyramid.getHeight(resampling), pyramid.getDepth(resampling), voxelSize);
+		final MarchingCubes.Surface total = createSurface(totalCubes);
+		totalMesh = total.getMesh();
+
+		setSurfaceVolumes(foreground, total);
+	}
+
+	private void setSurfaceVolumes(MarchingCubes.Surface foreground, MarchingCubes.Surface total) {
+		foregroundVolume = foreground.getVolume();
+		totalVolume = total.getVolume();
+		volumeRatio = foregroundVolume / totalVolume;
+		foregroundSurfaceArea = foreground.getArea();
+		totalSurfaceArea = total.getArea();
+	}
+
+	private MarchingCubes.Surface createSurface(MarchingCubes marchingCubes) {
+		return createSurfaceMeshes ? marchingCubes.createSurface() : marchingCubes.measureSurface();
+	}
+
+	/**
+	 * Returns the range of foreground values. The foreground is the range set
+	 * with setThresholds, or the threshold of the image, if it has one. A
+	 * binary image needs no threshold: its white voxels are foreground.
+	 *
+	 * @return The range {min, max}, inclusive
+	 * @throws IllegalArgumentException
+	 *             if the image is grayscale, and there's no threshold
+	 */
+	/**
+	 * Returns the voxel counts of a binary input image from ImageCheckCache,
+	 * if the foreground range selects its foreground voxels. Returns null if
+	 * the counts can't be used, i.e. the image is not binary, the range
+	 * selects other voxels, or the image has an area ROI, because then the
+	 * counts are of the ROI, and the op measures whole slices.
+	 */
+	@Nullable
+	private BinaryVoxelCounts getCachedBinaryCounts(int[] range) {
+		if (range[0] <= Common.BINARY_BLACK || range[0] > Common.BINARY_WHITE || range[1] < Common.BINARY_WHITE) {
+			return null;
+		}
+		final Roi roi = inputImage.getRoi();
+		if (roi != null && roi.isArea()) {
+			return null;
+		}
+
+		return ImageCheckCache.countBinaryVoxels(inputImage);
+	}
+
+	private int[] getForegroundRange() {
+		if (minThreshold != NO_THRESHOLD) {
+			return new int[] { minThreshold, maxThreshold };
+		}
+
+		final ImageProcessor processor = inputImage.getProcessor();
+		if (processor.getMinThreshold() != ImageProcessor.NO_THRESHOLD) {
+			return new int[] { (int) Math.ceil(processor.getMinThreshold()),
+					(int) Math.floor(processor.getMaxThreshold()) };
+		}
+
+		checkArgument(ImageCheckCache.isBinary(inputImage), "Grayscale image needs a threshold");
+		return new int[] { 1, 0xFF };
+	}
+
 	private static void checkImage(ImagePlus image) {
 		checkNotNull(image, "Must have an input image");
 
 		int bitDepth = image.getBitDepth();
 		checkArgument(bitDepth == 8 || bitDepth == 16, "Input image bit depth must be 8 or 16");
 
-		checkArgument(ImageCheck.isBinary(image) || ImageCheck.isGrayscale(image), "Need a binary or grayscale image");
+		checkArgument(ImageCheckCache.isBinary(image) || ImageCheckCache.isGrayscale(image),
+				"Need a binary or grayscale image");
 	}
 	// endregion
 }
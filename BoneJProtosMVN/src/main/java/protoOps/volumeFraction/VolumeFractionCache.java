@@ -0,0 +1,292 @@
+package protoOps.volumeFraction;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import org.bonej.common.Multithreader;
+import org.bonej.common.RoiMask;
+
+import ij.ImageStack;
+
+/**
+ * The measures of VolumeFraction in pieces, so that after a few slices of the
+ * image have been edited, only the pieces they touch need to be measured
+ * again.
+ *
+ * The voxel counts are kept per slice. The volume and area of the foreground
+ * surface are kept per block of BLOCK_LAYERS cube layers, because the
+ * volumes enclosed by the parts of a marching cubes surface add up to the
+ * volume of the whole. Slice z is between cube layers z - 1 and z, so an
+ * edited slice makes one or two blocks dirty. The surface of the whole image
+ * doesn't depend on the voxel values, and is measured only once.
+ *
+ * The cache is valid for one stack, threshold range and ROI mask. Slices can
+ * be marked dirty from any thread, e.g. from the event dispatch thread while
+ * the measures are being updated. A slice marked during an update is
+ * measured again in the next one.
+ *
+ * A change which can't be tied to a slice, e.g. an update event of the image,
+ * is marked with markChanged. Before the next update the slices are then
+ * compared to their content stamps, i.e. the identity of their pixel arrays
+ * and a checksum of their values, and the slices that differ are marked
+ * dirty. The stamps are taken on the first update.
+ */
+final class VolumeFractionCache {
+	/**
+	 * Number of cube layers in a surface block
+	 */
+	static final int BLOCK_LAYERS = 8;
+
+	private final ImageStack stack;
+	private final int min;
+	private final int max;
+	@Nullable
+	private final RoiMask roiMask;
+	private final long[] foregroundCounts;
+	private final long[] totalCounts;
+	private final BitSet dirtyCountSlices = new BitSet();
+	private boolean countsCreated = false;
+	private double[] voxelSize = null;
+	private double[] blockVolumes = null;
+	private double[] blockAreas = null;
+	private MarchingCubes.Surface totalSurface = null;
+	private final BitSet dirtySurfaceSlices = new BitSet();
+	private boolean changed = false;
+	/**
+	 * The pixel arrays of the slices when they were last stamped, or null
+	 * elements for a virtual stack, which creates new arrays on every call
+	 */
+	private Object[] slicePixels = null;
+	private int[] sliceChecksums = null;
+
+	/**
+	 * @param roiMask
+	 *            A mask with the dimensions of the stack, or null to measure
+	 *            whole slices
+	 */
+	VolumeFractionCache(ImageStack stack, int min, int max, @Nullable RoiMask roiMask) {
+		this.stack = stack;
+		this.min = min;
+		this.max = max;
+		this.roiMask = roiMask;
+		foregroundCounts = new long[stack.getSize()];
+		totalCounts = new long[stack.getSize()];
+		for (int z = 0; z < totalCounts.length; z++) {
+			totalCounts[z] = roiMask == null ? (long) stack.getWidth() * stack.getHeight()
+					: roiMask.getSliceSpans(z + 1).count();
+		}
+	}
+
+	/**
+	 * @return true if the cache was created for the given stack and range
+	 */
+	boolean matches(ImageStack stack, int min, int max) {
+		return this.stack == stack && this.min == min && this.max == max && stack.getSize() == foregroundCounts.length;
+	}
+
+	@Nullable
+	RoiMask getRoiMask() {
+		return roiMask;
+	}
+
+	/**
+	 * Marks the slice to be measured again on the next update
+	 *
+	 * @param sliceNumber
+	 *            Number of the slice (1-based). Numbers outside the stack are
+	 *            ignored.
+	 */
+	synchronized void markDirty(int sliceNumber) {
+		if (sliceNumber < 1 || sliceNumber > foregroundCounts.length) {
+			return;
+		}
+
+		dirtyCountSlices.set(sliceNumber - 1);
+		dirtySurfaceSlices.set(sliceNumber - 1);
+	}
+
+	/**
+	 * Marks the image changed in a way that can't be tied to a slice. The
+	 * slices whose content stamps have changed are marked dirty before the next
+	 * update.
+	 */
+	synchronized void markChanged() {
+		changed = true;
+	}
+
+	/**
+	 * Counts the dirty slices again, or all of them on the first call
+	 *
+	 * @return The foreground counts of the slices, the count of slice z is in
+	 *         element z - 1. The array is owned by the cache.
+	 */
+	long[] updateCounts() {
+		verifySlices();
+		final int[] sliceNumbers;
+		if (!countsCreated) {
+			takeDirty(dirtyCountSlices);
+			sliceNumbers = new int[foregroundCounts.length];
+			for (int z = 0; z < sliceNumbers.length; z++) {
+				sliceNumbers[z] = z + 1;
+			}
+			countsCreated = true;
+		} else {
+			final BitSet dirty = takeDirty(dirtyCountSlices);
+			sliceNumbers = new int[dirty.cardinality()];
+			int i = 0;
+			for (int z = dirty.nextSetBit(0); z >= 0; z = dirty.nextSetBit(z + 1)) {
+				sliceNumbers[i++] = z + 1;
+			}
+		}
+
+		VoxelCounter.countSlices(stack, roiMask, min, max, sliceNumbers, foregroundCounts);
+		return foregroundCounts;
+	}
+
+	/**
+	 * @return The measured voxel counts of the slices. The array is owned by
+	 *         the cache.
+	 */
+	long[] getTotalCounts() {
+		return totalCounts;
+	}
+
+	/**
+	 * Measures the dirty blocks of the foreground surface again, or all of
+	 * them if the voxel size has changed. The surfaces are created without
+	 * resampling.
+	 *
+	 * @return The measures of the foreground surface, and of the surface of
+	 *         the whole image, without meshes
+	 */
+	MarchingCubes.Surface[] updateSurfaces(double[] voxelSize) {
+		verifySlices();
+		final int depth = foregroundCounts.length;
+		final int blocks = (depth + BLOCK_LAYERS) / BLOCK_LAYERS;
+		final BitSet dirty = takeDirty(dirtySurfaceSlices);
+		final BitSet dirtyBlocks = new BitSet(blocks);
+		if (!Arrays.equals(this.voxelSize, voxelSize)) {
+			this.voxelSize = voxelSize.clone();
+			blockVolumes = new double[blocks];
+			blockAreas = new double[blocks];
+			totalSurface = MarchingCubes.box(stack.getWidth(), stack.getHeight(), depth, voxelSize).measureSurface();
+			dirtyBlocks.set(0, blocks);
+		} else {
+			for (int z = dirty.nextSetBit(0); z >= 0; z = dirty.nextSetBit(z + 1)) {
+				// cube layers z - 1 and z are in blocks z / BLOCK_LAYERS and
+				// (z + 1) / BLOCK_LAYERS
+				dirtyBlocks.set(z / BLOCK_LAYERS);
+				dirtyBlocks.set((z + 1) / BLOCK_LAYERS);
+			}
+		}
+
+		measureBlocks(MarchingCubes.fromStack(stack, min, max, voxelSize), dirtyBlocks);
+
+		double volume = 0.0;
+		double area = 0.0;
+		for (int block = 0; block < blocks; block++) {
+			volume += blockVolumes[block];
+			area += blockAreas[block];
+		}
+		return new MarchingCubes.Surface[] { new MarchingCubes.Surface(null, volume, area), totalSurface };
+	}
+
+	// region -- Helper methods --
+	/**
+	 * Measures the blocks of the surface in parallel
+	 */
+	private void measureBlocks(final MarchingCubes cubes, BitSet dirtyBlocks) {
+		final int depth = foregroundCounts.length;
+		final int[] blocks = new int[dirtyBlocks.cardinality()];
+		int i = 0;
+		for (int block = dirtyBlocks.nextSetBit(0); block >= 0; block = dirtyBlocks.nextSetBit(block + 1)) {
+			blocks[i++] = block;
+		}
+
+		final AtomicInteger ai = new AtomicInteger(0);
+		// A virtual stack reads its slices from disk, better not do it in
+		// parallel
+		final Thread[] threads = stack.isVirtual() ? new Thread[1] : Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = ai.getAndIncrement(); j < blocks.length; j = ai.getAndIncrement()) {
+						final int block = blocks[j];
+						final int start = block * BLOCK_LAYERS - 1;
+						final int end = Math.min(depth, start + BLOCK_LAYERS);
+						final MarchingCubes.Surface surface = cubes.measureLayers(start, end);
+						blockVolumes[block] = surface.getVolume();
+						blockAreas[block] = surface.getArea();
+					}
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+	}
+
+	/**
+	 * Stamps the slices on the first call, or after markChanged, and marks
+	 * the slices whose stamps differ from the previous ones dirty
+	 */
+	private void verifySlices() {
+		synchronized (this) {
+			if (slicePixels != null && !changed) {
+				return;
+			}
+			changed = false;
+		}
+
+		final int depth = foregroundCounts.length;
+		final Object[] pixels = new Object[depth];
+		final int[] checksums = new int[depth];
+		final boolean virtual = stack.isVirtual();
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Thread[] threads = virtual ? new Thread[1] : Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int z = ai.getAndIncrement(); z < depth; z = ai.getAndIncrement()) {
+						final Object slice = stack.getPixels(z + 1);
+						pixels[z] = virtual ? null : slice;
+						checksums[z] = checksum(slice);
+					}
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+
+		if (slicePixels != null) {
+			for (int z = 0; z < depth; z++) {
+				if (pixels[z] != slicePixels[z] || checksums[z] != sliceChecksums[z]) {
+					markDirty(z + 1);
+				}
+			}
+		}
+		slicePixels = pixels;
+		sliceChecksums = checksums;
+	}
+
+	private static int checksum(Object pixels) {
+		if (pixels instanceof byte[]) {
+			return Arrays.hashCode((byte[]) pixels);
+		} else if (pixels instanceof short[]) {
+			return Arrays.hashCode((short[]) pixels);
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns a copy of the dirty slices, and clears them
+	 */
+	private synchronized BitSet takeDirty(BitSet dirty) {
+		final BitSet copy = (BitSet) dirty.clone();
+		dirty.clear();
+		return copy;
+	}
+	// endregion
+}
@@ -0,0 +1,156 @@
+package protoOps.volumeFraction;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import ij.measure.ResultsTable;
+
+/**
+ * The foreground and total volumes of each slice of an image, and of a window
+ * of slices around it, i.e. the volume fraction as a function of z.
+ *
+ * The counts of the slices are stored as prefix sums, so the counts of any
+ * range of slices are the difference of two sums. That way every window
+ * takes the same constant time regardless of its size, and a profile over
+ * thousands of slices costs no more than counting the voxels once.
+ *
+ * The window of slice z covers the slices [z - (k - 1) / 2, z + k / 2], where
+ * k is the window size. At the ends of the stack the window is cut short.
+ */
+public final class VolumeFractionProfile {
+	public static final String SLICE_HEADING = "Slice";
+	public static final String FOREGROUND_HEADING = "Foreground volume";
+	public static final String TOTAL_HEADING = "Total volume";
+	public static final String RATIO_HEADING = "Volume ratio";
+	public static final String WINDOW_FOREGROUND_HEADING = "Window foreground volume";
+	public static final String WINDOW_TOTAL_HEADING = "Window total volume";
+	public static final String WINDOW_RATIO_HEADING = "Window volume ratio";
+
+	/**
+	 * foregroundSums[z] is the number of foreground voxels in slices [1, z]
+	 */
+	private final long[] foregroundSums;
+	private final long[] totalSums;
+	private final double voxelVolume;
+	private final int window;
+
+	/**
+	 * @param foregroundCounts
+	 *            Number of foreground voxels on each slice
+	 * @param totalCounts
+	 *            Number of measured voxels on each slice
+	 * @param voxelVolume
+	 *            Calibrated volume of a voxel
+	 * @param window
+	 *            Number of slices in a window
+	 * @throws NullPointerException
+	 *             if either of the counts is null
+	 * @throws IllegalArgumentException
+	 *             if the counts have different lengths, or window < 1
+	 */
+	public VolumeFractionProfile(long[] foregroundCounts, long[] totalCounts, double voxelVolume, int window) {
+		checkNotNull(foregroundCounts, "Foreground counts must not be null");
+		checkNotNull(totalCounts, "Total counts must not be null");
+		checkArgument(foregroundCounts.length == totalCounts.length, "Counts must have the same length");
+		checkArgument(window >= 1, "Window must be >= 1");
+
+		foregroundSums = prefixSums(foregroundCounts);
+		totalSums = prefixSums(totalCounts);
+		this.voxelVolume = voxelVolume;
+		this.window = window;
+	}
+
+	public int getSliceCount() {
+		return foregroundSums.length - 1;
+	}
+
+	public int getWindow() {
+		return window;
+	}
+
+	/**
+	 * @return The number of foreground voxels in the slices [firstSlice,
+	 *         lastSlice]
+	 * @throws IllegalArgumentException
+	 *             if the range is not within the slices
+	 */
+	public long getForegroundCount(int firstSlice, int lastSlice) {
+		checkRange(firstSlice, lastSlice);
+		return foregroundSums[lastSlice] - foregroundSums[firstSlice - 1];
+	}
+
+	/**
+	 * @return The number of measured voxels in the slices [firstSlice,
+	 *         lastSlice]
+	 * @throws IllegalArgumentException
+	 *             if the range is not within the slices
+	 */
+	public long getTotalCount(int firstSlice, int lastSlice) {
+		checkRange(firstSlice, lastSlice);
+		return totalSums[lastSlice] - totalSums[firstSlice - 1];
+	}
+
+	/**
+	 * @return The volume fraction of the slices [firstSlice, lastSlice].
+	 *         Returns NaN if there are no measured voxels in the range
+	 * @throws IllegalArgumentException
+	 *             if the range is not within the slices
+	 */
+	public double getVolumeRatio(int firstSlice, int lastSlice) {
+		final long total = getTotalCount(firstSlice, lastSlice);
+		return total == 0 ? Double.NaN : (double) getForegroundCount(firstSlice, lastSlice) / total;
+	}
+
+	/**
+	 * @return The first slice in the window of the given slice
+	 */
+	public int getWindowStart(int sliceNumber) {
+		return Math.max(1, sliceNumber - (window - 1) / 2);
+	}
+
+	/**
+	 * @return The last slice in the window of the given slice
+	 */
+	public int getWindowEnd(int sliceNumber) {
+		return Math.min(getSliceCount(), sliceNumber + window / 2);
+	}
+
+	/**
+	 * Creates a table with a row for each slice, and columns for the volumes
+	 * of the slice and its window
+	 */
+	public ResultsTable toResultsTable() {
+		final ResultsTable resultsTable = new ResultsTable();
+		resultsTable.setNaNEmptyCells(true);
+
+		for (int z = 1; z <= getSliceCount(); z++) {
+			final int start = getWindowStart(z);
+			final int end = getWindowEnd(z);
+			resultsTable.incrementCounter();
+			resultsTable.addValue(SLICE_HEADING, z);
+			resultsTable.addValue(FOREGROUND_HEADING, getForegroundCount(z, z) * voxelVolume);
+			resultsTable.addValue(TOTAL_HEADING, getTotalCount(z, z) * voxelVolume);
+			resultsTable.addValue(RATIO_HEADING, getVolumeRatio(z, z));
+			resultsTable.addValue(WINDOW_FOREGROUND_HEADING, getForegroundCount(start, end) * voxelVolume);
+			resultsTable.addValue(WINDOW_TOTAL_HEADING, getTotalCount(start, end) * voxelVolume);
+			resultsTable.addValue(WINDOW_RATIO_HEADING, getVolumeRatio(start, end));
+		}
+
+		return resultsTable;
+	}
+
+	// region -- Helper methods --
+	private void checkRange(int firstSlice, int lastSlice) {
+		checkArgument(firstSlice >= 1 && firstSlice <= lastSlice && lastSlice <= getSliceCount(),
+				"Slice range out of bounds");
+	}
+
+	private static long[] prefixSums(long[] counts) {
+		final long[] sums = new long[counts.length + 1];
+		for (int i = 0; i < counts.length; i++) {
+			sums[i + 1] = sums[i] + counts[i];
+		}
+		return sums;
+	}
+	// endregion
+}
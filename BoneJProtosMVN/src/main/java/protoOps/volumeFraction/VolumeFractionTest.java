@@ -1,15 +1,28 @@
 package protoOps.volumeFraction;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.util.Random;
+
+import org.bonej.common.ImageCheckCache;
+import org.bonej.common.MappedVolume;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.measure.Calibration;
 import ij.plugin.frame.RoiManager;
+import ij.process.ByteProcessor;
+import ij.process.ShortProcessor;
 
 /**
  * @author Richard Domander
@@ -87,4 +100,344 @@ public class VolumeFractionTest {
 
 		volumeFraction.setRoiManager(roiManager);
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testVoxelVolumesOfBinaryImage() throws Exception {
+		ImageStack stack = new ImageStack(10, 10);
+		for (int z = 0; z < 5; z++) {
+			ByteProcessor processor = new ByteProcessor(10, 10);
+			if (z < 2) {
+				processor.setColor(0xFF);
+				processor.setRoi(0, 0, 5, 5);
+				processor.fill();
+			}
+			stack.addSlice(processor);
+		}
+		ImagePlus image = new ImagePlus("", stack);
+		Calibration calibration = image.getCalibration();
+		calibration.pixelWidth = 0.5;
+		calibration.pixelHeight = 0.5;
+		calibration.pixelDepth = 2.0;
+
+		volumeFraction.setImage(image);
+		volumeFraction.setVolumeAlgorithm(VolumeFraction.VOXEL_ALGORITHM);
+		volumeFraction.run();
+
+		assertEquals("Wrong foreground volume", 50 * 0.5, volumeFraction.getForegroundVolume(), 1e-12);
+		assertEquals("Wrong total volume", 500 * 0.5, volumeFraction.getTotalVolume(), 1e-12);
+		assertEquals("Wrong volume ratio", 0.1, volumeFraction.getVolumeRatio(), 1e-12);
+	}
+
+	@Test
+	public void testVoxelVolumesOfBinaryImageIgnoreImageRoi() throws Exception {
+		ImagePlus image = new ImagePlus("", createRandomStack(12, 10, 20));
+		volumeFraction.setImage(image);
+		volumeFraction.run();
+		final double wholeRatio = volumeFraction.getVolumeRatio();
+
+		// The binary counts of ImageCheckCache are of the ROI, so they must
+		// not be used
+		image.setRoi(new Roi(2, 2, 5, 5));
+		volumeFraction.run();
+
+		assertEquals("Image ROI should not affect the volume ratio", wholeRatio, volumeFraction.getVolumeRatio(),
+				1e-12);
+	}
+
+	@Test
+	public void testRunThrowsIllegalArgumentExceptionIfGrayscaleImageHasNoThreshold() throws Exception {
+		expectedException.expect(IllegalArgumentException.class);
+		expectedException.expectMessage("Grayscale image needs a threshold");
+		short[] pixels = { 0, 1000, 2000, 3000, 4000, 5000 };
+		ImagePlus image = new ImagePlus("", new ShortProcessor(3, 2, pixels, null));
+
+		volumeFraction.setImage(image);
+		volumeFraction.run();
+	}
+
+	@Test
+	public void testVoxelVolumesUseThreshold() throws Exception {
+		short[] pixels = { 0, 1000, 2000, 3000, 4000, 5000 };
+		ImagePlus image = new ImagePlus("", new ShortProcessor(3, 2, pixels, null));
+		image.getProcessor().setThreshold(2000, 4000, ShortProcessor.NO_LUT_UPDATE);
+
+		volumeFraction.setImage(image);
+		volumeFraction.run();
+
+		assertEquals("Wrong volume ratio", 0.5, volumeFraction.getVolumeRatio(), 1e-12);
+	}
+
+	@Test
+	public void testSurfaceVolumesOfBinaryImage() throws Exception {
+		// surfaces of boxes of n^3 voxels have chamfered edges and corners
+		final double cubeVolume = 27 + 3 * 9 + 1.5 * 3 + 1.0 / 6.0;
+		final double imageVolume = 729 + 3 * 81 + 1.5 * 9 + 1.0 / 6.0;
+		ImageStack stack = new ImageStack(10, 10);
+		for (int z = 0; z < 10; z++) {
+			ByteProcessor processor = new ByteProcessor(10, 10);
+			if (z >= 3 && z < 7) {
+				processor.setColor(0xFF);
+				processor.setRoi(3, 3, 4, 4);
+				processor.fill();
+			}
+			stack.addSlice(processor);
+		}
+
+		volumeFraction.setImage(new ImagePlus("", stack));
+		volumeFraction.setVolumeAlgorithm(VolumeFraction.SURFACE_ALGORITHM);
+		volumeFraction.setSurfaceResampling(1);
+		volumeFraction.run();
+
+		assertEquals("Wrong foreground volume", cubeVolume, volumeFraction.getForegroundVolume(), 1e-9);
+		assertEquals("Wrong total volume", imageVolume, volumeFraction.getTotalVolume(), 1e-9);
+		assertEquals("Wrong volume ratio", cubeVolume / imageVolume, volumeFraction.getVolumeRatio(), 1e-9);
+	}
+
+	@Test
+	public void testResampledSurfaceIsRecreatedAfterInvalidate() throws Exception {
+		ImageStack stack = new ImageStack(8, 8);
+		for (int z = 0; z < 8; z++) {
+			ByteProcessor processor = new ByteProcessor(8, 8);
+			processor.setColor(0xFF);
+			processor.setRoi(2, 2, 4, 4);
+			processor.fill();
+			stack.addSlice(processor);
+		}
+		ImagePlus image = new ImagePlus("", stack);
+		volumeFraction.setImage(image);
+		volumeFraction.setVolumeAlgorithm(VolumeFraction.SURFACE_ALGORITHM);
+		volumeFraction.setSurfaceResampling(2);
+		volumeFraction.setCreateSurfaceMeshes(false);
+		volumeFraction.run();
+		assertTrue("Foreground should have volume", volumeFraction.getForegroundVolume() > 0.0);
+
+		for (int z = 1; z <= 8; z++) {
+			stack.getProcessor(z).set(0);
+		}
+		ImageCheckCache.invalidate(image);
+		volumeFraction.run();
+
+		assertEquals("Edited image should have no foreground", 0.0, volumeFraction.getForegroundVolume(), 1e-12);
+	}
+
+	@Test
+	public void testSurfaceVolumesWithoutMeshes() throws Exception {
+		ImageStack stack = new ImageStack(6, 6);
+		for (int z = 0; z < 6; z++) {
+			ByteProcessor processor = new ByteProcessor(6, 6);
+			processor.setColor(0xFF);
+			processor.setRoi(1, 1, z % 4 + 1, 3);
+			processor.fill();
+			stack.addSlice(processor);
+		}
+		volumeFraction.setImage(new ImagePlus("", stack));
+		volumeFraction.setVolumeAlgorithm(VolumeFraction.SURFACE_ALGORITHM);
+		volumeFraction.setSurfaceResampling(1);
+		volumeFraction.run();
+		double volume = volumeFraction.getForegroundVolume();
+		double area = volumeFraction.getForegroundSurfaceArea();
+
+		volumeFraction.setCreateSurfaceMeshes(false);
+		volumeFraction.run();
+
+		assertNull("Mesh should not be created", volumeFraction.getForegroundMesh());
+		assertNull("Mesh should not be created", volumeFraction.getForegroundSurface());
+		assertEquals("Volume should not depend on the mesh", volume, volumeFraction.getForegroundVolume(), 1e-9);
+		assertEquals("Area should not depend on the mesh", area, volumeFraction.getForegroundSurfaceArea(), 1e-9);
+	}
+
+	@Test
+	public void testSetThresholdsThrowsIllegalArgumentExceptionIfMinIsGreaterThanMax() throws Exception {
+		expectedException.expect(IllegalArgumentException.class);
+		expectedException.expectMessage("Invalid threshold range");
+
+		volumeFraction.setThresholds(200, 100);
+	}
+
+	@Test
+	public void testThresholdsOverrideImageThreshold() throws Exception {
+		short[] pixels = { 0, 1000, 2000, 3000, 4000, 5000 };
+		ImagePlus image = new ImagePlus("", new ShortProcessor(3, 2, pixels, null));
+		image.getProcessor().setThreshold(2000, 4000, ShortProcessor.NO_LUT_UPDATE);
+
+		volumeFraction.setImage(image);
+		volumeFraction.setThresholds(4000, 65535);
+		volumeFraction.run();
+
+		assertEquals("Wrong volume ratio", 2.0 / 6.0, volumeFraction.getVolumeRatio(), 1e-12);
+	}
+
+	@Test
+	public void testVoxelVolumesInsideRois() throws Exception {
+		ImageStack stack = new ImageStack(10, 10);
+		for (int z = 0; z < 5; z++) {
+			ByteProcessor processor = new ByteProcessor(10, 10);
+			processor.setColor(0xFF);
+			processor.setRoi(0, 0, 5, 10);
+			processor.fill();
+			stack.addSlice(processor);
+		}
+		Roi roi = new Roi(3, 0, 4, 2);
+		roi.setName("0002-0000-0001");
+		RoiManager roiManager = mock(RoiManager.class);
+		when(roiManager.getSliceNumber(anyString())).thenCallRealMethod();
+		when(roiManager.getCount()).thenReturn(1);
+		when(roiManager.getRoisAsArray()).thenReturn(new Roi[] { roi });
+
+		volumeFraction.setImage(new ImagePlus("", stack));
+		volumeFraction.setRoiManager(roiManager);
+		volumeFraction.run();
+
+		assertEquals("Only foreground inside the ROIs should be counted", 4.0,
+				volumeFraction.getForegroundVolume(), 1e-12);
+		assertEquals("Total volume should be the volume of the ROIs", 8.0, volumeFraction.getTotalVolume(), 1e-12);
+		assertEquals("Wrong volume ratio", 0.5, volumeFraction.getVolumeRatio(), 1e-12);
+	}
+
+	@Test
+	public void testProfile() throws Exception {
+		ImageStack stack = new ImageStack(10, 10);
+		for (int z = 0; z < 6; z++) {
+			ByteProcessor processor = new ByteProcessor(10, 10);
+			processor.setColor(0xFF);
+			processor.setRoi(0, 0, 10, z);
+			processor.fill();
+			stack.addSlice(processor);
+		}
+
+		volumeFraction.setImage(new ImagePlus("", stack));
+		volumeFraction.setProfileWindow(3);
+		volumeFraction.run();
+		VolumeFractionProfile profile = volumeFraction.getProfile();
+
+		assertEquals("Wrong volume ratio of a slice", 0.4, profile.getVolumeRatio(5, 5), 1e-12);
+		assertEquals("Wrong volume ratio of a window", 0.3, profile.getVolumeRatio(profile.getWindowStart(4),
+				profile.getWindowEnd(4)), 1e-12);
+		assertEquals("Profile should sum up to the volume ratio", 150.0 / 600.0, volumeFraction.getVolumeRatio(),
+				1e-12);
+	}
+
+	@Test
+	public void testIncrementalVoxelVolumesAfterEdit() throws Exception {
+		ImagePlus image = new ImagePlus("", createRandomStack(12, 10, 20));
+		volumeFraction.setImage(image);
+		volumeFraction.setIncremental(true);
+		volumeFraction.setProfileWindow(1);
+		try {
+			volumeFraction.run();
+			image.getStack().getProcessor(7).set(0);
+			image.getStack().getProcessor(8).set(0xFF);
+			volumeFraction.markDirty(7);
+			volumeFraction.markDirty(8);
+			volumeFraction.run();
+		} finally {
+			volumeFraction.setIncremental(false);
+		}
+		final double incrementalRatio = volumeFraction.getVolumeRatio();
+		final double sliceRatio = volumeFraction.getProfile().getVolumeRatio(8, 8);
+
+		volumeFraction.run();
+
+		assertEquals("Incremental run should equal a full run", volumeFraction.getVolumeRatio(), incrementalRatio,
+				1e-12);
+		assertEquals("Edited slice should be counted again", 1.0, sliceRatio, 1e-12);
+	}
+
+	@Test
+	public void testIncrementalSurfaceVolumesAfterEdit() throws Exception {
+		ImagePlus image = new ImagePlus("", createRandomStack(12, 10, 20));
+		volumeFraction.setImage(image);
+		volumeFraction.setVolumeAlgorithm(VolumeFraction.SURFACE_ALGORITHM);
+		volumeFraction.setSurfaceResampling(1);
+		volumeFraction.setCreateSurfaceMeshes(false);
+		volumeFraction.setIncremental(true);
+		try {
+			volumeFraction.run();
+			image.getStack().getProcessor(9).set(0);
+			image.getStack().getProcessor(16).set(0xFF);
+			volumeFraction.markDirty(9);
+			volumeFraction.markDirty(16);
+			volumeFraction.run();
+		} finally {
+			volumeFraction.setIncremental(false);
+		}
+		final double incrementalVolume = volumeFraction.getForegroundVolume();
+		final double incrementalArea = volumeFraction.getForegroundSurfaceArea();
+		final double incrementalTotal = volumeFraction.getTotalVolume();
+
+		volumeFraction.run();
+
+		assertEquals("Incremental volume should equal a full run", volumeFraction.getForegroundVolume(),
+				incrementalVolume, 1e-9);
+		assertEquals("Incremental area should equal a full run", volumeFraction.getForegroundSurfaceArea(),
+				incrementalArea, 1e-9);
+		assertEquals("Total volume should not change", volumeFraction.getTotalVolume(), incrementalTotal, 1e-9);
+	}
+
+	@Test
+	public void testIncrementalRunAfterUpdateRecountsEditedSlice() throws Exception {
+		UpdatableImage image = new UpdatableImage(createRandomStack(12, 10, 20));
+		volumeFraction.setImage(image);
+		volumeFraction.setIncremental(true);
+		volumeFraction.setProfileWindow(1);
+		try {
+			volumeFraction.run();
+			// The edited slice is not the one shown
+			image.getStack().getProcessor(7).set(0xFF);
+			image.update();
+			volumeFraction.run();
+		} finally {
+			volumeFraction.setIncremental(false);
+		}
+		final double incrementalRatio = volumeFraction.getVolumeRatio();
+		final double sliceRatio = volumeFraction.getProfile().getVolumeRatio(7, 7);
+
+		volumeFraction.run();
+
+		assertEquals("Incremental run should equal a full run", volumeFraction.getVolumeRatio(), incrementalRatio,
+				1e-12);
+		assertEquals("Edited slice should be counted again", 1.0, sliceRatio, 1e-12);
+	}
+
+	@Test
+	public void testMappedImageEqualsHeapImage() throws Exception {
+		ImageStack stack = createRandomStack(12, 10, 20);
+		volumeFraction.setImage(new ImagePlus("", stack));
+		volumeFraction.run();
+		final double heapRatio = volumeFraction.getVolumeRatio();
+
+		volumeFraction.setImage(MappedVolume.copyOf(stack).toImagePlus(""));
+		volumeFraction.run();
+
+		assertEquals("Mapped image should have the same volume ratio", heapRatio, volumeFraction.getVolumeRatio(),
+				1e-12);
+	}
+
+	// region -- Helper methods --
+	private static ImageStack createRandomStack(int width, int height, int depth) {
+		final Random random = new Random(0xB0E);
+		ImageStack stack = new ImageStack(width, height);
+		for (int z = 0; z < depth; z++) {
+			ByteProcessor processor = new ByteProcessor(width, height);
+			for (int i = 0; i < width * height; i++) {
+				processor.set(i, random.nextBoolean() ? 0xFF : 0);
+			}
+			stack.addSlice(processor);
+		}
+		return stack;
+	}
+
+	/**
+	 * An image which can notify the listeners of an update without a window
+	 */
+	private static final class UpdatableImage extends ImagePlus {
+		private UpdatableImage(ImageStack stack) {
+			super("", stack);
+		}
+
+		private void update() {
+			notifyListeners(UPDATED);
+		}
+	}
+	// endregion
+}
@@ -0,0 +1,245 @@
+package protoOps.volumeFraction;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import org.bonej.common.Multithreader;
+import org.bonej.common.RoiMask;
+import org.bonej.common.ScanlineSpans;
+
+import ij.ImageStack;
+
+/**
+ * Counts the voxels of a stack whose values are inside a range.
+ *
+ * The slices are counted in parallel straight from their pixel arrays. Each
+ * slice has its own element in the array of counts, so the threads never
+ * write to the same element, and the counts of each slice are available for
+ * profiles along the stack at no extra cost. The inner loop has no branches,
+ * so the count runs at the speed memory can be read.
+ *
+ * The count can be restricted to the spans of a RoiMask. Then only the slices
+ * which have spans are read, and only the pixels inside the spans, so the
+ * time it takes depends on the area of the ROIs, and not on the size of the
+ * stack.
+ */
+public final class VoxelCounter {
+	private VoxelCounter() {
+	}
+
+	/**
+	 * Counts the voxels whose value v is min <= v <= max
+	 *
+	 * @param stack
+	 *            An 8-bit or 16-bit stack
+	 * @return Number of voxels in the range
+	 * @throws NullPointerException
+	 *             if stack == null
+	 * @throws IllegalArgumentException
+	 *             if the stack is not 8-bit or 16-bit
+	 */
+	public static long countInRange(final ImageStack stack, final int min, final int max) {
+		return sum(countSlicesInRange(stack, min, max));
+	}
+
+	/**
+	 * Counts the voxels inside the mask whose value v is min <= v <= max
+	 *
+	 * @param stack
+	 *            An 8-bit or 16-bit stack
+	 * @param mask
+	 *            A mask with the same dimensions as the stack
+	 * @return Number of voxels in the range inside the mask
+	 * @throws NullPointerException
+	 *             if stack == null or mask == null
+	 * @throws IllegalArgumentException
+	 *             if the stack is not 8-bit or 16-bit, or its dimensions don't
+	 *             match the mask
+	 */
+	public static long countInRange(final ImageStack stack, final RoiMask mask, final int min, final int max) {
+		return sum(countSlicesInRange(stack, mask, min, max));
+	}
+
+	/**
+	 * Counts the voxels whose value v is min <= v <= max on each slice
+	 *
+	 * @param stack
+	 *            An 8-bit or 16-bit stack
+	 * @return Number of voxels in the range, the count of slice z is in
+	 *         element z - 1
+	 * @throws NullPointerException
+	 *             if stack == null
+	 * @throws IllegalArgumentException
+	 *             if the stack is not 8-bit or 16-bit
+	 */
+	public static long[] countSlicesInRange(final ImageStack stack, final int min, final int max) {
+		checkNotNull(stack, "Stack must not be null");
+		final int bitDepth = stack.getBitDepth();
+		checkArgument(bitDepth == 8 || bitDepth == 16, "Stack bit depth must be 8 or 16");
+
+		final long[] counts = new long[stack.getSize()];
+		final int[] sliceNumbers = new int[counts.length];
+		for (int z = 0; z < sliceNumbers.length; z++) {
+			sliceNumbers[z] = z + 1;
+		}
+		countSlices(stack, null, min, max, sliceNumbers, counts);
+		return counts;
+	}
+
+	/**
+	 * Counts the voxels inside the mask whose value v is min <= v <= max on
+	 * each slice. Slices without spans in the mask are not read.
+	 *
+	 * @param stack
+	 *            An 8-bit or 16-bit stack
+	 * @param mask
+	 *            A mask with the same dimensions as the stack
+	 * @return Number of voxels in the range inside the mask, the count of
+	 *         slice z is in element z - 1
+	 * @throws NullPointerException
+	 *             if stack == null or mask == null
+	 * @throws IllegalArgumentException
+	 *             if the stack is not 8-bit or 16-bit, or its dimensions don't
+	 *             match the mask
+	 */
+	public static long[] countSlicesInRange(final ImageStack stack, final RoiMask mask, final int min,
+			final int max) {
+		checkNotNull(stack, "Stack must not be null");
+		checkNotNull(mask, "Mask must not be null");
+		final int bitDepth = stack.getBitDepth();
+		checkArgument(bitDepth == 8 || bitDepth == 16, "Stack bit depth must be 8 or 16");
+		checkArgument(stack.getWidth() == mask.getWidth() && stack.getHeight() == mask.getHeight()
+				&& stack.getSize() == mask.getDepth(), "Stack dimensions don't match the mask");
+
+		final long[] counts = new long[stack.getSize()];
+		countSlices(stack, mask, min, max, getNonEmptySlices(mask), counts);
+		return counts;
+	}
+
+	/**
+	 * Counts the voxels in the range on the given slices again, e.g. after
+	 * they have been edited, and stores the counts of slice z in element z - 1
+	 * of counts. The other elements are not changed.
+	 *
+	 * @param mask
+	 *            A mask with the same dimensions as the stack, or null to
+	 *            count whole slices
+	 * @param sliceNumbers
+	 *            Numbers of the slices (1-based) to count
+	 * @pre the stack is 8-bit or 16-bit, and counts.length == stack.getSize()
+	 */
+	static void countSlices(final ImageStack stack, @Nullable final RoiMask mask, final int min, final int max,
+			final int[] sliceNumbers, final long[] counts) {
+		final int width = stack.getWidth();
+		final boolean byteStack = stack.getBitDepth() == 8;
+		final AtomicInteger ai = new AtomicInteger(0);
+		// A virtual stack reads its slices from disk, better not do it in
+		// parallel
+		final Thread[] threads = stack.isVirtual() ? new Thread[1] : Multithreader.newThreads();
+
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = ai.getAndIncrement(); i < sliceNumbers.length; i = ai.getAndIncrement()) {
+						final int sliceNumber = sliceNumbers[i];
+						if (mask == null) {
+							final Object pixels = stack.getPixels(sliceNumber);
+							counts[sliceNumber - 1] = byteStack ? countInRange((byte[]) pixels, min, max)
+									: countInRange((short[]) pixels, min, max);
+							continue;
+						}
+
+						final ScanlineSpans spans = mask.getSliceSpans(sliceNumber);
+						if (spans.isEmpty()) {
+							counts[sliceNumber - 1] = 0;
+							continue;
+						}
+						final Object pixels = stack.getPixels(sliceNumber);
+						final long[] count = new long[1];
+						spans.forEach(new ScanlineSpans.SpanConsumer() {
+							@Override
+							public void accept(int y, int start, int end) {
+								final int offset = y * width;
+								if (byteStack) {
+									count[0] += countInRange((byte[]) pixels, offset + start, offset + end, min, max);
+								} else {
+									count[0] += countInRange((short[]) pixels, offset + start, offset + end, min,
+											max);
+								}
+							}
+						});
+						counts[sliceNumber - 1] = count[0];
+					}
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+	}
+
+	// region -- Helper methods --
+	private static long sum(long[] counts) {
+		long sum = 0;
+		for (long count : counts) {
+			sum += count;
+		}
+		return sum;
+	}
+
+	/**
+	 * @return Numbers of the slices (1-based) which have spans in the mask
+	 */
+	private static int[] getNonEmptySlices(RoiMask mask) {
+		final int[] sliceNumbers = new int[mask.getDepth()];
+		int slices = 0;
+		for (int z = 1; z <= mask.getDepth(); z++) {
+			if (!mask.getSliceSpans(z).isEmpty()) {
+				sliceNumbers[slices++] = z;
+			}
+		}
+		return Arrays.copyOf(sliceNumbers, slices);
+	}
+
+	/**
+	 * The sign bit of (v - min) | (max - v) is set if and only if v is out of
+	 * the range, so the count can be incremented by the flipped sign bit
+	 * without a branch
+	 */
+	private static long countInRange(final byte[] pixels, final int min, final int max) {
+		return countInRange(pixels, 0, pixels.length, min, max);
+	}
+
+	private static long countInRange(final short[] pixels, final int min, final int max) {
+		return countInRange(pixels, 0, pixels.length, min, max);
+	}
+
+	/**
+	 * Counts the pixels in the range from index start (inclusive) to end
+	 * (exclusive)
+	 */
+	private static long countInRange(final byte[] pixels, final int start, final int end, final int min,
+			final int max) {
+		long count = 0;
+		for (int i = start; i < end; i++) {
+			final int value = pixels[i] & 0xFF;
+			count += ~((value - min) | (max - value)) >>> 31;
+		}
+		return count;
+	}
+
+	private static long countInRange(final short[] pixels, final int start, final int end, final int min,
+			final int max) {
+		long count = 0;
+		for (int i = start; i < end; i++) {
+			final int value = pixels[i] & 0xFFFF;
+			count += ~((value - min) | (max - value)) >>> 31;
+		}
+		return count;
+	}
+	// endregion
+}
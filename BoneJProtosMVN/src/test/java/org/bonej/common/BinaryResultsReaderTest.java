@@ -0,0 +1,144 @@
+package org.bonej.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ij.measure.ResultsTable;
+
+/**
+ * Unit tests for the BinaryResultsReader and BinaryResultsWriter classes
+ */
+public class BinaryResultsReaderTest {
+	private static final String MEAN_HEADING = "Tb.Th Mean";
+	private static final String MAX_HEADING = "Tb.Th Max";
+	private static final double DELTA = 1e-12;
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private ResultsTable resultsTable;
+	private String path;
+
+	@Before
+	public void setUp() throws Exception {
+		resultsTable = new ResultsTable();
+		resultsTable.setNaNEmptyCells(true);
+		ResultsInserter resultsInserter = new ResultsInserter();
+		resultsInserter.setResultsTable(resultsTable);
+		resultsInserter.setMeasurementInFirstFreeRow("bone1", MEAN_HEADING, 1.5);
+		resultsInserter.setMeasurementInFirstFreeRow("bone1", MAX_HEADING, 3.0);
+		resultsInserter.setMeasurementInFirstFreeRow("bone2", MEAN_HEADING, 2.5);
+		resultsInserter.setMeasurementInFirstFreeRow("bone1", MEAN_HEADING, 4.5);
+
+		path = new File(temporaryFolder.getRoot(), "results.bin").getPath();
+		resultsInserter.saveBinary(path);
+	}
+
+	@Test
+	public void testReaderReadsTableWritten() throws Exception {
+		BinaryResultsReader reader = new BinaryResultsReader(path);
+
+		assertEquals("Wrong number of rows", 3, reader.getRowCount());
+		assertArrayEquals("Wrong column headings", new String[]{MEAN_HEADING, MAX_HEADING}, reader.getHeadings());
+		assertEquals("Wrong label", "bone1", reader.getLabel(0));
+		assertEquals("Wrong label", "bone2", reader.getLabel(1));
+		assertEquals("Wrong label", "bone1", reader.getLabel(2));
+
+		int maxColumn = reader.getColumnIndex(MAX_HEADING);
+		assertEquals(3.0, reader.getValue(maxColumn, 0), DELTA);
+		assertEquals("Empty cell should be NaN", Double.NaN, reader.getValue(maxColumn, 1), DELTA);
+
+		DoubleBuffer meanColumn = reader.getColumn(reader.getColumnIndex(MEAN_HEADING));
+		assertEquals("Column view has wrong size", 3, meanColumn.remaining());
+		assertEquals(1.5, meanColumn.get(0), DELTA);
+		assertEquals(2.5, meanColumn.get(1), DELTA);
+		assertEquals(4.5, meanColumn.get(2), DELTA);
+	}
+
+	@Test
+	public void testToResultsTableRehydratesTable() throws Exception {
+		ResultsTable result = new BinaryResultsReader(path).toResultsTable();
+
+		assertEquals("Wrong number of rows", resultsTable.getCounter(), result.getCounter());
+		for (int row = 0; row < resultsTable.getCounter(); row++) {
+			assertEquals("Wrong label", resultsTable.getLabel(row), result.getLabel(row));
+			assertEquals(resultsTable.getValue(MEAN_HEADING, row), result.getValue(MEAN_HEADING, row), DELTA);
+			assertEquals(resultsTable.getValue(MAX_HEADING, row), result.getValue(MAX_HEADING, row), DELTA);
+		}
+	}
+
+	@Test
+	public void testRowsWithoutLabels() throws Exception {
+		ResultsTable noLabels = new ResultsTable();
+		noLabels.incrementCounter();
+		noLabels.addValue(MEAN_HEADING, 1.0);
+		BinaryResultsWriter.write(noLabels, path);
+
+		BinaryResultsReader reader = new BinaryResultsReader(path);
+
+		assertNull("Row should have no label", reader.getLabel(0));
+		assertEquals(1.0, reader.getValue(0, 0), DELTA);
+	}
+
+	@Test(expected = IOException.class)
+	public void testReaderThrowsIOExceptionIfFileIsNotBinaryResults() throws Exception {
+		File textFile = temporaryFolder.newFile("results.csv");
+		try (FileOutputStream output = new FileOutputStream(textFile)) {
+			output.write(" ,Label,Mean\n1,bone1,1.5\n".getBytes("UTF-8"));
+		}
+
+		new BinaryResultsReader(textFile.getPath());
+	}
+
+	@Test(expected = IOException.class)
+	public void testReaderThrowsIOExceptionIfValueCountOverflows() throws Exception {
+		File file = temporaryFolder.newFile("overflow.bjr");
+		try (DataOutputStream output = new DataOutputStream(new FileOutputStream(file))) {
+			output.writeInt(BinaryResultsWriter.MAGIC_NUMBER);
+			output.writeInt(BinaryResultsWriter.VERSION);
+			// rows * columns overflows an int
+			output.writeInt(1 << 12);
+			output.writeInt(1 << 20);
+			output.writeInt(0);
+			for (int i = 0; i < 1 << 20; i++) {
+				output.writeInt(0);
+			}
+			output.write(new byte[4 << 12]);
+			output.write(new byte[64]);
+		}
+
+		new BinaryResultsReader(file.getPath());
+	}
+
+	@Test(expected = IOException.class)
+	public void testReaderThrowsIOExceptionIfLabelCodeIsNotInDictionary() throws Exception {
+		File file = temporaryFolder.newFile("labels.bjr");
+		try (DataOutputStream output = new DataOutputStream(new FileOutputStream(file))) {
+			output.writeInt(BinaryResultsWriter.MAGIC_NUMBER);
+			output.writeInt(BinaryResultsWriter.VERSION);
+			output.writeInt(1);
+			output.writeInt(1);
+			// an empty dictionary, so no code is valid
+			output.writeInt(0);
+			output.writeInt(MEAN_HEADING.length());
+			output.write(MEAN_HEADING.getBytes("UTF-8"));
+			output.write(new byte[BinaryResultsWriter.ALIGNMENT - output.size() % BinaryResultsWriter.ALIGNMENT]);
+			output.writeInt(5);
+			output.write(new byte[64]);
+		}
+
+		new BinaryResultsReader(file.getPath());
+	}
+}
@@ -0,0 +1,119 @@
+package org.bonej.common;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ij.measure.ResultsTable;
+
+/**
+ * Unit tests for the ConcurrentResultsCollector class
+ */
+public class ConcurrentResultsCollectorTest {
+	private static final String HEADING = "mean";
+	private static final int THREADS = 8;
+	private static final int MEASUREMENTS_PER_THREAD = 100;
+
+	private ConcurrentResultsCollector collector;
+	private ResultsInserter resultsInserter;
+	private ResultsTable resultsTable;
+
+	@Before
+	public void setUp() {
+		collector = new ConcurrentResultsCollector();
+		resultsTable = new ResultsTable();
+		resultsInserter = new ResultsInserter();
+		resultsInserter.setResultsTable(resultsTable);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSetMeasurementThrowsExceptionIfRowLabelIsEmpty() throws Exception {
+		collector.setMeasurement("", HEADING, 1.0);
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void testMergeIntoThrowsNullPointerExceptionIfInserterIsNull() throws Exception {
+		collector.mergeInto(null);
+	}
+
+	@Test
+	public void testMergeIntoSortsRowsByLabel() throws Exception {
+		collector.setMeasurement("c", HEADING, 3.0);
+		collector.setMeasurement("a", HEADING, 1.0);
+		collector.setMeasurement("b", HEADING, 2.0);
+
+		collector.mergeInto(resultsInserter);
+
+		assertEquals("Wrong number of rows", 3, resultsTable.getCounter());
+		assertEquals("Rows are in the wrong order", "a", resultsTable.getLabel(0));
+		assertEquals("Rows are in the wrong order", "b", resultsTable.getLabel(1));
+		assertEquals("Rows are in the wrong order", "c", resultsTable.getLabel(2));
+		assertEquals("Collector should be empty after merge", 0, collector.size());
+	}
+
+	@Test
+	public void testMergeIntoCollectsMeasurementsFromAllThreads() throws Exception {
+		Thread[] threads = new Thread[THREADS];
+		for (int t = 0; t < THREADS; t++) {
+			final String label = "Image " + t;
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < MEASUREMENTS_PER_THREAD; i++) {
+						collector.setMeasurement(label, HEADING, i);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals("Measurements were lost", THREADS * MEASUREMENTS_PER_THREAD, collector.size());
+
+		collector.mergeInto(resultsInserter);
+
+		assertEquals("Wrong number of rows", THREADS * MEASUREMENTS_PER_THREAD, resultsTable.getCounter());
+		for (int t = 0; t < THREADS; t++) {
+			for (int i = 0; i < MEASUREMENTS_PER_THREAD; i++) {
+				int row = t * MEASUREMENTS_PER_THREAD + i;
+				assertEquals("Row has the wrong label", "Image " + t, resultsTable.getLabel(row));
+				assertEquals("Measurements of a label are in the wrong order", i,
+						resultsTable.getValue(HEADING, row), 1e-12);
+			}
+		}
+	}
+
+	@Test
+	public void testMergeIntoMatchesResultsInserterPolicy() throws Exception {
+		resultsInserter.setMeasurementInFirstFreeRow("b", HEADING, 10.0);
+		collector.setMeasurement("a", HEADING, 1.0);
+		collector.setMeasurement("a", "max", 2.0);
+		collector.setMeasurement("a", HEADING, 3.0);
+		collector.setMeasurement("b", "max", 20.0);
+		collector.setMeasurement("b", HEADING, 30.0);
+
+		ResultsTable expected = new ResultsTable();
+		ResultsInserter expectedInserter = new ResultsInserter();
+		expectedInserter.setResultsTable(expected);
+		expectedInserter.setMeasurementInFirstFreeRow("b", HEADING, 10.0);
+		expectedInserter.setMeasurementInFirstFreeRow("a", HEADING, 1.0);
+		expectedInserter.setMeasurementInFirstFreeRow("a", "max", 2.0);
+		expectedInserter.setMeasurementInFirstFreeRow("a", HEADING, 3.0);
+		expectedInserter.setMeasurementInFirstFreeRow("b", "max", 20.0);
+		expectedInserter.setMeasurementInFirstFreeRow("b", HEADING, 30.0);
+
+		collector.mergeInto(resultsInserter);
+
+		assertEquals("Wrong number of rows", expected.getCounter(), resultsTable.getCounter());
+		for (int row = 0; row < expected.getCounter(); row++) {
+			assertEquals("Wrong label", expected.getLabel(row), resultsTable.getLabel(row));
+			for (String heading : new String[] { HEADING, "max" }) {
+				assertEquals("Wrong value in " + heading + " on row " + row, expected.getValue(heading, row),
+						resultsTable.getValue(heading, row), 1e-12);
+			}
+		}
+	}
+}
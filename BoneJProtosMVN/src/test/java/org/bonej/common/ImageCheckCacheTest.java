@@ -0,0 +1,108 @@
+package org.bonej.common;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import protoOps.testImageCreators.StaticTestImageHelper;
+import ij.ImagePlus;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+
+/**
+ * Unit tests for the ImageCheckCache class
+ */
+public class ImageCheckCacheTest {
+	private static final int NON_BINARY_COLOR = 0x40;
+
+	private ImagePlus testImage;
+
+	@Before
+	public void setUp() {
+		ImageCheckCache.clear();
+		testImage = StaticTestImageHelper.createCuboid(10, 10, 10, Common.BINARY_WHITE, 1);
+	}
+
+	@Test
+	public void testIsBinaryReturnsFalseIfImageIsNull() throws Exception {
+		assertFalse("Null image should not be binary", ImageCheckCache.isBinary(null));
+	}
+
+	@Test
+	public void testCountBinaryVoxelsIsMemoized() throws Exception {
+		BinaryVoxelCounts counts = ImageCheckCache.countBinaryVoxels(testImage);
+		assertNotNull("Binary image should have counts", counts);
+
+		assertSame("Counts of an unchanged image should be memoized", counts,
+				ImageCheckCache.countBinaryVoxels(testImage));
+	}
+
+	@Test
+	public void testInvalidateDiscardsMemoizedResult() throws Exception {
+		assertTrue("Binary image should be binary", ImageCheckCache.isBinary(testImage));
+
+		testImage.getStack().getProcessor(1).set(0, 0, NON_BINARY_COLOR);
+		ImageCheckCache.invalidate(testImage);
+
+		assertFalse("Result should be recomputed after invalidate", ImageCheckCache.isBinary(testImage));
+	}
+
+	@Test
+	public void testNewStackDiscardsMemoizedResult() throws Exception {
+		assertTrue("Binary image should be binary", ImageCheckCache.isBinary(testImage));
+
+		ImagePlus nonBinary = StaticTestImageHelper.createCuboid(10, 10, 10, NON_BINARY_COLOR, 1);
+		testImage.setStack(nonBinary.getStack());
+
+		assertFalse("Result should be recomputed when the stack changes", ImageCheckCache.isBinary(testImage));
+	}
+
+	@Test
+	public void testIsBinaryOfSingleSliceFollowsRoi() throws Exception {
+		ByteProcessor processor = new ByteProcessor(10, 10);
+		processor.set(8, 8, NON_BINARY_COLOR);
+		ImagePlus image = new ImagePlus("", processor);
+		image.setRoi(new Roi(0, 0, 5, 5));
+		assertTrue("Non-binary pixel outside the ROI should be ignored", ImageCheckCache.isBinary(image));
+
+		image.setRoi(new Roi(5, 5, 5, 5));
+		assertFalse("Result should be recomputed when the ROI changes", ImageCheckCache.isBinary(image));
+
+		image.deleteRoi();
+		assertFalse("Result should match ImageCheck without a ROI", ImageCheckCache.isBinary(image));
+	}
+
+	@Test
+	public void testIsBinaryFollowsShapeOfRoiWithSameBounds() throws Exception {
+		ByteProcessor processor = new ByteProcessor(10, 10);
+		processor.set(9, 1, NON_BINARY_COLOR);
+		ImagePlus image = new ImagePlus("", processor);
+		image.setRoi(new PolygonRoi(new int[] { 0, 0, 10 }, new int[] { 0, 10, 10 }, 3, Roi.POLYGON));
+		assertTrue("Non-binary pixel outside the ROI should be ignored", ImageCheckCache.isBinary(image));
+
+		image.setRoi(new PolygonRoi(new int[] { 0, 10, 10 }, new int[] { 0, 0, 10 }, 3, Roi.POLYGON));
+		assertFalse("Result should be recomputed when the shape of the ROI changes",
+				ImageCheckCache.isBinary(image));
+	}
+
+	@Test
+	public void testIsVoxelIsotropicFollowsCalibration() throws Exception {
+		final double tolerance = 1e-3;
+		assertTrue("Uncalibrated image should be isotropic", ImageCheckCache.isVoxelIsotropic(testImage, tolerance));
+
+		Calibration calibration = testImage.getCalibration();
+		calibration.pixelDepth = 1.5;
+		testImage.setCalibration(calibration);
+
+		assertFalse("Result should be recomputed when calibration changes",
+				ImageCheckCache.isVoxelIsotropic(testImage, tolerance));
+		assertTrue("Result should be recomputed when tolerance changes",
+				ImageCheckCache.isVoxelIsotropic(testImage, 0.6));
+	}
+}
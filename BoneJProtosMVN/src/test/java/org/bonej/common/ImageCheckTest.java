@@ -1,13 +1,18 @@
 package org.bonej.common;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import org.junit.Test;
 
+import protoOps.testImageCreators.StaticTestImageHelper;
 import ij.ImagePlus;
+import ij.gui.Roi;
 import ij.measure.Calibration;
 import ij.process.ImageStatistics;
 
@@ -79,6 +84,74 @@ public class ImageCheckTest {
 				result);
 	}
 
+	@Test
+	public void testIsBinaryChecksAllSlicesOfStack() throws Exception {
+		ImagePlus testImage = StaticTestImageHelper.createCuboid(10, 10, 10, Common.BINARY_WHITE, 1);
+		assertTrue("Binary stack should be binary", ImageCheck.isBinary(testImage));
+
+		// A non-binary value on a slice that's not the current slice
+		testImage.setSlice(1);
+		testImage.getStack().getProcessor(testImage.getStackSize()).set(0, 0, 0x40);
+
+		assertFalse("Stack with a non-binary value on any slice must not be binary", ImageCheck.isBinary(testImage));
+	}
+
+	@Test
+	public void testCountBinaryVoxelsReturnsNullIfImageIsNull() throws Exception {
+		assertNull("Null image should have no counts", ImageCheck.countBinaryVoxels(null));
+	}
+
+	@Test
+	public void testCountBinaryVoxelsReturnsNullIfImageIsNotBinary() throws Exception {
+		ImagePlus testImage = StaticTestImageHelper.createCuboid(10, 10, 10, 0x40, 1);
+
+		assertNull("Non-binary image should have no counts", ImageCheck.countBinaryVoxels(testImage));
+	}
+
+	@Test
+	public void testCountBinaryVoxels() throws Exception {
+		final int CUBOID_SIDE = 10;
+		final int PADDING = 1;
+		final int IMAGE_SIDE = CUBOID_SIDE + 2 * PADDING;
+		final long FOREGROUND = CUBOID_SIDE * CUBOID_SIDE * CUBOID_SIDE;
+		final long TOTAL = IMAGE_SIDE * IMAGE_SIDE * IMAGE_SIDE;
+		ImagePlus testImage = StaticTestImageHelper.createCuboid(CUBOID_SIDE, CUBOID_SIDE, CUBOID_SIDE,
+				Common.BINARY_WHITE, PADDING);
+
+		BinaryVoxelCounts counts = ImageCheck.countBinaryVoxels(testImage);
+
+		assertNotNull("Binary image should have counts", counts);
+		assertEquals("Wrong number of foreground voxels", FOREGROUND, counts.foreground);
+		assertEquals("Wrong number of background voxels", TOTAL - FOREGROUND, counts.background);
+		assertEquals("Wrong number of voxels", TOTAL, counts.total());
+	}
+
+	@Test
+	public void testCountBinaryVoxelsChecksOnlyInsideAreaRoi() throws Exception {
+		ImagePlus testImage = StaticTestImageHelper.createCuboid(10, 10, 10, Common.BINARY_WHITE, 1);
+		testImage.getStack().getProcessor(5).set(0, 0, 0x40);
+		testImage.setRoi(new Roi(1, 1, 10, 10));
+
+		BinaryVoxelCounts counts = ImageCheck.countBinaryVoxels(testImage);
+
+		assertNotNull("Non-binary voxel outside the ROI should be ignored", counts);
+		assertEquals("Wrong number of foreground voxels", 10 * 10 * 12 - 2 * 100, counts.foreground);
+		assertEquals("Wrong number of voxels", 10 * 10 * 12, counts.total());
+	}
+
+	@Test
+	public void testIsBinaryFollowsRoiRegardlessOfDepth() throws Exception {
+		ImagePlus stackImage = StaticTestImageHelper.createCuboid(10, 10, 10, Common.BINARY_WHITE, 1);
+		stackImage.getStack().getProcessor(1).set(0, 0, 0x40);
+		ImagePlus sliceImage = new ImagePlus("", stackImage.getStack().getProcessor(1));
+		final Roi roi = new Roi(1, 1, 10, 10);
+		stackImage.setRoi(roi);
+		sliceImage.setRoi((Roi) roi.clone());
+
+		assertTrue("Stack should be binary inside the ROI", ImageCheck.isBinary(stackImage));
+		assertTrue("Slice should be binary inside the ROI", ImageCheck.isBinary(sliceImage));
+	}
+
 	@Test
 	public void testIsVoxelIsotropicReturnsFalseIfImageIsNull() throws Exception {
 		boolean result = ImageCheck.isVoxelIsotropic(null, 0.0);
@@ -0,0 +1,284 @@
+package org.bonej.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileSaver;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Unit tests for the MappedVolume class
+ */
+public class MappedVolumeTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testAllocateThrowsIllegalArgumentExceptionIfBitDepthIsInvalid() throws Exception {
+		MappedVolume.allocate(2, 2, 2, 24);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMapThrowsIllegalArgumentExceptionIfFileIsTooSmall() throws Exception {
+		File file = temporaryFolder.newFile();
+		writeBytes(file, new byte[15]);
+
+		MappedVolume.map(file, 0, 0, 2, 2, 2, 16, ByteOrder.BIG_ENDIAN, false);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testWriteSliceThrowsIllegalStateExceptionIfReadOnly() throws Exception {
+		File file = temporaryFolder.newFile();
+		writeBytes(file, new byte[8]);
+
+		try (MappedVolume volume = MappedVolume.map(file, 0, 0, 2, 2, 2, 8, ByteOrder.BIG_ENDIAN, false)) {
+			volume.writeSlice(0, new byte[4]);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testWriteRegionThrowsIllegalArgumentExceptionIfRegionDoesNotFit() throws Exception {
+		try (MappedVolume volume = MappedVolume.create(temporaryFolder.newFile(), 3, 3, 1, 32)) {
+			volume.writeRegion(0, 2, 0, 2, 1, new float[2], 2, 0);
+		}
+	}
+
+	@Test
+	public void testCreateWritesRawFile() throws Exception {
+		File file = temporaryFolder.newFile();
+		final float[] values = { 1, 2, 3, 4, 5, 6, 7, 8, 9 };
+
+		try (MappedVolume volume = MappedVolume.create(file, 4, 3, 2, 32)) {
+			// copy the lower right 2x2 corner of the 3x3 values
+			volume.writeRegion(1, 1, 0, 2, 2, values, 3, 4);
+			volume.flush();
+		}
+
+		assertEquals("Wrong file size", 4L * 3 * 2 * 4, file.length());
+		try (MappedVolume volume = MappedVolume.map(file, 0, 0, 4, 3, 2, 32, ByteOrder.BIG_ENDIAN, false)) {
+			assertArrayEquals("First slice should be untouched", new float[12], (float[]) volume.getSlice(0),
+					0.0f);
+			assertArrayEquals("Wrong voxels in the region", new float[] { 0, 5, 6, 0, 0, 8, 9, 0, 0, 0, 0, 0 },
+					(float[]) volume.getSlice(1), 0.0f);
+		}
+	}
+
+	@Test
+	public void testReadRegion() throws Exception {
+		try (MappedVolume volume = MappedVolume.create(temporaryFolder.newFile(), 3, 2, 2, 16)) {
+			volume.writeSlice(1, new short[] { 1, 2, 3, 4, 5, 6 });
+
+			short[] region = new short[5];
+			volume.readRegion(1, 1, 0, 2, 2, region, 2, 1);
+
+			assertArrayEquals("Wrong region", new short[] { 0, 2, 3, 5, 6 }, region);
+		}
+	}
+
+	@Test
+	public void testMapRawFileWithHeaderAndGaps() throws Exception {
+		File file = temporaryFolder.newFile();
+		// 3 byte header, 2x1 slices of little-endian shorts, 1 byte gap
+		ByteBuffer buffer = ByteBuffer.allocate(3 + 4 + 1 + 4).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.position(3);
+		buffer.putShort((short) 1).putShort((short) 0xFFFF);
+		buffer.position(8);
+		buffer.putShort((short) 300).putShort((short) 4);
+		writeBytes(file, buffer.array());
+
+		try (MappedVolume volume = MappedVolume.map(file, 3, 1, 2, 1, 2, 16, ByteOrder.LITTLE_ENDIAN, true)) {
+			assertArrayEquals("Wrong first slice", new short[] { 1, (short) 0xFFFF }, (short[]) volume.getSlice(0));
+			assertArrayEquals("Wrong second slice", new short[] { 300, 4 }, (short[]) volume.getSlice(1));
+
+			volume.writeSlice(1, new short[] { 7, 8 });
+			volume.flush();
+		}
+
+		try (MappedVolume volume = MappedVolume.map(file, 3, 1, 2, 1, 2, 16, ByteOrder.LITTLE_ENDIAN, false)) {
+			assertArrayEquals("Slice should have been written to the file", new short[] { 7, 8 },
+					(short[]) volume.getSlice(1));
+		}
+	}
+
+	@Test
+	public void testMapTiff() throws Exception {
+		ImageStack stack = new ImageStack(5, 4);
+		for (int z = 0; z < 3; z++) {
+			short[] pixels = new short[20];
+			for (int i = 0; i < pixels.length; i++) {
+				pixels[i] = (short) (z * 1000 + i);
+			}
+			stack.addSlice(new ShortProcessor(5, 4, pixels, null));
+		}
+		File file = new File(temporaryFolder.getRoot(), "stack.tif");
+		assertTrue("Saving the test image failed", new FileSaver(new ImagePlus("", stack)).saveAsTiffStack(file
+				.getPath()));
+
+		try (MappedVolume volume = MappedVolume.mapTiff(file, false)) {
+			assertEquals("Wrong bit depth", 16, volume.getBitDepth());
+			assertEquals("Wrong depth", 3, volume.getDepth());
+			for (int z = 0; z < 3; z++) {
+				assertArrayEquals("Wrong voxels on slice " + z, (short[]) stack.getPixels(z + 1),
+						(short[]) volume.getSlice(z));
+			}
+		}
+	}
+
+	@Test
+	public void testCopyOf() throws Exception {
+		ImageStack stack = new ImageStack(3, 2);
+		stack.addSlice(new FloatProcessor(3, 2, new float[] { 1, 2, 3, 4, 5, 6 }));
+
+		MappedVolume volume = MappedVolume.copyOf(stack);
+
+		assertArrayEquals("Wrong voxels", new float[] { 1, 2, 3, 4, 5, 6 }, (float[]) volume.getSlice(0), 0.0f);
+	}
+
+	@Test
+	public void testStackWritesBackEvictedSlices() throws Exception {
+		MappedVolume volume = MappedVolume.allocate(2, 2, 3, 8);
+		ImageStack stack = volume.toStack(1);
+
+		stack.getProcessor(1).set(0, 0, 42);
+		assertEquals("Slice should be cached", 42, stack.getProcessor(1).get(0, 0));
+		stack.getProcessor(2).set(1, 1, 17);
+
+		assertEquals("Evicted slice should be written back", 42, ((byte[]) volume.getSlice(0))[0]);
+		assertEquals("Cached slice should not be written yet", 0, ((byte[]) volume.getSlice(1))[3]);
+
+		MappedVolume.flush(stack);
+		assertEquals("Flush should write the cached slices", 17, ((byte[]) volume.getSlice(1))[3]);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testReadOnlyStackThrowsIllegalStateExceptionIfModifiedSliceIsEvicted() throws Exception {
+		File file = temporaryFolder.newFile();
+		writeBytes(file, new byte[12]);
+
+		try (MappedVolume volume = MappedVolume.map(file, 0, 0, 2, 2, 3, 8, ByteOrder.BIG_ENDIAN, false)) {
+			ImageStack stack = volume.toStack(1);
+			stack.getProcessor(1).set(0, 0, 42);
+
+			stack.getProcessor(2);
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testReadOnlyStackSetPixelsThrowsIllegalStateException() throws Exception {
+		File file = temporaryFolder.newFile();
+		writeBytes(file, new byte[8]);
+
+		try (MappedVolume volume = MappedVolume.map(file, 0, 0, 2, 2, 2, 8, ByteOrder.BIG_ENDIAN, false)) {
+			volume.toStack(1).setPixels(new byte[4], 1);
+		}
+	}
+
+	@Test
+	public void testReadOnlyStackDoesNotReadEvictedSlicesAgain() throws Exception {
+		File file = temporaryFolder.newFile();
+		writeBytes(file, new byte[12]);
+
+		try (MappedVolume volume = MappedVolume.map(file, 0, 0, 2, 2, 3, 8, ByteOrder.BIG_ENDIAN, false)) {
+			MappedVolume spy = spy(volume);
+			ImageStack stack = spy.toStack(1);
+
+			stack.getPixels(1);
+			stack.getPixels(2);
+			stack.getPixels(3);
+			MappedVolume.flush(stack);
+
+			// each slice is read once, when it's first requested
+			verify(spy, times(3)).readSlice(anyInt(), any());
+			verify(spy, times(1)).getSlice(0);
+			verify(spy, times(1)).getSlice(1);
+		}
+	}
+
+	@Test
+	public void testStackWritesOnlyModifiedSlices() throws Exception {
+		MappedVolume spy = spy(MappedVolume.allocate(2, 2, 3, 8));
+		ImageStack stack = spy.toStack(1);
+
+		stack.getPixels(1);
+		stack.getProcessor(2).set(0, 0, 5);
+		stack.getPixels(3);
+		stack.setPixels(new byte[] { 1, 2, 3, 4 }, 1);
+		MappedVolume.flush(stack);
+
+		verify(spy, times(1)).writeSlice(eq(0), any());
+		verify(spy, times(1)).writeSlice(eq(1), any());
+		verify(spy, never()).writeSlice(eq(2), any());
+		assertEquals("Set pixels should be written", 4, ((byte[]) spy.getSlice(0))[3]);
+	}
+
+	@Test
+	public void testStackKeepsChangesMadeAfterEviction() throws Exception {
+		MappedVolume volume = MappedVolume.allocate(2, 2, 3, 8);
+		ImageStack stack = volume.toStack(1);
+
+		final byte[] pixels = (byte[]) stack.getPixels(1);
+		stack.getPixels(2);
+		pixels[0] = 42;
+
+		assertSame("Modified evicted array should be returned", pixels, stack.getPixels(1));
+		stack.getPixels(3);
+		assertEquals("Modified evicted array should be written back", 42, ((byte[]) volume.getSlice(0))[0]);
+
+		pixels[1] = 17;
+		MappedVolume.flush(stack);
+		assertEquals("Flush should write the modified evicted array", 17, ((byte[]) volume.getSlice(0))[1]);
+	}
+
+	@Test
+	public void testStackRereadsEvictedLastSlice() throws Exception {
+		MappedVolume volume = MappedVolume.allocate(2, 2, 2, 8);
+		ImageStack stack = volume.toStack(1);
+
+		final Object pixels = stack.getPixels(1);
+		assertSame("Same slice should return the cached array", pixels, stack.getPixels(1));
+		stack.getPixels(2);
+		volume.writeSlice(0, new byte[] { 9, 0, 0, 0 });
+
+		assertEquals("Evicted slice should be read again", 9, ((byte[]) stack.getPixels(1))[0]);
+	}
+
+	@Test
+	public void testToImagePlus() throws Exception {
+		MappedVolume volume = MappedVolume.allocate(4, 3, 5, 16);
+
+		ImagePlus image = volume.toImagePlus("mapped");
+
+		assertEquals("Wrong number of slices", 5, image.getStackSize());
+		assertEquals("Wrong bit depth", 16, image.getBitDepth());
+		assertTrue("Stack should be virtual", image.getStack().isVirtual());
+	}
+
+	// region -- Helper methods --
+	private static void writeBytes(File file, byte[] bytes) throws Exception {
+		try (FileOutputStream stream = new FileOutputStream(file)) {
+			stream.write(bytes);
+		}
+	}
+	// endregion
+}
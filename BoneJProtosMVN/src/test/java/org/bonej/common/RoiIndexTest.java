@@ -0,0 +1,80 @@
+package org.bonej.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ij.gui.Roi;
+import ij.plugin.frame.RoiManager;
+
+/**
+ * Unit tests for the RoiIndex class
+ */
+public class RoiIndexTest {
+	private final RoiManager mockRoiManager = mock(RoiManager.class);
+	private final Roi slice2Roi = createRoi("0002-0000-0001");
+	private final Roi allSlicesRoi = createRoi("ALL_SLICES");
+	private final Roi slice3Roi = createRoi("0003-0000-0001");
+	private final Roi anotherSlice2Roi = createRoi("0002-0000-0002");
+
+	@Before
+	public void setUp() {
+		Roi noNameRoi = new Roi(0, 0, 1, 1);
+		Roi rois[] = {slice2Roi, allSlicesRoi, slice3Roi, noNameRoi, anotherSlice2Roi};
+
+		when(mockRoiManager.getSliceNumber(anyString())).thenCallRealMethod();
+		when(mockRoiManager.getRoisAsArray()).thenReturn(rois);
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void testConstructorThrowsNullPointerExceptionIfRoiManagerIsNull() throws Exception {
+		new RoiIndex(null);
+	}
+
+	@Test
+	public void testIndexIsBuiltWithOnePass() throws Exception {
+		RoiIndex roiIndex = new RoiIndex(mockRoiManager);
+		for (int slice = 1; slice <= 10; slice++) {
+			roiIndex.getSliceRois(slice);
+		}
+
+		verify(mockRoiManager, times(1)).getRoisAsArray();
+		assertEquals("ROI without a name should not be indexed", 4, roiIndex.size());
+		assertTrue("Index should have a ROI active on all slices", roiIndex.hasAllSliceRois());
+	}
+
+	@Test
+	public void testGetSliceRoisKeepsRoiManagerOrder() throws Exception {
+		RoiIndex roiIndex = new RoiIndex(mockRoiManager);
+
+		ArrayList<Roi> sliceRois = roiIndex.getSliceRois(2);
+
+		assertEquals("Wrong number of ROIs returned", 3, sliceRois.size());
+		assertEquals("Wrong ROI returned, or ROIs in wrong order", slice2Roi, sliceRois.get(0));
+		assertEquals("Wrong ROI returned, or ROIs in wrong order", allSlicesRoi, sliceRois.get(1));
+		assertEquals("Wrong ROI returned, or ROIs in wrong order", anotherSlice2Roi, sliceRois.get(2));
+	}
+
+	@Test
+	public void testGetSliceRoisReturnsAllSliceRoisOnEmptySlice() throws Exception {
+		RoiIndex roiIndex = new RoiIndex(mockRoiManager);
+
+		ArrayList<Roi> sliceRois = roiIndex.getSliceRois(5);
+
+		assertEquals("Wrong number of ROIs returned", 1, sliceRois.size());
+		assertEquals("Wrong ROI returned", allSlicesRoi, sliceRois.get(0));
+		assertFalse("Slice with a ROI active on all slices is not empty", roiIndex.isSliceEmpty(5));
+	}
+
+	private static Roi createRoi(String name) {
+		Roi roi = new Roi(10, 10, 10, 10);
+		roi.setName(name);
+		return roi;
+	}
+}
@@ -0,0 +1,167 @@
+package org.bonej.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ij.ImageStack;
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.plugin.frame.RoiManager;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+
+/**
+ * Unit tests for the RoiMask class
+ */
+public class RoiMaskTest {
+	private static final int WIDTH = 10;
+	private static final int HEIGHT = 10;
+	private static final int DEPTH = 5;
+
+	private final RoiManager mockRoiManager = mock(RoiManager.class);
+	private ImageStack stack;
+
+	@Before
+	public void setUp() {
+		stack = new ImageStack(WIDTH, HEIGHT);
+		for (int z = 0; z < DEPTH; z++) {
+			ByteProcessor processor = new ByteProcessor(WIDTH, HEIGHT);
+			processor.setColor(z + 1);
+			processor.fill();
+			stack.addSlice("", processor);
+		}
+
+		when(mockRoiManager.getSliceNumber(anyString())).thenCallRealMethod();
+	}
+
+	@Test
+	public void testCompileReturnsNullIfArgumentsAreNull() throws Exception {
+		assertNull("Null RoiManager should return null", RoiMask.compile(null, stack));
+		assertNull("Null stack should return null", RoiMask.compile(mockRoiManager, null));
+	}
+
+	@Test
+	public void testCountUnionOfOverlappingRois() throws Exception {
+		Roi roi1 = createRoi(new Roi(0, 0, 4, 4), "0002-0000-0001");
+		Roi roi2 = createRoi(new Roi(2, 2, 4, 4), "0002-0000-0002");
+		setRois(roi1, roi2);
+
+		RoiMask mask = RoiMask.compile(mockRoiManager, stack);
+
+		assertEquals("Overlapping voxels should be counted once", 28, mask.count());
+		assertTrue("Voxel inside the ROIs is not in the mask", mask.contains(5, 5, 2));
+		assertFalse("Voxel on another slice is in the mask", mask.contains(5, 5, 3));
+	}
+
+	@Test
+	public void testAllSliceRoisShareSpans() throws Exception {
+		setRois(createRoi(new Roi(1, 1, 2, 2), "ALL_SLICES"));
+
+		RoiMask mask = RoiMask.compile(mockRoiManager, stack);
+
+		assertEquals("Wrong number of voxels", DEPTH * 4, mask.count());
+		assertSame("Slices without own ROIs should share the spans", mask.getSliceSpans(1), mask.getSliceSpans(DEPTH));
+	}
+
+	@Test
+	public void testMaskFollowsRoiShape() throws Exception {
+		Roi oval = createRoi(new OvalRoi(0, 0, WIDTH, HEIGHT), "0001-0000-0001");
+		setRois(oval);
+
+		RoiMask mask = RoiMask.compile(mockRoiManager, stack);
+
+		assertTrue("Mask should have fewer voxels than the bounds of the ROI", mask.count() < WIDTH * HEIGHT);
+		assertFalse("Corner outside the oval is in the mask", mask.contains(0, 0, 1));
+	}
+
+	@Test
+	public void testCountVoxels() throws Exception {
+		setRois(createRoi(new Roi(0, 0, 2, 2), "ALL_SLICES"));
+		RoiMask mask = RoiMask.compile(mockRoiManager, stack);
+
+		// the voxels of each slice have value of the slice number
+		assertEquals("Wrong number of voxels in range", 8, mask.countVoxels(stack, 2, 3));
+	}
+
+	@Test
+	public void testGetStatistics() throws Exception {
+		setRois(createRoi(new Roi(0, 0, 2, 2), "0001-0000-0001"), createRoi(new Roi(0, 0, 2, 2), "0003-0000-0001"));
+		RoiMask mask = RoiMask.compile(mockRoiManager, stack);
+
+		RoiMask.Statistics statistics = mask.getStatistics(stack);
+
+		assertNotNull("Non-empty mask should have statistics", statistics);
+		assertEquals("Wrong count", 8, statistics.count);
+		assertEquals("Wrong mean", 2.0, statistics.mean, 1e-12);
+		assertEquals("Wrong min", 1.0, statistics.min, 1e-12);
+		assertEquals("Wrong max", 3.0, statistics.max, 1e-12);
+	}
+
+	@Test
+	public void testGetStatisticsStdDevOfLargeValues() throws Exception {
+		// The values are large compared to their spread, which makes the
+		// naive sum of squares lose all precision
+		final int size = 100;
+		final double offset = 1.0e7;
+		ImageStack floatStack = new ImageStack(size, size);
+		for (int z = 0; z < DEPTH; z++) {
+			float[] pixels = new float[size * size];
+			for (int i = 0; i < pixels.length; i++) {
+				pixels[i] = (float) (offset + i % 2);
+			}
+			floatStack.addSlice("", new FloatProcessor(size, size, pixels, null));
+		}
+		setRois(createRoi(new Roi(0, 0, size, size), "0001-0000-0001"));
+		RoiMask mask = RoiMask.compile(mockRoiManager, floatStack);
+		final long n = size * size;
+
+		RoiMask.Statistics statistics = mask.getStatistics(floatStack);
+
+		assertEquals("Wrong mean", offset + 0.5, statistics.mean, 1e-6);
+		assertEquals("Wrong standard deviation", Math.sqrt(0.25 * n / (n - 1)), statistics.stdDev, 1e-6);
+	}
+
+	@Test
+	public void testCropKeepsRelativePositions() throws Exception {
+		final int padding = 1;
+		setRois(createRoi(new Roi(2, 2, 2, 2), "0002-0000-0001"), createRoi(new Roi(6, 5, 1, 1), "0004-0000-0001"));
+		RoiMask mask = RoiMask.compile(mockRoiManager, stack);
+
+		ImageStack cropped = mask.crop(stack, true, 0xFF, padding);
+
+		assertEquals("Wrong width", 5 + 2 * padding, cropped.getWidth());
+		assertEquals("Wrong height", 4 + 2 * padding, cropped.getHeight());
+		assertEquals("Wrong depth", 2 + 2 * padding, cropped.getSize());
+		assertEquals("Voxel of the first ROI was not copied", 2, cropped.getProcessor(2).get(padding, padding));
+		assertEquals("Voxel of the second ROI was not copied", 4, cropped.getProcessor(3).get(4 + padding, 3 + padding));
+		assertEquals("Voxel outside the ROIs should be filled", 0xFF, cropped.getProcessor(3).get(padding, padding));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCountVoxelsThrowsIllegalArgumentExceptionIfStackDoesNotMatch() throws Exception {
+		setRois(createRoi(new Roi(0, 0, 2, 2), "ALL_SLICES"));
+		RoiMask mask = RoiMask.compile(mockRoiManager, stack);
+
+		mask.countVoxels(new ImageStack(WIDTH, HEIGHT + 1), 0, 255);
+	}
+
+	// region -- Helper methods --
+	private void setRois(Roi... rois) {
+		when(mockRoiManager.getCount()).thenReturn(rois.length);
+		when(mockRoiManager.getRoisAsArray()).thenReturn(rois);
+	}
+
+	private static Roi createRoi(Roi roi, String name) {
+		roi.setName(name);
+		return roi;
+	}
+	// endregion
+}
@@ -1,7 +1,9 @@
 package org.bonej.common;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
 import static org.mockito.Mockito.*;
 
 import java.awt.*;
@@ -16,9 +18,14 @@ import protoOps.testImageCreators.StaticTestImageHelper;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.gui.PolygonRoi;
+import ij.gui.OvalRoi;
 import ij.gui.Roi;
 import ij.plugin.frame.RoiManager;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 
 /**
  * Unit tests for the RoiUtil class
@@ -330,6 +337,130 @@ public class RoiUtilTest {
         assertEquals("Cropped stack has wrong depth", 1, resultStack.getSize());
     }
 
+    @Test
+    public void testCropStackParallel() throws Exception
+    {
+        final int PADDING = 2;
+
+        Roi roi1 = new Roi(2, 2, 3, 3);
+        roi1.setName("0002-0000-0001");
+        Roi roi2 = new Roi(4, 3, 4, 5);
+        roi2.setName("0005-0000-0001");
+        Roi allActive = new Roi(1, 6, 2, 2);
+        allActive.setName("All active");
+        Roi rois[] = {roi1, roi2, allActive};
+
+        when(mockRoiManager.getCount()).thenReturn(rois.length);
+        when(mockRoiManager.getSliceNumber(anyString())).thenCallRealMethod();
+        when(mockRoiManager.getRoisAsArray()).thenReturn(rois);
+
+        ImagePlus image = StaticTestImageHelper.createCuboid(10, 10, 10, 0x40, 1);
+        ImageStack originalStack = image.getStack();
+
+        ImageStack serialStack = RoiUtil.cropToRois(mockRoiManager, originalStack, true, 0x10, PADDING, false);
+        ImageStack parallelStack = RoiUtil.cropToRois(mockRoiManager, originalStack, true, 0x10, PADDING, true);
+
+        assertEquals("Parallel crop has wrong width", serialStack.getWidth(), parallelStack.getWidth());
+        assertEquals("Parallel crop has wrong height", serialStack.getHeight(), parallelStack.getHeight());
+        assertEquals("Parallel crop has wrong depth", serialStack.getSize(), parallelStack.getSize());
+        for (int z = 1; z <= serialStack.getSize(); z++) {
+            assertArrayEquals("Slice " + z + " of parallel crop differs", (byte[]) serialStack.getPixels(z),
+                    (byte[]) parallelStack.getPixels(z));
+        }
+
+        assertNotSame("Padding slices should not share their pixels", parallelStack.getPixels(1),
+                parallelStack.getPixels(parallelStack.getSize()));
+        parallelStack.getProcessor(1).set(0, 0, 0x20);
+        assertEquals("Writing a padding slice should not change the others", 0x10,
+                parallelStack.getProcessor(parallelStack.getSize()).get(0, 0));
+    }
+
+    @Test
+    public void testCropToRoisLazily() throws Exception
+    {
+        final int PADDING = 1;
+
+        Roi roi1 = new Roi(2, 2, 3, 3);
+        roi1.setName("0002-0000-0001");
+        Roi roi2 = new Roi(4, 3, 4, 5);
+        roi2.setName("0005-0000-0001");
+        Roi rois[] = {roi1, roi2};
+
+        when(mockRoiManager.getCount()).thenReturn(rois.length);
+        when(mockRoiManager.getSliceNumber(anyString())).thenCallRealMethod();
+        when(mockRoiManager.getRoisAsArray()).thenReturn(rois);
+
+        ImagePlus image = StaticTestImageHelper.createCuboid(10, 10, 10, 0x40, 1);
+        ImageStack originalStack = image.getStack();
+
+        // Null RoiManager
+        assertEquals(null, RoiUtil.cropToRoisLazily(null, originalStack, true, 0x10, PADDING));
+
+        ImageStack croppedStack = RoiUtil.cropToRois(mockRoiManager, originalStack, true, 0x10, PADDING);
+        ImageStack lazyStack = RoiUtil.cropToRoisLazily(mockRoiManager, originalStack, true, 0x10, PADDING);
+
+        assertEquals("Lazy crop should be virtual", true, lazyStack.isVirtual());
+        assertEquals("Lazy crop has wrong width", croppedStack.getWidth(), lazyStack.getWidth());
+        assertEquals("Lazy crop has wrong height", croppedStack.getHeight(), lazyStack.getHeight());
+        assertEquals("Lazy crop has wrong depth", croppedStack.getSize(), lazyStack.getSize());
+        for (int z = 1; z <= croppedStack.getSize(); z++) {
+            assertArrayEquals("Slice " + z + " of lazy crop differs", (byte[]) croppedStack.getPixels(z),
+                    (byte[]) lazyStack.getPixels(z));
+        }
+
+        ImagePlus lazyImage = new ImagePlus("Lazy", lazyStack);
+        assertEquals("ImagePlus has wrong number of slices", croppedStack.getSize(), lazyImage.getStackSize());
+    }
+
+    @Test
+    public void testCropToRoisLazilyDoesNotReadSourceForPaddingSlices() throws Exception
+    {
+        Roi roi = new Roi(2, 2, 3, 3);
+        roi.setName("0002-0000-0001");
+        Roi rois[] = {roi};
+
+        when(mockRoiManager.getCount()).thenReturn(rois.length);
+        when(mockRoiManager.getSliceNumber(anyString())).thenCallRealMethod();
+        when(mockRoiManager.getRoisAsArray()).thenReturn(rois);
+
+        ImageStack sourceStack = spy(StaticTestImageHelper.createCuboid(10, 10, 10, 0x40, 1).getStack());
+        ImageStack lazyStack = RoiUtil.cropToRoisLazily(mockRoiManager, sourceStack, true, 0x10, 2);
+
+        final Object firstPadding = lazyStack.getPixels(1);
+        final Object lastPadding = lazyStack.getPixels(lazyStack.getSize());
+
+        verify(sourceStack, never()).getProcessor(anyInt());
+        verify(sourceStack, never()).getPixels(anyInt());
+        assertNotSame("Padding slices should not share their pixels", firstPadding, lastPadding);
+        assertEquals("Padding slice should be filled", 0x10, ((byte[]) firstPadding)[0]);
+    }
+
+    @Test
+    public void testCropToRoisCopiesOnlyPixelsInsideRoiShape() throws Exception
+    {
+        final int BACKGROUND_COLOR = 0x10;
+
+        Roi oval = new OvalRoi(2, 2, 6, 6);
+        oval.setName("0002-0000-0001");
+        Roi square = new Roi(8, 8, 2, 2);
+        square.setName("0002-0000-0002");
+        Roi rois[] = {oval, square};
+
+        when(mockRoiManager.getCount()).thenReturn(rois.length);
+        when(mockRoiManager.getSliceNumber(anyString())).thenCallRealMethod();
+        when(mockRoiManager.getRoisAsArray()).thenReturn(rois);
+
+        ImagePlus image = StaticTestImageHelper.createCuboid(10, 10, 10, 0x40, 0);
+        ImageStack croppedStack = RoiUtil.cropToRois(mockRoiManager, image.getStack(), true, BACKGROUND_COLOR, 0);
+        ImageProcessor croppedProcessor = croppedStack.getProcessor(1);
+
+        assertEquals("Cropped stack has wrong width", 8, croppedStack.getWidth());
+        assertEquals("Pixel in the center of the oval was not copied", 0x40, croppedProcessor.get(3, 3));
+        assertEquals("Pixel in the corner of the oval bounds was copied", BACKGROUND_COLOR,
+                croppedProcessor.get(0, 0));
+        assertEquals("Pixel of the second ROI was not copied to its position", 0x40, croppedProcessor.get(6, 6));
+    }
+
     /**
      * Checks that padding has moved all of the pixels to correct coordinates
      * @param   croppedStack  The cropped image without padding
@@ -464,4 +595,47 @@ public class RoiUtilTest {
         int foregroundCount = countColorPixels(stack, TEST_COLOR);
         assertEquals(TEST_COLOR_COUNT, foregroundCount);
     }
-}
\ No newline at end of file
+
+    /**
+     * Tests copying directly between the pixel arrays of real processors with a mask
+     */
+    @Test
+    public void testCopyRoiWithMaskCopiesPixelArrays() throws Exception
+    {
+        final int TEST_COLOR = 0x20;
+        final int TEST_COLOR_COUNT = 75;
+        final int PADDING = 1;
+
+        // Create a mask from an L-shaped polygon
+        Polygon polygon = new Polygon();
+        polygon.addPoint(0, 0);
+        polygon.addPoint(10, 0);
+        polygon.addPoint(10, 5);
+        polygon.addPoint(5, 5);
+        polygon.addPoint(5, 10);
+        polygon.addPoint(0, 10);
+
+        ImageProcessor[] sources = {new ByteProcessor(20, 20), new ShortProcessor(20, 20), new FloatProcessor(20, 20)};
+        for (ImageProcessor source : sources) {
+            source.setValue(TEST_COLOR);
+            source.fill();
+            source.setRoi(new PolygonRoi(polygon, Roi.POLYGON));
+            ImageProcessor target = source.createProcessor(12, 12);
+
+            RoiUtil.copyRoiWithMask(source, target, 0, 0, 10, 10, PADDING);
+
+            int count = 0;
+            for (int y = 0; y < target.getHeight(); y++) {
+                for (int x = 0; x < target.getWidth(); x++) {
+                    if (target.getPixelValue(x, y) == TEST_COLOR) {
+                        count++;
+                    }
+                }
+            }
+            assertEquals("Wrong number of pixels copied", TEST_COLOR_COUNT, count);
+            assertEquals("Padding should not be copied", 0, target.getPixelValue(0, 0), 0.0);
+            assertEquals("Pixels were copied to the wrong position", TEST_COLOR, target.getPixelValue(PADDING, PADDING),
+                    0.0);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.bonej.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Polygon;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Unit tests for the ScanlineSpans class
+ */
+public class ScanlineSpansTest {
+	@Test
+	public void testFromRectangle() throws Exception {
+		ScanlineSpans spans = ScanlineSpans.fromRectangle(2, 3, 7, 5);
+
+		assertEquals("Wrong number of pixels in spans", 10, spans.count());
+	}
+
+	@Test
+	public void testFromRectangleWithNoArea() throws Exception {
+		assertTrue("Rectangle with no width should have no spans", ScanlineSpans.fromRectangle(2, 3, 2, 5).isEmpty());
+		assertTrue("Rectangle with no height should have no spans", ScanlineSpans.fromRectangle(2, 3, 7, 3).isEmpty());
+	}
+
+	@Test
+	public void testFromMaskCountsPixelsOfLShape() throws Exception {
+		ImageProcessor mask = createLShapeMask();
+
+		ScanlineSpans spans = ScanlineSpans.fromMask(mask, 0, 0, 0, 0, 10, 10);
+
+		assertEquals("Wrong number of pixels in spans", 75, spans.count());
+	}
+
+	@Test
+	public void testFromMaskIsClippedToArea() throws Exception {
+		ImageProcessor mask = createLShapeMask();
+
+		// only the rows [5, 10) which have pixels on the columns [0, 5)
+		ScanlineSpans spans = ScanlineSpans.fromMask(mask, 0, 0, 0, 5, 100, 100);
+
+		assertEquals("Wrong number of pixels in clipped spans", 25, spans.count());
+	}
+
+	@Test
+	public void testCopyShiftsPixels() throws Exception {
+		final short[] source = {1, 2, 3, 4, 5, 6, 7, 8, 9};
+		final short[] target = new short[4];
+		final short[] expected = {5, 6, 8, 9};
+		ScanlineSpans spans = ScanlineSpans.fromRectangle(1, 1, 3, 3);
+
+		spans.copy(source, 3, target, 2, -1, -1);
+
+		assertArrayEquals("Pixels were copied to wrong positions", expected, target);
+	}
+
+	@Test
+	public void testCopyWithMask() throws Exception {
+		final float[] source = new float[100];
+		final float[] target = new float[100];
+		Arrays.fill(source, 1.0f);
+		ScanlineSpans spans = ScanlineSpans.fromMask(createLShapeMask(), 0, 0, 0, 0, 10, 10);
+
+		spans.copy(source, 10, target, 10, 0, 0);
+
+		assertEquals("Pixel inside mask was not copied", 1.0f, target[0], 0.0f);
+		assertEquals("Pixel outside mask was copied", 0.0f, target[9 * 10 + 9], 0.0f);
+	}
+
+	@Test
+	public void testUnionMergesOverlappingSpans() throws Exception {
+		ScanlineSpans spans = ScanlineSpans.union(Arrays.asList(ScanlineSpans.fromRectangle(0, 0, 4, 4),
+				ScanlineSpans.fromRectangle(2, 2, 6, 6), ScanlineSpans.fromRectangle(8, 0, 9, 1)));
+
+		assertEquals("Wrong number of pixels in union", 29, spans.count());
+		assertTrue("Pixel of the overlap is not in the union", spans.contains(3, 3));
+		assertFalse("Pixel between the spans is in the union", spans.contains(7, 0));
+	}
+
+	private static ImageProcessor createLShapeMask() {
+		Polygon polygon = new Polygon();
+		polygon.addPoint(0, 0);
+		polygon.addPoint(10, 0);
+		polygon.addPoint(10, 5);
+		polygon.addPoint(5, 5);
+		polygon.addPoint(5, 10);
+		polygon.addPoint(0, 10);
+
+		ImageProcessor ip = new ByteProcessor(10, 10);
+		ip.setRoi(new PolygonRoi(polygon, Roi.POLYGON));
+		return ip.getMask();
+	}
+}
@@ -0,0 +1,74 @@
+package org.bonej.common;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the StreamingStatistics class
+ */
+public class StreamingStatisticsTest {
+	private static final double DELTA = 1e-12;
+
+	@Test
+	public void testEmptyStatisticsAreNaN() throws Exception {
+		StreamingStatistics statistics = new StreamingStatistics();
+
+		assertEquals("Empty statistics should have no values", 0, statistics.getCount());
+		assertTrue("Mean of no values should be NaN", Double.isNaN(statistics.getMean()));
+		assertTrue("Max of no values should be NaN", Double.isNaN(statistics.getMax()));
+		assertNull("Statistics without histogram should return null", statistics.getHistogram());
+	}
+
+	@Test
+	public void testStatistics() throws Exception {
+		StreamingStatistics statistics = new StreamingStatistics();
+		for (double value : new double[] { 2, 4, 4, 4, 5, 5, 7, 9, Double.NaN }) {
+			statistics.add(value);
+		}
+
+		assertEquals("NaN should be ignored", 8, statistics.getCount());
+		assertEquals("Wrong mean", 5.0, statistics.getMean(), DELTA);
+		assertEquals("Wrong sample variance", 32.0 / 7.0, statistics.getVariance(), DELTA);
+		assertEquals("Wrong min", 2.0, statistics.getMin(), DELTA);
+		assertEquals("Wrong max", 9.0, statistics.getMax(), DELTA);
+	}
+
+	@Test
+	public void testMergedStatisticsEqualSequential() throws Exception {
+		StreamingStatistics sequential = new StreamingStatistics(4, 0.0, 8.0);
+		StreamingStatistics first = new StreamingStatistics(4, 0.0, 8.0);
+		StreamingStatistics second = StreamingStatistics.emptyCopyOf(first);
+		for (int i = 0; i < 10; i++) {
+			sequential.add(i * 0.9);
+			(i < 3 ? first : second).add(i * 0.9);
+		}
+
+		first.add(second);
+
+		assertEquals("Wrong count after merge", sequential.getCount(), first.getCount());
+		assertEquals("Wrong mean after merge", sequential.getMean(), first.getMean(), DELTA);
+		assertEquals("Wrong variance after merge", sequential.getVariance(), first.getVariance(), DELTA);
+		assertEquals("Wrong max after merge", sequential.getMax(), first.getMax(), DELTA);
+		assertArrayEquals("Wrong histogram after merge", sequential.getHistogram(), first.getHistogram());
+	}
+
+	@Test
+	public void testHistogramClampsValuesOutsideRange() throws Exception {
+		StreamingStatistics statistics = new StreamingStatistics(2, 0.0, 1.0);
+
+		statistics.add(-1.0);
+		statistics.add(0.75);
+		statistics.add(2.0);
+
+		assertArrayEquals("Wrong histogram", new long[] { 1, 2 }, statistics.getHistogram());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testAddThrowsIllegalArgumentExceptionIfHistogramsDiffer() throws Exception {
+		new StreamingStatistics(2, 0.0, 1.0).add(new StreamingStatistics());
+	}
+}
@@ -0,0 +1,405 @@
+package protoOps.localThickness;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.bonej.common.Common;
+import org.bonej.common.StreamingStatistics;
+import org.junit.Test;
+
+import protoOps.testImageCreators.StaticTestImageHelper;
+import sc.fiji.localThickness.LocalThicknessWrapper;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.StackStatistics;
+
+/**
+ * Unit tests for the LocalThickness class
+ */
+public class LocalThicknessTest {
+	@Test(expected = NullPointerException.class)
+	public void testProcessImageThrowsNullPointerExceptionIfImageIsNull() throws Exception {
+		new LocalThickness().processImage(null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testProcessImageThrowsIllegalArgumentExceptionIfImageIsNot8Bit() throws Exception {
+		new LocalThickness().processImage(new ImagePlus("", new ij.process.FloatProcessor(5, 5)));
+	}
+
+	@Test
+	public void testSquaredDistanceMapMatchesBruteForce() throws Exception {
+		final int width = 9;
+		final int height = 7;
+		final int depth = 6;
+		final byte[][] pixels = new byte[depth][width * height];
+		final Random random = new Random(0xB0E);
+		for (byte[] slice : pixels) {
+			for (int i = 0; i < slice.length; i++) {
+				slice[i] = (byte) (random.nextInt(5) == 0 ? Common.BINARY_BLACK : Common.BINARY_WHITE);
+			}
+		}
+
+		int[][] map = LocalThickness.squaredDistanceMap(pixels, width, height, true);
+
+		for (int z = 0; z < depth; z++) {
+			for (int i = 0; i < width * height; i++) {
+				assertEquals("Wrong distance at (" + i % width + ", " + i / width + ", " + z + ")",
+						bruteForceDistance(pixels, width, height, i % width, i / width, z), map[z][i]);
+			}
+		}
+	}
+
+	@Test
+	public void testInfinityDoesNotOverflow() throws Exception {
+		assertEquals("Wrong infinity of a small image", 3 * 11 * 11, LocalThickness.infinity(10, 5, 3));
+		assertEquals("Infinity of a huge image should be clamped", Integer.MAX_VALUE / 2,
+				LocalThickness.infinity(50_000, 1, 1));
+	}
+
+	@Test
+	public void testMapMatchesLocalThicknessWrapper() throws Exception {
+		final int size = 12;
+		ImageStack stack = new ImageStack(size, size);
+		final Random random = new Random(0xB0E);
+		for (int z = 0; z < size; z++) {
+			ByteProcessor processor = new ByteProcessor(size, size);
+			for (int i = 0; i < size * size; i++) {
+				processor.set(i, random.nextInt(4) == 0 ? Common.BINARY_BLACK : Common.BINARY_WHITE);
+			}
+			stack.addSlice(processor);
+		}
+		ImagePlus image = new ImagePlus("Random", stack);
+
+		LocalThicknessWrapper wrapper = new LocalThicknessWrapper();
+		wrapper.setSilence(true);
+		wrapper.setShowOptions(false);
+		wrapper.maskThicknessMap = true;
+		wrapper.calibratePixels = true;
+		ImageStack expected = wrapper.processImage(image.duplicate()).getStack();
+		ImageStack actual = new LocalThickness().processImage(image).getStack();
+
+		for (int z = 1; z <= size; z++) {
+			final float[] expectedSlice = (float[]) expected.getPixels(z);
+			final float[] actualSlice = (float[]) actual.getPixels(z);
+			final byte[] pixels = (byte[]) stack.getPixels(z);
+			for (int i = 0; i < expectedSlice.length; i++) {
+				if ((pixels[i] & 0xFF) < LocalThickness.THRESHOLD) {
+					// the masked background is NaN instead of the background
+					// value of the plugin
+					assertTrue("Background should be NaN", Float.isNaN(actualSlice[i]));
+					continue;
+				}
+				assertEquals("Wrong thickness at (" + i % size + ", " + i / size + ", " + z + ")",
+						expectedSlice[i], actualSlice[i], 1e-4);
+			}
+		}
+	}
+
+	/**
+	 * The centre of the largest sphere inside a plate of n voxels is at most
+	 * ceil(n / 2) voxels away from the background, so every voxel of the plate
+	 * gets the thickness 2 * ceil(n / 2).
+	 */
+	@Test
+	public void testThicknessOfPlatesHasExactValues() throws Exception {
+		final float[] expectedThickness = { 2.0f, 2.0f, 4.0f, 4.0f, 6.0f, 6.0f };
+		final int padding = 3;
+
+		for (int n = 1; n <= expectedThickness.length; n++) {
+			ImagePlus image = createPlate(12, 12, n, padding);
+
+			ImageStack result = new LocalThickness().processImage(image).getStack();
+
+			for (int z = 1; z <= result.getSize(); z++) {
+				final boolean inPlate = z > padding && z <= padding + n;
+				for (float value : (float[]) result.getPixels(z)) {
+					if (inPlate) {
+						assertEquals("Wrong thickness in a plate of " + n + " slices", expectedThickness[n - 1],
+								value, 0.0f);
+					} else {
+						assertTrue("Background should be NaN", Float.isNaN(value));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testThicknessOfCubeHasExactValues() throws Exception {
+		ImagePlus image = StaticTestImageHelper.createCuboid(3, 3, 3, Common.BINARY_WHITE, 2);
+		image.getCalibration().pixelWidth = 0.5;
+		image.getCalibration().pixelHeight = 0.5;
+		image.getCalibration().pixelDepth = 0.5;
+
+		ImageStack result = new LocalThickness().processImage(image).getStack();
+		ImageStack stack = image.getStack();
+
+		for (int z = 1; z <= result.getSize(); z++) {
+			final float[] resultSlice = (float[]) result.getPixels(z);
+			final byte[] pixels = (byte[]) stack.getPixels(z);
+			for (int i = 0; i < resultSlice.length; i++) {
+				if ((pixels[i] & 0xFF) >= LocalThickness.THRESHOLD) {
+					assertEquals("Wrong thickness of a calibrated cube", 2.0f, resultSlice[i], 0.0f);
+				} else {
+					assertTrue("Background should be NaN", Float.isNaN(resultSlice[i]));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testWeightedSquaredDistanceMapMatchesBruteForce() throws Exception {
+		final int width = 8;
+		final int height = 6;
+		final int depth = 5;
+		final double[] spacing = { 1.0, 1.5, 3.0 };
+		final byte[][] pixels = new byte[depth][width * height];
+		final Random random = new Random(0xB0E);
+		for (byte[] slice : pixels) {
+			for (int i = 0; i < slice.length; i++) {
+				slice[i] = (byte) (random.nextInt(6) == 0 ? Common.BINARY_BLACK : Common.BINARY_WHITE);
+			}
+		}
+
+		float[][] map = LocalThickness.squaredDistanceMap(pixels, width, height, true, spacing);
+
+		for (int z = 0; z < depth; z++) {
+			for (int i = 0; i < width * height; i++) {
+				assertEquals("Wrong distance at (" + i % width + ", " + i / width + ", " + z + ")",
+						bruteForceDistance(pixels, width, height, i % width, i / width, z, spacing), map[z][i],
+						1e-4);
+			}
+		}
+	}
+
+	@Test
+	public void testWeightedTemplateOfIsotropicVoxelsMatchesTemplate() throws Exception {
+		final double[] spacing = { 1.0, 1.0, 1.0 };
+		for (int radiusSq = 1; radiusSq <= 200; radiusSq++) {
+			final int[] expected = LocalThickness.createTemplate(radiusSq);
+			final double[] template = LocalThickness.createWeightedTemplate(radiusSq, spacing);
+
+			for (int neighbour = 1; neighbour <= 7; neighbour++) {
+				final int steps = Integer.bitCount(neighbour);
+				assertEquals("Wrong template value of neighbour " + neighbour + ", squared radius " + radiusSq,
+						expected[steps - 1], template[neighbour - 1], 1e-9);
+			}
+		}
+	}
+
+	@Test
+	public void testMapsAgreeAtAnisotropyTolerance() throws Exception {
+		final int size = 14;
+		ImageStack stack = new ImageStack(size, size);
+		final Random random = new Random(0xB0E);
+		for (int z = 0; z < size; z++) {
+			ByteProcessor processor = new ByteProcessor(size, size);
+			for (int i = 0; i < size * size; i++) {
+				processor.set(i, random.nextInt(8) == 0 ? Common.BINARY_BLACK : Common.BINARY_WHITE);
+			}
+			stack.addSlice(processor);
+		}
+		final LocalThickness localThickness = new LocalThickness();
+
+		// spacing just inside and just outside the tolerance of 1e-3
+		for (double sign : new double[] { 1.0, -1.0 }) {
+			ImagePlus isotropic = new ImagePlus("Isotropic", stack);
+			isotropic.getCalibration().pixelDepth = 1.0 + sign * 0.0009;
+			ImagePlus anisotropic = new ImagePlus("Anisotropic", stack);
+			anisotropic.getCalibration().pixelDepth = 1.0 + sign * 0.0011;
+
+			ImageStack expected = localThickness.processImage(isotropic).getStack();
+			ImageStack actual = localThickness.processImage(anisotropic).getStack();
+
+			for (int z = 1; z <= size; z++) {
+				final float[] expectedSlice = (float[]) expected.getPixels(z);
+				final float[] actualSlice = (float[]) actual.getPixels(z);
+				for (int i = 0; i < expectedSlice.length; i++) {
+					assertEquals("Wrong thickness at (" + i % size + ", " + i / size + ", " + z + ")",
+							expectedSlice[i], actualSlice[i], 0.01);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testRidgeBySlabsMatchesRidgeOfWholeMap() throws Exception {
+		final int width = 10;
+		final int height = 8;
+		final int depth = 13;
+		final byte[][] pixels = new byte[depth][width * height];
+		final Random random = new Random(0xB0E);
+		for (byte[] slice : pixels) {
+			for (int i = 0; i < slice.length; i++) {
+				slice[i] = (byte) (random.nextInt(6) == 0 ? Common.BINARY_BLACK : Common.BINARY_WHITE);
+			}
+		}
+
+		for (double[] spacing : new double[][] { { 1.0, 1.0, 1.0 }, { 1.0, 1.5, 3.0 } }) {
+			for (boolean foreground : new boolean[] { true, false }) {
+				LocalThickness.Ridge expected = LocalThickness.findRidge(pixels, width, height, foreground, spacing);
+				for (int slabs : new int[] { 1, 3, depth }) {
+					LocalThickness.Ridge ridge = LocalThickness.findRidgeBySlabs(pixels, width, height, foreground,
+							spacing, slabs);
+					for (int z = 0; z < depth; z++) {
+						assertArrayEquals("Wrong ridge points on slice " + z, expected.indices[z], ridge.indices[z]);
+						assertArrayEquals("Wrong radii on slice " + z, expected.radiiSq[z], ridge.radiiSq[z], 1e-4);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testAnisotropicPlateMatchesIsotropicPlate() throws Exception {
+		final int plateThickness = 8;
+		ImagePlus isotropic = createPlate(30, 30, plateThickness, 4);
+		ImagePlus anisotropic = createPlate(30, 30, plateThickness / 2, 2);
+		anisotropic.getCalibration().pixelDepth = 2.0;
+
+		LocalThickness localThickness = new LocalThickness();
+		final double isotropicMean = new StackStatistics(localThickness.processImage(isotropic)).mean;
+		final double anisotropicMean = new StackStatistics(localThickness.processImage(anisotropic)).mean;
+
+		assertEquals("Anisotropic plate should be as thick as the isotropic one", isotropicMean, anisotropicMean,
+				2.0);
+	}
+
+	@Test
+	public void testThicknessOfPlate() throws Exception {
+		final int plateThickness = 6;
+		ImagePlus image = createPlate(30, 30, plateThickness, 4);
+
+		ImagePlus result = new LocalThickness().processImage(image);
+		StackStatistics statistics = new StackStatistics(result);
+
+		assertEquals("Result has wrong depth", image.getStackSize(), result.getStackSize());
+		assertEquals("Mean thickness of a plate should be close to its thickness", plateThickness, statistics.mean,
+				1.0);
+		assertTrue("Max thickness of a plate should be close to its thickness",
+				statistics.max <= plateThickness + 1.0);
+	}
+
+	@Test
+	public void testThicknessIsCalibrated() throws Exception {
+		final double pixelWidth = 0.5;
+		ImagePlus image = createPlate(20, 20, 6, 4);
+		Calibration calibration = image.getCalibration();
+		calibration.pixelWidth = pixelWidth;
+		calibration.pixelHeight = pixelWidth;
+		calibration.pixelDepth = pixelWidth;
+
+		LocalThickness localThickness = new LocalThickness();
+		final double calibratedMean = new StackStatistics(localThickness.processImage(image)).mean;
+		localThickness.setCalibratePixels(false);
+		final double rawMean = new StackStatistics(localThickness.processImage(image)).mean;
+
+		assertEquals("Calibrated thickness should be scaled by pixel width", rawMean * pixelWidth, calibratedMean,
+				1e-6);
+	}
+
+	@Test
+	public void testSpacingMapsBackground() throws Exception {
+		ImagePlus image = StaticTestImageHelper.createCuboid(10, 10, 10, Common.BINARY_WHITE, 5);
+
+		LocalThickness localThickness = new LocalThickness();
+		localThickness.setForeground(false);
+		localThickness.setTitleSuffix("_Sp");
+		ImagePlus result = localThickness.processImage(image);
+
+		final int centre = image.getWidth() / 2 + image.getHeight() / 2 * image.getWidth();
+		final float[] centreSlice = (float[]) result.getStack().getPixels(image.getStackSize() / 2);
+		assertTrue("Foreground should be masked from the spacing map", Float.isNaN(centreSlice[centre]));
+		assertTrue("Background should have spacing", new StackStatistics(result).mean > 0);
+		assertTrue("Wrong title", result.getTitle().endsWith("_Sp"));
+	}
+
+	@Test
+	public void testStatisticsEqualStatisticsOfMap() throws Exception {
+		// deep enough to need several chunks of slices
+		ImagePlus image = createPlate(16, 16, 64, 3);
+		for (boolean mask : new boolean[] { true, false }) {
+			LocalThickness localThickness = new LocalThickness();
+			localThickness.setMaskThicknessMap(mask);
+
+			StackStatistics expected = new StackStatistics(localThickness.processImage(image));
+			StreamingStatistics statistics = localThickness.calculateStatistics(image, 16);
+
+			assertEquals("Wrong number of values", expected.longPixelCount, statistics.getCount());
+			assertEquals("Wrong mean", expected.mean, statistics.getMean(), 1e-4);
+			assertEquals("Wrong standard deviation", expected.stdDev, statistics.getStdDev(), 1e-4);
+			assertEquals("Wrong max", expected.max, statistics.getMax(), 1e-4);
+			assertEquals("Histogram should have all values", statistics.getCount(), sum(statistics.getHistogram()));
+		}
+	}
+
+	// region -- Helper methods --
+	private static long sum(long[] values) {
+		long sum = 0;
+		for (long value : values) {
+			sum += value;
+		}
+		return sum;
+	}
+
+	private static ImagePlus createPlate(int width, int height, int thickness, int padding) {
+		final int depth = thickness + 2 * padding;
+		ImageStack stack = new ImageStack(width, height);
+		for (int z = 0; z < depth; z++) {
+			ByteProcessor processor = new ByteProcessor(width, height);
+			if (z >= padding && z < padding + thickness) {
+				processor.setColor(Common.BINARY_WHITE);
+				processor.fill();
+			}
+			stack.addSlice(processor);
+		}
+		return new ImagePlus("Plate", stack);
+	}
+
+	private static double bruteForceDistance(byte[][] pixels, int width, int height, int x, int y, int z,
+			double[] spacing) {
+		if ((pixels[z][y * width + x] & 0xFF) < LocalThickness.THRESHOLD) {
+			return 0.0;
+		}
+
+		double min = Double.POSITIVE_INFINITY;
+		for (int k = 0; k < pixels.length; k++) {
+			for (int j = 0; j < height; j++) {
+				for (int i = 0; i < width; i++) {
+					if ((pixels[k][j * width + i] & 0xFF) < LocalThickness.THRESHOLD) {
+						final double dx = (i - x) * spacing[0];
+						final double dy = (j - y) * spacing[1];
+						final double dz = (k - z) * spacing[2];
+						min = Math.min(min, dx * dx + dy * dy + dz * dz);
+					}
+				}
+			}
+		}
+		return min;
+	}
+
+	private static int bruteForceDistance(byte[][] pixels, int width, int height, int x, int y, int z) {
+		if ((pixels[z][y * width + x] & 0xFF) < LocalThickness.THRESHOLD) {
+			return 0;
+		}
+
+		int min = Integer.MAX_VALUE;
+		for (int k = 0; k < pixels.length; k++) {
+			for (int j = 0; j < height; j++) {
+				for (int i = 0; i < width; i++) {
+					if ((pixels[k][j * width + i] & 0xFF) < LocalThickness.THRESHOLD) {
+						min = Math.min(min, (i - x) * (i - x) + (j - y) * (j - y) + (k - z) * (k - z));
+					}
+				}
+			}
+		}
+		return min;
+	}
+	// endregion
+}
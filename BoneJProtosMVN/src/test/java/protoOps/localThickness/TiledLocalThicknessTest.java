@@ -0,0 +1,192 @@
+package protoOps.localThickness;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Random;
+
+import org.bonej.common.Common;
+import org.bonej.common.MappedVolume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import protoOps.testImageCreators.StaticTestImageHelper;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Unit tests for the TiledLocalThickness class
+ */
+public class TiledLocalThicknessTest {
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructorThrowsIllegalArgumentExceptionIfBlockSizeIsNotPositive() throws Exception {
+		new TiledLocalThickness(new LocalThickness(), 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testProcessImageThrowsIllegalArgumentExceptionIfHaloExceedsMemoryBudget() throws Exception {
+		// no background, so the halo grows until it covers the whole image
+		final ImagePlus image = StaticTestImageHelper.createCuboid(60, 60, 60, Common.BINARY_WHITE, 0);
+		final TiledLocalThickness tiledLocalThickness = new TiledLocalThickness(new LocalThickness(), 8);
+		tiledLocalThickness.setMemoryBudget(1 << 20);
+
+		tiledLocalThickness.processImage(image, temporaryFolder.newFile());
+	}
+
+	@Test
+	public void testTiledMapEqualsMapInMemory() throws Exception {
+		final ImagePlus image = createSpheres(40, 36, 30);
+		final LocalThickness localThickness = new LocalThickness();
+
+		assertTiledMapEqualsMapInMemory(image, localThickness);
+	}
+
+	@Test
+	public void testTiledSpacingMapEqualsMapInMemory() throws Exception {
+		final ImagePlus image = createSpheres(40, 36, 30);
+		final LocalThickness localThickness = new LocalThickness();
+		localThickness.setForeground(false);
+
+		assertTiledMapEqualsMapInMemory(image, localThickness);
+	}
+
+	@Test
+	public void testTiledAnisotropicMapEqualsMapInMemory() throws Exception {
+		final ImagePlus image = createSpheres(40, 36, 30);
+		final Calibration calibration = image.getCalibration();
+		calibration.pixelWidth = 0.5;
+		calibration.pixelHeight = 0.5;
+		calibration.pixelDepth = 0.8;
+
+		assertTiledMapEqualsMapInMemory(image, new LocalThickness());
+	}
+
+	@Test
+	public void testVirtualStackIsReadOncePerSlice() throws Exception {
+		final ImagePlus image = createSpheres(40, 36, 30);
+		final CountingStack countingStack = new CountingStack(image.getStack());
+		final ImagePlus virtualImage = new ImagePlus("Virtual spheres", countingStack);
+		countingStack.reads = 0;
+		final LocalThickness localThickness = new LocalThickness();
+		final ImageStack expected = localThickness.processImage(image).getStack();
+
+		try (MappedVolume volume = new TiledLocalThickness(localThickness, 8).processImage(virtualImage,
+				temporaryFolder.newFile())) {
+			assertEquals("Each slice should be read once", 30, countingStack.reads);
+			for (int z = 0; z < volume.getDepth(); z++) {
+				assertArrayEquals("Slice " + (z + 1) + " differs", (float[]) expected.getPixels(z + 1),
+						(float[]) volume.getSlice(z), 0.0f);
+			}
+		}
+		assertEquals("Temporary copy should be deleted", 1, temporaryFolder.getRoot().list().length);
+	}
+
+	@Test
+	public void testCreateImage() throws Exception {
+		final ImagePlus image = createSpheres(12, 10, 8);
+		image.getCalibration().pixelWidth = 0.25;
+		final TiledLocalThickness tiledLocalThickness = new TiledLocalThickness(new LocalThickness(), 5);
+
+		try (MappedVolume volume = tiledLocalThickness.processImage(image,
+				temporaryFolder.newFile("map.raw"))) {
+			final ImagePlus result = tiledLocalThickness.createImage(image, volume);
+
+			assertEquals("Wrong title", image.getShortTitle() + LocalThickness.DEFAULT_TITLE_SUFFIX,
+					result.getTitle());
+			assertEquals("Wrong depth", 8, result.getNSlices());
+			assertEquals("Calibration should be copied", 0.25, result.getCalibration().pixelWidth, 1e-12);
+		}
+	}
+
+	// region -- Helper methods --
+	private void assertTiledMapEqualsMapInMemory(ImagePlus image, LocalThickness localThickness)
+			throws Exception {
+		final File file = temporaryFolder.newFile();
+		final ImageStack expected = localThickness.processImage(image).getStack();
+
+		try (MappedVolume volume = new TiledLocalThickness(localThickness, 8).processImage(image, file)) {
+			for (int z = 0; z < volume.getDepth(); z++) {
+				assertArrayEquals("Slice " + (z + 1) + " differs", (float[]) expected.getPixels(z + 1),
+						(float[]) volume.getSlice(z), 0.0f);
+			}
+		}
+	}
+
+	/**
+	 * A virtual stack over a stack in memory, which counts the slices read
+	 */
+	private static final class CountingStack extends VirtualStack {
+		private final ImageStack stack;
+		private int reads = 0;
+
+		private CountingStack(ImageStack stack) {
+			super(stack.getWidth(), stack.getHeight(), null, null);
+			this.stack = stack;
+		}
+
+		@Override
+		public int getSize() {
+			return stack.getSize();
+		}
+
+		@Override
+		public int getBitDepth() {
+			return 8;
+		}
+
+		@Override
+		public ImageProcessor getProcessor(int n) {
+			reads++;
+			return stack.getProcessor(n).duplicate();
+		}
+
+		@Override
+		public Object getPixels(int n) {
+			return getProcessor(n).getPixels();
+		}
+	}
+
+	/**
+	 * Creates an image of overlapping spheres of different sizes, so that the
+	 * structures cross the borders of the blocks
+	 */
+	private static ImagePlus createSpheres(int width, int height, int depth) {
+		final ImageStack stack = new ImageStack(width, height);
+		for (int z = 0; z < depth; z++) {
+			stack.addSlice(new ByteProcessor(width, height));
+		}
+
+		final Random random = new Random(0xB0E);
+		for (int i = 0; i < 12; i++) {
+			final int cx = random.nextInt(width);
+			final int cy = random.nextInt(height);
+			final int cz = random.nextInt(depth);
+			final int r = 2 + random.nextInt(7);
+			for (int z = 0; z < depth; z++) {
+				final byte[] pixels = (byte[]) stack.getPixels(z + 1);
+				for (int y = 0; y < height; y++) {
+					for (int x = 0; x < width; x++) {
+						final int dx = x - cx;
+						final int dy = y - cy;
+						final int dz = z - cz;
+						if (dx * dx + dy * dy + dz * dz <= r * r) {
+							pixels[y * width + x] = (byte) Common.BINARY_WHITE;
+						}
+					}
+				}
+			}
+		}
+
+		return new ImagePlus("Spheres", stack);
+	}
+	// endregion
+}
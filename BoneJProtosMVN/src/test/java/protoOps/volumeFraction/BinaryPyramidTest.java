@@ -0,0 +1,128 @@
+package protoOps.volumeFraction;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Unit tests for the BinaryPyramid class
+ */
+public class BinaryPyramidTest {
+	private static final int WIDTH = 13;
+	private static final int HEIGHT = 14;
+	private static final int DEPTH = 11;
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructorThrowsIllegalArgumentExceptionIfStackIsNot8Or16Bit() throws Exception {
+		ImageStack stack = new ImageStack(2, 2);
+		stack.addSlice(new ij.process.FloatProcessor(2, 2));
+
+		new BinaryPyramid(stack, 1, 255);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testGetMaskThrowsIllegalArgumentExceptionIfFactorIsTooLarge() throws Exception {
+		new BinaryPyramid(createRandomStack(), 1, 255).getMask(BinaryPyramid.MAX_FACTOR + 1,
+				BinaryPyramid.Rule.MAJORITY);
+	}
+
+	@Test
+	public void testMasksMatchBruteForce() throws Exception {
+		final ImageStack stack = createRandomStack();
+		final BinaryPyramid pyramid = new BinaryPyramid(stack, 100, 30000);
+
+		// 4 and 6 are derived from the cached levels 2 and 3
+		for (int factor : new int[] { 1, 2, 3, 4, 6, 5 }) {
+			for (BinaryPyramid.Rule rule : BinaryPyramid.Rule.values()) {
+				byte[][] expected = bruteForceMask(stack, 100, 30000, factor, rule);
+				byte[][] mask = pyramid.getMask(factor, rule);
+
+				assertEquals("Wrong mask depth", expected.length, mask.length);
+				for (int z = 0; z < expected.length; z++) {
+					assertArrayEquals("Wrong mask at factor " + factor + ", rule " + rule + ", slice " + z,
+							expected[z], mask[z]);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testLevelIsDerivedFromCache() throws Exception {
+		final ImageStack stack = new ImageStack(8, 8);
+		for (int z = 0; z < 8; z++) {
+			ByteProcessor processor = new ByteProcessor(8, 8);
+			processor.setColor(0xFF);
+			processor.fill();
+			stack.addSlice(processor);
+		}
+		final BinaryPyramid pyramid = new BinaryPyramid(stack, 1, 255);
+		pyramid.getMask(2, BinaryPyramid.Rule.ANY);
+
+		// the change in the stack is not seen, because level 2 is cached
+		for (int z = 1; z <= 8; z++) {
+			((ByteProcessor) stack.getProcessor(z)).setColor(0);
+			stack.getProcessor(z).fill();
+		}
+		byte[][] mask = pyramid.getMask(4, BinaryPyramid.Rule.ANY);
+
+		assertEquals("Mask should be derived from cached level", 1, mask[0][0]);
+
+		pyramid.clear();
+		mask = pyramid.getMask(4, BinaryPyramid.Rule.ANY);
+
+		assertEquals("Mask should be read from the stack after clear", 0, mask[0][0]);
+	}
+
+	// region -- Helper methods --
+	private static ImageStack createRandomStack() {
+		final Random random = new Random(0xB0E);
+		final ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+		for (int z = 0; z < DEPTH; z++) {
+			short[] pixels = new short[WIDTH * HEIGHT];
+			for (int i = 0; i < pixels.length; i++) {
+				pixels[i] = (short) random.nextInt(40000);
+			}
+			stack.addSlice(new ShortProcessor(WIDTH, HEIGHT, pixels, null));
+		}
+		return stack;
+	}
+
+	private static byte[][] bruteForceMask(ImageStack stack, int min, int max, int factor,
+			BinaryPyramid.Rule rule) {
+		final int width = (stack.getWidth() + factor - 1) / factor;
+		final int height = (stack.getHeight() + factor - 1) / factor;
+		final int depth = (stack.getSize() + factor - 1) / factor;
+		final byte[][] mask = new byte[depth][width * height];
+
+		for (int z = 0; z < depth; z++) {
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					int inside = 0;
+					int total = 0;
+					for (int k = z * factor; k < Math.min(stack.getSize(), (z + 1) * factor); k++) {
+						for (int j = y * factor; j < Math.min(stack.getHeight(), (y + 1) * factor); j++) {
+							for (int i = x * factor; i < Math.min(stack.getWidth(), (x + 1) * factor); i++) {
+								int value = stack.getProcessor(k + 1).get(i, j);
+								if (value >= min && value <= max) {
+									inside++;
+								}
+								total++;
+							}
+						}
+					}
+					boolean isInside = rule == BinaryPyramid.Rule.ANY ? inside > 0 : 2 * inside >= total;
+					mask[z][y * width + x] = (byte) (isInside ? 1 : 0);
+				}
+			}
+		}
+		return mask;
+	}
+	// endregion
+}
@@ -0,0 +1,235 @@
+package protoOps.volumeFraction;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import javax.vecmath.Point3f;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+
+/**
+ * Unit tests for the MarchingCubes class
+ */
+public class MarchingCubesTest {
+	private static final double[] UNIT_VOXEL = { 1.0, 1.0, 1.0 };
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructorThrowsIllegalArgumentExceptionIfMaskDoesNotMatchDimensions() throws Exception {
+		new MarchingCubes(new byte[2][10], 3, 3, UNIT_VOXEL);
+	}
+
+	@Test
+	public void testEmptyMaskHasNoSurface() throws Exception {
+		MarchingCubes.Surface surface = new MarchingCubes(new byte[3][9], 3, 3, UNIT_VOXEL).createSurface();
+
+		assertEquals("Empty mask should have no triangles", 0, surface.getMesh().getTriangleCount());
+		assertEquals("Empty mask should have no volume", 0.0, surface.getVolume(), 1e-12);
+	}
+
+	@Test
+	public void testSingleVoxelIsOctahedron() throws Exception {
+		byte[][] mask = createCube(3, 1, 1);
+
+		MarchingCubes.Surface surface = new MarchingCubes(mask, 3, 3, UNIT_VOXEL).createSurface();
+
+		assertEquals("Octahedron should have 8 triangles", 8, surface.getMesh().getTriangleCount());
+		assertEquals("Octahedron should have 6 vertices", 6, surface.getMesh().getVertexCount());
+		assertEquals("Wrong volume", 1.0 / 6.0, surface.getVolume(), 1e-12);
+	}
+
+	@Test
+	public void testSingleVoxelArea() throws Exception {
+		// eight equilateral triangles with sides of sqrt(0.5)
+		byte[][] mask = createCube(3, 1, 1);
+
+		MarchingCubes.Surface surface = new MarchingCubes(mask, 3, 3, UNIT_VOXEL).createSurface();
+
+		assertEquals("Wrong area", Math.sqrt(3.0), surface.getArea(), 1e-12);
+	}
+
+	@Test
+	public void testMeasuredSurfaceEqualsCreatedSurface() throws Exception {
+		final Random random = new Random(0xB0E);
+		byte[][] mask = new byte[9][12 * 10];
+		for (byte[] slice : mask) {
+			for (int i = 0; i < slice.length; i++) {
+				slice[i] = (byte) (random.nextBoolean() ? 1 : 0);
+			}
+		}
+		MarchingCubes marchingCubes = new MarchingCubes(mask, 12, 10, new double[] { 0.5, 0.5, 1.5 });
+
+		MarchingCubes.Surface created = marchingCubes.createSurface();
+		MarchingCubes.Surface measured = marchingCubes.measureSurface();
+
+		assertNull("Measured surface should not have a mesh", measured.getMesh());
+		assertEquals("Volumes should be equal", created.getVolume(), measured.getVolume(), 1e-9);
+		assertEquals("Areas should be equal", created.getArea(), measured.getArea(), 1e-9);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMeasureLayersThrowsIllegalArgumentExceptionIfRangeIsInvalid() throws Exception {
+		new MarchingCubes(new byte[3][4], 2, 2, UNIT_VOXEL).measureLayers(-2, 3);
+	}
+
+	@Test
+	public void testMeasuredLayersAddUpToSurface() throws Exception {
+		final Random random = new Random(0xB0E);
+		byte[][] mask = new byte[9][12 * 10];
+		for (byte[] slice : mask) {
+			for (int i = 0; i < slice.length; i++) {
+				slice[i] = (byte) (random.nextBoolean() ? 1 : 0);
+			}
+		}
+		MarchingCubes marchingCubes = new MarchingCubes(mask, 12, 10, new double[] { 0.5, 0.5, 1.5 });
+
+		MarchingCubes.Surface surface = marchingCubes.measureSurface();
+		double volume = 0.0;
+		double area = 0.0;
+		for (int start = -1; start < 9; start += 3) {
+			MarchingCubes.Surface layers = marchingCubes.measureLayers(start, Math.min(9, start + 3));
+			volume += layers.getVolume();
+			area += layers.getArea();
+		}
+
+		assertEquals("Volumes of the layers should add up to the volume", surface.getVolume(), volume, 1e-9);
+		assertEquals("Areas of the layers should add up to the area", surface.getArea(), area, 1e-9);
+	}
+
+	@Test
+	public void testCubeVolume() throws Exception {
+		// a cube of n^3 voxels has a surface with chamfered edges and corners
+		final int n = 4;
+		final double expected = (n - 1) * (n - 1) * (n - 1) + 3 * (n - 1) * (n - 1) + 1.5 * (n - 1) + 1.0 / 6.0;
+		byte[][] mask = createCube(8, 2, n);
+
+		MarchingCubes.Surface surface = new MarchingCubes(mask, 8, 8, UNIT_VOXEL).createSurface();
+
+		assertEquals("Wrong volume", expected, surface.getVolume(), 1e-9);
+	}
+
+	@Test
+	public void testVolumeIsCalibrated() throws Exception {
+		byte[][] mask = createCube(8, 2, 4);
+		double[] voxelSize = { 0.5, 2.0, 3.0 };
+
+		double unitVolume = new MarchingCubes(mask, 8, 8, UNIT_VOXEL).createSurface().getVolume();
+		double volume = new MarchingCubes(mask, 8, 8, voxelSize).createSurface().getVolume();
+
+		assertEquals("Volume should be scaled by voxel volume", unitVolume * 3.0, volume, 1e-9);
+	}
+
+	@Test
+	public void testSurfaceOfRandomMaskIsClosedAndOriented() throws Exception {
+		final int width = 12;
+		final int height = 10;
+		final Random random = new Random(0xB0E);
+		byte[][] mask = new byte[9][width * height];
+		for (byte[] slice : mask) {
+			for (int i = 0; i < slice.length; i++) {
+				slice[i] = (byte) (random.nextBoolean() ? 1 : 0);
+			}
+		}
+
+		IndexedMesh mesh = new MarchingCubes(mask, width, height, UNIT_VOXEL).createSurface().getMesh();
+
+		// in a closed, consistently oriented surface each directed edge is
+		// matched by exactly one edge in the opposite direction. The vertices
+		// must be shared for the indices to match, also across slab seams.
+		int[] indices = mesh.getIndices();
+		Map<String, Integer> edgeBalance = new HashMap<>();
+		for (int i = 0; i < indices.length; i += 3) {
+			for (int j = 0; j < 3; j++) {
+				int a = indices[i + j];
+				int b = indices[i + (j + 1) % 3];
+				addEdge(edgeBalance, a + "-" + b, 1);
+				addEdge(edgeBalance, b + "-" + a, -1);
+			}
+		}
+		for (Map.Entry<String, Integer> entry : edgeBalance.entrySet()) {
+			assertEquals("Edge " + entry.getKey() + " is not matched", 0, entry.getValue().intValue());
+		}
+	}
+
+	@Test
+	public void testVerticesAreUnique() throws Exception {
+		byte[][] mask = createCube(8, 1, 5);
+
+		IndexedMesh mesh = new MarchingCubes(mask, 8, 8, UNIT_VOXEL).createSurface().getMesh();
+
+		Set<Point3f> vertices = new HashSet<>();
+		float[] coordinates = mesh.getVertices();
+		for (int i = 0; i < coordinates.length; i += 3) {
+			assertTrue("Duplicate vertex",
+					vertices.add(new Point3f(coordinates[i], coordinates[i + 1], coordinates[i + 2])));
+		}
+		assertEquals("Every triangle should have three points", mesh.getTriangleCount() * 3,
+				mesh.toTriangleList().size());
+	}
+
+	@Test
+	public void testSurfaceFromStackEqualsSurfaceFromMask() throws Exception {
+		final int width = 11;
+		final int height = 9;
+		final Random random = new Random(0xB0E);
+		ImageStack stack = new ImageStack(width, height);
+		byte[][] mask = new byte[7][width * height];
+		for (int z = 0; z < 7; z++) {
+			short[] pixels = new short[width * height];
+			for (int i = 0; i < pixels.length; i++) {
+				pixels[i] = (short) random.nextInt(60000);
+				mask[z][i] = (byte) ((pixels[i] & 0xFFFF) >= 20000 && (pixels[i] & 0xFFFF) <= 50000 ? 1 : 0);
+			}
+			stack.addSlice(new ShortProcessor(width, height, pixels, null));
+		}
+
+		IndexedMesh expected = new MarchingCubes(mask, width, height, UNIT_VOXEL).createSurface().getMesh();
+		IndexedMesh mesh = MarchingCubes.fromStack(stack, 20000, 50000, UNIT_VOXEL).createSurface().getMesh();
+
+		assertArrayEquals("Vertices differ", expected.getVertices(), mesh.getVertices(), 0.0f);
+		assertArrayEquals("Triangles differ", expected.getIndices(), mesh.getIndices());
+	}
+
+	@Test
+	public void testBoxVolume() throws Exception {
+		// a box of 5 x 6 x 7 voxels has chamfered edges and corners
+		final double expected = 4 * 5 * 6 + (4 * 5 + 5 * 6 + 4 * 6) + (4 + 5 + 6) / 2.0 + 1.0 / 6.0;
+
+		double volume = MarchingCubes.box(5, 6, 7, UNIT_VOXEL).measureSurface().getVolume();
+
+		assertEquals("Wrong volume", expected, volume, 1e-9);
+	}
+
+	// region -- Helper methods --
+	private static void addEdge(Map<String, Integer> edgeBalance, String key, int count) {
+		final Integer balance = edgeBalance.get(key);
+		edgeBalance.put(key, (balance == null ? 0 : balance) + count);
+	}
+
+	/**
+	 * Creates a mask of size^3 voxels with a cube of side voxels at (start,
+	 * start, start)
+	 */
+	private static byte[][] createCube(int size, int start, int side) {
+		byte[][] mask = new byte[size][size * size];
+		for (int z = start; z < start + side; z++) {
+			for (int y = start; y < start + side; y++) {
+				for (int x = start; x < start + side; x++) {
+					mask[z][y * size + x] = 1;
+				}
+			}
+		}
+		return mask;
+	}
+	// endregion
+}
@@ -0,0 +1,82 @@
+package protoOps.volumeFraction;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import ij.measure.ResultsTable;
+
+/**
+ * Unit tests for the VolumeFractionProfile class
+ */
+public class VolumeFractionProfileTest {
+	private static final long[] FOREGROUND = { 1, 2, 3, 4, 5, 0 };
+	private static final long[] TOTAL = { 10, 10, 10, 10, 10, 0 };
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructorThrowsIllegalArgumentExceptionIfLengthsDiffer() throws Exception {
+		new VolumeFractionProfile(new long[2], new long[3], 1.0, 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructorThrowsIllegalArgumentExceptionIfWindowIsZero() throws Exception {
+		new VolumeFractionProfile(FOREGROUND, TOTAL, 1.0, 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testGetForegroundCountThrowsIllegalArgumentExceptionIfRangeIsOutOfBounds() throws Exception {
+		new VolumeFractionProfile(FOREGROUND, TOTAL, 1.0, 1).getForegroundCount(0, 2);
+	}
+
+	@Test
+	public void testRangeCounts() throws Exception {
+		VolumeFractionProfile profile = new VolumeFractionProfile(FOREGROUND, TOTAL, 1.0, 1);
+
+		assertEquals("Wrong slice count", 6, profile.getSliceCount());
+		for (int first = 1; first <= FOREGROUND.length; first++) {
+			for (int last = first; last <= FOREGROUND.length; last++) {
+				long foreground = 0;
+				long total = 0;
+				for (int z = first; z <= last; z++) {
+					foreground += FOREGROUND[z - 1];
+					total += TOTAL[z - 1];
+				}
+				assertEquals("Wrong foreground count", foreground, profile.getForegroundCount(first, last));
+				assertEquals("Wrong total count", total, profile.getTotalCount(first, last));
+			}
+		}
+		assertEquals("Range without measured voxels should have NaN ratio", Double.NaN,
+				profile.getVolumeRatio(6, 6), 0.0);
+	}
+
+	@Test
+	public void testWindowsAreCutShortAtEnds() throws Exception {
+		VolumeFractionProfile profile = new VolumeFractionProfile(FOREGROUND, TOTAL, 1.0, 4);
+
+		assertEquals("Wrong window start", 1, profile.getWindowStart(1));
+		assertEquals("Wrong window end", 3, profile.getWindowEnd(1));
+		assertEquals("Wrong window start", 2, profile.getWindowStart(3));
+		assertEquals("Wrong window end", 5, profile.getWindowEnd(3));
+		assertEquals("Wrong window end", 6, profile.getWindowEnd(6));
+	}
+
+	@Test
+	public void testToResultsTable() throws Exception {
+		VolumeFractionProfile profile = new VolumeFractionProfile(FOREGROUND, TOTAL, 0.5, 3);
+
+		ResultsTable table = profile.toResultsTable();
+
+		assertEquals("Table should have a row for each slice", 6, table.getCounter());
+		assertEquals("Wrong slice number", 2.0, table.getValue(VolumeFractionProfile.SLICE_HEADING, 1), 0.0);
+		assertEquals("Wrong foreground volume", 1.0, table.getValue(VolumeFractionProfile.FOREGROUND_HEADING, 1),
+				1e-12);
+		assertEquals("Wrong total volume", 5.0, table.getValue(VolumeFractionProfile.TOTAL_HEADING, 1), 1e-12);
+		assertEquals("Wrong volume ratio", 0.2, table.getValue(VolumeFractionProfile.RATIO_HEADING, 1), 1e-12);
+		assertEquals("Wrong window foreground volume", 3.0,
+				table.getValue(VolumeFractionProfile.WINDOW_FOREGROUND_HEADING, 1), 1e-12);
+		assertEquals("Wrong window total volume", 15.0,
+				table.getValue(VolumeFractionProfile.WINDOW_TOTAL_HEADING, 1), 1e-12);
+		assertEquals("Wrong window volume ratio", 5.0 / 10.0,
+				table.getValue(VolumeFractionProfile.WINDOW_RATIO_HEADING, 5), 1e-12);
+	}
+}
@@ -0,0 +1,170 @@
+package protoOps.volumeFraction;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Random;
+
+import org.bonej.common.RoiMask;
+import org.junit.Test;
+
+import ij.ImageStack;
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.plugin.frame.RoiManager;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Unit tests for the VoxelCounter class
+ */
+public class VoxelCounterTest {
+	@Test(expected = NullPointerException.class)
+	public void testCountInRangeThrowsNullPointerExceptionIfStackIsNull() throws Exception {
+		VoxelCounter.countInRange(null, 0, 255);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCountInRangeThrowsIllegalArgumentExceptionIfStackIs32Bit() throws Exception {
+		ImageStack stack = new ImageStack(2, 2);
+		stack.addSlice(new FloatProcessor(2, 2));
+
+		VoxelCounter.countInRange(stack, 0, 255);
+	}
+
+	@Test
+	public void testCountInRange8Bit() throws Exception {
+		final Random random = new Random(0xB0E);
+		ImageStack stack = new ImageStack(13, 11);
+		for (int z = 0; z < 9; z++) {
+			byte[] pixels = new byte[13 * 11];
+			random.nextBytes(pixels);
+			stack.addSlice(new ByteProcessor(13, 11, pixels));
+		}
+
+		for (int[] range : new int[][] { { 0, 255 }, { 200, 255 }, { 17, 130 }, { 100, 99 } }) {
+			assertEquals("Wrong count in range [" + range[0] + ", " + range[1] + "]",
+					bruteForceCount(stack, range[0], range[1]), VoxelCounter.countInRange(stack, range[0], range[1]));
+		}
+	}
+
+	@Test
+	public void testCountInRange16Bit() throws Exception {
+		final Random random = new Random(0xB0E);
+		ImageStack stack = new ImageStack(13, 11);
+		for (int z = 0; z < 9; z++) {
+			short[] pixels = new short[13 * 11];
+			for (int i = 0; i < pixels.length; i++) {
+				pixels[i] = (short) random.nextInt(0x10000);
+			}
+			stack.addSlice(new ShortProcessor(13, 11, pixels, null));
+		}
+
+		for (int[] range : new int[][] { { 0, 0xFFFF }, { 0x8000, 0xFFFF }, { 1000, 40000 } }) {
+			assertEquals("Wrong count in range [" + range[0] + ", " + range[1] + "]",
+					bruteForceCount(stack, range[0], range[1]), VoxelCounter.countInRange(stack, range[0], range[1]));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCountInRangeThrowsIllegalArgumentExceptionIfMaskDoesNotMatch() throws Exception {
+		RoiMask mask = compileMask(createRandomStack(13, 11, 9), createRoi(new Roi(1, 1, 4, 4), "ALL_SLICES"));
+
+		VoxelCounter.countInRange(createRandomStack(13, 11, 8), mask, 0, 255);
+	}
+
+	@Test
+	public void testCountInRangeInsideMask() throws Exception {
+		ImageStack stack = createRandomStack(13, 11, 9);
+		RoiMask mask = compileMask(stack, createRoi(new OvalRoi(2, 1, 8, 7), "ALL_SLICES"),
+				createRoi(new Roi(5, 4, 8, 7), "0003-0000-0001"), createRoi(new Roi(0, 0, 13, 11), "0007-0000-0002"));
+
+		for (int[] range : new int[][] { { 0, 255 }, { 200, 255 }, { 17, 130 }, { 100, 99 } }) {
+			long expected = 0;
+			for (int z = 1; z <= stack.getSize(); z++) {
+				for (int y = 0; y < stack.getHeight(); y++) {
+					for (int x = 0; x < stack.getWidth(); x++) {
+						final int value = stack.getProcessor(z).get(x, y);
+						if (mask.contains(x, y, z) && value >= range[0] && value <= range[1]) {
+							expected++;
+						}
+					}
+				}
+			}
+
+			assertEquals("Wrong count inside the mask in range [" + range[0] + ", " + range[1] + "]", expected,
+					VoxelCounter.countInRange(stack, mask, range[0], range[1]));
+		}
+	}
+
+	@Test
+	public void testCountInRangeWholeStackMask() throws Exception {
+		ImageStack stack = createRandomStack(13, 11, 9);
+		RoiMask mask = compileMask(stack, createRoi(new Roi(0, 0, 13, 11), "ALL_SLICES"));
+
+		assertEquals("A mask covering the stack should count all of it", VoxelCounter.countInRange(stack, 17, 130),
+				VoxelCounter.countInRange(stack, mask, 17, 130));
+	}
+
+	@Test
+	public void testCountSlicesInRange() throws Exception {
+		ImageStack stack = createRandomStack(13, 11, 9);
+		RoiMask mask = compileMask(stack, createRoi(new OvalRoi(2, 1, 8, 7), "0004-0000-0001"));
+
+		long[] counts = VoxelCounter.countSlicesInRange(stack, 17, 130);
+		long[] maskCounts = VoxelCounter.countSlicesInRange(stack, mask, 17, 130);
+
+		assertEquals("Wrong number of slices", 9, counts.length);
+		for (int z = 1; z <= 9; z++) {
+			ImageStack slice = new ImageStack(13, 11);
+			slice.addSlice(stack.getProcessor(z));
+			assertEquals("Wrong count on slice " + z, bruteForceCount(slice, 17, 130), counts[z - 1]);
+			if (z != 4) {
+				assertEquals("Slice without spans should have no count", 0, maskCounts[z - 1]);
+			}
+		}
+		assertEquals("Wrong count inside the mask", VoxelCounter.countInRange(stack, mask, 17, 130), maskCounts[3]);
+	}
+
+	// region -- Helper methods --
+	private static ImageStack createRandomStack(int width, int height, int depth) {
+		final Random random = new Random(0xB0E);
+		ImageStack stack = new ImageStack(width, height);
+		for (int z = 0; z < depth; z++) {
+			byte[] pixels = new byte[width * height];
+			random.nextBytes(pixels);
+			stack.addSlice(new ByteProcessor(width, height, pixels));
+		}
+		return stack;
+	}
+
+	private static RoiMask compileMask(ImageStack stack, Roi... rois) {
+		RoiManager roiManager = mock(RoiManager.class);
+		when(roiManager.getSliceNumber(anyString())).thenCallRealMethod();
+		when(roiManager.getCount()).thenReturn(rois.length);
+		when(roiManager.getRoisAsArray()).thenReturn(rois);
+		return RoiMask.compile(roiManager, stack);
+	}
+
+	private static Roi createRoi(Roi roi, String name) {
+		roi.setName(name);
+		return roi;
+	}
+
+	private static long bruteForceCount(ImageStack stack, int min, int max) {
+		long count = 0;
+		for (int z = 1; z <= stack.getSize(); z++) {
+			for (int i = 0; i < stack.getWidth() * stack.getHeight(); i++) {
+				final int value = stack.getProcessor(z).get(i);
+				if (value >= min && value <= max) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+	// endregion
+}